@@ -2,18 +2,48 @@ package top.gtf35.bleserial;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
-
+import top.gtf35.bleserial.core.CallbackDispatcher;
+import top.gtf35.bleserial.core.DelimiterFrameDecoder;
+import top.gtf35.bleserial.core.FailoverTransport;
+import top.gtf35.bleserial.core.FileTransfer;
+import top.gtf35.bleserial.core.FlowControl;
+import top.gtf35.bleserial.core.FrameCheck;
+import top.gtf35.bleserial.core.FrameDecoder;
+import top.gtf35.bleserial.core.FramePublisher;
+import top.gtf35.bleserial.core.RacingTransport;
+import top.gtf35.bleserial.core.ReconnectPolicy;
+import top.gtf35.bleserial.core.RequestClient;
+import top.gtf35.bleserial.core.ResponseCorrelator;
+import top.gtf35.bleserial.core.SendQueue;
+import top.gtf35.bleserial.core.SerialLog;
+import top.gtf35.bleserial.core.SerialSession;
+import top.gtf35.bleserial.core.SerialTransport;
+import top.gtf35.bleserial.core.SessionMetrics;
+import top.gtf35.bleserial.core.SessionRecorder;
+import top.gtf35.bleserial.core.TimerWheel;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Formatter;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -25,11 +55,59 @@ import java.util.UUID;
  * @author gtf35 gtf@gtf35.top
  */
 class BLESPPUtils {
-    private static boolean mEnableLogOut = false;
+    // 多久没再搜索到的设备从缓存里移除
+    private static final long DEVICE_TTL_MS = 5 * 60 * 1000;
+    // 最多记住几个最近连接的设备
+    private static final int RECENT_DEVICES = 8;
+
+    static {
+        // 日志输出到 logcat
+        SerialLog.setSink(new SerialLog.Sink() {
+            @Override
+            public void log(int level, String tag, String msg, Throwable tr) {
+                Log.println(level, tag, tr == null ? msg : msg + "\n" + Log.getStackTraceString(tr));
+            }
+        });
+    }
+
     private Context mContext;
     private BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
     private OnBluetoothAction mOnBluetoothAction;
-    private ConnectTask mConnectTask = new ConnectTask();
+    // 搜索到的设备，刷新时不用等广播就能显示
+    private final DeviceCache mDeviceCache = new DeviceCache(DEVICE_TTL_MS);
+    // 连接成功过的设备，下次可以不搜索直接连接
+    private final RecentDevices mRecentDevices;
+    // 连接蓝牙设备的方式，为 null 时只用 SPP UUID 加密连接
+    private volatile ConnectStrategy mConnectStrategy;
+    // 读取循环和发送任务用的线程，没有连接时线程会自动退出
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "BLESPPUtils");
+        }
+    });
+    private volatile SerialSession mSession;
+    private FrameDecoder mFrameDecoder = new DelimiterFrameDecoder("\r\n".getBytes());
+    private SerialSession.OnReceiveBuffer mOnReceiveBuffer;
+    private FramePublisher mFramePublisher;
+    private int mSendQueueCapacity = 64;
+    private int mSendMaxBatchBytes = 512;
+    private long mSendMaxDelayMs = 0;
+    private ReconnectPolicy mReconnectPolicy;
+    private boolean mReplayUnacknowledged = false;
+    private FlowControl mFlowControl;
+    private FrameCheck mFrameCheck;
+    private SerialSession.OnBadFrame mOnBadFrame;
+    private volatile SessionRecorder mRecorder;
+    private ResponseCorrelator mCorrelator;
+    private int mRequestWindow = 1;
+    private volatile RequestClient mRequestClient;
+    private Executor mCallbackExecutor;
+    private int mCallbackCapacity = 256;
+    private CallbackDispatcher.OverflowPolicy mCallbackOverflowPolicy = CallbackDispatcher.OverflowPolicy.BLOCK;
+    // 定时推送统计用，第一次设置监听时才创建
+    private ScheduledExecutorService mMetricsScheduler;
+    private ScheduledFuture<?> mMetricsTask;
 
     /**
      * 搜索到新设备广播广播接收器
@@ -39,7 +117,11 @@ class BLESPPUtils {
             String action = intent.getAction();
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                if (mOnBluetoothAction != null) mOnBluetoothAction.onFoundDevice(device);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceCache.RSSI_UNKNOWN);
+                // 同一个设备会广播多次，只有第一次通知，之后只更新信号强度
+                if (mDeviceCache.onFound(device, rssi) && mOnBluetoothAction != null) {
+                    mOnBluetoothAction.onFoundDevice(device);
+                }
             }
         }
     };
@@ -56,140 +138,6 @@ class BLESPPUtils {
         }
     };
 
-    /**
-     * 连接任务
-     */
-    private static class ConnectTask extends AsyncTask<String, Byte[], Void> {
-        private BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        BluetoothSocket bluetoothSocket;
-        BluetoothDevice romoteDevice;
-        OnBluetoothAction onBluetoothAction;
-        boolean isRunning = false;
-        String stopString = "\r\n";
-
-        @Override
-        protected Void doInBackground(String... bluetoothDevicesMac) {
-            // 记录标志位，开始运行
-            isRunning = true;
-
-            // 尝试获取 bluetoothSocket
-            try {
-                UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-                romoteDevice = bluetoothAdapter.getRemoteDevice(bluetoothDevicesMac[0]);
-                bluetoothSocket = romoteDevice.createRfcommSocketToServiceRecord(SPP_UUID);
-            } catch (Exception e) {
-                logD("获取Socket失败");
-                isRunning = false;
-                e.printStackTrace();
-                return null;
-            }
-
-            // 检查有没有获取到
-            if (bluetoothSocket == null) {
-                onBluetoothAction.onConnectFailed("连接失败:获取Socket失败");
-                isRunning = false;
-                return null;
-            }
-
-            // 尝试连接
-            try {
-                // 等待连接，会阻塞线程
-                bluetoothSocket.connect();
-                logD( "连接成功");
-                onBluetoothAction.onConnectSuccess(romoteDevice);
-            } catch (Exception connectException) {
-                connectException.printStackTrace();
-                logD("连接失败:" + connectException.getMessage());
-                onBluetoothAction.onConnectFailed("连接失败:" + connectException.getMessage());
-                return null;
-            }
-
-            // 开始监听数据接收
-            try {
-                InputStream inputStream = bluetoothSocket.getInputStream();
-                byte[] result = new byte[0];
-                while (isRunning) {
-                    logD("looping");
-                    byte[] buffer = new byte[256];
-                    // 等待有数据
-                    while (inputStream.available() == 0 && isRunning) {if (System.currentTimeMillis() < 0) break;}
-                    while (isRunning) {
-                        try {
-                            int num = inputStream.read(buffer);
-                            byte[] temp = new byte[result.length + num];
-                            System.arraycopy(result, 0, temp, 0, result.length);
-                            System.arraycopy(buffer, 0, temp, result.length, num);
-                            result = temp;
-                            if (inputStream.available() == 0) break;
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            onBluetoothAction.onConnectFailed("接收数据单次失败：" + e.getMessage());
-                            break;
-                        }
-                    }
-                    try {
-                        // 返回数据
-                        logD("当前累计收到的数据=>" + byte2Hex(result));
-                        byte[] stopFlag = stopString.getBytes();
-                        int stopFlagSize = stopFlag.length;
-                        boolean shouldCallOnReceiveBytes = false;
-                        logD("标志位为：" + byte2Hex(stopFlag));
-                        for (int i = stopFlagSize - 1; i >= 0; i--) {
-                            int indexInResult = result.length - (stopFlagSize - i);
-                            if (indexInResult >= result.length || indexInResult < 0) {
-                                shouldCallOnReceiveBytes = false;
-                                logD("收到的数据比停止字符串短");
-                                break;
-                            }
-                            if (stopFlag[i] == result[indexInResult]) {
-                                logD("发现" + byte2Hex(stopFlag[i]) + "等于" + byte2Hex(result[indexInResult]));
-                                shouldCallOnReceiveBytes = true;
-                            } else {
-                                logD("发现" + byte2Hex(stopFlag[i]) + "不等于" + byte2Hex(result[indexInResult]));
-                                shouldCallOnReceiveBytes = false;
-                            }
-                        }
-                        if (shouldCallOnReceiveBytes) {
-                            onBluetoothAction.onReceiveBytes(result);
-                            // 清空
-                            result = new byte[0];
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        onBluetoothAction.onConnectFailed("验证收到数据结束标志出错：" + e.getMessage());
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                onBluetoothAction.onConnectFailed("接收数据失败：" + e.getMessage());
-            }
-            return null;
-        }
-
-        @Override
-        protected void onCancelled() {
-            try {
-                logD("AsyncTask 开始释放资源");
-                isRunning = false;
-                bluetoothSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        /**
-         * 发送
-         *
-         * @param msg 内容
-         */
-        void send(byte[] msg) {
-            try {
-                bluetoothSocket.getOutputStream().write(msg);
-                onBluetoothAction.onSendBytes(msg);
-            } catch (Exception e){e.printStackTrace();}
-        }
-    }
-
     /**
      * 设置停止标志位字符串
      *
@@ -197,7 +145,16 @@ class BLESPPUtils {
      */
     @SuppressWarnings("SameParameterValue")
     void setStopString(String stopString) {
-        mConnectTask.stopString = stopString;
+        setFrameDecoder(new DelimiterFrameDecoder(stopString.getBytes()));
+    }
+
+    /**
+     * 设置帧解码器，替代停止标志位，用于长度字段、定长、SLIP、COBS 等协议
+     *
+     * @param frameDecoder 帧解码器
+     */
+    void setFrameDecoder(FrameDecoder frameDecoder) {
+        mFrameDecoder = frameDecoder;
     }
 
     /**
@@ -212,6 +169,7 @@ class BLESPPUtils {
 
         /**
          * 当连接成功
+         * @param device 设备，不是蓝牙传输层时为 null
          */
         void onConnectSuccess(BluetoothDevice device);
 
@@ -248,6 +206,30 @@ class BLESPPUtils {
     BLESPPUtils(Context context, OnBluetoothAction onBluetoothAction) {
         mContext = context;
         mOnBluetoothAction = onBluetoothAction;
+        mRecentDevices = new RecentDevices(
+                context.getSharedPreferences("BLESPPUtils", Context.MODE_PRIVATE), RECENT_DEVICES);
+    }
+
+    /**
+     * 设置零拷贝接收回调，高频数据下每帧不再分配数组
+     * 收到的帧只在回调期间有效，需要保留请用 {@link SerialSession#retain(ByteBuffer)}
+     *
+     * @param onReceiveBuffer 接收回调，传 null 恢复使用 onReceiveBytes
+     */
+    void setOnReceiveBuffer(SerialSession.OnReceiveBuffer onReceiveBuffer) {
+        mOnReceiveBuffer = onReceiveBuffer;
+        SerialSession session = mSession;
+        if (session != null) session.setOnReceiveBuffer(onReceiveBuffer);
+    }
+
+    /**
+     * 设置帧的发布者，收到的帧按订阅者 request 的数量交付，不再回调 onReceiveBytes
+     * 订阅者处理不过来时停止读取，由 RFCOMM 的流控让设备停下，下次连接时生效
+     *
+     * @param framePublisher 发布者，传 null 恢复使用 onReceiveBytes
+     */
+    void setFramePublisher(FramePublisher framePublisher) {
+        mFramePublisher = framePublisher;
     }
 
     /**
@@ -256,7 +238,7 @@ class BLESPPUtils {
     void onCreate() {
         IntentFilter foundFilter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         mContext.registerReceiver(mReceiver, foundFilter);
-        IntentFilter finishFilter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+        IntentFilter finishFilter = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         mContext.registerReceiver(mFinishFoundReceiver, finishFilter);
     }
 
@@ -266,8 +248,13 @@ class BLESPPUtils {
     void onDestroy() {
         try {
             logD("onDestroy，开始释放资源");
-            mConnectTask.isRunning = false;
-            mConnectTask.cancel(true);
+            // 先关闭 socket，阻塞在 read 上的接收线程才能及时退出
+            disconnect();
+            stopRecording();
+            mExecutor.shutdown();
+            synchronized (this) {
+                if (mMetricsScheduler != null) mMetricsScheduler.shutdownNow();
+            }
             mContext.unregisterReceiver(mReceiver);
             mContext.unregisterReceiver(mFinishFoundReceiver);
         } catch (Exception e) {e.printStackTrace();}
@@ -275,12 +262,25 @@ class BLESPPUtils {
 
     /**
      * 开始搜索
+     * 缓存里没过期的设备和已配对的设备马上通过 onFoundDevice 通知，之后只通知新搜索到的设备
      */
     void startDiscovery() {
         if (mBluetoothAdapter.isDiscovering()) mBluetoothAdapter.cancelDiscovery();
+        mDeviceCache.evictExpired();
+        mDeviceCache.onBonded(mBluetoothAdapter.getBondedDevices());
+        if (mOnBluetoothAction != null) {
+            for (DeviceCache.Entry entry : mDeviceCache.list()) mOnBluetoothAction.onFoundDevice(entry.device);
+        }
         mBluetoothAdapter.startDiscovery();
     }
 
+    /**
+     * 搜索到的设备，已配对的在前，其余按信号从强到弱
+     */
+    List<DeviceCache.Entry> getDevices() {
+        return mDeviceCache.list();
+    }
+
     /**
      * 使用搜索到的数据连接
      *
@@ -296,72 +296,466 @@ class BLESPPUtils {
      *
      * @param deviceMac 要连接的设备的 MAC
      */
-    private void connect(String deviceMac) {
-        if (mConnectTask.getStatus() == AsyncTask.Status.RUNNING && mConnectTask.isRunning) {
+    void connect(String deviceMac) {
+        connect(deviceMac, mConnectStrategy);
+    }
+
+    private void connect(String deviceMac, ConnectStrategy strategy) {
+        if (strategy == null) {
+            connect(new RfcommTransport(mBluetoothAdapter, deviceMac));
+        } else {
+            connect(strategy.createTransport(Collections.singletonList(deviceMac), mExecutor));
+        }
+    }
+
+    /**
+     * 设置连接蓝牙设备的方式，例如 ConnectStrategy.createDefault 依次错开尝试加密、不加密和固定通道
+     *
+     * @param strategy 连接策略，传 null 恢复只用 SPP UUID 加密连接
+     */
+    void setConnectStrategy(ConnectStrategy strategy) {
+        mConnectStrategy = strategy;
+    }
+
+    /**
+     * 不搜索，直接连接上次连接成功的设备
+     *
+     * @return 是否开始连接了，没有连接过的设备时返回 false
+     */
+    boolean connectLast() {
+        RecentDevices.Entry last = mRecentDevices.last();
+        if (last == null) return false;
+        logD("直接连接上次的设备:" + last);
+        ConnectStrategy strategy = mConnectStrategy;
+        // 先用上次连上的方式
+        if (strategy != null && last.mode != null) strategy = strategy.preferring(last.mode);
+        connect(last.address, strategy);
+        return true;
+    }
+
+    /**
+     * 不搜索，按顺序直接连接几个已知的设备，第一个连接成功的作为这次的连接
+     *
+     * @param deviceMacs 候选设备的 MAC，靠前的先试，例如 getRecentDevices 里的地址
+     */
+    void connectAny(List<String> deviceMacs) {
+        if (deviceMacs.isEmpty()) {
+            if (mOnBluetoothAction != null) mOnBluetoothAction.onConnectFailed("没有候选的设备");
+            return;
+        }
+        // 搜索会占用蓝牙，拖慢连接
+        mBluetoothAdapter.cancelDiscovery();
+        ConnectStrategy strategy = mConnectStrategy;
+        if (strategy != null) {
+            // 多个设备、多种方式一起竞速
+            connect(strategy.createTransport(deviceMacs, mExecutor));
+            return;
+        }
+        List<SerialTransport> candidates = new ArrayList<>();
+        for (String deviceMac : deviceMacs) candidates.add(new RfcommTransport(mBluetoothAdapter, deviceMac));
+        connect(new FailoverTransport(candidates));
+    }
+
+    /**
+     * 最近连接成功过的设备，最近的在前
+     */
+    List<RecentDevices.Entry> getRecentDevices() {
+        return mRecentDevices.list();
+    }
+
+    /**
+     * 用来显示的设备名
+     * 不搜索直接连接时系统可能还没有缓存设备名，这时用搜索结果或者最近连接时记下的名字，都没有的话用 MAC 地址
+     *
+     * @param device 设备
+     */
+    String getDeviceName(BluetoothDevice device) {
+        String name = getKnownName(device);
+        return name == null ? device.getAddress() : name;
+    }
+
+    /**
+     * 系统、搜索结果或者最近连接记下的设备名，都不知道时为 null
+     */
+    private String getKnownName(BluetoothDevice device) {
+        String name = device.getName();
+        if (name != null) return name;
+        DeviceCache.Entry cached = mDeviceCache.get(device.getAddress());
+        if (cached != null && cached.name != null) return cached.name;
+        RecentDevices.Entry recent = mRecentDevices.get(device.getAddress());
+        return recent == null ? null : recent.name;
+    }
+
+    /**
+     * 忘记一个最近连接的设备，connectLast 不再连接它
+     *
+     * @param deviceMac 设备的 MAC
+     */
+    void forgetDevice(String deviceMac) {
+        mRecentDevices.forget(deviceMac);
+    }
+
+    /**
+     * 使用指定的传输层连接，比如 TCP 或者内存回环
+     *
+     * @param transport 传输层
+     */
+    void connect(final SerialTransport transport) {
+        SerialSession lastSession = mSession;
+        if (lastSession != null && lastSession.isRunning()) {
             if (mOnBluetoothAction != null) mOnBluetoothAction.onConnectFailed("有正在连接的任务");
             return;
         }
-        mConnectTask.onBluetoothAction = mOnBluetoothAction;
-        try {
-            mConnectTask.execute(deviceMac);
-        } catch (Exception e) {e.printStackTrace();}
+        SerialSession.Callback callback = new SerialSession.Callback() {
+            @Override
+            public void onConnectSuccess() {
+                RfcommTransport rfcommTransport = getRfcommTransport(transport);
+                BluetoothDevice remoteDevice = rfcommTransport == null ? null : rfcommTransport.getDevice();
+                if (remoteDevice != null) {
+                    SerialSession session = mSession;
+                    long connectMs = session == null ? -1 : session.getMetrics().connectMs;
+                    mRecentDevices.add(remoteDevice.getAddress(), getKnownName(remoteDevice), connectMs,
+                            rfcommTransport.getMode());
+                }
+                mOnBluetoothAction.onConnectSuccess(remoteDevice);
+            }
+
+            @Override
+            public void onConnectFailed(String msg) {
+                mOnBluetoothAction.onConnectFailed(msg);
+            }
+
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+                mOnBluetoothAction.onReceiveBytes(bytes);
+            }
+
+            @Override
+            public void onSendBytes(byte[] bytes) {
+                mOnBluetoothAction.onSendBytes(bytes);
+            }
+        };
+        // 设置了回调线程池的话，回调不在读取线程执行
+        if (mCallbackExecutor != null) {
+            callback = new CallbackDispatcher(callback, mCallbackExecutor, mCallbackCapacity, mCallbackOverflowPolicy);
+        }
+        // 设置了响应匹配的话，先在读取线程匹配响应，剩下的帧再交给回调
+        RequestClient requestClient = null;
+        if (mCorrelator != null) {
+            requestClient = new RequestClient(callback, mCorrelator, mRequestWindow, TimerWheel.getDefault());
+            callback = requestClient;
+        }
+        SerialSession session = new SerialSession(transport, mExecutor, callback);
+        if (requestClient != null) requestClient.bind(session);
+        mRequestClient = requestClient;
+        session.setFrameDecoder(mFrameDecoder);
+        session.setOnReceiveBuffer(mOnReceiveBuffer);
+        session.setFramePublisher(mFramePublisher);
+        session.setSendQueue(mSendQueueCapacity, mSendMaxBatchBytes, mSendMaxDelayMs);
+        session.setReconnectPolicy(mReconnectPolicy, mReplayUnacknowledged);
+        session.setFlowControl(mFlowControl);
+        session.setFrameCheck(mFrameCheck, mOnBadFrame);
+        session.setRecorder(mRecorder);
+        mSession = session;
+        if (!session.start() && mOnBluetoothAction != null) mOnBluetoothAction.onConnectFailed("已经销毁，无法连接");
     }
 
     /**
-     * 发送 byte 数组到串口
+     * 实际连上的蓝牙传输层，不是蓝牙连接时为 null
+     */
+    private static RfcommTransport getRfcommTransport(SerialTransport transport) {
+        if (transport instanceof FailoverTransport) transport = ((FailoverTransport) transport).getCurrent();
+        if (transport instanceof RacingTransport) transport = ((RacingTransport) transport).getCurrent();
+        return transport instanceof RfcommTransport ? (RfcommTransport) transport : null;
+    }
+
+    /**
+     * 断开当前连接，断开后可以再次 connect
+     */
+    void disconnect() {
+        SerialSession session = mSession;
+        if (session != null) session.stop();
+        RequestClient requestClient = mRequestClient;
+        if (requestClient != null) requestClient.cancelAll("已断开");
+    }
+
+    /**
+     * 当前是否已经连接
+     */
+    boolean isConnected() {
+        SerialSession session = mSession;
+        return session != null && session.getState() == SerialSession.State.CONNECTED;
+    }
+
+    /**
+     * 发送 byte 数组到串口，不会阻塞，队列满了直接失败
      *
      * @param bytes 要发送的数据
+     * @return 发送结果
      */
-    void send(byte[] bytes) {
-        if (mConnectTask != null) mConnectTask.send(bytes);
+    SendQueue.SendFuture send(byte[] bytes) {
+        return send(bytes, 0);
     }
 
     /**
-     * 获取用户是否打开了蓝牙
+     * 发送 byte 数组到串口，队列满了最多等待 timeoutMs，不要在 UI 线程等待
+     *
+     * @param bytes 要发送的数据
+     * @param timeoutMs 队列满时最多等待的毫秒数
+     * @return 发送结果
      */
-    boolean isBluetoothEnable() {
-        return mBluetoothAdapter.isEnabled();
+    SendQueue.SendFuture send(byte[] bytes, long timeoutMs) {
+        SerialSession session = mSession;
+        if (session == null) {
+            SendQueue.SendFuture future = new SendQueue.SendFuture(bytes);
+            future.fail("未连接");
+            return future;
+        }
+        return session.send(bytes, timeoutMs);
     }
 
     /**
-     * 开启蓝牙
+     * 发送文件，在后台线程传输，传输期间收到的数据不再按帧回调
+     *
+     * @param channel 文件，传完之后由调用者关闭
+     * @param name 文件名，YMODEM 会发给设备
+     * @param protocol 传输协议
+     * @param window WINDOWED 最多几个块在途，其它协议忽略
+     * @param listener 进度和结果，在传输的线程回调
+     * @return 用来取消传输，没有开始传输时为 null
      */
-    void enableBluetooth() {
-        mBluetoothAdapter.enable();
+    FileTransfer sendFile(final FileChannel channel, final String name, FileTransfer.Protocol protocol, int window,
+                          final FileTransfer.Listener listener) {
+        SerialSession session = mSession;
+        if (session == null) {
+            listener.onFailed("未连接");
+            return null;
+        }
+        final FileTransfer transfer = new FileTransfer(session, protocol, window);
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transfer.send(channel, name, listener);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            listener.onFailed("已经销毁，无法传输");
+            return null;
+        }
+        return transfer;
     }
 
     /**
-     * 字节转换为 16 进制字符串
+     * 设置发送队列，连接之前调用
      *
-     * @param b 字节
-     * @return Hex 字符串
+     * @param capacity 最多排队的消息条数
+     * @param maxBatchBytes 一次 write 最多合并的字节数
+     * @param maxDelayMs 为了合并小消息最多额外等待的毫秒数，0 表示只合并已经在排队的消息
      */
-    private static String byte2Hex(byte b) {
-        StringBuilder hex = new StringBuilder(Integer.toHexString(b));
-        if (hex.length() > 2) {
-            hex = new StringBuilder(hex.substring(hex.length() - 2));
-        }
-        while (hex.length() < 2) {
-            hex.insert(0, "0");
+    void setSendQueue(int capacity, int maxBatchBytes, long maxDelayMs) {
+        mSendQueueCapacity = capacity;
+        mSendMaxBatchBytes = maxBatchBytes;
+        mSendMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * 设置请求的响应匹配规则，连接之前调用，之后可以用 request 发请求等响应
+     *
+     * @param correlator 匹配规则，例如 ResponseCorrelator.fifo()，传 null 关闭
+     * @param window 最多同时等响应的请求数
+     */
+    void setRequestCorrelator(ResponseCorrelator correlator, int window) {
+        mCorrelator = correlator;
+        mRequestWindow = window;
+    }
+
+    /**
+     * 发出请求并等待匹配的响应，窗口满时会阻塞，不要在 UI 线程调用
+     *
+     * @param bytes 请求内容
+     * @param timeoutMs 等响应的毫秒数
+     * @return 响应
+     */
+    RequestClient.ResponseFuture request(byte[] bytes, long timeoutMs) {
+        RequestClient requestClient = mRequestClient;
+        if (requestClient == null) {
+            RequestClient.ResponseFuture future = new RequestClient.ResponseFuture(bytes);
+            future.fail(mCorrelator == null ? "没有设置响应匹配规则" : "未连接");
+            return future;
         }
-        return hex.toString();
+        return requestClient.request(bytes, timeoutMs);
+    }
+
+    /**
+     * 设置执行连接、收发回调的线程池，连接之前调用
+     * 读取线程只负责把事件放进有界队列，回调慢的时候不会拖住读取
+     *
+     * @param executor 执行回调的线程池，例如 mainThreadExecutor()，传 null 恢复在读取线程回调
+     * @param capacity 最多排队的收发事件数
+     * @param policy 队列满时的处理方式
+     */
+    void setCallbackExecutor(Executor executor, int capacity, CallbackDispatcher.OverflowPolicy policy) {
+        mCallbackExecutor = executor;
+        mCallbackCapacity = capacity;
+        mCallbackOverflowPolicy = policy;
     }
 
+    /**
+     * 在主线程执行任务的线程池，配合 setCallbackExecutor 在主线程回调
+     */
+    static Executor mainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * 设置意外断开后自动重连，连接之前调用
+     * 意外断开时不回调 onConnectFailed，重连成功会再次回调 onConnectSuccess，放弃重连时才回调 onConnectFailed
+     *
+     * @param policy 重连策略，传 null 关闭自动重连
+     * @param replayUnacknowledged 重连后是否重发已经写出、还没被 acknowledge 的消息
+     */
+    void setReconnectPolicy(ReconnectPolicy policy, boolean replayUnacknowledged) {
+        mReconnectPolicy = policy;
+        mReplayUnacknowledged = replayUnacknowledged;
+    }
 
     /**
-     * 字节数组转换为 16 进制字符串
+     * 设置软件流控，设备缓冲区小的时候避免发得太快溢出，连接之前调用
      *
-     * @param bytes 字节数组
-     * @return Hex 字符串
+     * @param flowControl 流控，例如 FlowControl.xonXoff(64) 或 FlowControl.credit(512)，传 null 关闭
      */
-    private static String byte2Hex(byte[] bytes) {
-        Formatter formatter = new Formatter();
-        for (byte b : bytes) {
-            formatter.format("%02x", b);
+    void setFlowControl(FlowControl flowControl) {
+        mFlowControl = flowControl;
+    }
+
+    /**
+     * 设置帧校验，发送时加上校验值，接收时校验并去掉校验值，连接之前调用
+     * 默认按 \r\n 切帧，这时用 new FrameCheck(algorithm, 2)，校验值放在 \r\n 之前
+     *
+     * @param frameCheck 帧校验，传 null 关闭，通过和没通过的帧数见 frameCheck 的计数
+     * @param onBadFrame 没通过校验的帧的回调，在读取线程调用，可以为 null
+     */
+    void setFrameCheck(FrameCheck frameCheck, SerialSession.OnBadFrame onBadFrame) {
+        mFrameCheck = frameCheck;
+        mOnBadFrame = onBadFrame;
+    }
+
+    /**
+     * 确认最早写出的若干条消息已经被设备收到，重连后不再重发
+     *
+     * @param count 条数
+     */
+    void acknowledge(int count) {
+        SerialSession session = mSession;
+        if (session != null) session.acknowledge(count);
+    }
+
+    /**
+     * 自动重连成功的次数
+     */
+    long getReconnectCount() {
+        SerialSession session = mSession;
+        return session == null ? 0 : session.getReconnectCount();
+    }
+
+    /**
+     * 最近一次从断开到重连成功用了多少毫秒，还没重连过返回 -1
+     */
+    long getLastRecoveryMs() {
+        SerialSession session = mSession;
+        return session == null ? -1 : session.getLastRecoveryMs();
+    }
+
+    /**
+     * 当前连接的统计快照，没有连接过返回 null
+     */
+    SessionMetrics.Snapshot getMetrics() {
+        SerialSession session = mSession;
+        return session == null ? null : session.getMetrics();
+    }
+
+    /**
+     * 定时推送当前连接的统计快照，在统计线程回调，没有连接时不推送
+     *
+     * @param listener 监听，传 null 停止推送
+     * @param periodMs 推送间隔
+     */
+    synchronized void setOnMetricsListener(final SessionMetrics.Listener listener, long periodMs) {
+        if (mMetricsTask != null) mMetricsTask.cancel(false);
+        mMetricsTask = null;
+        if (listener == null) return;
+        if (mMetricsScheduler == null) {
+            mMetricsScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BLESPPUtils-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
-        String hash = formatter.toString();
-        formatter.close();
-        return hash;
+        // 每次重新 connect 都是新的会话，所以每次推送时取当前的会话
+        mMetricsTask = mMetricsScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                SerialSession session = mSession;
+                if (session != null) listener.onMetrics(session, session.getMetrics());
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开始录制收发的原始数据，之后重新 connect 也会继续录制到同一组文件
+     *
+     * @param dir 保存的目录，例如 context.getExternalFilesDir("records")
+     * @param prefix 文件名前缀
+     * @param maxFileBytes 单个文件的大小上限，超过后换下一个文件
+     * @return 录制器，可以查看丢弃的记录数
+     */
+    synchronized SessionRecorder startRecording(File dir, String prefix, long maxFileBytes) throws IOException {
+        stopRecording();
+        SessionRecorder recorder = new SessionRecorder(dir, prefix, maxFileBytes, 256 * 1024, 16, mExecutor);
+        mRecorder = recorder;
+        SerialSession session = mSession;
+        if (session != null) session.setRecorder(recorder);
+        return recorder;
+    }
+
+    /**
+     * 停止录制，写出剩下的数据并关闭文件
+     */
+    synchronized void stopRecording() {
+        SessionRecorder recorder = mRecorder;
+        if (recorder == null) return;
+        mRecorder = null;
+        SerialSession session = mSession;
+        if (session != null) session.setRecorder(null);
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            SerialLog.w("关闭录制文件失败", e);
+        }
+    }
+
+    /**
+     * 获取用户是否打开了蓝牙
+     */
+    boolean isBluetoothEnable() {
+        return mBluetoothAdapter.isEnabled();
+    }
+
+    /**
+     * 开启蓝牙
+     */
+    void enableBluetooth() {
+        mBluetoothAdapter.enable();
     }
 
     /**
@@ -369,13 +763,22 @@ class BLESPPUtils {
      */
     @SuppressWarnings("unused")
     static void setEnableLogOut() {
-        mEnableLogOut = true;
+        SerialLog.setLevel(SerialLog.DEBUG);
+    }
+
+    /**
+     * 设置日志输出的最低级别
+     *
+     * @param level SerialLog.DEBUG 等级别，SerialLog.OFF 关闭
+     */
+    static void setLogLevel(int level) {
+        SerialLog.setLevel(level);
     }
 
     /**
      * 打印日志
      */
-    private static void logD(String msg) {
-        if (mEnableLogOut)Log.d("BLEUTILS", msg);
+    static void logD(String msg) {
+        SerialLog.d(msg);
     }
 }
@@ -0,0 +1,98 @@
+package top.gtf35.bleserial;
+
+import android.bluetooth.BluetoothAdapter;
+import top.gtf35.bleserial.core.RacingTransport;
+import top.gtf35.bleserial.core.SerialTransport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 连接策略
+ * 功能：决定用哪些方式连接哪些设备，以及这些方式怎么错开时间竞速
+ *      候选按方式优先排列：先是所有设备的第一种方式，再是所有设备的第二种方式
+ *      传输层由 TransportFactory 创建，测试时可以换成模拟不同方式延迟的工厂
+ * @author gtf35 gtf@gtf35.top
+ */
+class ConnectStrategy {
+    private final TransportFactory mFactory;
+    private final long mStaggerMs;
+    private final int mChannel;
+    private final RfcommTransport.Mode[] mModes;
+
+    /**
+     * @param factory 创建传输层的工厂
+     * @param staggerMs 每隔多少毫秒开始下一个候选
+     * @param channel CHANNEL 方式连接的 RFCOMM 通道
+     * @param modes 依次尝试的方式
+     */
+    ConnectStrategy(TransportFactory factory, long staggerMs, int channel, RfcommTransport.Mode... modes) {
+        if (modes.length == 0) throw new IllegalArgumentException("至少需要一种连接方式");
+        mFactory = factory;
+        mStaggerMs = staggerMs;
+        mChannel = channel;
+        mModes = modes;
+    }
+
+    /**
+     * 默认策略：先加密连接，1.5 秒没连上再试不加密的连接，再过 1.5 秒试直接连接通道 1
+     *
+     * @param bluetoothAdapter 蓝牙适配器
+     */
+    static ConnectStrategy createDefault(BluetoothAdapter bluetoothAdapter) {
+        return new ConnectStrategy(RfcommTransport.factory(bluetoothAdapter), 1500, 1,
+                RfcommTransport.Mode.SECURE, RfcommTransport.Mode.INSECURE, RfcommTransport.Mode.CHANNEL);
+    }
+
+    /**
+     * 把某种方式放到最前面，例如上次连接成功的方式
+     *
+     * @param mode 优先的方式
+     * @return 新的策略，不包含这种方式时返回自己
+     */
+    ConnectStrategy preferring(RfcommTransport.Mode mode) {
+        List<RfcommTransport.Mode> modes = new ArrayList<>(Arrays.asList(mModes));
+        if (!modes.remove(mode)) return this;
+        modes.add(0, mode);
+        return new ConnectStrategy(mFactory, mStaggerMs, mChannel, modes.toArray(new RfcommTransport.Mode[0]));
+    }
+
+    /**
+     * 所有候选的传输层
+     *
+     * @param deviceMacs 候选设备的 MAC，靠前的先试
+     */
+    List<SerialTransport> candidates(List<String> deviceMacs) {
+        List<SerialTransport> candidates = new ArrayList<>();
+        for (RfcommTransport.Mode mode : mModes) {
+            for (String deviceMac : deviceMacs) candidates.add(mFactory.create(deviceMac, mode, mChannel));
+        }
+        return candidates;
+    }
+
+    /**
+     * 创建竞速连接的传输层，只有一个候选时直接返回它
+     *
+     * @param deviceMacs 候选设备的 MAC，靠前的先试
+     * @param executor 执行各个候选连接的线程池
+     */
+    SerialTransport createTransport(List<String> deviceMacs, Executor executor) {
+        List<SerialTransport> candidates = candidates(deviceMacs);
+        if (candidates.size() == 1) return candidates.get(0);
+        return new RacingTransport(candidates, mStaggerMs, executor);
+    }
+
+    /**
+     * 传输层工厂
+     */
+    interface TransportFactory {
+        /**
+         * @param deviceMac 设备的 MAC
+         * @param mode 建立 socket 的方式
+         * @param channel RFCOMM 通道，只有 CHANNEL 方式用到
+         */
+        SerialTransport create(String deviceMac, RfcommTransport.Mode mode, int channel);
+    }
+}
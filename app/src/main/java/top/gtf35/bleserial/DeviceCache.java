@@ -0,0 +1,188 @@
+package top.gtf35.bleserial;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 搜索结果缓存
+ * 功能：按 MAC 地址保存搜索到的设备，同一个设备重复广播只更新信号强度和最后发现的时间
+ *      超过 ttlMs 没再发现的设备在 evictExpired 时移除，已配对的设备不会过期
+ *      刷新时缓存里的设备和已配对的设备马上就能显示，不用等搜索广播
+ * @author gtf35 gtf@gtf35.top
+ */
+class DeviceCache {
+    // 信号强度未知，例如只是已配对还没搜索到
+    static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private final long mTtlMs;
+    // 以大写的 MAC 地址为键，只在持有 this 的锁时读写
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * @param ttlMs 设备多久没再发现就移除
+     */
+    DeviceCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * 记下搜索到的设备
+     *
+     * @param device 设备
+     * @param rssi 信号强度，不知道时传 RSSI_UNKNOWN
+     * @return 是否是缓存里还没有的设备
+     */
+    boolean onFound(BluetoothDevice device, short rssi) {
+        return put(device, rssi, now());
+    }
+
+    /**
+     * 用已配对的设备更新缓存，之前配对过、现在取消配对的设备改为按时间过期
+     *
+     * @param bondedDevices 已配对的设备，可以为 null
+     * @return 缓存里原来没有的已配对设备
+     */
+    synchronized List<Entry> onBonded(Collection<BluetoothDevice> bondedDevices) {
+        long now = now();
+        Set<String> bonded = new HashSet<>();
+        List<Entry> added = new ArrayList<>();
+        if (bondedDevices != null) {
+            for (BluetoothDevice device : bondedDevices) {
+                String key = key(device.getAddress());
+                bonded.add(key);
+                Entry old = mEntries.get(key);
+                Entry entry;
+                if (old == null) {
+                    // 没搜索到过的已配对设备，最后发现的时间记为现在
+                    entry = new Entry(device, device.getName(), RSSI_UNKNOWN, now, true);
+                    added.add(entry);
+                } else {
+                    // 保留搜索到的信号强度和时间
+                    entry = new Entry(old.device, old.name, old.rssi, old.lastSeenMs, true);
+                }
+                mEntries.put(key, entry);
+            }
+        }
+        for (Entry entry : new ArrayList<>(mEntries.values())) {
+            if (entry.bonded && !bonded.contains(key(entry.address))) {
+                mEntries.put(key(entry.address), new Entry(entry.device, entry.name, entry.rssi, entry.lastSeenMs, false));
+            }
+        }
+        return added;
+    }
+
+    /**
+     * 按 MAC 地址查找
+     *
+     * @param address MAC 地址，不区分大小写
+     * @return 缓存的设备，没有的话为 null
+     */
+    synchronized Entry get(String address) {
+        return mEntries.get(key(address));
+    }
+
+    /**
+     * 移除过期的设备
+     *
+     * @return 移除的个数
+     */
+    int evictExpired() {
+        return evictExpired(now());
+    }
+
+    /**
+     * 缓存里的设备，已配对的在前，其余按信号从强到弱
+     */
+    synchronized List<Entry> list() {
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.bonded != b.bonded) return a.bonded ? -1 : 1;
+                return b.rssi - a.rssi;
+            }
+        });
+        return entries;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized boolean put(BluetoothDevice device, short rssi, long nowMs) {
+        String key = key(device.getAddress());
+        Entry old = mEntries.get(key);
+        String name = device.getName();
+        if (name == null && old != null) name = old.name;
+        mEntries.put(key, new Entry(device, name, rssi, nowMs, old != null && old.bonded));
+        // 过期的设备等 evictExpired 统一移除，这里不算新设备，同一次搜索里不会重复通知
+        return old == null;
+    }
+
+    synchronized int evictExpired(long nowMs) {
+        int count = 0;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (isExpired(iterator.next(), nowMs)) {
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isExpired(Entry entry, long nowMs) {
+        return !entry.bonded && nowMs - entry.lastSeenMs > mTtlMs;
+    }
+
+    private static String key(String address) {
+        return address.toUpperCase(Locale.US);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * 一个缓存的设备，更新时整个替换，可以在任意线程读
+     */
+    static class Entry {
+        final BluetoothDevice device;
+        final String address;
+        // 设备名，搜索广播里没有名字时沿用之前的
+        final String name;
+        final short rssi;
+        // 最后发现的时间，System.nanoTime 换算的毫秒
+        final long lastSeenMs;
+        final boolean bonded;
+
+        Entry(BluetoothDevice device, String name, short rssi, long lastSeenMs, boolean bonded) {
+            this.device = device;
+            this.address = device.getAddress();
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeenMs = lastSeenMs;
+            this.bonded = bonded;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + address + (rssi == RSSI_UNKNOWN ? "" : " " + rssi + "dBm") + (bonded ? " 已配对" : "");
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package top.gtf35.bleserial;
+
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.TypedValue;
+import android.view.Choreographer;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * 日志列表适配器
+ * 功能：用 RecyclerView 显示 TerminalLog，只创建屏幕上看得到的那几行
+ *      任意线程 append，每个显示帧最多刷新一次，有新日志时才注册帧回调
+ *      停在底部时自动滚动到最新一行，往上翻看历史时不打扰
+ * @author gtf35 gtf@gtf35.top
+ */
+class LogAdapter extends RecyclerView.Adapter<LogAdapter.LineHolder> {
+    private final TerminalLog mLog;
+    private final RecyclerView mRecyclerView;
+    private final LinearLayoutManager mLayoutManager;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // 下一帧刷新
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
+    // 在主线程注册帧回调
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    /**
+     * 构造适配器并绑定到列表
+     *
+     * @param recyclerView 列表
+     * @param scrollback 最多保留的行数
+     */
+    LogAdapter(RecyclerView recyclerView, int scrollback) {
+        mLog = new TerminalLog(scrollback);
+        mRecyclerView = recyclerView;
+        mLayoutManager = new LinearLayoutManager(recyclerView.getContext());
+        mLayoutManager.setStackFromEnd(true);
+        recyclerView.setLayoutManager(mLayoutManager);
+        // 行高都一样，插入删除时不用重新测量整个列表
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setItemAnimator(null);
+        recyclerView.setAdapter(this);
+    }
+
+    /**
+     * 追加一行，可以在任意线程调用
+     *
+     * @param line 内容
+     */
+    void append(String line) {
+        if (mLog.append(line)) mMainHandler.post(mScheduleFrame);
+    }
+
+    /**
+     * 把这一帧攒下的日志刷新到列表
+     */
+    private void flush() {
+        boolean atBottom = !mRecyclerView.canScrollVertically(1);
+        TerminalLog.Change change = mLog.flush();
+        if (change.removed > 0) notifyItemRangeRemoved(0, change.removed);
+        if (change.inserted > 0) notifyItemRangeInserted(mLog.size() - change.inserted, change.inserted);
+        if (atBottom && mLog.size() > 0) mLayoutManager.scrollToPosition(mLog.size() - 1);
+    }
+
+    @NonNull
+    @Override
+    public LineHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView textView = new TextView(parent.getContext());
+        textView.setLayoutParams(new RecyclerView.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        textView.setTypeface(Typeface.MONOSPACE);
+        textView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 12);
+        textView.setPadding(16, 2, 16, 2);
+        return new LineHolder(textView);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull LineHolder holder, int position) {
+        holder.mTextView.setText(mLog.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return mLog.size();
+    }
+
+    static class LineHolder extends RecyclerView.ViewHolder {
+        private final TextView mTextView;
+
+        LineHolder(TextView textView) {
+            super(textView);
+            mTextView = textView;
+        }
+    }
+}
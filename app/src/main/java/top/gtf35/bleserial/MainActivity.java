@@ -1,6 +1,7 @@
 package top.gtf35.bleserial;
 
 import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.graphics.Color;
@@ -19,30 +20,35 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-
-import java.util.ArrayList;
+import androidx.recyclerview.widget.RecyclerView;
+import top.gtf35.bleserial.core.SessionMetrics;
 
 public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBluetoothAction, View.OnClickListener {
+    // log 最多保留的行数
+    private static final int LOG_SCROLLBACK = 10000;
     // 蓝牙工具
     private BLESPPUtils mBLESPPUtils;
-    // 保存搜索到的设备，避免重复
-    private ArrayList<BluetoothDevice> mDevicesList = new ArrayList<>();
     // 对话框控制
     private DeviceDialogCtrl mDeviceDialogCtrl;
     // log 视图
-    private TextView mLogTv;
+    private LogAdapter mLogAdapter;
     // 输入的 ET
     private EditText mInputET;
+    // 启动的时间，用来统计启动到收到第一帧的耗时
+    private long mLaunchNanos;
+    // 这次连接是否已经收到过数据
+    private volatile boolean mReceived = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mLaunchNanos = System.nanoTime();
         setContentView(R.layout.activity_main);
         // 申请权限
         initPermissions();
         // 绑定视图
         findViewById(R.id.btn_send).setOnClickListener(this);
-        mLogTv = findViewById(R.id.tv_log);
+        mLogAdapter = new LogAdapter((RecyclerView) findViewById(R.id.rv_log), LOG_SCROLLBACK);
         mInputET = findViewById(R.id.ed_input);
 
         // 初始化
@@ -51,13 +57,20 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
         mBLESPPUtils.enableBluetooth();
         // 设置接收停止标志位字符串
         mBLESPPUtils.setStopString("\r\n");
+        // 有的模块只接受不加密的连接或者固定通道，错开时间一起尝试
+        mBLESPPUtils.setConnectStrategy(ConnectStrategy.createDefault(BluetoothAdapter.getDefaultAdapter()));
         // 用户没有开启蓝牙的话打开蓝牙
         if (!mBLESPPUtils.isBluetoothEnable()) mBLESPPUtils.enableBluetooth();
         // 启动工具类
         mBLESPPUtils.onCreate();
 
         mDeviceDialogCtrl = new DeviceDialogCtrl(this);
-        mDeviceDialogCtrl.show();
+        // 连接过的话先直接连上次的设备，连接失败再搜索
+        if (mBLESPPUtils.connectLast()) {
+            mLogAdapter.append("正在连接上次的设备:" + mBLESPPUtils.getRecentDevices().get(0));
+        } else {
+            mDeviceDialogCtrl.show();
+        }
     }
 
     @Override
@@ -90,20 +103,14 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
     @Override
     public void onFoundDevice(BluetoothDevice device) {
         Log.d("BLE", "发现设备 " + device.getName() + device.getAddress());
-        // 判断是不是重复的
-        for (int i = 0; i < mDevicesList.size(); i++) {
-            if (mDevicesList.get(i).getAddress().equals(device.getAddress())) return;
-        }
-        // 添加，下次有就不显示了
-        mDevicesList.add(device);
+        // 工具类已经按 MAC 去重，每个设备只会通知一次
         // 添加条目到 UI 并设置点击事件
         mDeviceDialogCtrl.addDevice(device, new View.OnClickListener() {
-            @SuppressLint("SetTextI18n")
             @Override
             public void onClick(View v) {
                 BluetoothDevice clickDevice = (BluetoothDevice) v.getTag();
                 postShowToast("开始连接:" + clickDevice.getName());
-                mLogTv.setText(mLogTv.getText() + "\n" + "开始连接:" + clickDevice.getName());
+                mLogAdapter.append("开始连接:" + clickDevice.getName());
                 mBLESPPUtils.connect(clickDevice);
             }
         });
@@ -116,13 +123,11 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
      */
     @Override
     public void onConnectSuccess(final BluetoothDevice device) {
+        mReceived = false;
         postShowToast("连接成功", new DoSthAfterPost() {
-            @SuppressLint("SetTextI18n")
             @Override
             public void doIt() {
-                mLogTv.setText(
-                        mLogTv.getText() + "\n连接成功:" + device.getName() + " | " + device.getAddress()
-                );
+                mLogAdapter.append("连接成功:" + mBLESPPUtils.getDeviceName(device) + " | " + device.getAddress());
                 mDeviceDialogCtrl.dismiss();
             }
         });
@@ -136,12 +141,13 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
     @Override
     public void onConnectFailed(final String msg) {
         postShowToast("连接失败:" + msg, new DoSthAfterPost() {
-            @SuppressLint("SetTextI18n")
             @Override
             public void doIt() {
-                mLogTv.setText(mLogTv.getText() + "\n连接失败:" + msg);
+                // 直接连接上次的设备失败或者断开时对话框没有显示，这时再开始搜索
+                if (!mDeviceDialogCtrl.isShowing() && !mBLESPPUtils.isConnected()) mDeviceDialogCtrl.show();
             }
         });
+        mLogAdapter.append("连接失败:" + msg);
     }
 
     /**
@@ -150,14 +156,15 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
      * @param bytes 内容
      */
     @Override
-    public void onReceiveBytes(final byte[] bytes) {
-        postShowToast("收到数据:" + new String(bytes), new DoSthAfterPost() {
-            @SuppressLint("SetTextI18n")
-            @Override
-            public void doIt() {
-                mLogTv.setText(mLogTv.getText() + "\n收到数据:" + new String(bytes));
-            }
-        });
+    public void onReceiveBytes(byte[] bytes) {
+        if (!mReceived) {
+            mReceived = true;
+            SessionMetrics.Snapshot metrics = mBLESPPUtils.getMetrics();
+            mLogAdapter.append("启动到收到第一帧用时 " + (System.nanoTime() - mLaunchNanos) / 1000000 + "ms，连接用时 "
+                    + metrics.connectMs + "ms，连接到收到第一个字节用时 " + metrics.timeToFirstByteMs + "ms");
+        }
+        // 数据量大时每帧弹 Toast 会卡住界面，只记到 log 里，每个显示帧批量刷新一次
+        mLogAdapter.append("收到数据:" + new String(bytes));
     }
 
     /**
@@ -166,21 +173,17 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
      * @param bytes 内容
      */
     @Override
-    public void onSendBytes(final byte[] bytes) {
-        postShowToast("发送数据:" + new String(bytes), new DoSthAfterPost() {
-            @SuppressLint("SetTextI18n")
-            @Override
-            public void doIt() {
-                mLogTv.setText(mLogTv.getText() + "\n发送数据:" + new String(bytes));
-            }
-        });
+    public void onSendBytes(byte[] bytes) {
+        mLogAdapter.append("发送数据:" + new String(bytes));
     }
 
     /**
      * 当结束搜索设备
      */
     @Override
-    public void onFinishFoundDevice() { }
+    public void onFinishFoundDevice() {
+        mDeviceDialogCtrl.onFinishFound();
+    }
 
     /**
      * 按钮的点击事件
@@ -205,6 +208,7 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
         DeviceDialogCtrl(Context context) {
             // 搜索进度条
             mProgressBar = new ProgressBar(context, null, android.R.attr.progressBarStyleHorizontal);
+            mProgressBar.setIndeterminate(true);
             mProgressBar.setLayoutParams(
                     new LinearLayout.LayoutParams(
                             LinearLayout.LayoutParams.MATCH_PARENT,
@@ -242,7 +246,7 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
          * 显示并开始搜索设备
          */
         void show() {
-            mBLESPPUtils.startDiscovery();
+            restartDiscovery();
             mConnectDeviceDialog.show();
             mConnectDeviceDialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnLongClickListener(new View.OnLongClickListener() {
                 @Override
@@ -261,10 +265,36 @@ public class MainActivity extends AppCompatActivity implements BLESPPUtils.OnBlu
             mConnectDeviceDialog.getButton(AlertDialog.BUTTON_NEGATIVE).setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    mDialogRootView.removeAllViews();
-                    mDialogRootView.addView(mProgressBar);
-                    mDevicesList.clear();
-                    mBLESPPUtils.startDiscovery();
+                    restartDiscovery();
+                }
+            });
+        }
+
+        /**
+         * 清空列表重新搜索，缓存里的设备会马上加回来
+         */
+        private void restartDiscovery() {
+            mDialogRootView.removeAllViews();
+            mDialogRootView.addView(mProgressBar);
+            mProgressBar.setVisibility(View.VISIBLE);
+            mBLESPPUtils.startDiscovery();
+        }
+
+        /**
+         * 对话框是否正在显示
+         */
+        boolean isShowing() {
+            return mConnectDeviceDialog.isShowing();
+        }
+
+        /**
+         * 搜索结束，隐藏进度条
+         */
+        void onFinishFound() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mProgressBar.setVisibility(View.GONE);
                 }
             });
         }
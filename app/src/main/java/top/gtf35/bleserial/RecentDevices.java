@@ -0,0 +1,171 @@
+package top.gtf35.bleserial;
+
+import android.content.SharedPreferences;
+import top.gtf35.bleserial.core.SerialLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 最近连接的设备
+ * 功能：连接成功后记下设备的 MAC、名字、连接时间、连接耗时和连上的方式，保存在 SharedPreferences 里
+ *      下次启动可以直接按 MAC 用上次的方式连接，不用先搜索
+ *      最多保存 maxSize 个，最近连接的在前
+ *      保存格式：每个设备一行 MAC|连接时间毫秒|连接耗时毫秒|连接方式|名字，不知道方式时为 -
+ *              旧版本保存的 MAC|连接时间毫秒|连接耗时毫秒|名字 也能读取
+ * @author gtf35 gtf@gtf35.top
+ */
+class RecentDevices {
+    private static final String KEY = "recent_devices";
+
+    private final SharedPreferences mPreferences;
+    private final int mMaxSize;
+    // 只在持有 this 的锁时读写
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * @param preferences 保存用的 SharedPreferences
+     * @param maxSize 最多保存几个设备
+     */
+    RecentDevices(SharedPreferences preferences, int maxSize) {
+        mPreferences = preferences;
+        mMaxSize = maxSize;
+        load();
+    }
+
+    /**
+     * 记下连接成功的设备，同一个设备移到最前面
+     *
+     * @param address MAC 地址
+     * @param name 设备名，可以为 null
+     * @param connectMs 这次连接用了多少毫秒
+     * @param mode 连上的方式，不知道时为 null
+     */
+    synchronized void add(String address, String name, long connectMs, RfcommTransport.Mode mode) {
+        Entry entry = new Entry(address, name, System.currentTimeMillis(), connectMs, mode);
+        remove(address);
+        mEntries.add(0, entry);
+        while (mEntries.size() > mMaxSize) mEntries.remove(mEntries.size() - 1);
+        save();
+    }
+
+    /**
+     * 最近连接的设备，最近的在前
+     */
+    synchronized List<Entry> list() {
+        return new ArrayList<>(mEntries);
+    }
+
+    /**
+     * 最近一次连接的设备，没有的话为 null
+     */
+    synchronized Entry last() {
+        return mEntries.isEmpty() ? null : mEntries.get(0);
+    }
+
+    /**
+     * 按 MAC 地址查找
+     *
+     * @param address MAC 地址，不区分大小写
+     * @return 记下的设备，没有的话为 null
+     */
+    synchronized Entry get(String address) {
+        for (Entry entry : mEntries) {
+            if (entry.address.equalsIgnoreCase(address)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * 忘记一个设备
+     *
+     * @param address MAC 地址
+     */
+    synchronized void forget(String address) {
+        if (remove(address)) save();
+    }
+
+    private boolean remove(String address) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).address.equalsIgnoreCase(address)) {
+                mEntries.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void load() {
+        String saved = mPreferences.getString(KEY, null);
+        if (saved == null) return;
+        for (String line : saved.split("\n")) {
+            String[] fields = line.split("\\|", 5);
+            if (fields.length < 4) continue;
+            try {
+                RfcommTransport.Mode mode = null;
+                String name;
+                if (fields.length == 5 && isMode(fields[3])) {
+                    if (!fields[3].equals("-")) mode = RfcommTransport.Mode.valueOf(fields[3]);
+                    name = fields[4];
+                } else {
+                    // 旧格式，名字是第 4 个字段之后的全部内容
+                    name = line.split("\\|", 4)[3];
+                }
+                mEntries.add(new Entry(fields[0], name.isEmpty() ? null : name,
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]), mode));
+            } catch (NumberFormatException e) {
+                // 格式不对的行跳过
+                SerialLog.w("最近连接的设备格式不对：" + line, e);
+            }
+        }
+    }
+
+    private static boolean isMode(String field) {
+        if (field.equals("-")) return true;
+        for (RfcommTransport.Mode mode : RfcommTransport.Mode.values()) {
+            if (mode.name().equals(field)) return true;
+        }
+        return false;
+    }
+
+    private void save() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : mEntries) {
+            if (sb.length() > 0) sb.append('\n');
+            // 名字放最后，里面有 | 也不影响解析，换行换成空格
+            String name = entry.name == null ? "" : entry.name.replace('\n', ' ');
+            sb.append(entry.address).append('|').append(entry.lastConnectedMillis)
+                    .append('|').append(entry.connectMs).append('|').append(entry.mode == null ? "-" : entry.mode.name())
+                    .append('|').append(name);
+        }
+        // apply 在后台写文件，不阻塞调用的线程
+        mPreferences.edit().putString(KEY, sb.toString()).apply();
+    }
+
+    /**
+     * 一个最近连接的设备
+     */
+    static class Entry {
+        final String address;
+        final String name;
+        final long lastConnectedMillis;
+        // 上次连接用了多少毫秒
+        final long connectMs;
+        // 上次连上的方式，不知道时为 null
+        final RfcommTransport.Mode mode;
+
+        Entry(String address, String name, long lastConnectedMillis, long connectMs, RfcommTransport.Mode mode) {
+            this.address = address.toUpperCase(Locale.US);
+            this.name = name;
+            this.lastConnectedMillis = lastConnectedMillis;
+            this.connectMs = connectMs;
+            this.mode = mode;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + address;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package top.gtf35.bleserial;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import top.gtf35.bleserial.core.SerialTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * 蓝牙 RFCOMM 传输层
+ * 功能：按 MAC 地址建立蓝牙串口连接
+ *      默认用 SPP UUID 建立加密的连接，有的模块只接受不加密的连接或者只在固定的通道上应答，可以换用其他方式
+ * @author gtf35 gtf@gtf35.top
+ */
+class RfcommTransport implements SerialTransport {
+    static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    /**
+     * 建立 socket 的方式
+     */
+    enum Mode {
+        // 用 SPP UUID 查找服务，加密连接
+        SECURE,
+        // 用 SPP UUID 查找服务，不加密，不需要配对
+        INSECURE,
+        // 不查找服务，直接连接指定的通道，用的是隐藏接口
+        CHANNEL
+    }
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final String mDeviceMac;
+    private final Mode mMode;
+    private final int mChannel;
+    private BluetoothDevice mRemoteDevice;
+    private volatile BluetoothSocket mBluetoothSocket;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param bluetoothAdapter 蓝牙适配器
+     * @param deviceMac 要连接的设备的 MAC
+     */
+    RfcommTransport(BluetoothAdapter bluetoothAdapter, String deviceMac) {
+        this(bluetoothAdapter, deviceMac, Mode.SECURE, 0);
+    }
+
+    /**
+     * @param bluetoothAdapter 蓝牙适配器
+     * @param deviceMac 要连接的设备的 MAC
+     * @param mode 建立 socket 的方式
+     * @param channel RFCOMM 通道，只有 CHANNEL 方式用到
+     */
+    RfcommTransport(BluetoothAdapter bluetoothAdapter, String deviceMac, Mode mode, int channel) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mDeviceMac = deviceMac;
+        mMode = mode;
+        mChannel = channel;
+    }
+
+    /**
+     * 创建 RfcommTransport 的工厂，用于 ConnectStrategy
+     *
+     * @param bluetoothAdapter 蓝牙适配器
+     */
+    static ConnectStrategy.TransportFactory factory(final BluetoothAdapter bluetoothAdapter) {
+        return new ConnectStrategy.TransportFactory() {
+            @Override
+            public SerialTransport create(String deviceMac, Mode mode, int channel) {
+                return new RfcommTransport(bluetoothAdapter, deviceMac, mode, channel);
+            }
+        };
+    }
+
+    @Override
+    public void open() throws IOException {
+        // close 之后可以再次 open，每次都用新的 socket
+        mClosed = false;
+        mBluetoothSocket = null;
+        BluetoothSocket bluetoothSocket;
+        // 尝试获取 bluetoothSocket
+        try {
+            mRemoteDevice = mBluetoothAdapter.getRemoteDevice(mDeviceMac);
+            bluetoothSocket = createSocket(mRemoteDevice);
+        } catch (Exception e) {
+            throw new IOException("获取Socket失败", e);
+        }
+        // 检查有没有获取到
+        if (bluetoothSocket == null) throw new IOException("获取Socket失败");
+        mBluetoothSocket = bluetoothSocket;
+        // 获取期间被关闭的话不再连接
+        if (mClosed) {
+            bluetoothSocket.close();
+            throw new IOException("连接已关闭");
+        }
+        // 等待连接，会阻塞线程
+        bluetoothSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return requireSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return requireSocket().getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        BluetoothSocket bluetoothSocket = mBluetoothSocket;
+        if (bluetoothSocket != null) bluetoothSocket.close();
+    }
+
+    @Override
+    public String getName() {
+        return mDeviceMac;
+    }
+
+    /**
+     * 建立 socket 的方式
+     */
+    Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * 连接的设备，open 之后才有
+     */
+    BluetoothDevice getDevice() {
+        return mRemoteDevice;
+    }
+
+    private BluetoothSocket createSocket(BluetoothDevice device) throws Exception {
+        switch (mMode) {
+            case INSECURE:
+                return device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
+            case CHANNEL:
+                // createRfcommSocket 是隐藏接口，只能反射调用
+                Method method = device.getClass().getMethod("createRfcommSocket", int.class);
+                return (BluetoothSocket) method.invoke(device, mChannel);
+            default:
+                return device.createRfcommSocketToServiceRecord(SPP_UUID);
+        }
+    }
+
+    private BluetoothSocket requireSocket() throws IOException {
+        BluetoothSocket bluetoothSocket = mBluetoothSocket;
+        if (bluetoothSocket == null) throw new IOException("未连接");
+        return bluetoothSocket;
+    }
+}
@@ -0,0 +1,99 @@
+package top.gtf35.bleserial;
+
+import java.util.ArrayDeque;
+
+/**
+ * 终端日志
+ * 功能：保存最近 capacity 行日志的环形缓冲区，超出的最早的行被挤掉
+ *      任意线程 append 只是放进待显示队列，UI 线程每帧 flush 一次，批量搬进环形缓冲区
+ *      flush 返回这一帧挤掉和新增的行数，列表只需要局部刷新，和已有的行数无关
+ * @author gtf35 gtf@gtf35.top
+ */
+class TerminalLog {
+    private final int mCapacity;
+    // 环形缓冲区，只在 UI 线程读写
+    private final String[] mLines;
+    private int mHead = 0;
+    private int mSize = 0;
+    // 还没显示的行，持有 mPending 的锁时读写
+    private final ArrayDeque<String> mPending = new ArrayDeque<>();
+    private final Change mChange = new Change();
+
+    /**
+     * 构造终端日志
+     *
+     * @param capacity 最多保留的行数
+     */
+    TerminalLog(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("行数必须大于 0：" + capacity);
+        mCapacity = capacity;
+        mLines = new String[capacity];
+    }
+
+    /**
+     * 追加一行，可以在任意线程调用
+     *
+     * @param line 内容
+     * @return 之前没有待显示的行，需要安排一次 flush
+     */
+    boolean append(String line) {
+        synchronized (mPending) {
+            boolean wasEmpty = mPending.isEmpty();
+            // 一帧里来的行比容量还多的话，前面的反正也显示不出来
+            if (mPending.size() == mCapacity) mPending.pollFirst();
+            mPending.addLast(line);
+            return wasEmpty;
+        }
+    }
+
+    /**
+     * 把待显示的行搬进环形缓冲区，只能在 UI 线程调用
+     *
+     * @return 这次的变化，复用同一个对象，下次 flush 之前有效
+     */
+    Change flush() {
+        int oldSize = mSize;
+        int inserted = 0;
+        synchronized (mPending) {
+            String line;
+            while ((line = mPending.pollFirst()) != null) {
+                int tail = (mHead + mSize) % mCapacity;
+                mLines[tail] = line;
+                if (mSize == mCapacity) {
+                    // 满了，挤掉最早的一行
+                    mHead = (mHead + 1) % mCapacity;
+                } else {
+                    mSize++;
+                }
+                inserted++;
+            }
+        }
+        // 挤掉的行都来自 flush 之前已经显示的行，因为待显示的行不会超过容量
+        mChange.removed = oldSize + inserted - mSize;
+        mChange.inserted = inserted;
+        return mChange;
+    }
+
+    /**
+     * 第 index 行，0 是最早的一行，只能在 UI 线程调用
+     */
+    String get(int index) {
+        if (index < 0 || index >= mSize) throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        return mLines[(mHead + index) % mCapacity];
+    }
+
+    /**
+     * 已经显示的行数，只能在 UI 线程调用
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * 一次 flush 的变化：先从头部移除 removed 行，再在尾部插入 inserted 行
+     */
+    static class Change {
+        int removed;
+        int inserted;
+    }
+}
@@ -0,0 +1,171 @@
+package top.gtf35.bleserial;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * TerminalLog 的测试
+ * 功能：满了以后挤掉最早的行，flush 返回的变化和列表需要的局部刷新一致
+ *      一帧里的日志批量搬进来，只在第一行时要求安排 flush，多个线程 append 不丢行
+ * @author gtf35 gtf@gtf35.top
+ */
+public class TerminalLogTest {
+
+    @Test
+    public void keepsLinesInOrderUntilFull() {
+        TerminalLog log = new TerminalLog(4);
+        log.append("a");
+        log.append("b");
+        TerminalLog.Change change = log.flush();
+        assertEquals(0, change.removed);
+        assertEquals(2, change.inserted);
+        assertLines(log, "a", "b");
+    }
+
+    @Test
+    public void trimsOldestLinesWhenFull() {
+        TerminalLog log = new TerminalLog(3);
+        log.append("a");
+        log.append("b");
+        log.flush();
+        log.append("c");
+        log.append("d");
+        TerminalLog.Change change = log.flush();
+        // 原来 2 行，加 2 行超出 1 行
+        assertEquals(1, change.removed);
+        assertEquals(2, change.inserted);
+        assertLines(log, "b", "c", "d");
+        // 环形缓冲区绕回几圈后顺序不变
+        for (int i = 0; i < 10; i++) {
+            log.append("line " + i);
+            change = log.flush();
+            assertEquals(1, change.removed);
+            assertEquals(1, change.inserted);
+        }
+        assertLines(log, "line 7", "line 8", "line 9");
+    }
+
+    @Test
+    public void pendingLinesBeyondCapacityAreDropped() {
+        TerminalLog log = new TerminalLog(3);
+        log.append("old");
+        log.flush();
+        for (int i = 0; i < 5; i++) log.append("new " + i);
+        TerminalLog.Change change = log.flush();
+        // 只有最后 3 行能显示，移除的只是之前已经显示的行
+        assertEquals(1, change.removed);
+        assertEquals(3, change.inserted);
+        assertLines(log, "new 2", "new 3", "new 4");
+    }
+
+    @Test
+    public void onlyFirstPendingLineSchedulesFlush() {
+        TerminalLog log = new TerminalLog(10);
+        assertTrue(log.append("a"));
+        assertFalse(log.append("b"));
+        assertFalse(log.append("c"));
+        log.flush();
+        assertTrue(log.append("d"));
+    }
+
+    @Test
+    public void emptyFlushChangesNothing() {
+        TerminalLog log = new TerminalLog(2);
+        log.append("a");
+        TerminalLog.Change first = log.flush();
+        TerminalLog.Change second = log.flush();
+        // 变化对象是复用的
+        assertSame(first, second);
+        assertEquals(0, second.removed);
+        assertEquals(0, second.inserted);
+        assertLines(log, "a");
+    }
+
+    @Test
+    public void flushIsIndependentOfScrollback() {
+        // 很长的历史里追加一行，变化只有一行，不用整个列表重绑
+        TerminalLog log = new TerminalLog(100000);
+        for (int i = 0; i < 100000; i++) log.append(Integer.toString(i));
+        log.flush();
+        log.append("last");
+        TerminalLog.Change change = log.flush();
+        assertEquals(1, change.removed);
+        assertEquals(1, change.inserted);
+        assertEquals(100000, log.size());
+        assertEquals("1", log.get(0));
+        assertEquals("last", log.get(99999));
+    }
+
+    @Test
+    public void concurrentAppendsKeepPerThreadOrder() throws Exception {
+        final int threads = 4;
+        final int lines = 2000;
+        final TerminalLog log = new TerminalLog(threads * lines);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < lines; i++) log.append(id + ":" + i);
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        // 一边写一边像 UI 线程那样 flush
+        int total = 0;
+        boolean writing = true;
+        while (writing) {
+            writing = false;
+            for (Thread writer : writers) writing |= writer.isAlive();
+            total += log.flush().inserted;
+        }
+        total += log.flush().inserted;
+        assertEquals(threads * lines, total);
+        int[] next = new int[threads];
+        for (int i = 0; i < log.size(); i++) {
+            String[] parts = log.get(i).split(":");
+            int id = Integer.parseInt(parts[0]);
+            assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    @Test
+    public void rejectsBadArguments() {
+        try {
+            new TerminalLog(0);
+            fail("行数为 0 应该抛出异常");
+        } catch (IllegalArgumentException expected) {
+            // 行数不合法
+        }
+        TerminalLog log = new TerminalLog(2);
+        try {
+            log.get(0);
+            fail("没有行时应该越界");
+        } catch (IndexOutOfBoundsException expected) {
+            // 还没有行
+        }
+    }
+
+    private static void assertLines(TerminalLog log, String... expected) {
+        assertEquals(expected.length, log.size());
+        for (int i = 0; i < expected.length; i++) assertEquals(expected[i], log.get(i));
+    }
+}
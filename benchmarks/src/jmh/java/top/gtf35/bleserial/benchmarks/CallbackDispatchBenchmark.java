@@ -0,0 +1,94 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import top.gtf35.bleserial.core.CallbackDispatcher;
+import top.gtf35.bleserial.core.SerialSession;
+
+/**
+ * 回调分发基准
+ * 功能：读取线程连续回调 1000 帧，比较直接回调和经过 CallbackDispatcher 交给别的线程时，读取线程每秒能交出的帧数
+ *      每帧回调消耗固定的 CPU，模拟界面刷新之类的慢回调
+ *      一批帧之后发一个连接成功事件作为结束标记，它不会被丢弃，收到它时前面的帧都已经处理完
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CallbackDispatchBenchmark {
+    private static final int FRAMES = 1000;
+
+    // direct 为在读取线程直接回调，其余为 CallbackDispatcher 的溢出策略
+    @Param({"direct", "BLOCK", "DROP_OLDEST", "COALESCE"})
+    public String dispatch;
+
+    // 每帧回调消耗的 CPU，见 Blackhole.consumeCPU
+    @Param({"0", "500"})
+    public int callbackCost;
+
+    private ExecutorService mExecutor;
+    private SerialSession.Callback mCallback;
+    private final AtomicInteger mBatches = new AtomicInteger();
+    private final byte[] mFrame = "0123456789abcdefghij\r\n".getBytes();
+
+    @Setup
+    public void setup() {
+        SerialSession.Callback target = new SerialSession.Callback() {
+            @Override
+            public void onConnectSuccess() {
+                mBatches.incrementAndGet();
+            }
+
+            @Override
+            public void onConnectFailed(String msg) {
+            }
+
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+                Blackhole.consumeCPU(callbackCost);
+            }
+
+            @Override
+            public void onSendBytes(byte[] bytes) {
+            }
+        };
+        if (dispatch.equals("direct")) {
+            mCallback = target;
+        } else {
+            mExecutor = Executors.newSingleThreadExecutor();
+            mCallback = new CallbackDispatcher(target, mExecutor, 256, CallbackDispatcher.OverflowPolicy.valueOf(dispatch));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) mExecutor.shutdownNow();
+    }
+
+    /**
+     * 回调 1000 帧并等回调线程处理完
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void dispatch() {
+        int batches = mBatches.get();
+        for (int i = 0; i < FRAMES; i++) mCallback.onReceiveBytes(mFrame);
+        mCallback.onConnectSuccess();
+        while (mBatches.get() == batches) Thread.yield();
+    }
+}
@@ -0,0 +1,65 @@
+package top.gtf35.bleserial.benchmarks;
+
+import java.io.InputStream;
+
+/**
+ * 基准测试用的数据
+ * @author gtf35 gtf@gtf35.top
+ */
+final class Data {
+    private Data() {
+    }
+
+    /**
+     * 由定长的帧组成的数据，帧内容是不含分隔符的字母
+     *
+     * @param totalLength 总长度，按整帧向下取整
+     * @param frameLength 每帧的长度，包含分隔符
+     * @param delimiter 分隔符
+     */
+    static byte[] frames(int totalLength, int frameLength, byte[] delimiter) {
+        int payload = frameLength - delimiter.length;
+        if (payload <= 0) throw new IllegalArgumentException("帧长度小于分隔符：" + frameLength);
+        byte[] data = new byte[totalLength / frameLength * frameLength];
+        for (int i = 0; i < data.length; i += frameLength) {
+            for (int j = 0; j < payload; j++) data[i + j] = (byte) ('a' + (i / frameLength + j) % 26);
+            System.arraycopy(delimiter, 0, data, i + payload, delimiter.length);
+        }
+        return data;
+    }
+
+    /**
+     * 每次 read 最多返回 chunkSize 字节的输入流，模拟 socket 每次读到的数据量
+     */
+    static class ChunkedInputStream extends InputStream {
+        private final byte[] mData;
+        private final int mChunkSize;
+        private int mPosition = 0;
+
+        ChunkedInputStream(byte[] data, int chunkSize) {
+            mData = data;
+            mChunkSize = chunkSize;
+        }
+
+        /**
+         * 从头再读一遍
+         */
+        void rewind() {
+            mPosition = 0;
+        }
+
+        @Override
+        public int read() {
+            return mPosition < mData.length ? mData[mPosition++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPosition >= mData.length) return -1;
+            int n = Math.min(Math.min(len, mChunkSize), mData.length - mPosition);
+            System.arraycopy(mData, mPosition, b, off, n);
+            mPosition += n;
+            return n;
+        }
+    }
+}
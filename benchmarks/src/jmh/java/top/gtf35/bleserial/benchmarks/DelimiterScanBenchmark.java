@@ -0,0 +1,56 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.DelimiterScanner;
+
+/**
+ * 分隔符扫描基准
+ * 功能：在 64KB 的数据里逐帧查找停止标志位，比较不同帧长和分隔符长度
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DelimiterScanBenchmark {
+    @Param({"16", "256"})
+    public int frameLength;
+
+    @Param({"\\n", "\\r\\n", "\\r\\n\\r\\n"})
+    public String delimiter;
+
+    private byte[] mData;
+    private DelimiterScanner mScanner;
+
+    @Setup
+    public void setup() {
+        byte[] delimiterBytes = delimiter.replace("\\r", "\r").replace("\\n", "\n").getBytes();
+        mData = Data.frames(64 * 1024, frameLength, delimiterBytes);
+        mScanner = new DelimiterScanner(delimiterBytes);
+    }
+
+    /**
+     * 扫描全部数据，返回找到的帧数
+     */
+    @Benchmark
+    public int scan() {
+        int frames = 0;
+        int from = 0;
+        int end;
+        while ((end = mScanner.scan(mData, from, mData.length)) >= 0) {
+            frames++;
+            from = end;
+        }
+        mScanner.reset();
+        return frames;
+    }
+}
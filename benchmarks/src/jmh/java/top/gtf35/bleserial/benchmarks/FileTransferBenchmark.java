@@ -0,0 +1,138 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.FileTransfer;
+import top.gtf35.bleserial.core.LoopbackTransport;
+import top.gtf35.bleserial.core.SerialSession;
+
+/**
+ * 文件传输基准
+ * 功能：通过应答有延迟的回环传输层发送 64KB 的文件，比较停等和窗口模式传完一个文件的时间
+ *      停等每块要等一个往返，窗口模式同时有多个块在途
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileTransferBenchmark {
+    private static final int FILE_SIZE = 64 * 1024;
+
+    // YMODEM_1K 为停等，WINDOWED_n 为窗口大小 n 的窗口模式
+    @Param({"YMODEM_1K", "WINDOWED_4", "WINDOWED_16"})
+    public String mode;
+
+    // 接收方每个应答的延迟
+    @Param({"5", "20"})
+    public int latencyMs;
+
+    private ExecutorService mExecutor;
+    private ScheduledExecutorService mScheduler;
+    private LoopbackTransport mDevice;
+    private SerialSession mSession;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+
+    @Setup
+    public void setup() throws Exception {
+        mExecutor = Executors.newCachedThreadPool();
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        LoopbackTransport[] pair = LoopbackTransport.createPair(16 * 1024);
+        mDevice = pair[1];
+        mDevice.open();
+        mSession = new SerialSession(pair[0], mExecutor, new SerialSession.Callback() {
+            @Override
+            public void onConnectSuccess() {
+            }
+
+            @Override
+            public void onConnectFailed(String msg) {
+            }
+
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void onSendBytes(byte[] bytes) {
+            }
+        });
+        mSession.start();
+        while (mSession.getState() != SerialSession.State.CONNECTED) Thread.sleep(1);
+        mFile = File.createTempFile("transfer", ".bin");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(content);
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.write(content);
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mSession.stop();
+        mDevice.close();
+        mSession.awaitIdle(1000);
+        mExecutor.shutdownNow();
+        mScheduler.shutdownNow();
+        mRandomAccessFile.close();
+        mFile.delete();
+    }
+
+    /**
+     * 传一个文件
+     */
+    @Benchmark
+    public long transfer() throws Exception {
+        boolean windowed = mode.startsWith("WINDOWED");
+        int window = windowed ? Integer.parseInt(mode.substring(mode.indexOf('_') + 1)) : 1;
+        final FileTransfer transfer = new FileTransfer(mSession,
+                windowed ? FileTransfer.Protocol.WINDOWED : FileTransfer.Protocol.YMODEM_1K, window);
+        final String[] failure = new String[1];
+        Future<Boolean> result = mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return transfer.send(mChannel, mFile.getName(), new FileTransfer.Listener() {
+                    @Override
+                    public void onProgress(long sentBytes, long totalBytes, long bytesPerSecond) {
+                    }
+
+                    @Override
+                    public void onComplete(long totalBytes, long elapsedMs) {
+                    }
+
+                    @Override
+                    public void onFailed(String msg) {
+                        failure[0] = msg;
+                    }
+                });
+            }
+        });
+        // 切换到原始数据接收之后接收方再发 C，不然 C 会被当成帧的一部分
+        while (!mSession.isReceivingRaw() && !result.isDone()) Thread.yield();
+        SimulatedReceiver receiver = new SimulatedReceiver(mDevice, true, windowed, latencyMs, mScheduler);
+        receiver.run();
+        if (!result.get()) throw new IOException("传输失败：" + failure[0]);
+        return receiver.getReceivedBytes();
+    }
+}
@@ -0,0 +1,163 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.CobsFrameDecoder;
+import top.gtf35.bleserial.core.DelimiterFrameDecoder;
+import top.gtf35.bleserial.core.FixedLengthFrameDecoder;
+import top.gtf35.bleserial.core.FrameDecoder;
+import top.gtf35.bleserial.core.LengthFieldFrameDecoder;
+import top.gtf35.bleserial.core.ReceiveBuffer;
+import top.gtf35.bleserial.core.SlipFrameDecoder;
+
+/**
+ * 帧解码器基准
+ * 功能：比较五种解码器的吞吐，每次操作解码约 64KB 已经编码好的帧，每次 read 读到 256 字节
+ *      帧内容是随机字节（分隔符解码器用字母），SLIP 和 COBS 需要转义或者还原的字节也在里面
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecoderBenchmark {
+    private static final int TOTAL = 64 * 1024;
+
+    @Param({"DELIMITER", "FIXED_LENGTH", "LENGTH_FIELD", "SLIP", "COBS"})
+    public String decoder;
+
+    // 编码前每帧的内容长度
+    @Param({"16", "200"})
+    public int payloadLength;
+
+    private Data.ChunkedInputStream mInputStream;
+    private ReceiveBuffer mBuffer;
+    private FrameDecoder mDecoder;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(4);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] payload = new byte[payloadLength];
+        while (stream.size() < TOTAL) {
+            random.nextBytes(payload);
+            byte[] frame;
+            switch (decoder) {
+                case "DELIMITER":
+                    for (int i = 0; i < payload.length; i++) payload[i] = (byte) ('a' + (payload[i] & 0xff) % 26);
+                    stream.write(payload, 0, payload.length);
+                    frame = "\r\n".getBytes();
+                    break;
+                case "FIXED_LENGTH":
+                    frame = payload;
+                    break;
+                case "LENGTH_FIELD":
+                    stream.write(payload.length >> 8);
+                    stream.write(payload.length);
+                    frame = payload;
+                    break;
+                case "SLIP":
+                    frame = slip(payload);
+                    break;
+                case "COBS":
+                    frame = cobs(payload);
+                    break;
+                default:
+                    throw new IllegalArgumentException(decoder);
+            }
+            stream.write(frame, 0, frame.length);
+        }
+        mInputStream = new Data.ChunkedInputStream(stream.toByteArray(), 256);
+        mBuffer = new ReceiveBuffer(1024);
+        switch (decoder) {
+            case "DELIMITER":
+                mDecoder = new DelimiterFrameDecoder("\r\n".getBytes(), 4096);
+                break;
+            case "FIXED_LENGTH":
+                mDecoder = new FixedLengthFrameDecoder(payloadLength);
+                break;
+            case "LENGTH_FIELD":
+                mDecoder = new LengthFieldFrameDecoder(0, 2, true, 0, 4096);
+                break;
+            case "SLIP":
+                mDecoder = new SlipFrameDecoder(4096);
+                break;
+            default:
+                mDecoder = new CobsFrameDecoder(4096);
+                break;
+        }
+    }
+
+    /**
+     * 读完并解码全部数据
+     */
+    @Benchmark
+    public void decode(final Blackhole blackhole) throws IOException {
+        FrameDecoder.Output output = new FrameDecoder.Output() {
+            @Override
+            public void onFrame(byte[] array, int offset, int length) {
+                blackhole.consume(length);
+            }
+
+            @Override
+            public void onDecodeError(String msg) {
+                throw new IllegalStateException(msg);
+            }
+        };
+        mInputStream.rewind();
+        while (mBuffer.readFrom(mInputStream, 256) >= 0) mDecoder.decode(mBuffer, output);
+    }
+
+    private static byte[] slip(byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte b : payload) {
+            if (b == (byte) 0xC0) {
+                out.write(0xDB);
+                out.write(0xDC);
+            } else if (b == (byte) 0xDB) {
+                out.write(0xDB);
+                out.write(0xDD);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(0xC0);
+        return out.toByteArray();
+    }
+
+    private static byte[] cobs(byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int blockStart = 0;
+        int i = 0;
+        while (true) {
+            if (i - blockStart == 254) {
+                // 满 254 字节的块后面没有隐含的 0
+                out.write(0xFF);
+                out.write(payload, blockStart, 254);
+                blockStart = i;
+                continue;
+            }
+            if (i == payload.length || payload[i] == 0) {
+                out.write(i - blockStart + 1);
+                out.write(payload, blockStart, i - blockStart);
+                if (i == payload.length) break;
+                blockStart = i + 1;
+            }
+            i++;
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+}
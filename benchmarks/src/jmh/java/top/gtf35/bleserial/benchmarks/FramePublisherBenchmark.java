@@ -0,0 +1,141 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.gtf35.bleserial.core.FramePublisher;
+import top.gtf35.bleserial.core.LoopbackTransport;
+import top.gtf35.bleserial.core.ReactiveStreams;
+import top.gtf35.bleserial.core.SerialSession;
+
+/**
+ * 帧发布者基准
+ * 功能：设备端一直写，会话通过 FramePublisher 把帧交给订阅者，测持续的吞吐
+ *      订阅者每次 request 的数量和处理每帧消耗的 CPU 不同，慢订阅者时设备端的写会被流控挡住
+ *      每次操作等订阅者再收到 1000 帧
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FramePublisherBenchmark {
+    private static final int FRAMES = 1000;
+
+    // 订阅者每处理完多少帧 request 一次
+    @Param({"1", "64"})
+    public int batch;
+
+    // 订阅者处理每帧消耗的 CPU，见 Blackhole.consumeCPU，0 为快订阅者
+    @Param({"0", "5000"})
+    public int subscriberCost;
+
+    private ExecutorService mExecutor;
+    private SerialSession mSession;
+    private LoopbackTransport mDevice;
+    private volatile boolean mWriting;
+    private final AtomicLong mReceived = new AtomicLong();
+
+    @Setup
+    public void setup() throws IOException {
+        mExecutor = Executors.newCachedThreadPool();
+        LoopbackTransport[] pair = LoopbackTransport.createPair(4096);
+        mDevice = pair[1];
+        mDevice.open();
+        FramePublisher publisher = new FramePublisher();
+        publisher.subscribe(new ReactiveStreams.Subscriber<byte[]>() {
+            private ReactiveStreams.Subscription mSubscription;
+            private int mConsumed;
+
+            @Override
+            public void onSubscribe(ReactiveStreams.Subscription subscription) {
+                mSubscription = subscription;
+                subscription.request(batch);
+            }
+
+            @Override
+            public void onNext(byte[] item) {
+                Blackhole.consumeCPU(subscriberCost);
+                mReceived.incrementAndGet();
+                if (++mConsumed == batch) {
+                    mConsumed = 0;
+                    mSubscription.request(batch);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        mSession = new SerialSession(pair[0], mExecutor, new SerialSession.Callback() {
+            @Override
+            public void onConnectSuccess() {
+            }
+
+            @Override
+            public void onConnectFailed(String msg) {
+            }
+
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void onSendBytes(byte[] bytes) {
+            }
+        });
+        mSession.setFramePublisher(publisher);
+        mSession.start();
+        mWriting = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] frame = "0123456789abcdefghij\r\n".getBytes();
+                try {
+                    OutputStream outputStream = mDevice.getOutputStream();
+                    while (mWriting) outputStream.write(frame);
+                } catch (IOException e) {
+                    // 关闭时写会失败
+                }
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mWriting = false;
+        mSession.stop();
+        mDevice.close();
+        mSession.awaitIdle(1000);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 等订阅者再收到 1000 帧
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void receive() {
+        long target = mReceived.get() + FRAMES;
+        while (mReceived.get() < target) Thread.yield();
+    }
+}
@@ -0,0 +1,89 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Formatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.HexEncoder;
+import top.gtf35.bleserial.core.SerialLog;
+
+/**
+ * 日志开销基准
+ * 功能：每次操作记录一帧收到的数据，比较日志关闭和打开时每帧的耗时
+ *      FORMATTER 是原来 byte2Hex 的写法，每个字节调用一次 Formatter，不管日志开没开都先转换
+ *      EAGER 用查表转换，但还是先拼好字符串再交给 SerialLog
+ *      FACADE 把数组直接交给 SerialLog，关闭时只比较一次级别
+ *      输出位置换成只记住消息的空实现，测的是生成消息的开销，不含真正的输出
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoggingBenchmark {
+    @Param({"FORMATTER", "EAGER", "FACADE"})
+    public String style;
+
+    @Param({"false", "true"})
+    public boolean enabled;
+
+    @Param({"64"})
+    public int frameLength;
+
+    private byte[] mFrame;
+    private String mLast;
+
+    @Setup
+    public void setup() {
+        mFrame = new byte[frameLength];
+        new Random(11).nextBytes(mFrame);
+        SerialLog.setSink(new SerialLog.Sink() {
+            @Override
+            public void log(int level, String tag, String msg, Throwable tr) {
+                mLast = msg;
+            }
+        });
+        SerialLog.setLevel(enabled ? SerialLog.DEBUG : SerialLog.OFF);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SerialLog.setLevel(SerialLog.OFF);
+    }
+
+    /**
+     * 记录一帧，返回最后输出的消息，避免被优化掉
+     */
+    @Benchmark
+    public String logFrame() {
+        switch (style) {
+            case "FORMATTER":
+                SerialLog.d("收到数据:" + formatterHex(mFrame));
+                break;
+            case "EAGER":
+                SerialLog.d("收到数据:" + HexEncoder.toHex(mFrame, 0, mFrame.length));
+                break;
+            default:
+                SerialLog.d("收到数据:", mFrame, 0, mFrame.length);
+                break;
+        }
+        return mLast;
+    }
+
+    private static String formatterHex(byte[] bytes) {
+        Formatter formatter = new Formatter();
+        for (byte b : bytes) formatter.format("%02x", b);
+        String hex = formatter.toString();
+        formatter.close();
+        return hex;
+    }
+}
@@ -0,0 +1,68 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.DelimiterFrameDecoder;
+import top.gtf35.bleserial.core.FrameDecoder;
+import top.gtf35.bleserial.core.ReceiveBuffer;
+
+/**
+ * 接收组帧基准
+ * 功能：和读取线程一样，从输入流读到接收缓冲区再用分隔符解码器切帧
+ *      每次操作处理 64KB 数据，比较每次 read 读到的数据量不同时的吞吐
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReceiveAssemblyBenchmark {
+    // 每次 read 读到的字节数
+    @Param({"20", "256", "4096"})
+    public int chunkSize;
+
+    @Param({"22", "200"})
+    public int frameLength;
+
+    private Data.ChunkedInputStream mInputStream;
+    private ReceiveBuffer mBuffer;
+    private FrameDecoder mDecoder;
+
+    @Setup
+    public void setup() {
+        byte[] delimiter = "\r\n".getBytes();
+        mInputStream = new Data.ChunkedInputStream(Data.frames(64 * 1024, frameLength, delimiter), chunkSize);
+        mBuffer = new ReceiveBuffer(1024);
+        mDecoder = new DelimiterFrameDecoder(delimiter);
+    }
+
+    /**
+     * 读完并解码 64KB 数据
+     */
+    @Benchmark
+    public void assemble(final Blackhole blackhole) throws IOException {
+        FrameDecoder.Output output = new FrameDecoder.Output() {
+            @Override
+            public void onFrame(byte[] array, int offset, int length) {
+                blackhole.consume(length);
+            }
+
+            @Override
+            public void onDecodeError(String msg) {
+                throw new IllegalStateException(msg);
+            }
+        };
+        mInputStream.rewind();
+        while (mBuffer.readFrom(mInputStream, 256) >= 0) mDecoder.decode(mBuffer, output);
+    }
+}
@@ -0,0 +1,83 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.ReceiveBuffer;
+
+/**
+ * 接收缓冲区基准
+ * 功能：一个大帧每次 read 只到 20 字节，比较累计整帧的耗时
+ *      CONCAT 是原来的写法，每次 read 都新建数组把已经收到的数据整个拷一遍，耗时和帧长的平方成正比
+ *      RECEIVE_BUFFER 直接读到 ReceiveBuffer 尾部，只在扩容时拷贝
+ *      两种写法每次 read 后都检查结尾是不是 \r\n，收完整帧后取出
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReceiveBufferBenchmark {
+    private static final int CHUNK_SIZE = 20;
+
+    @Param({"CONCAT", "RECEIVE_BUFFER"})
+    public String strategy;
+
+    // 帧长，包含 \r\n
+    @Param({"1024", "65536"})
+    public int frameLength;
+
+    private Data.ChunkedInputStream mInputStream;
+    private ReceiveBuffer mBuffer;
+
+    @Setup
+    public void setup() {
+        mInputStream = new Data.ChunkedInputStream(Data.frames(frameLength, frameLength, "\r\n".getBytes()),
+                CHUNK_SIZE);
+        mBuffer = new ReceiveBuffer(1024);
+    }
+
+    /**
+     * 收完一帧，返回帧长
+     */
+    @Benchmark
+    public int receiveFrame() throws IOException {
+        mInputStream.rewind();
+        return strategy.equals("CONCAT") ? concat() : receiveBuffer();
+    }
+
+    private int concat() {
+        byte[] result = new byte[0];
+        byte[] buffer = new byte[256];
+        int num;
+        while ((num = mInputStream.read(buffer, 0, buffer.length)) > 0) {
+            byte[] temp = new byte[result.length + num];
+            System.arraycopy(result, 0, temp, 0, result.length);
+            System.arraycopy(buffer, 0, temp, result.length, num);
+            result = temp;
+            if (endsWithDelimiter(result, 0, result.length)) return result.length;
+        }
+        return -1;
+    }
+
+    private int receiveBuffer() throws IOException {
+        while (mBuffer.readFrom(mInputStream, 256) > 0) {
+            if (endsWithDelimiter(mBuffer.array(), mBuffer.readIndex(), mBuffer.writeIndex())) {
+                return mBuffer.take(mBuffer.readableBytes()).length;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean endsWithDelimiter(byte[] array, int from, int to) {
+        return to - from >= 2 && array[to - 2] == '\r' && array[to - 1] == '\n';
+    }
+}
@@ -0,0 +1,148 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.LoopbackTransport;
+import top.gtf35.bleserial.core.RequestClient;
+import top.gtf35.bleserial.core.ResponseCorrelator;
+import top.gtf35.bleserial.core.SerialSession;
+import top.gtf35.bleserial.core.TimerWheel;
+
+/**
+ * 请求流水线基准
+ * 功能：通过回环传输层连续发 32 个请求，设备端每个请求延迟 latencyMs 再响应，模拟蓝牙链路的往返时间
+ *      比较窗口为 1（一问一答）和窗口为 8 时收齐全部响应的时间
+ *      请求为 Q + 4 位序号 + \r\n，响应为 A + 同样的序号 + \r\n，按序号匹配
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RequestPipeliningBenchmark {
+    private static final int REQUESTS = 32;
+
+    @Param({"1", "8"})
+    public int window;
+
+    // 设备端每个响应的延迟
+    @Param({"5"})
+    public int latencyMs;
+
+    private ExecutorService mExecutor;
+    private ScheduledExecutorService mScheduler;
+    private LoopbackTransport mDevice;
+    private SerialSession mSession;
+    private RequestClient mClient;
+    private int mSequence = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        mExecutor = Executors.newCachedThreadPool();
+        // 单线程，响应按收到请求的顺序发出
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        LoopbackTransport[] pair = LoopbackTransport.createPair(16 * 1024);
+        mDevice = pair[1];
+        mDevice.open();
+        mClient = new RequestClient(new SerialSession.Callback() {
+            @Override
+            public void onConnectSuccess() {
+            }
+
+            @Override
+            public void onConnectFailed(String msg) {
+            }
+
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void onSendBytes(byte[] bytes) {
+            }
+        }, ResponseCorrelator.sequenceId(1, 1, 4), window, TimerWheel.getDefault());
+        mSession = new SerialSession(pair[0], mExecutor, mClient);
+        mClient.bind(mSession);
+        mSession.start();
+        while (mSession.getState() != SerialSession.State.CONNECTED) Thread.sleep(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                respond();
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mSession.stop();
+        mDevice.close();
+        mSession.awaitIdle(1000);
+        mExecutor.shutdownNow();
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * 发出全部请求并等到全部响应
+     */
+    @Benchmark
+    public int pipeline() throws Exception {
+        RequestClient.ResponseFuture[] futures = new RequestClient.ResponseFuture[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            String request = String.format("Q%04d\r\n", mSequence);
+            mSequence = (mSequence + 1) % 10000;
+            // 窗口满时在这里等
+            futures[i] = mClient.request(request.getBytes(), 5000);
+        }
+        int bytes = 0;
+        for (RequestClient.ResponseFuture future : futures) bytes += future.get().length;
+        return bytes;
+    }
+
+    /**
+     * 设备端：读出一行请求，延迟 latencyMs 回一行响应
+     */
+    private void respond() {
+        try {
+            InputStream in = mDevice.getInputStream();
+            final OutputStream out = mDevice.getOutputStream();
+            byte[] line = new byte[7];
+            int length = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                line[length++] = (byte) b;
+                if (length < line.length) continue;
+                length = 0;
+                final byte[] response = line.clone();
+                response[0] = 'A';
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            out.write(response);
+                        } catch (IOException e) {
+                            // 结束时断开
+                        }
+                    }
+                }, latencyMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            // 结束时断开
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.LoopbackTransport;
+import top.gtf35.bleserial.core.SendQueue;
+
+/**
+ * 发送合并基准
+ * 功能：连续发送 1000 条 16 字节的小消息，比较合并上限不同时每秒能发出的消息数
+ *      每次 write 消耗固定的 CPU，模拟系统调用和蓝牙协议栈的开销
+ *      maxBatchBytes 为 1 时每条消息单独 write，相当于不合并
+ *      sink 为 LOOPBACK 时写进 LoopbackTransport，另一端有线程一直读走，包含管道的加锁和唤醒开销
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendCoalescingBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({"1", "512", "4096"})
+    public int maxBatchBytes;
+
+    // 每次 write 消耗的 CPU，见 Blackhole.consumeCPU
+    @Param({"0", "2000"})
+    public int writeCost;
+
+    @Param({"SIMULATED", "LOOPBACK"})
+    public String sink;
+
+    private ExecutorService mExecutor;
+    private LoopbackTransport[] mPair;
+    private SendQueue mSendQueue;
+    private final byte[] mMessage = "0123456789abc\r\n".getBytes();
+
+    @Setup
+    public void setup() {
+        mExecutor = Executors.newFixedThreadPool(2);
+        mSendQueue = new SendQueue(MESSAGES, maxBatchBytes, 0, mExecutor, new SendQueue.Callback() {
+            @Override
+            public void onSendBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void onSendFailed(String msg) {
+                throw new IllegalStateException(msg);
+            }
+        });
+        mSendQueue.start();
+        final OutputStream target = sink.equals("LOOPBACK") ? openLoopback() : null;
+        mSendQueue.attach(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Blackhole.consumeCPU(writeCost);
+                if (target != null) target.write(b, off, len);
+            }
+        });
+    }
+
+    /**
+     * 打开一对回环传输，另一端在线程池里一直读到关闭
+     */
+    private OutputStream openLoopback() {
+        mPair = LoopbackTransport.createPair(4096);
+        mPair[0].open();
+        final InputStream device = mPair[1].getInputStream();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    while (device.read(buffer, 0, buffer.length) >= 0) {
+                        // 读走就行
+                    }
+                } catch (IOException e) {
+                    // 关闭了
+                }
+            }
+        });
+        return mPair[0].getOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSendQueue.stop();
+        if (mPair != null) {
+            try {
+                mPair[0].close();
+            } catch (IOException e) {
+                // 回环不会失败
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 发送 1000 条消息并等最后一条写出
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void send() throws Exception {
+        SendQueue.SendFuture last = null;
+        for (int i = 0; i < MESSAGES; i++) last = mSendQueue.enqueue(mMessage, 1000);
+        last.get();
+    }
+}
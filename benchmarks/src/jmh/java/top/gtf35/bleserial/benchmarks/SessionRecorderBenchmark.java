@@ -0,0 +1,106 @@
+package top.gtf35.bleserial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.SessionRecorder;
+
+/**
+ * 会话录制基准
+ * 功能：每次操作录制 4MB（读取线程每次 read 到 chunkSize 字节），关闭录制器等全部写到磁盘，
+ *      文件每 1MB 轮换一次；每秒操作数乘 4 就是持续写入的 MB/s
+ *      缓冲区放得下一次操作的全部记录，不会丢，测到的是拷贝加写盘的真实速度
+ *      read 读回 record 写出的文件，是回放的速度
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SessionRecorderBenchmark {
+    private static final int TOTAL = 4 * 1024 * 1024;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // 20 字节一条时加上 13 字节的记录头约 6.6MB，缓冲区一共 8MB 放得下
+    private static final int MAX_BUFFERS = 128;
+
+    @Param({"20", "256", "4096"})
+    public int chunkSize;
+
+    private File mDir;
+    private ExecutorService mExecutor;
+    private byte[] mChunk;
+
+    @Setup
+    public void setup() throws IOException {
+        mDir = Files.createTempDirectory("recorder").toFile();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mChunk = new byte[chunkSize];
+        new Random(7).nextBytes(mChunk);
+        // 给 read 准备一份录制好的文件
+        record("replay");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        File[] files = mDir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDir.delete();
+    }
+
+    /**
+     * 录制 4MB 并关闭，返回丢掉的记录数，应该是 0
+     */
+    @Benchmark
+    public long record() throws IOException {
+        return record("bench");
+    }
+
+    /**
+     * 读回 4MB 的录制文件，返回读到的字节数
+     */
+    @Benchmark
+    public long read() throws IOException {
+        long bytes = 0;
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(SessionRecorder.listFiles(mDir, "replay"));
+        try {
+            SessionRecorder.Record record;
+            while ((record = reader.next()) != null) bytes += record.data.length;
+        } finally {
+            reader.close();
+        }
+        return bytes;
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteRecorded() {
+        for (File file : SessionRecorder.listFiles(mDir, "bench")) file.delete();
+    }
+
+    private long record(String prefix) throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mDir, prefix, 1024 * 1024, BUFFER_BYTES,
+                MAX_BUFFERS, mExecutor);
+        byte direction = SessionRecorder.RX;
+        for (int written = 0; written < TOTAL; written += chunkSize) {
+            recorder.record(direction, mChunk, 0, chunkSize);
+            direction = direction == SessionRecorder.RX ? SessionRecorder.TX : SessionRecorder.RX;
+        }
+        recorder.close();
+        return recorder.getDroppedRecords();
+    }
+}
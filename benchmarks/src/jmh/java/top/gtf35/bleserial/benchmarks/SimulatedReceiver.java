@@ -0,0 +1,163 @@
+package top.gtf35.bleserial.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import top.gtf35.bleserial.core.LoopbackTransport;
+
+/**
+ * 模拟的文件接收方
+ * 功能：在回环传输层的设备端按 XMODEM-CRC、YMODEM-1K 或者窗口模式接收文件
+ *      每个应答延迟 latencyMs 再发出，模拟蓝牙链路的往返时间
+ *      窗口模式下只按顺序接收，乱序的块回 NAK 要求从期望的块重发
+ * @author gtf35 gtf@gtf35.top
+ */
+class SimulatedReceiver implements Runnable {
+    private static final int SOH = 0x01;
+    private static final int STX = 0x02;
+    private static final int EOT = 0x04;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int CAN = 0x18;
+
+    private final LoopbackTransport mDevice;
+    private final boolean mBatch;
+    private final boolean mWindowed;
+    private final long mLatencyMs;
+    private final ScheduledExecutorService mScheduler;
+    private volatile long mReceivedBytes = 0;
+    private volatile boolean mDone = false;
+
+    /**
+     * @param device 设备端
+     * @param batch 是否是 YMODEM，有第 0 块
+     * @param windowed 应答是否带块号
+     * @param latencyMs 应答延迟
+     * @param scheduler 延迟发应答用的线程池，需要是单线程的，保证应答的顺序
+     */
+    SimulatedReceiver(LoopbackTransport device, boolean batch, boolean windowed, long latencyMs,
+                      ScheduledExecutorService scheduler) {
+        mDevice = device;
+        mBatch = batch;
+        mWindowed = windowed;
+        mLatencyMs = latencyMs;
+        mScheduler = scheduler;
+    }
+
+    long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public void run() {
+        try {
+            InputStream in = mDevice.getInputStream();
+            reply('C');
+            if (mBatch) {
+                readBlock(in, in.read());
+                reply(ACK);
+                reply('C');
+            }
+            long expected = 1;
+            boolean eotNaked = false;
+            while (true) {
+                int head = in.read();
+                if (head < 0 || head == CAN) return;
+                if (head == EOT) {
+                    // 按惯例先 NAK 第一个 EOT
+                    if (!eotNaked) {
+                        eotNaked = true;
+                        reply(NAK);
+                        continue;
+                    }
+                    reply(ACK);
+                    break;
+                }
+                byte[] block = readBlock(in, head);
+                if (block == null) {
+                    replyBlock(NAK, expected);
+                    continue;
+                }
+                int number = block[1] & 0xff;
+                if (number == (expected & 0xff)) {
+                    mReceivedBytes += block.length - 5;
+                    replyBlock(ACK, expected);
+                    expected++;
+                } else if (number == ((expected - 1) & 0xff)) {
+                    // 重发的块已经收到过
+                    replyBlock(ACK, expected - 1);
+                } else {
+                    replyBlock(NAK, expected);
+                }
+            }
+            if (mBatch) {
+                reply('C');
+                readBlock(in, in.read());
+                reply(ACK);
+            }
+            mDone = true;
+        } catch (IOException e) {
+            // 关闭时读写会失败
+        }
+    }
+
+    /**
+     * 读一块，校验不对时返回 null
+     */
+    private static byte[] readBlock(InputStream in, int head) throws IOException {
+        if (head != SOH && head != STX) return null;
+        byte[] block = new byte[(head == SOH ? 128 : 1024) + 5];
+        block[0] = (byte) head;
+        int offset = 1;
+        while (offset < block.length) {
+            int num = in.read(block, offset, block.length - offset);
+            if (num < 0) throw new IOException("已断开");
+            offset += num;
+        }
+        int dataLength = block.length - 5;
+        if (((block[1] ^ block[2]) & 0xff) != 0xff) return null;
+        int crc = crc16(block, 3, dataLength);
+        int expected = ((block[block.length - 2] & 0xff) << 8) | (block[block.length - 1] & 0xff);
+        return crc == expected ? block : null;
+    }
+
+    private static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int j = 0; j < 8; j++) crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xffff;
+    }
+
+    private void replyBlock(int response, long block) {
+        if (mWindowed) {
+            reply(response, (int) (block & 0xff), (int) (~block & 0xff));
+        } else {
+            reply(response);
+        }
+    }
+
+    private void reply(int... bytes) {
+        final byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) data[i] = (byte) bytes[i];
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = mDevice.getOutputStream();
+                    out.write(data);
+                } catch (IOException e) {
+                    // 关闭时写会失败
+                }
+            }
+        }, mLatencyMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,93 @@
+package top.gtf35.bleserial.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话统计基准
+ * 功能：照读取线程的做法读完并解码约 64KB 以 \r\n 结尾的帧，每次 read 读到 256 字节
+ *      ON 每次 read 调 onRead，每帧取两次时间再调 onFrameIn，和 SerialSession 一样；OFF 什么都不记
+ *      两者的差就是统计的开销。SessionMetrics 的记录方法是包内可见的，所以这个基准放在 core 包里
+ * @author gtf35 gtf@gtf35.top
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MetricsBenchmark {
+    private static final int TOTAL = 64 * 1024;
+
+    @Param({"OFF", "ON"})
+    public String metrics;
+
+    // 每帧的长度，包含 \r\n
+    @Param({"16", "200"})
+    public int frameLength;
+
+    private ByteArrayInputStream mInputStream;
+    private ReceiveBuffer mBuffer;
+    private FrameDecoder mDecoder;
+    private SessionMetrics mMetrics;
+    private boolean mOn;
+
+    @Setup
+    public void setup() {
+        byte[] data = new byte[TOTAL / frameLength * frameLength];
+        for (int i = 0; i < data.length; i += frameLength) {
+            for (int j = 0; j < frameLength - 2; j++) data[i + j] = (byte) ('a' + (i / frameLength + j) % 26);
+            data[i + frameLength - 2] = '\r';
+            data[i + frameLength - 1] = '\n';
+        }
+        mInputStream = new ByteArrayInputStream(data);
+        mBuffer = new ReceiveBuffer(1024);
+        mDecoder = new DelimiterFrameDecoder("\r\n".getBytes(), 4096);
+        mMetrics = new SessionMetrics();
+        mOn = metrics.equals("ON");
+    }
+
+    /**
+     * 读完并解码全部数据
+     */
+    @Benchmark
+    public void decode(final Blackhole blackhole) throws IOException {
+        final boolean on = mOn;
+        final SessionMetrics sessionMetrics = mMetrics;
+        final long[] readTime = new long[1];
+        FrameDecoder.Output output = new FrameDecoder.Output() {
+            @Override
+            public void onFrame(byte[] array, int offset, int length) {
+                if (on) {
+                    long start = System.nanoTime();
+                    blackhole.consume(length);
+                    sessionMetrics.onFrameIn(start - readTime[0], System.nanoTime() - start);
+                } else {
+                    blackhole.consume(length);
+                }
+            }
+
+            @Override
+            public void onDecodeError(String msg) {
+                throw new IllegalStateException(msg);
+            }
+        };
+        mInputStream.reset();
+        int num;
+        while ((num = mBuffer.readFrom(mInputStream, 256)) >= 0) {
+            if (on) {
+                sessionMetrics.onRead(num);
+                readTime[0] = System.nanoTime();
+            }
+            mDecoder.decode(mBuffer, output);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 内存管道
+ * 功能：定长环形缓冲区，一端写一端读
+ *      读不到数据时阻塞，写满时阻塞，和真实链路的流控一样
+ *      关闭后读端读完剩余数据返回 -1，写端抛出异常
+ *      不像 PipedInputStream 那样绑定读写线程
+ * @author gtf35 gtf@gtf35.top
+ */
+class BytePipe {
+    private final byte[] mBuffer;
+    private int mReadIndex = 0;
+    private int mSize = 0;
+    private boolean mClosed = false;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return BytePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (BytePipe.this) {
+                return mSize;
+            }
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            BytePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    /**
+     * @param capacity 缓冲区大小，相当于链路上能积压的字节数
+     */
+    BytePipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * 关闭管道，唤醒所有等待的读写线程
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * 关闭之后重新打开，丢弃残留的数据，没有关闭时什么都不做
+     */
+    synchronized void reopen() {
+        if (!mClosed) return;
+        mClosed = false;
+        mReadIndex = 0;
+        mSize = 0;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        try {
+            while (mSize == 0 && !mClosed) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("读取被中断");
+        }
+        if (mSize == 0) return -1;
+        int num = Math.min(len, mSize);
+        int first = Math.min(num, mBuffer.length - mReadIndex);
+        System.arraycopy(mBuffer, mReadIndex, b, off, first);
+        System.arraycopy(mBuffer, 0, b, off + first, num - first);
+        mReadIndex = (mReadIndex + num) % mBuffer.length;
+        mSize -= num;
+        notifyAll();
+        return num;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            try {
+                while (mSize == mBuffer.length && !mClosed) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("写入被中断");
+            }
+            if (mClosed) throw new IOException("管道已关闭");
+            int num = Math.min(len, mBuffer.length - mSize);
+            int writeIndex = (mReadIndex + mSize) % mBuffer.length;
+            int first = Math.min(num, mBuffer.length - writeIndex);
+            System.arraycopy(b, off, mBuffer, writeIndex, first);
+            System.arraycopy(b, off + first, mBuffer, 0, num - first);
+            mSize += num;
+            off += num;
+            len -= num;
+            notifyAll();
+        }
+    }
+}
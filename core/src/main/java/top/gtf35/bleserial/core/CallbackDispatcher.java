@@ -0,0 +1,282 @@
+package top.gtf35.bleserial.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 回调分发器
+ * 功能：包装一个会话回调，读取线程只负责把事件放进有界队列，回调在指定的线程池里按顺序执行
+ *      回调慢的时候读取线程不再被拖住，可以继续把数据读出来，避免 RFCOMM 缓冲区溢出
+ *      线程池可以是调用者提供的、主线程的（见 BLESPPUtils.mainThreadExecutor）或者单独的线程
+ *      收发的数据事件超过容量时按溢出策略处理，连接成功和失败事件不受容量限制，也不会被丢弃
+ *      零拷贝回调 OnReceiveBuffer 的视图只在回调期间有效，不经过分发器
+ * @author gtf35 gtf@gtf35.top
+ */
+public class CallbackDispatcher implements SerialSession.Callback {
+    /**
+     * 队列满时的处理方式
+     */
+    public enum OverflowPolicy {
+        // 读取线程等待回调处理出空位，不丢数据，回调慢时读取也会变慢
+        // 在分发回调的线程里（例如回调里再触发事件，或者线程池直接在调用线程执行任务）不会等待，超出容量也入队，避免自己等自己
+        BLOCK,
+        // 丢掉最早还没处理的数据事件
+        DROP_OLDEST,
+        // 新收到的帧覆盖队尾还没处理的帧，适合只关心最新值的传感器数据
+        COALESCE
+    }
+
+    private static final int CONNECT_SUCCESS = 0;
+    private static final int CONNECT_FAILED = 1;
+    private static final int RECEIVE = 2;
+    private static final int SEND = 3;
+    // 每次最多处理的事件数，处理完让出线程，避免长时间占住主线程
+    private static final int MAX_EVENTS_PER_RUN = 64;
+
+    private final SerialSession.Callback mTarget;
+    private final Executor mExecutor;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+    // 队列里的数据事件数，只在持有 mLock 时读写
+    private int mDataEvents = 0;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    // 正在执行分发任务的线程，BLOCK 时这个线程不能等待
+    private volatile Thread mDrainThread;
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * 构造回调分发器
+     *
+     * @param target 真正的回调
+     * @param executor 执行回调的线程池，同一时间只会有一个任务在跑，回调按顺序执行
+     *                 可以是直接在调用线程执行的线程池，这时回调在读取线程执行，分发器只起到排队的作用
+     * @param capacity 最多排队的数据事件数
+     * @param policy 队列满时的处理方式
+     */
+    public CallbackDispatcher(SerialSession.Callback target, Executor executor, int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("容量必须大于 0：" + capacity);
+        mTarget = target;
+        mExecutor = executor;
+        mCapacity = capacity;
+        mPolicy = policy;
+    }
+
+    @Override
+    public void onConnectSuccess() {
+        offer(new Event(CONNECT_SUCCESS, null, null));
+    }
+
+    @Override
+    public void onConnectFailed(String msg) {
+        offer(new Event(CONNECT_FAILED, null, msg));
+    }
+
+    @Override
+    public void onReceiveBytes(byte[] bytes) {
+        offer(new Event(RECEIVE, bytes, null));
+    }
+
+    @Override
+    public void onSendBytes(byte[] bytes) {
+        offer(new Event(SEND, bytes, null));
+    }
+
+    /**
+     * 因为队列满被丢掉或者覆盖的事件数
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * 当前排队的事件数
+     */
+    public int size() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 事件入队，必要时按溢出策略处理
+     */
+    private void offer(Event event) {
+        mLock.lock();
+        try {
+            if (event.isData()) {
+                if (mDataEvents >= mCapacity && !makeRoom(event)) return;
+                mDataEvents++;
+            }
+            mQueue.addLast(event);
+        } finally {
+            mLock.unlock();
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * 队列满时按策略腾出空位，持有 mLock 时调用
+     *
+     * @return 是否还需要把 event 入队
+     */
+    private boolean makeRoom(Event event) {
+        switch (mPolicy) {
+            case BLOCK:
+                // 分发线程自己等待的话没人能腾出空位
+                if (Thread.currentThread() == mDrainThread) return true;
+                try {
+                    while (mDataEvents >= mCapacity) mNotFull.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mDropped.incrementAndGet();
+                    return false;
+                }
+                return true;
+            case COALESCE:
+                // 队尾还没处理的同类事件直接换成新的
+                Event last = mQueue.peekLast();
+                if (last != null && last.type == event.type) {
+                    last.bytes = event.bytes;
+                    mDropped.incrementAndGet();
+                    return false;
+                }
+                // 队尾不是同类事件的话和 DROP_OLDEST 一样处理
+                dropOldest();
+                return true;
+            case DROP_OLDEST:
+            default:
+                dropOldest();
+                return true;
+        }
+    }
+
+    /**
+     * 丢掉最早的数据事件，持有 mLock 时调用
+     */
+    private void dropOldest() {
+        Iterator<Event> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isData()) {
+                iterator.remove();
+                mDataEvents--;
+                mDropped.incrementAndGet();
+                break;
+            }
+        }
+    }
+
+    /**
+     * 有事件并且没有分发任务在跑的话提交一个
+     */
+    private void scheduleDrain() {
+        if (!mDrainScheduled.compareAndSet(false, true)) return;
+        try {
+            mExecutor.execute(mDrainTask);
+        } catch (RejectedExecutionException e) {
+            // 线程池已经关闭，事件没法处理了，丢掉并放开等待的读取线程
+            mLock.lock();
+            try {
+                mDropped.addAndGet(mQueue.size());
+                mQueue.clear();
+                mDataEvents = 0;
+                mNotFull.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+            mDrainScheduled.set(false);
+        }
+    }
+
+    /**
+     * 分发任务：按顺序执行回调，每次最多处理 MAX_EVENTS_PER_RUN 个
+     */
+    private void drain() {
+        mDrainThread = Thread.currentThread();
+        for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+            Event event;
+            mLock.lock();
+            try {
+                event = mQueue.pollFirst();
+                if (event != null && event.isData()) {
+                    mDataEvents--;
+                    mNotFull.signal();
+                }
+            } finally {
+                mLock.unlock();
+            }
+            if (event == null) break;
+            try {
+                dispatch(event);
+            } catch (RuntimeException e) {
+                // 一个回调出错不影响后面的事件
+                SerialLog.e("回调出错", e);
+            }
+        }
+        mDrainThread = null;
+        mDrainScheduled.set(false);
+        // 还有没处理的事件，重新提交，让线程池里的其他任务也有机会执行
+        boolean pending;
+        mLock.lock();
+        try {
+            pending = !mQueue.isEmpty();
+        } finally {
+            mLock.unlock();
+        }
+        if (pending) scheduleDrain();
+    }
+
+    private void dispatch(Event event) {
+        switch (event.type) {
+            case CONNECT_SUCCESS:
+                mTarget.onConnectSuccess();
+                break;
+            case CONNECT_FAILED:
+                mTarget.onConnectFailed(event.msg);
+                break;
+            case RECEIVE:
+                mTarget.onReceiveBytes(event.bytes);
+                break;
+            case SEND:
+                mTarget.onSendBytes(event.bytes);
+                break;
+        }
+    }
+
+    /**
+     * 排队的回调事件
+     */
+    private static class Event {
+        final int type;
+        // COALESCE 时会被新数据覆盖，只在持有 mLock 时修改
+        byte[] bytes;
+        final String msg;
+
+        Event(int type, byte[] bytes, String msg) {
+            this.type = type;
+            this.bytes = bytes;
+            this.msg = msg;
+        }
+
+        boolean isData() {
+            return type == RECEIVE || type == SEND;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * COBS 帧解码器
+ * 功能：以 0x00 分隔帧，按 COBS 规则还原数据
+ *      还原后的数据比原数据短，直接在缓冲区里原地解码
+ *      空帧忽略，编码不合法或者超过最大长度时丢弃整帧，超长的帧一直丢到下一个 0x00
+ * @author gtf35 gtf@gtf35.top
+ */
+public class CobsFrameDecoder implements FrameDecoder {
+    private final int mMaxFrameLength;
+    // 缓冲区里已经扫描过的字节数，只扫描新到的数据
+    private int mScanned = 0;
+    // 当前帧超长已经丢掉了前面的部分，剩下的丢到下一个 0x00
+    private boolean mBroken = false;
+
+    /**
+     * @param maxFrameLength 编码后的最大帧长度
+     */
+    public CobsFrameDecoder(int maxFrameLength) {
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void decode(ReceiveBuffer buffer, Output output) {
+        while (true) {
+            byte[] data = buffer.array();
+            int start = buffer.readIndex();
+            int end = buffer.writeIndex();
+            int zero = -1;
+            for (int i = start + mScanned; i < end; i++) {
+                if (data[i] == 0) {
+                    zero = i;
+                    break;
+                }
+            }
+            if (zero < 0) {
+                if (mBroken) {
+                    // 超长帧剩下的部分，不用留在缓冲区里
+                    buffer.skip(end - start);
+                    mScanned = 0;
+                    return;
+                }
+                mScanned = end - start;
+                if (mScanned > mMaxFrameLength) {
+                    buffer.skip(mScanned);
+                    mScanned = 0;
+                    mBroken = true;
+                    output.onDecodeError("超过最大帧长度仍未收到 COBS 分隔符");
+                }
+                return;
+            }
+            mScanned = 0;
+            if (mBroken) {
+                // 超长帧的结尾，前面已经报告过了
+                mBroken = false;
+            } else if (zero - start > mMaxFrameLength) {
+                // 整帧一次到达时也要检查长度
+                output.onDecodeError("COBS 帧超过最大长度，已丢弃");
+            } else if (zero > start) {
+                int length = decodeInPlace(data, start, zero);
+                if (length < 0) {
+                    output.onDecodeError("COBS 编码不合法，已丢弃");
+                } else {
+                    output.onFrame(data, start, length);
+                }
+            }
+            buffer.skip(zero + 1 - start);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mScanned = 0;
+        mBroken = false;
+    }
+
+    /**
+     * 原地解码 [start, end)，结果从 start 开始存放
+     *
+     * @return 解码后的长度，编码不合法返回 -1
+     */
+    private static int decodeInPlace(byte[] data, int start, int end) {
+        int read = start;
+        int write = start;
+        while (read < end) {
+            int code = data[read++] & 0xFF;
+            if (code == 0 || read + code - 1 > end) return -1;
+            for (int i = 1; i < code; i++) {
+                data[write++] = data[read++];
+            }
+            // 0xFF 块后面没有隐含的 0，最后一块后面也没有
+            if (code != 0xFF && read < end) data[write++] = 0;
+        }
+        return write - start;
+    }
+}
@@ -0,0 +1,151 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 查表计算的 CRC
+ * 功能：支持 32 位以内任意多项式，输入输出反转或不反转两种
+ *      用 slicing-by-8：8 张表，一次处理 8 个字节，不足 8 个的尾部逐字节查表
+ *      直接在数组的一段上计算，不拷贝，可以用在接收缓冲区上
+ *      常用的几种见 CRC16_CCITT、CRC16_XMODEM、CRC16_MODBUS、CRC32，算好的实例可以在多个线程共用
+ * @author gtf35 gtf@gtf35.top
+ */
+public class Crc {
+    /**
+     * CRC-16/CCITT-FALSE：多项式 0x1021，初始值 0xFFFF，高字节在前
+     */
+    public static final Crc CRC16_CCITT = new Crc(16, 0x1021, 0xffff, false, 0, false);
+    /**
+     * CRC-16/XMODEM：多项式 0x1021，初始值 0，高字节在前
+     */
+    public static final Crc CRC16_XMODEM = new Crc(16, 0x1021, 0, false, 0, false);
+    /**
+     * CRC-16/MODBUS：多项式 0x8005 反转，初始值 0xFFFF，低字节在前
+     */
+    public static final Crc CRC16_MODBUS = new Crc(16, 0x8005, 0xffff, true, 0, true);
+    /**
+     * CRC-32：多项式 0x04C11DB7 反转，初始值和结果异或值 0xFFFFFFFF，和 java.util.zip.CRC32 相同，低字节在前
+     */
+    public static final Crc CRC32 = new Crc(32, 0x04c11db7, 0xffffffff, true, 0xffffffff, true);
+
+    private final int mWidth;
+    private final boolean mReflected;
+    private final int mInit;
+    private final int mXorOut;
+    private final boolean mLittleEndian;
+    // mTables[k][b]：字节 b 后面再跟 k 个 0 字节时对寄存器的贡献
+    private final int[][] mTables = new int[8][256];
+
+    /**
+     * 构造 CRC，建表需要几十微秒，同一种 CRC 请共用一个实例
+     *
+     * @param width 位数，8 到 32
+     * @param poly 多项式，不含最高位，不反转的写法
+     * @param init 初始值
+     * @param reflected 输入输出是否按位反转，例如 MODBUS 和 CRC-32
+     * @param xorOut 结果异或值
+     * @param littleEndian 附加到数据后面时是否低字节在前
+     */
+    public Crc(int width, int poly, int init, boolean reflected, int xorOut, boolean littleEndian) {
+        if (width < 8 || width > 32) throw new IllegalArgumentException("CRC 位数不合法：" + width);
+        mWidth = width;
+        mReflected = reflected;
+        mInit = init;
+        mXorOut = xorOut;
+        mLittleEndian = littleEndian;
+        int[] table = mTables[0];
+        if (reflected) {
+            // 寄存器放在低位，右移
+            int reversedPoly = Integer.reverse(poly) >>> (32 - width);
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) crc = (crc & 1) != 0 ? (crc >>> 1) ^ reversedPoly : crc >>> 1;
+                table[i] = crc;
+            }
+            for (int k = 1; k < 8; k++) {
+                for (int i = 0; i < 256; i++) {
+                    int previous = mTables[k - 1][i];
+                    mTables[k][i] = (previous >>> 8) ^ table[previous & 0xff];
+                }
+            }
+        } else {
+            // 寄存器左对齐放在 32 位的高位，左移，不同位数用同一套算法
+            int alignedPoly = poly << (32 - width);
+            for (int i = 0; i < 256; i++) {
+                int crc = i << 24;
+                for (int j = 0; j < 8; j++) crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ alignedPoly : crc << 1;
+                table[i] = crc;
+            }
+            for (int k = 1; k < 8; k++) {
+                for (int i = 0; i < 256; i++) {
+                    int previous = mTables[k - 1][i];
+                    mTables[k][i] = (previous << 8) ^ table[previous >>> 24];
+                }
+            }
+        }
+    }
+
+    /**
+     * 计算一段数据的 CRC
+     *
+     * @param data 数组
+     * @param offset 起始位置
+     * @param length 长度
+     * @return CRC，只有低 width 位有效
+     */
+    public int compute(byte[] data, int offset, int length) {
+        int crc = mReflected ? updateReflected(mInit, data, offset, length)
+                : updateNormal(mInit << (32 - mWidth), data, offset, length) >>> (32 - mWidth);
+        crc ^= mXorOut;
+        return mWidth == 32 ? crc : crc & ((1 << mWidth) - 1);
+    }
+
+    private int updateReflected(int crc, byte[] data, int offset, int length) {
+        int[] t0 = mTables[0], t1 = mTables[1], t2 = mTables[2], t3 = mTables[3];
+        int[] t4 = mTables[4], t5 = mTables[5], t6 = mTables[6], t7 = mTables[7];
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            int x = crc ^ ((data[i] & 0xff) | (data[i + 1] & 0xff) << 8
+                    | (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24);
+            crc = t7[x & 0xff] ^ t6[(x >>> 8) & 0xff] ^ t5[(x >>> 16) & 0xff] ^ t4[x >>> 24]
+                    ^ t3[data[i + 4] & 0xff] ^ t2[data[i + 5] & 0xff] ^ t1[data[i + 6] & 0xff] ^ t0[data[i + 7] & 0xff];
+        }
+        for (; i < end; i++) crc = (crc >>> 8) ^ t0[(crc ^ data[i]) & 0xff];
+        return crc;
+    }
+
+    private int updateNormal(int crc, byte[] data, int offset, int length) {
+        int[] t0 = mTables[0], t1 = mTables[1], t2 = mTables[2], t3 = mTables[3];
+        int[] t4 = mTables[4], t5 = mTables[5], t6 = mTables[6], t7 = mTables[7];
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            int x = crc ^ ((data[i] & 0xff) << 24 | (data[i + 1] & 0xff) << 16
+                    | (data[i + 2] & 0xff) << 8 | (data[i + 3] & 0xff));
+            crc = t7[x >>> 24] ^ t6[(x >>> 16) & 0xff] ^ t5[(x >>> 8) & 0xff] ^ t4[x & 0xff]
+                    ^ t3[data[i + 4] & 0xff] ^ t2[data[i + 5] & 0xff] ^ t1[data[i + 6] & 0xff] ^ t0[data[i + 7] & 0xff];
+        }
+        for (; i < end; i++) crc = (crc << 8) ^ t0[((crc >>> 24) ^ data[i]) & 0xff];
+        return crc;
+    }
+
+    /**
+     * 位数
+     */
+    public int width() {
+        return mWidth;
+    }
+
+    /**
+     * 附加到数据后面占几个字节
+     */
+    public int length() {
+        return (mWidth + 7) / 8;
+    }
+
+    /**
+     * 附加到数据后面时是否低字节在前
+     */
+    public boolean isLittleEndian() {
+        return mLittleEndian;
+    }
+}
@@ -0,0 +1,69 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 分隔符帧解码器
+ * 功能：按停止标志位切分帧，帧里包含停止标志位
+ *      超过最大长度（含停止标志位）的帧整帧丢弃，一直收不到停止标志位时边收边丢，丢到下一个停止标志位
+ * @author gtf35 gtf@gtf35.top
+ */
+public class DelimiterFrameDecoder implements FrameDecoder {
+    private final DelimiterScanner mScanner;
+    private final int mMaxFrameLength;
+    // 缓冲区里已经扫描过的字节数，只扫描新到的数据
+    private int mScanned = 0;
+    // 当前帧超长已经丢掉了前面的部分，剩下的丢到下一个停止标志位
+    private boolean mBroken = false;
+
+    /**
+     * @param delimiter 停止标志位
+     */
+    public DelimiterFrameDecoder(byte[] delimiter) {
+        this(delimiter, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param delimiter 停止标志位
+     * @param maxFrameLength 最大帧长度
+     */
+    public DelimiterFrameDecoder(byte[] delimiter, int maxFrameLength) {
+        mScanner = new DelimiterScanner(delimiter);
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void decode(ReceiveBuffer buffer, Output output) {
+        while (true) {
+            int start = buffer.readIndex();
+            int frameEnd = mScanner.scan(buffer.array(), start + mScanned, buffer.writeIndex());
+            if (frameEnd < 0) {
+                mScanned = buffer.readableBytes();
+                if (mBroken || mScanned > mMaxFrameLength) {
+                    // 扫描过的数据直接丢掉，停止标志位的匹配进度保留，被切开的停止标志位也能认出来
+                    buffer.skip(mScanned);
+                    mScanned = 0;
+                    if (!mBroken) output.onDecodeError("超过最大帧长度仍未收到停止标志位");
+                    mBroken = true;
+                }
+                return;
+            }
+            mScanned = 0;
+            if (mBroken) {
+                // 超长帧的结尾，前面已经报告过了
+                mBroken = false;
+            } else if (frameEnd - start > mMaxFrameLength) {
+                // 整帧一次到达时也要检查长度
+                output.onDecodeError("帧超过最大长度，已丢弃");
+            } else {
+                output.onFrame(buffer.array(), start, frameEnd - start);
+            }
+            buffer.skip(frameEnd - start);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mScanned = 0;
+        mBroken = false;
+        mScanner.reset();
+    }
+}
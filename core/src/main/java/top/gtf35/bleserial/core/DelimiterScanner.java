@@ -0,0 +1,70 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 分隔符扫描器
+ * 功能：用 KMP 状态机在数据流里查找停止标志位
+ *      匹配进度跨数据块保留，每次只需要扫描新到的数据
+ *      分隔符被拆在两次 read 之间也能正确识别
+ * @author gtf35 gtf@gtf35.top
+ */
+public class DelimiterScanner {
+    private final byte[] mDelimiter;
+    // KMP 失配跳转表，mFailure[i] 为 mDelimiter[0..i] 最长的相等前后缀长度
+    private final int[] mFailure;
+    // 当前已经匹配上的分隔符字节数
+    private int mMatched = 0;
+
+    /**
+     * 构造扫描器
+     *
+     * @param delimiter 分隔符，为空时每段数据都视为一个完整的帧
+     */
+    public DelimiterScanner(byte[] delimiter) {
+        mDelimiter = delimiter.clone();
+        mFailure = new int[mDelimiter.length];
+        for (int i = 1, k = 0; i < mDelimiter.length; i++) {
+            while (k > 0 && mDelimiter[i] != mDelimiter[k]) k = mFailure[k - 1];
+            if (mDelimiter[i] == mDelimiter[k]) k++;
+            mFailure[i] = k;
+        }
+    }
+
+    /**
+     * 扫描 [from, to) 之间的数据
+     *
+     * @param data 数据
+     * @param from 起始位置，应该接着上一次扫描结束的位置
+     * @param to 结束位置（不含）
+     * @return 第一个分隔符结束的位置（不含），没找到返回 -1
+     */
+    public int scan(byte[] data, int from, int to) {
+        if (mDelimiter.length == 0) return to > from ? to : -1;
+        int matched = mMatched;
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            while (matched > 0 && b != mDelimiter[matched]) matched = mFailure[matched - 1];
+            if (b == mDelimiter[matched]) matched++;
+            if (matched == mDelimiter.length) {
+                // 帧之间不共用分隔符，找到后从头匹配
+                mMatched = 0;
+                return i + 1;
+            }
+        }
+        mMatched = matched;
+        return -1;
+    }
+
+    /**
+     * 丢弃匹配进度
+     */
+    public void reset() {
+        mMatched = 0;
+    }
+
+    /**
+     * 分隔符长度
+     */
+    public int delimiterLength() {
+        return mDelimiter.length;
+    }
+}
@@ -0,0 +1,100 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 依次尝试的传输层
+ * 功能：按顺序连接多个候选的传输层，第一个连接成功的作为这次的连接
+ *      用于按优先级直接连接几个已知的设备，不用先搜索
+ *      重新 open 时先试上次成功的，再按顺序试其余的
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FailoverTransport implements SerialTransport {
+    private final List<SerialTransport> mCandidates;
+    // 正在连接的候选，close 时关掉它才能打断阻塞的 open
+    private volatile SerialTransport mOpening;
+    private volatile SerialTransport mCurrent;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param candidates 候选的传输层，靠前的先试
+     */
+    public FailoverTransport(List<? extends SerialTransport> candidates) {
+        if (candidates.isEmpty()) throw new IllegalArgumentException("没有候选的连接");
+        mCandidates = new ArrayList<>(candidates);
+    }
+
+    @Override
+    public void open() throws IOException {
+        mClosed = false;
+        List<SerialTransport> order = new ArrayList<>(mCandidates);
+        SerialTransport last = mCurrent;
+        if (last != null && order.remove(last)) order.add(0, last);
+        mCurrent = null;
+        IOException lastException = null;
+        for (SerialTransport candidate : order) {
+            mOpening = candidate;
+            // 等待的时候被关闭了
+            if (mClosed) break;
+            try {
+                candidate.open();
+            } catch (IOException e) {
+                SerialLog.d("连接 " + candidate.getName() + " 失败:" + e.getMessage());
+                lastException = e;
+                continue;
+            } finally {
+                mOpening = null;
+            }
+            if (mClosed) {
+                candidate.close();
+                break;
+            }
+            mCurrent = candidate;
+            return;
+        }
+        if (mClosed) throw new IOException("连接已关闭");
+        throw new IOException("候选的连接都失败了：" + lastException.getMessage(), lastException);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return requireCurrent().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return requireCurrent().getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        SerialTransport opening = mOpening;
+        if (opening != null) opening.close();
+        SerialTransport current = mCurrent;
+        if (current != null) current.close();
+    }
+
+    @Override
+    public String getName() {
+        SerialTransport current = mCurrent;
+        return current != null ? current.getName() : mCandidates.get(0).getName();
+    }
+
+    /**
+     * 连接成功的候选，还没连接成功时为 null
+     */
+    public SerialTransport getCurrent() {
+        return mCurrent;
+    }
+
+    private SerialTransport requireCurrent() throws IOException {
+        SerialTransport current = mCurrent;
+        if (current == null) throw new IOException("未连接");
+        return current;
+    }
+}
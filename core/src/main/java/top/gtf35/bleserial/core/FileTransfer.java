@@ -0,0 +1,424 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件传输
+ * 功能：在已连接的会话上发送文件，从 FileChannel 按块读取，不会把整个文件读进内存
+ *      XMODEM_CRC：128 字节一块，每块等到 ACK 再发下一块，接收方一开始发 NAK 的话退回 8 位校验和
+ *      YMODEM_1K：1024 字节一块，先发带文件名和大小的第 0 块，最后发一个空的第 0 块结束
+ *      WINDOWED：YMODEM_1K 的格式，数据块阶段接收方的 ACK/NAK 后面跟块号和块号取反（SEAlink 的做法）
+ *               最多 window 个块在途，不用每块等一个来回，NAK 或者超时从出错的块开始重发
+ *      传输期间会话切换到原始数据接收，结束后恢复按帧解码
+ *      send 会阻塞到传完，不要在主线程调用，传完之后同一个实例可以再发下一个文件
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FileTransfer {
+    /**
+     * 传输协议
+     */
+    public enum Protocol {
+        // 128 字节一块，CRC16，停等
+        XMODEM_CRC,
+        // 1024 字节一块，带文件名和大小，停等
+        YMODEM_1K,
+        // 1024 字节一块，带文件名和大小，多个块在途
+        WINDOWED
+    }
+
+    // 第 0 块里的文件名按 UTF-8 编码，不依赖平台默认字符集
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte SOH = 0x01;
+    private static final byte STX = 0x02;
+    private static final byte EOT = 0x04;
+    private static final byte ACK = 0x06;
+    private static final byte NAK = 0x15;
+    private static final byte CAN = 0x18;
+    private static final byte SUB = 0x1A;
+    private static final byte CRC_REQUEST = 'C';
+    // 放进接收队列唤醒等待的线程，不是真实收到的字节
+    private static final int CANCELLED = -2;
+    // 一块连续失败多少次放弃
+    private static final int MAX_RETRIES = 10;
+
+    private final SerialSession mSession;
+    private final Protocol mProtocol;
+    private final int mWindow;
+    private final int mBlockSize;
+    private long mStartTimeoutMs = 60000;
+    private long mAckTimeoutMs = 10000;
+    // 读取线程放入，发送的线程取出
+    private final LinkedBlockingQueue<Integer> mReceived = new LinkedBlockingQueue<>();
+    private final SerialSession.RawReceiver mRawReceiver = new SerialSession.RawReceiver() {
+        @Override
+        public void onRawBytes(byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) mReceived.offer(data[i] & 0xff);
+        }
+    };
+    private final SendQueue.OnSendComplete mOnSendComplete = new SendQueue.OnSendComplete() {
+        @Override
+        public void onSendComplete(boolean success, String msg) {
+            if (!success) mSendFailure = msg;
+        }
+    };
+    private volatile boolean mCancelled = false;
+    private volatile String mSendFailure;
+    // 接收方要求 8 位校验和时为 false
+    private boolean mUseCrc = true;
+    private long mBeginNanos;
+
+    /**
+     * 构造文件传输
+     *
+     * @param session 已连接的会话
+     * @param protocol 传输协议
+     * @param window WINDOWED 最多几个块在途，1 到 127，其它协议忽略
+     */
+    public FileTransfer(SerialSession session, Protocol protocol, int window) {
+        if (protocol == Protocol.WINDOWED && (window < 1 || window > 127)) {
+            throw new IllegalArgumentException("窗口大小不合法：" + window);
+        }
+        mSession = session;
+        mProtocol = protocol;
+        mWindow = protocol == Protocol.WINDOWED ? window : 1;
+        mBlockSize = protocol == Protocol.XMODEM_CRC ? 128 : 1024;
+    }
+
+    /**
+     * 设置超时，send 之前调用
+     *
+     * @param startTimeoutMs 等待接收方开始的毫秒数，默认 60 秒
+     * @param ackTimeoutMs 等待每个应答的毫秒数，超时重发，默认 10 秒
+     */
+    public void setTimeouts(long startTimeoutMs, long ackTimeoutMs) {
+        mStartTimeoutMs = startTimeoutMs;
+        mAckTimeoutMs = ackTimeoutMs;
+    }
+
+    /**
+     * 取消传输，正在 send 的线程会通知接收方取消并返回 false
+     */
+    public void cancel() {
+        mCancelled = true;
+        mReceived.offer(CANCELLED);
+    }
+
+    /**
+     * 发送文件，阻塞到传完、失败或者取消
+     *
+     * @param channel 文件，从头读到 size，由调用者关闭
+     * @param name 文件名，YMODEM_1K 和 WINDOWED 发给接收方，XMODEM_CRC 忽略
+     * @param listener 进度和结果，在调用 send 的线程回调
+     * @return 是否传完
+     */
+    public boolean send(FileChannel channel, String name, Listener listener) {
+        if (mSession.getState() != SerialSession.State.CONNECTED) {
+            listener.onFailed("未连接");
+            return false;
+        }
+        if (mSession.isReceivingRaw()) {
+            listener.onFailed("已经在传输文件");
+            return false;
+        }
+        // 同一个实例可以多次发送，上一次的取消和发送失败不带到这一次
+        mCancelled = false;
+        mSendFailure = null;
+        mReceived.clear();
+        mSession.setRawReceiver(mRawReceiver);
+        mBeginNanos = System.nanoTime();
+        // 失败时通知接收方取消，接收方自己取消的不用
+        boolean abort = true;
+        try {
+            long size = channel.size();
+            awaitStart();
+            if (mProtocol != Protocol.XMODEM_CRC) {
+                sendUntilAck(headerBlock(name, size), "第 0 块");
+                awaitStart();
+            }
+            if (mProtocol == Protocol.WINDOWED) {
+                sendWindowed(channel, size, listener);
+            } else {
+                sendStopAndWait(channel, size, listener);
+            }
+            sendEot();
+            if (mProtocol != Protocol.XMODEM_CRC) {
+                // 空的第 0 块表示没有下一个文件了
+                awaitStart();
+                sendUntilAck(headerBlock(null, 0), "结束块");
+            }
+            abort = false;
+            listener.onComplete(size, elapsedMs());
+            return true;
+        } catch (RemoteCancelException e) {
+            abort = false;
+            listener.onFailed(e.getMessage());
+            return false;
+        } catch (IOException e) {
+            listener.onFailed(e.getMessage());
+            return false;
+        } finally {
+            if (abort && mSession.getState() == SerialSession.State.CONNECTED) {
+                // 连续的 CAN 让接收方放弃，不会把后面的数据当成块
+                mSession.send(new byte[]{CAN, CAN, CAN}, 0);
+            }
+            mSession.setRawReceiver(null);
+        }
+    }
+
+    /**
+     * 停等：每块等到 ACK 再发下一块
+     */
+    private void sendStopAndWait(FileChannel channel, long size, Listener listener) throws IOException {
+        long blocks = (size + mBlockSize - 1) / mBlockSize;
+        for (long number = 1; number <= blocks; number++) {
+            sendUntilAck(dataBlock(channel, number, size), "第 " + number + " 块");
+            onProgress(listener, Math.min(number * mBlockSize, size), size);
+        }
+    }
+
+    /**
+     * 窗口：最多 mWindow 个块在途，按带块号的应答滑动窗口
+     */
+    private void sendWindowed(FileChannel channel, long size, Listener listener) throws IOException {
+        long blocks = (size + mBlockSize - 1) / mBlockSize;
+        // 最早还没确认的块和下一个要发的块
+        long base = 1;
+        long next = 1;
+        // 因为 NAK 正在从这一块重发，重复的 NAK 不再回退
+        long resending = -1;
+        int retries = 0;
+        while (base <= blocks) {
+            while (next <= blocks && next - base < mWindow) {
+                send(dataBlock(channel, next, size));
+                next++;
+            }
+            int response = readByte(mAckTimeoutMs);
+            if (response < 0) {
+                // 超时，从最早没确认的块重发
+                if (++retries > MAX_RETRIES) throw new IOException("第 " + base + " 块重试次数太多");
+                next = base;
+                resending = base;
+                continue;
+            }
+            if (response == CAN) checkRemoteCancel();
+            if (response != ACK && response != NAK) continue;
+            int number = readByte(mAckTimeoutMs);
+            int complement = readByte(mAckTimeoutMs);
+            // 损坏的应答忽略，等超时重发
+            if (number < 0 || complement < 0 || (number ^ complement) != 0xff) continue;
+            long block = outstanding(number, base, next);
+            if (block < 0) continue;
+            if (response == ACK) {
+                base = block + 1;
+                retries = 0;
+                if (resending >= 0 && resending < base) resending = -1;
+                onProgress(listener, Math.min((base - 1) * mBlockSize, size), size);
+            } else if (block != resending) {
+                if (++retries > MAX_RETRIES) throw new IOException("第 " + block + " 块重试次数太多");
+                next = block;
+                resending = block;
+            }
+        }
+    }
+
+    /**
+     * 在途的块里块号为 number 的那一块，没有的话为 -1
+     */
+    private static long outstanding(int number, long base, long next) {
+        for (long block = base; block < next; block++) {
+            if ((block & 0xff) == number) return block;
+        }
+        return -1;
+    }
+
+    /**
+     * 发送结束，接收方一般先 NAK 第一个 EOT
+     */
+    private void sendEot() throws IOException {
+        // 窗口模式下可能还有重发的块的迟到应答
+        mReceived.clear();
+        for (int retries = 0; retries <= MAX_RETRIES; retries++) {
+            send(new byte[]{EOT});
+            if (readResponse() == ACK) return;
+        }
+        throw new IOException("结束传输时没有收到应答");
+    }
+
+    /**
+     * 发送一块，NAK 或者超时重发，直到收到 ACK
+     */
+    private void sendUntilAck(byte[] block, String what) throws IOException {
+        for (int retries = 0; retries <= MAX_RETRIES; retries++) {
+            send(block);
+            if (readResponse() == ACK) return;
+        }
+        throw new IOException(what + "重试次数太多");
+    }
+
+    /**
+     * 等待单字节的应答，忽略接收方重复发的 C，超时返回 -1
+     */
+    private int readResponse() throws IOException {
+        while (true) {
+            int response = readByte(mAckTimeoutMs);
+            if (response == CAN) checkRemoteCancel();
+            if (response != CRC_REQUEST) return response;
+        }
+    }
+
+    /**
+     * 等待接收方发 C 开始，XMODEM_CRC 收到 NAK 时改用校验和
+     */
+    private void awaitStart() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mStartTimeoutMs);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            int b = readByte(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            if (b == CRC_REQUEST) {
+                mUseCrc = true;
+                return;
+            }
+            if (b == NAK && mProtocol == Protocol.XMODEM_CRC) {
+                mUseCrc = false;
+                return;
+            }
+            if (b == CAN) checkRemoteCancel();
+        }
+        throw new IOException("等待接收方开始超时");
+    }
+
+    /**
+     * 收到一个 CAN 之后再收到一个才算接收方取消，单个的可能是干扰
+     */
+    private void checkRemoteCancel() throws IOException {
+        if (readByte(1000) == CAN) throw new RemoteCancelException();
+    }
+
+    /**
+     * 读一个应答字节，超时返回 -1
+     */
+    private int readByte(long timeoutMs) throws IOException {
+        checkState();
+        Integer b;
+        try {
+            b = mReceived.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("传输被中断");
+        }
+        checkState();
+        return b == null ? -1 : b;
+    }
+
+    private void send(byte[] block) throws IOException {
+        checkState();
+        SendQueue.SendFuture future = mSession.send(block, mAckTimeoutMs);
+        future.setOnSendComplete(mOnSendComplete);
+    }
+
+    private void checkState() throws IOException {
+        if (mCancelled) throw new IOException("传输已取消");
+        String failure = mSendFailure;
+        if (failure != null) throw new IOException(failure);
+        if (mSession.getState() != SerialSession.State.CONNECTED) throw new IOException("连接已断开");
+    }
+
+    /**
+     * 第 number 块数据，从 1 开始，最后一块不足的部分用 SUB 填充
+     */
+    private byte[] dataBlock(FileChannel channel, long number, long size) throws IOException {
+        long position = (number - 1) * mBlockSize;
+        int length = (int) Math.min(mBlockSize, size - position);
+        byte[] block = new byte[3 + mBlockSize + (mUseCrc ? 2 : 1)];
+        ByteBuffer buffer = ByteBuffer.wrap(block, 3, length);
+        while (buffer.hasRemaining()) {
+            int num = channel.read(buffer, position + buffer.position() - 3);
+            if (num < 0) throw new IOException("文件在传输期间变短了");
+        }
+        for (int i = 3 + length; i < 3 + mBlockSize; i++) block[i] = SUB;
+        return seal(block, (int) (number & 0xff));
+    }
+
+    /**
+     * YMODEM 的第 0 块：文件名、NUL、十进制的大小、NUL，name 为 null 时全是 0
+     */
+    private byte[] headerBlock(String name, long size) throws IOException {
+        byte[] info = name == null ? new byte[0] : (name + "\0" + size + "\0").getBytes(UTF_8);
+        if (info.length > 1024) throw new IOException("文件名太长：" + name);
+        // 放得下的话用 128 字节的块
+        int blockSize = info.length <= 128 ? 128 : 1024;
+        byte[] block = new byte[3 + blockSize + 2];
+        System.arraycopy(info, 0, block, 3, info.length);
+        return seal(block, 0);
+    }
+
+    /**
+     * 填上块头和校验
+     */
+    private byte[] seal(byte[] block, int number) {
+        int blockSize = block.length - 3 - (mUseCrc ? 2 : 1);
+        block[0] = blockSize == 128 ? SOH : STX;
+        block[1] = (byte) number;
+        block[2] = (byte) ~number;
+        if (mUseCrc) {
+            int crc = Crc.CRC16_XMODEM.compute(block, 3, blockSize);
+            block[block.length - 2] = (byte) (crc >> 8);
+            block[block.length - 1] = (byte) crc;
+        } else {
+            int sum = 0;
+            for (int i = 3; i < 3 + blockSize; i++) sum += block[i];
+            block[block.length - 1] = (byte) sum;
+        }
+        return block;
+    }
+
+    private void onProgress(Listener listener, long sentBytes, long totalBytes) {
+        listener.onProgress(sentBytes, totalBytes, sentBytes * 1000 / Math.max(1, elapsedMs()));
+    }
+
+    private long elapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mBeginNanos);
+    }
+
+    /**
+     * 接收方发了连续的 CAN
+     */
+    private static class RemoteCancelException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RemoteCancelException() {
+            super("接收方取消了传输");
+        }
+    }
+
+    /**
+     * 传输进度和结果
+     */
+    public interface Listener {
+        /**
+         * 一块被确认
+         * @param sentBytes 已经确认的字节数
+         * @param totalBytes 文件大小
+         * @param bytesPerSecond 从开始算起的平均速度
+         */
+        void onProgress(long sentBytes, long totalBytes, long bytesPerSecond);
+
+        /**
+         * 传完并且接收方确认了结束
+         * @param totalBytes 文件大小
+         * @param elapsedMs 总耗时
+         */
+        void onComplete(long totalBytes, long elapsedMs);
+
+        /**
+         * 失败或者取消
+         * @param msg 失败信息
+         */
+        void onFailed(String msg);
+    }
+}
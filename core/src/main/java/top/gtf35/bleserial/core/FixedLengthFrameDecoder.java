@@ -0,0 +1,29 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 定长帧解码器
+ * 功能：每收满固定长度就是一帧
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FixedLengthFrameDecoder implements FrameDecoder {
+    private final int mFrameLength;
+
+    /**
+     * @param frameLength 帧长度
+     */
+    public FixedLengthFrameDecoder(int frameLength) {
+        if (frameLength <= 0) throw new IllegalArgumentException("frameLength 必须大于 0");
+        mFrameLength = frameLength;
+    }
+
+    @Override
+    public void decode(ReceiveBuffer buffer, Output output) {
+        while (buffer.readableBytes() >= mFrameLength) {
+            output.onFrame(buffer.array(), buffer.readIndex(), mFrameLength);
+            buffer.skip(mFrameLength);
+        }
+    }
+
+    @Override
+    public void reset() { }
+}
@@ -0,0 +1,255 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 软件流控
+ * 功能：设备的串口缓冲区很小时，按设备的要求暂停或限制发送，避免设备那边溢出丢数据
+ *      XON_XOFF：收到 XOFF（0x13）暂停发送，收到 XON（0x11）恢复
+ *      CREDIT：设备发放可以发送的字节数，用完就暂停，等设备再发放
+ *              设备发 DC2（0x12）加两个字节的大端无符号数表示再发放多少字节，也可以由调用者解析自己的协议后调用 grant
+ *      控制字符在接收时去掉，不会出现在收到的帧里，所以收发的数据本身不能含有这些字节
+ *      发送时按 chunkBytes 分块写，暂停最多晚 chunkBytes 个字节生效
+ *      每次连接或者重连成功时恢复初始状态：XON_XOFF 为可以发送，CREDIT 为初始额度
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FlowControl {
+    public static final byte XON = 0x11;
+    public static final byte XOFF = 0x13;
+    public static final byte DC2 = 0x12;
+
+    /**
+     * 流控方式
+     */
+    public enum Mode {
+        // XON/XOFF 字符控制暂停和恢复
+        XON_XOFF,
+        // 设备按字节数发放额度
+        CREDIT
+    }
+
+    private final Mode mMode;
+    private final int mChunkBytes;
+    private final int mInitialCredit;
+    // 以下状态只在持有 mLock 时读写
+    private final Object mLock = new Object();
+    private boolean mPaused = false;
+    private long mCredit;
+    private boolean mClosed = true;
+    private long mPauseCount = 0;
+    private long mPausedNanos = 0;
+    // 开始等待的时间，没在等待时为 -1
+    private long mWaitingSince = -1;
+    // 解析 DC2 的进度，只在读取线程使用：0 为普通数据，1 为等高字节，2 为等低字节
+    private int mCreditState = 0;
+    private int mCreditHigh;
+
+    /**
+     * 构造流控
+     *
+     * @param mode 流控方式
+     * @param chunkBytes 每次最多写多少字节，不大于 0 表示不分块
+     * @param initialCredit CREDIT 方式连接后的初始额度，XON_XOFF 方式忽略
+     */
+    public FlowControl(Mode mode, int chunkBytes, int initialCredit) {
+        if (initialCredit < 0) throw new IllegalArgumentException("初始额度不能小于 0：" + initialCredit);
+        mMode = mode;
+        mChunkBytes = chunkBytes;
+        mInitialCredit = initialCredit;
+        mCredit = initialCredit;
+    }
+
+    /**
+     * XON/XOFF 流控
+     *
+     * @param chunkBytes 每次最多写多少字节，越小 XOFF 生效越快
+     */
+    public static FlowControl xonXoff(int chunkBytes) {
+        return new FlowControl(Mode.XON_XOFF, chunkBytes, 0);
+    }
+
+    /**
+     * 额度流控
+     *
+     * @param initialCredit 连接后不用等设备发放就能发送的字节数，一般为设备的缓冲区大小
+     */
+    public static FlowControl credit(int initialCredit) {
+        return new FlowControl(Mode.CREDIT, 0, initialCredit);
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * 读取线程调用：去掉收到的数据里的控制字符并更新状态，剩下的数据挪到前面
+     *
+     * @param data 数据
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 去掉控制字符后剩下的长度
+     */
+    public int filter(byte[] data, int offset, int length) {
+        int kept = offset;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (mMode == Mode.XON_XOFF) {
+                if (b == XOFF) {
+                    pause();
+                    continue;
+                }
+                if (b == XON) {
+                    resume();
+                    continue;
+                }
+            } else if (mCreditState == 1) {
+                mCreditHigh = b & 0xff;
+                mCreditState = 2;
+                continue;
+            } else if (mCreditState == 2) {
+                mCreditState = 0;
+                grant((mCreditHigh << 8) | (b & 0xff));
+                continue;
+            } else if (b == DC2) {
+                // 额度可能被拆在两次 read 里
+                mCreditState = 1;
+                continue;
+            }
+            data[kept++] = b;
+        }
+        return kept - offset;
+    }
+
+    /**
+     * 暂停发送，正在写的那一块写完后生效
+     */
+    public void pause() {
+        synchronized (mLock) {
+            if (!mPaused) mPauseCount++;
+            mPaused = true;
+        }
+    }
+
+    /**
+     * 恢复发送
+     */
+    public void resume() {
+        synchronized (mLock) {
+            mPaused = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 增加可以发送的字节数，CREDIT 方式使用
+     *
+     * @param bytes 字节数
+     */
+    public void grant(int bytes) {
+        if (bytes <= 0) return;
+        synchronized (mLock) {
+            mCredit += bytes;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 是否因为 XOFF 或者额度用完而暂停
+     */
+    public boolean isPaused() {
+        synchronized (mLock) {
+            return mMode == Mode.XON_XOFF ? mPaused : mCredit <= 0;
+        }
+    }
+
+    /**
+     * 剩余额度，XON_XOFF 方式没有意义
+     */
+    public long getCredit() {
+        synchronized (mLock) {
+            return mCredit;
+        }
+    }
+
+    /**
+     * 写任务因为流控等待的次数
+     */
+    public long getPauseCount() {
+        synchronized (mLock) {
+            return mPauseCount;
+        }
+    }
+
+    /**
+     * 写任务因为流控等待的总毫秒数，包括正在等待的
+     */
+    public long getPausedMs() {
+        synchronized (mLock) {
+            long nanos = mPausedNanos;
+            if (mWaitingSince >= 0) nanos += System.nanoTime() - mWaitingSince;
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+    /**
+     * 写任务调用：等到可以发送，占用这次要写的额度
+     *
+     * @param max 最多想写多少字节，大于 0
+     * @return 这次可以写的字节数，1 到 max 之间
+     * @throws IOException 等待期间断开了
+     */
+    int acquire(int max) throws IOException {
+        synchronized (mLock) {
+            try {
+                while (!mClosed && (mMode == Mode.XON_XOFF ? mPaused : mCredit <= 0)) {
+                    if (mWaitingSince < 0) {
+                        mWaitingSince = System.nanoTime();
+                        // XOFF 在 pause 里计数，额度用完在这里计数
+                        if (mMode == Mode.CREDIT) mPauseCount++;
+                    }
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待流控时被中断");
+            } finally {
+                if (mWaitingSince >= 0) {
+                    mPausedNanos += System.nanoTime() - mWaitingSince;
+                    mWaitingSince = -1;
+                }
+            }
+            if (mClosed) throw new IOException("连接已断开");
+            int allowed = max;
+            if (mChunkBytes > 0) allowed = Math.min(allowed, mChunkBytes);
+            if (mMode == Mode.CREDIT) {
+                allowed = (int) Math.min(allowed, mCredit);
+                mCredit -= allowed;
+            }
+            return allowed;
+        }
+    }
+
+    /**
+     * 连接或者重连成功时调用，恢复初始状态
+     */
+    void reset() {
+        synchronized (mLock) {
+            mPaused = false;
+            mCredit = mInitialCredit;
+            mClosed = false;
+            mLock.notifyAll();
+        }
+        mCreditState = 0;
+    }
+
+    /**
+     * 断开时调用，等待中的写任务以 IOException 结束
+     */
+    void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package top.gtf35.bleserial.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 帧校验
+ * 功能：发送时在消息末尾加上校验值，接收时校验每一帧，见 SerialSession.setFrameCheck
+ *      支持 CRC-16（CCITT、XMODEM、MODBUS）、CRC-32、8 位累加和与 8 位异或，CRC 用 slicing-by-8 查表
+ *      接收时直接在接收缓冲区上计算，通过的帧去掉校验值再交给回调，没通过的交给单独的错误回调并计数
+ *      校验值的位置：帧的末尾往前 trailerLength 个字节之前，
+ *              例如按停止标志位切帧时帧里包含停止标志位，trailerLength 设为停止标志位的长度，
+ *              校验范围是校验值之前的全部内容，通过的帧去掉校验值和后面的停止标志位
+ *      校验值是二进制的，可能和停止标志位相同，按停止标志位切帧时请确认设备协议能保证不会误切
+ *      计数可以在任意线程读取
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FrameCheck {
+    /**
+     * 校验算法
+     */
+    public enum Algorithm {
+        // CRC-16/CCITT-FALSE，高字节在前
+        CRC16_CCITT(2),
+        // CRC-16/XMODEM，高字节在前
+        CRC16_XMODEM(2),
+        // CRC-16/MODBUS，低字节在前
+        CRC16_MODBUS(2),
+        // CRC-32，和 java.util.zip.CRC32 相同，低字节在前
+        CRC32(4),
+        // 所有字节相加取低 8 位
+        SUM8(1),
+        // 所有字节异或
+        XOR8(1);
+
+        private final int mLength;
+
+        Algorithm(int length) {
+            mLength = length;
+        }
+
+        /**
+         * 校验值占几个字节
+         */
+        public int length() {
+            return mLength;
+        }
+    }
+
+    private final Algorithm mAlgorithm;
+    private final Crc mCrc;
+    private final int mTrailerLength;
+    private final AtomicLong mPassed = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    /**
+     * 构造帧校验，校验值在帧的最后
+     *
+     * @param algorithm 校验算法
+     */
+    public FrameCheck(Algorithm algorithm) {
+        this(algorithm, 0);
+    }
+
+    /**
+     * 构造帧校验
+     *
+     * @param algorithm 校验算法
+     * @param trailerLength 校验值后面不参与校验的字节数，一般为帧里包含的停止标志位的长度
+     */
+    public FrameCheck(Algorithm algorithm, int trailerLength) {
+        if (trailerLength < 0) throw new IllegalArgumentException("trailerLength 不能小于 0：" + trailerLength);
+        mAlgorithm = algorithm;
+        mTrailerLength = trailerLength;
+        switch (algorithm) {
+            case CRC16_CCITT:
+                mCrc = Crc.CRC16_CCITT;
+                break;
+            case CRC16_XMODEM:
+                mCrc = Crc.CRC16_XMODEM;
+                break;
+            case CRC16_MODBUS:
+                mCrc = Crc.CRC16_MODBUS;
+                break;
+            case CRC32:
+                mCrc = Crc.CRC32;
+                break;
+            default:
+                mCrc = null;
+                break;
+        }
+    }
+
+    public Algorithm getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * 计算一段数据的校验值
+     *
+     * @param data 数组
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 校验值，只有低 algorithm.length() 个字节有效
+     */
+    public int compute(byte[] data, int offset, int length) {
+        if (mCrc != null) return mCrc.compute(data, offset, length);
+        int value = 0;
+        if (mAlgorithm == Algorithm.SUM8) {
+            for (int i = offset; i < offset + length; i++) value += data[i];
+        } else {
+            for (int i = offset; i < offset + length; i++) value ^= data[i];
+        }
+        return value & 0xff;
+    }
+
+    /**
+     * 在消息末尾的 trailerLength 个字节之前插入校验值
+     *
+     * @param msg 消息，不会修改
+     * @return 加上校验值的新数组
+     */
+    public byte[] seal(byte[] msg) {
+        if (msg.length < mTrailerLength) throw new IllegalArgumentException("消息比 trailerLength 还短：" + msg.length);
+        int payloadLength = msg.length - mTrailerLength;
+        int checkLength = mAlgorithm.length();
+        byte[] sealed = new byte[msg.length + checkLength];
+        System.arraycopy(msg, 0, sealed, 0, payloadLength);
+        System.arraycopy(msg, payloadLength, sealed, payloadLength + checkLength, mTrailerLength);
+        put(sealed, payloadLength, compute(msg, 0, payloadLength));
+        return sealed;
+    }
+
+    /**
+     * 校验一帧并计数，不修改数据
+     *
+     * @param data 数组
+     * @param offset 帧的起始位置
+     * @param length 帧的长度
+     * @return 是否通过
+     */
+    public boolean verify(byte[] data, int offset, int length) {
+        int payloadLength = payloadLength(length);
+        boolean passed = payloadLength >= 0
+                && get(data, offset + payloadLength) == compute(data, offset, payloadLength);
+        (passed ? mPassed : mFailed).incrementAndGet();
+        return passed;
+    }
+
+    /**
+     * 去掉校验值和后面的字节之后的长度
+     *
+     * @param frameLength 帧的长度
+     * @return 长度，帧太短时为负数
+     */
+    public int payloadLength(int frameLength) {
+        return frameLength - mAlgorithm.length() - mTrailerLength;
+    }
+
+    /**
+     * 通过校验的帧数
+     */
+    public long getPassedCount() {
+        return mPassed.get();
+    }
+
+    /**
+     * 没通过校验的帧数，包括比校验值还短的帧
+     */
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    private void put(byte[] data, int offset, int value) {
+        int length = mAlgorithm.length();
+        boolean littleEndian = mCrc != null && mCrc.isLittleEndian();
+        for (int i = 0; i < length; i++) {
+            int shift = 8 * (littleEndian ? i : length - 1 - i);
+            data[offset + i] = (byte) (value >>> shift);
+        }
+    }
+
+    private int get(byte[] data, int offset) {
+        int length = mAlgorithm.length();
+        boolean littleEndian = mCrc != null && mCrc.isLittleEndian();
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            int shift = 8 * (littleEndian ? i : length - 1 - i);
+            value |= (data[offset + i] & 0xff) << shift;
+        }
+        return value;
+    }
+}
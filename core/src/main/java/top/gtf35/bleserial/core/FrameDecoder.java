@@ -0,0 +1,44 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 帧解码器
+ * 功能：从接收缓冲区里切出完整的帧
+ *      每次 read 之后调用一次，数据不够一帧时留在缓冲区等下次
+ *      解出的帧直接指向缓冲区内部，不做额外拷贝
+ * @author gtf35 gtf@gtf35.top
+ */
+public interface FrameDecoder {
+    /**
+     * 从缓冲区解出尽可能多的完整帧，已处理的数据要从缓冲区 skip 掉
+     *
+     * @param buffer 接收缓冲区
+     * @param output 解码结果回调
+     */
+    void decode(ReceiveBuffer buffer, Output output);
+
+    /**
+     * 丢弃解码进度，重新连接时调用
+     */
+    void reset();
+
+    /**
+     * 解码结果回调
+     */
+    interface Output {
+        /**
+         * 解出一个完整的帧，数据只在回调期间有效
+         *
+         * @param array 数组
+         * @param offset 起始位置
+         * @param length 长度
+         */
+        void onFrame(byte[] array, int offset, int length);
+
+        /**
+         * 遇到不合法的数据，已经丢弃
+         *
+         * @param msg 错误信息
+         */
+        void onDecodeError(String msg);
+    }
+}
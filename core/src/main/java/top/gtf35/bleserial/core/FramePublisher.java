@@ -0,0 +1,257 @@
+package top.gtf35.bleserial.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 收到的帧的发布者
+ * 功能：把会话收到的帧按响应式流的方式交给订阅者，见 SerialSession.setFramePublisher
+ *      订阅者 request 的数量就是读取线程能读的数量：没有需求时读取线程不再 read，
+ *      数据留在系统和 RFCOMM 的缓冲区里，缓冲区满了由 RFCOMM 的流控让设备停下，不会丢，也不会在内存里越积越多
+ *      一次 read 可能解出多个帧，超出需求的几帧先暂存，订阅者再 request 时交给它，暂存清空之前不会继续读
+ *      同一时间只能有一个订阅者，取消之后可以重新订阅；没有订阅者时读取线程也会等待
+ *      和会话的生命周期无关，可以先后接到多个会话上，complete 或 error 之后才结束
+ *      onNext 在读取线程或者调用 request 的线程执行，不会并发
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FramePublisher implements ReactiveStreams.Publisher<byte[]> {
+    // 保护 mCurrent、mDone 和读取线程的等待
+    private final Object mLock = new Object();
+    private volatile FrameSubscription mCurrent;
+    private volatile boolean mDone = false;
+    private volatile Throwable mError;
+    // 已经解出、还没交给订阅者的帧，只有读取线程放入
+    private final ConcurrentLinkedQueue<byte[]> mPending = new ConcurrentLinkedQueue<>();
+    // 不为 0 时有线程正在交付，其它线程只增加计数，由它再检查一遍
+    private final AtomicInteger mWip = new AtomicInteger();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    @Override
+    public void subscribe(ReactiveStreams.Subscriber<? super byte[]> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber 为 null");
+        FrameSubscription subscription = new FrameSubscription(subscriber);
+        boolean accepted = false;
+        synchronized (mLock) {
+            if (mCurrent == null && !mDone) {
+                mCurrent = subscription;
+                accepted = true;
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        if (accepted) {
+            // onSubscribe 返回之前什么都不交付，保证信号是串行的，onSubscribe 里 request 的帧在这里交付
+            subscription.subscribed = true;
+            drain();
+            if (hasDemand()) wakeUp();
+            return;
+        }
+        subscription.cancelled = true;
+        if (!mDone) {
+            subscriber.onError(new IllegalStateException("已经有订阅者了"));
+        } else if (mError != null) {
+            // 已经结束的话马上交付结束信号
+            subscriber.onError(mError);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * 正常结束，暂存的帧交付完之后订阅者收到 onComplete，之后的订阅者马上收到 onComplete
+     */
+    public void complete() {
+        terminate(null);
+    }
+
+    /**
+     * 出错结束，暂存的帧交付完之后订阅者收到 onError，之后的订阅者马上收到 onError
+     *
+     * @param error 错误
+     */
+    public void error(Throwable error) {
+        terminate(error);
+    }
+
+    private void terminate(Throwable error) {
+        synchronized (mLock) {
+            if (mDone) return;
+            mError = error;
+            mDone = true;
+            // 结束之后读取线程不再等待，收到的帧直接丢弃
+            mLock.notifyAll();
+        }
+        drain();
+    }
+
+    /**
+     * 是否有订阅者
+     */
+    public boolean hasSubscriber() {
+        return mCurrent != null;
+    }
+
+    /**
+     * 已经交给订阅者的帧数
+     */
+    public long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /**
+     * 因为取消订阅或者已经结束而丢掉的帧数
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * 读取线程调用：等到订阅者还要数据并且暂存已经清空
+     *
+     * @param session 读取的会话，不再是 CONNECTED 时停止等待
+     * @return 是否可以继续读
+     */
+    boolean awaitDemand(SerialSession session) throws InterruptedException {
+        synchronized (mLock) {
+            while (!hasDemand()) {
+                // 在锁里检查状态，stop 之后的 wakeUp 不会错过
+                if (session.getState() != SerialSession.State.CONNECTED) return false;
+                // 传文件期间不受需求限制
+                if (session.isReceivingRaw()) return true;
+                mLock.wait();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 唤醒等待的读取线程，会话 stop 或者切换到原始数据接收时调用
+     */
+    void wakeUp() {
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 读取线程调用：交付解出的一帧，超出需求的先暂存
+     *
+     * @param frame 帧内容，之后不再修改
+     */
+    void onFrame(byte[] frame) {
+        // 没有订阅者的话在 drain 里丢掉
+        mPending.offer(frame);
+        drain();
+    }
+
+    private boolean hasDemand() {
+        if (mDone) return true;
+        FrameSubscription subscription = mCurrent;
+        return subscription != null && subscription.requested.get() > 0 && mPending.isEmpty();
+    }
+
+    /**
+     * 按需求交付暂存的帧和结束信号，同一时间只有一个线程在交付
+     */
+    private void drain() {
+        if (mWip.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            FrameSubscription subscription = mCurrent;
+            if (subscription == null) {
+                // 取消订阅之后暂存的帧没人要了
+                discardPending();
+            } else if (!subscription.subscribed) {
+                // onSubscribe 还没返回，读取线程解出的帧先暂存，由 subscribe 再交付
+            } else {
+                long requested = subscription.requested.get();
+                long emitted = 0;
+                byte[] frame;
+                while (emitted != requested && !subscription.cancelled && (frame = mPending.poll()) != null) {
+                    emitted++;
+                    mDelivered.incrementAndGet();
+                    try {
+                        subscription.subscriber.onNext(frame);
+                    } catch (Throwable e) {
+                        // 订阅者不应该抛出异常，抛出的话当作取消
+                        SerialLog.w("订阅者处理帧时出错，取消订阅", e);
+                        subscription.cancelled = true;
+                    }
+                }
+                if (emitted != 0 && requested != Long.MAX_VALUE) subscription.requested.addAndGet(-emitted);
+                if (subscription.cancelled) {
+                    detach(subscription);
+                    discardPending();
+                    if (subscription.requestError != null) subscription.subscriber.onError(subscription.requestError);
+                } else if (mDone && mPending.isEmpty()) {
+                    detach(subscription);
+                    Throwable error = mError;
+                    if (error == null) {
+                        subscription.subscriber.onComplete();
+                    } else {
+                        subscription.subscriber.onError(error);
+                    }
+                }
+            }
+            missed = mWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void detach(FrameSubscription subscription) {
+        synchronized (mLock) {
+            if (mCurrent == subscription) mCurrent = null;
+        }
+    }
+
+    private void discardPending() {
+        while (mPending.poll() != null) mDropped.incrementAndGet();
+    }
+
+    /**
+     * 一次订阅
+     */
+    private class FrameSubscription implements ReactiveStreams.Subscription {
+        final ReactiveStreams.Subscriber<? super byte[]> subscriber;
+        final AtomicLong requested = new AtomicLong();
+        volatile boolean cancelled = false;
+        volatile boolean subscribed = false;
+        // request 的数量不合法，在交付的线程通知订阅者，保证回调不并发
+        volatile Throwable requestError;
+
+        FrameSubscription(ReactiveStreams.Subscriber<? super byte[]> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) return;
+            if (n <= 0) {
+                // 规范要求非法的数量以 onError 结束订阅
+                requestError = new IllegalArgumentException("request 的数量必须大于 0：" + n);
+                cancelled = true;
+                drain();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) return;
+                next = current + n;
+                // 溢出的话当作不限
+                if (next < 0) next = Long.MAX_VALUE;
+            } while (!requested.compareAndSet(current, next));
+            drain();
+            // 暂存交付完还有需求的话让读取线程继续读
+            if (hasDemand()) wakeUp();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            drain();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 16 进制编码器
+ * 功能：查表把字节转换为两位小写 16 进制字符，不经过 Formatter
+ *      写进复用的 char 数组，只有最后生成 String 时分配一次
+ *      实例不是线程安全的，每个线程用自己的实例
+ * @author gtf35 gtf@gtf35.top
+ */
+public class HexEncoder {
+    // 256 个字节值对应的两位字符，下标为 (b & 0xff) * 2
+    private static final char[] TABLE = new char[512];
+
+    static {
+        char[] digits = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < 256; i++) {
+            TABLE[i * 2] = digits[i >>> 4];
+            TABLE[i * 2 + 1] = digits[i & 0x0f];
+        }
+    }
+
+    // 复用的字符缓冲区，不够时扩容
+    private char[] mChars;
+
+    /**
+     * 构造编码器
+     *
+     * @param initialCapacity 字符缓冲区初始大小
+     */
+    public HexEncoder(int initialCapacity) {
+        mChars = new char[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * 把 [offset, offset + length) 编码到 dst 的 dstOffset 处
+     *
+     * @return 写入的字符数，为 length 的两倍
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+        int j = dstOffset;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int index = (src[i] & 0xff) << 1;
+            dst[j++] = TABLE[index];
+            dst[j++] = TABLE[index + 1];
+        }
+        return j - dstOffset;
+    }
+
+    /**
+     * 字节数组的一段转换为 16 进制字符串
+     */
+    public static String toHex(byte[] src, int offset, int length) {
+        char[] chars = new char[length * 2];
+        encode(src, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * 前缀加上字节数组一段的 16 进制，拼在复用的缓冲区里
+     *
+     * @param prefix 前缀，可以为空字符串
+     * @param src 数据
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 拼好的字符串
+     */
+    public String format(String prefix, byte[] src, int offset, int length) {
+        int size = prefix.length() + length * 2;
+        if (mChars.length < size) mChars = new char[Math.max(size, mChars.length * 2)];
+        prefix.getChars(0, prefix.length(), mChars, 0);
+        encode(src, offset, length, mChars, prefix.length());
+        return new String(mChars, 0, size);
+    }
+}
@@ -0,0 +1,84 @@
+package top.gtf35.bleserial.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 耗时直方图
+ * 功能：按微秒的 2 的幂分桶计数，记录只是一次数组下标计算加一次原子写，不加锁
+ *      只允许一个线程记录，其他线程随时读取，读到的是近似的快照
+ *      百分位返回所在桶的上界，精度在 2 倍以内，用来看分布足够了
+ * @author gtf35 gtf@gtf35.top
+ */
+class LatencyHistogram {
+    // 第 i 个桶记录 [2^(i-1), 2^i) 微秒，第 0 个桶记录 0 微秒，最后一个桶记录所有更大的值
+    private static final int BUCKETS = 40;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * 记录一次耗时，只能在同一个线程调用
+     *
+     * @param nanos 纳秒
+     */
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000));
+        // 只有一个线程写，lazySet 就够了，省掉 CAS 的开销
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+        mCount.lazySet(mCount.get() + 1);
+        mSumNanos.lazySet(mSumNanos.get() + nanos);
+        if (nanos > mMaxNanos.get()) mMaxNanos.lazySet(nanos);
+    }
+
+    /**
+     * 记录的次数
+     */
+    long count() {
+        return mCount.get();
+    }
+
+    /**
+     * 平均耗时，单位微秒
+     */
+    double meanMicros() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSumNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * 最大耗时，单位微秒
+     */
+    long maxMicros() {
+        return mMaxNanos.get() / 1000;
+    }
+
+    /**
+     * 百分位耗时的上界，单位微秒
+     *
+     * @param percentile 0 到 100
+     */
+    long percentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target && counts[i] > 0) {
+                if (i == 0) return 0;
+                // 最后一个桶没有上界，用记录到的最大值
+                if (i == BUCKETS - 1) return maxMicros();
+                return (1L << i) - 1;
+            }
+        }
+        return maxMicros();
+    }
+}
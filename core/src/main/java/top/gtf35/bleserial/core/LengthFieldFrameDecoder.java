@@ -0,0 +1,68 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 长度字段帧解码器
+ * 功能：按帧头里的长度字段切分帧，帧里包含帧头
+ *      帧总长 = 长度字段偏移 + 长度字段字节数 + 长度字段的值 + 长度修正
+ *      长度不合法时丢弃一个字节重新同步
+ * @author gtf35 gtf@gtf35.top
+ */
+public class LengthFieldFrameDecoder implements FrameDecoder {
+    private final int mLengthFieldOffset;
+    private final int mLengthFieldLength;
+    private final boolean mBigEndian;
+    private final int mLengthAdjustment;
+    private final int mMaxFrameLength;
+
+    /**
+     * @param lengthFieldOffset 长度字段在帧里的偏移
+     * @param lengthFieldLength 长度字段字节数，1、2 或 4
+     * @param bigEndian 长度字段是否为大端
+     * @param lengthAdjustment 长度修正，长度字段本身就是帧总长时填负的帧头长度
+     * @param maxFrameLength 最大帧长度
+     */
+    public LengthFieldFrameDecoder(int lengthFieldOffset, int lengthFieldLength, boolean bigEndian,
+                            int lengthAdjustment, int maxFrameLength) {
+        if (lengthFieldLength != 1 && lengthFieldLength != 2 && lengthFieldLength != 4) {
+            throw new IllegalArgumentException("lengthFieldLength 只能是 1、2 或 4");
+        }
+        mLengthFieldOffset = lengthFieldOffset;
+        mLengthFieldLength = lengthFieldLength;
+        mBigEndian = bigEndian;
+        mLengthAdjustment = lengthAdjustment;
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void decode(ReceiveBuffer buffer, Output output) {
+        int headerLength = mLengthFieldOffset + mLengthFieldLength;
+        while (buffer.readableBytes() >= headerLength) {
+            byte[] data = buffer.array();
+            int start = buffer.readIndex();
+            long frameLength = headerLength + readLength(data, start + mLengthFieldOffset) + mLengthAdjustment;
+            if (frameLength < headerLength || frameLength > mMaxFrameLength) {
+                buffer.skip(1);
+                output.onDecodeError("帧长度不合法：" + frameLength);
+                continue;
+            }
+            if (buffer.readableBytes() < frameLength) return;
+            output.onFrame(data, start, (int) frameLength);
+            buffer.skip((int) frameLength);
+        }
+    }
+
+    @Override
+    public void reset() { }
+
+    /**
+     * 读取无符号的长度字段
+     */
+    private long readLength(byte[] data, int offset) {
+        long length = 0;
+        for (int i = 0; i < mLengthFieldLength; i++) {
+            int shift = mBigEndian ? (mLengthFieldLength - 1 - i) * 8 : i * 8;
+            length |= (long) (data[offset + i] & 0xFF) << shift;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,77 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 内存回环传输层
+ * 功能：不需要真实设备就能跑通收发链路，用于测试和压测
+ *      createEcho 发出去的数据原样收回来
+ *      createPair 得到两端，一端当作手机，一端当作设备
+ * @author gtf35 gtf@gtf35.top
+ */
+public class LoopbackTransport implements SerialTransport {
+    private final String mName;
+    private final BytePipe mIn;
+    private final BytePipe mOut;
+
+    private LoopbackTransport(String name, BytePipe in, BytePipe out) {
+        mName = name;
+        mIn = in;
+        mOut = out;
+    }
+
+    /**
+     * 回显：写出的数据从输入流读回来
+     *
+     * @param capacity 管道缓冲区大小
+     */
+    public static LoopbackTransport createEcho(int capacity) {
+        BytePipe pipe = new BytePipe(capacity);
+        return new LoopbackTransport("loopback", pipe, pipe);
+    }
+
+    /**
+     * 成对的两端，一端写出的数据从另一端读到，任何一端关闭两端都断开
+     *
+     * @param capacity 每个方向的管道缓冲区大小
+     * @return 长度为 2 的数组
+     */
+    public static LoopbackTransport[] createPair(int capacity) {
+        BytePipe aToB = new BytePipe(capacity);
+        BytePipe bToA = new BytePipe(capacity);
+        return new LoopbackTransport[]{
+                new LoopbackTransport("loopback-a", bToA, aToB),
+                new LoopbackTransport("loopback-b", aToB, bToA)
+        };
+    }
+
+    @Override
+    public void open() {
+        // close 之后可以再次 open
+        mIn.reopen();
+        mOut.reopen();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+        mOut.close();
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+}
@@ -0,0 +1,200 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 竞速连接的传输层
+ * 功能：多个候选的传输层错开时间同时连接，第一个连接成功的作为这次的连接，其余的马上关掉
+ *      每隔 staggerMs 开始下一个候选，已经开始的都失败了就不再等，马上开始下一个
+ *      慢的方式不会拖住快的方式，又不会一开始就同时占满蓝牙
+ *      每个候选在线程池里各自阻塞连接，同一个候选不要同时放进两个竞速
+ * @author gtf35 gtf@gtf35.top
+ */
+public class RacingTransport implements SerialTransport {
+    private final List<SerialTransport> mCandidates;
+    private final long mStaggerNanos;
+    private final Executor mExecutor;
+    private final Object mLock = new Object();
+    // 当前这次 open 的竞速，只在持有 mLock 时读写
+    private Race mRace;
+    private volatile SerialTransport mCurrent;
+
+    /**
+     * @param candidates 候选的传输层，靠前的先开始
+     * @param staggerMs 每隔多少毫秒开始下一个候选
+     * @param executor 执行各个候选连接的线程池，需要能同时运行所有候选
+     */
+    public RacingTransport(List<? extends SerialTransport> candidates, long staggerMs, Executor executor) {
+        if (candidates.isEmpty()) throw new IllegalArgumentException("没有候选的连接");
+        mCandidates = new ArrayList<>(candidates);
+        mStaggerNanos = TimeUnit.MILLISECONDS.toNanos(staggerMs);
+        mExecutor = executor;
+    }
+
+    @Override
+    public void open() throws IOException {
+        Race race = new Race();
+        mCurrent = null;
+        long begin = System.nanoTime();
+        try {
+            synchronized (mLock) {
+                mRace = race;
+                long nextStart = begin;
+                while (true) {
+                    // 先检查关闭，关闭时已经连上的候选也要关掉
+                    if (race.closed) throw new IOException("连接已关闭");
+                    if (race.winner != null) break;
+                    int count = mCandidates.size();
+                    if (race.failed == count) {
+                        throw new IOException("候选的连接都失败了：" + race.lastException.getMessage(), race.lastException);
+                    }
+                    long now = System.nanoTime();
+                    if (race.started < count && (now >= nextStart || race.failed == race.started)) {
+                        // 到了开始下一个的时间，或者已经开始的都失败了
+                        startAttempt(race, race.started++);
+                        nextStart = now + mStaggerNanos;
+                        continue;
+                    }
+                    try {
+                        if (race.started < count) {
+                            long remaining = nextStart - now;
+                            long ms = remaining / 1000000;
+                            mLock.wait(ms, (int) (remaining - ms * 1000000));
+                        } else {
+                            mLock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("连接被中断");
+                    }
+                }
+                mCurrent = race.winner;
+            }
+            SerialLog.d("竞速连接：" + race.winner.getName() + " 第 " + (mCandidates.indexOf(race.winner) + 1)
+                    + " 个候选先连上，用时 " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms");
+        } finally {
+            // 关掉其余还在连接的候选，阻塞在连接上的线程会随之失败
+            List<SerialTransport> losers = new ArrayList<>();
+            synchronized (mLock) {
+                race.decided = true;
+                for (int i = 0; i < race.started; i++) {
+                    if (mCandidates.get(i) != mCurrent) losers.add(mCandidates.get(i));
+                }
+            }
+            for (SerialTransport loser : losers) closeQuietly(loser);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return requireCurrent().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return requireCurrent().getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            // 正在竞速的话让 open 醒来，由 open 关掉已经开始的候选
+            if (mRace != null) mRace.closed = true;
+            mLock.notifyAll();
+        }
+        SerialTransport current = mCurrent;
+        if (current != null) current.close();
+    }
+
+    @Override
+    public String getName() {
+        SerialTransport current = mCurrent;
+        return current != null ? current.getName() : mCandidates.get(0).getName();
+    }
+
+    /**
+     * 连接成功的候选，还没连接成功时为 null
+     */
+    public SerialTransport getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * 在线程池里连接一个候选，持有 mLock 时调用
+     */
+    private void startAttempt(final Race race, final int index) {
+        final SerialTransport candidate = mCandidates.get(index);
+        SerialLog.d("竞速连接：开始第 " + (index + 1) + " 个候选 " + candidate.getName());
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(race, candidate);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            race.failed++;
+            race.lastException = new IOException("线程池已关闭", e);
+        }
+    }
+
+    private void attempt(Race race, SerialTransport candidate) {
+        IOException failure = null;
+        try {
+            candidate.open();
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+        }
+        boolean lost = false;
+        synchronized (mLock) {
+            if (failure != null) {
+                race.failed++;
+                race.lastException = failure;
+                if (!race.decided) SerialLog.d("竞速连接：" + candidate.getName() + " 失败:" + failure.getMessage());
+            } else if (race.winner == null && !race.closed && !race.decided) {
+                race.winner = candidate;
+            } else {
+                // 别的候选已经赢了，或者已经关闭
+                lost = true;
+            }
+            mLock.notifyAll();
+        }
+        if (lost) closeQuietly(candidate);
+    }
+
+    private static void closeQuietly(SerialTransport transport) {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            SerialLog.d("关闭 " + transport.getName() + " 失败:" + e.getMessage());
+        }
+    }
+
+    private SerialTransport requireCurrent() throws IOException {
+        SerialTransport current = mCurrent;
+        if (current == null) throw new IOException("未连接");
+        return current;
+    }
+
+    /**
+     * 一次 open 的竞速状态，只在持有 mLock 时读写
+     */
+    private static class Race {
+        int started = 0;
+        int failed = 0;
+        IOException lastException;
+        SerialTransport winner;
+        // open 已经返回，之后连上的候选都要关掉
+        boolean decided = false;
+        boolean closed = false;
+    }
+}
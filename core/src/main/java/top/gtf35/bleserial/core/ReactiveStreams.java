@@ -0,0 +1,68 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 响应式流接口
+ * 功能：和 Reactive Streams（org.reactivestreams）以及 Java 9 的 java.util.concurrent.Flow 的接口一一对应
+ *      API 22 没有 java.util.concurrent.Flow，这里单独定义一份，不引入依赖
+ *      方法名和约定完全相同，需要接到 RxJava、Reactor 之类的库时包一层转发即可
+ * @author gtf35 gtf@gtf35.top
+ */
+public final class ReactiveStreams {
+    private ReactiveStreams() {
+    }
+
+    /**
+     * 数据的生产者
+     */
+    public interface Publisher<T> {
+        /**
+         * 订阅，subscriber 会先收到 onSubscribe
+         * @param subscriber 订阅者
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * 数据的消费者，同一个订阅的回调不会并发
+     */
+    public interface Subscriber<T> {
+        /**
+         * 订阅成功，调用 subscription.request 之前不会收到数据
+         * @param subscription 订阅
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * 收到一个数据，总数不会超过 request 的数量
+         * @param item 数据
+         */
+        void onNext(T item);
+
+        /**
+         * 出错结束，之后不会再有回调
+         * @param throwable 错误
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * 正常结束，之后不会再有回调
+         */
+        void onComplete();
+    }
+
+    /**
+     * 一次订阅，用来请求数据或者取消
+     */
+    public interface Subscription {
+        /**
+         * 还能再接收 n 个数据，可以累加，Long.MAX_VALUE 表示不限
+         * @param n 数量，必须大于 0
+         */
+        void request(long n);
+
+        /**
+         * 取消订阅，之后不再收到数据
+         */
+        void cancel();
+    }
+}
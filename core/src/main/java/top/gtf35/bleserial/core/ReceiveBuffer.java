@@ -0,0 +1,153 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 接收缓冲区
+ * 功能：直接把输入流的数据读到缓冲区尾部，不再每次拼接新数组
+ *      空间不够时先把未读数据前移，仍不够再成倍扩容
+ *      取走完整的帧后剩余数据留在原处继续累计
+ * @author gtf35 gtf@gtf35.top
+ */
+public class ReceiveBuffer {
+    private byte[] mBuffer;
+    // 未读数据的起始位置
+    private int mReadIndex = 0;
+    // 下一次写入的位置
+    private int mWriteIndex = 0;
+
+    /**
+     * 构造接收缓冲区
+     *
+     * @param initialCapacity 初始容量
+     */
+    public ReceiveBuffer(int initialCapacity) {
+        mBuffer = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * 获取底层数组，有效数据在 [readIndex, writeIndex) 之间
+     * 注意扩容后会换成新数组，不要长期持有
+     */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    public int readIndex() {
+        return mReadIndex;
+    }
+
+    public int writeIndex() {
+        return mWriteIndex;
+    }
+
+    /**
+     * 未读的数据长度
+     */
+    public int readableBytes() {
+        return mWriteIndex - mReadIndex;
+    }
+
+    /**
+     * 从输入流读一次数据追加到尾部，会阻塞直到有数据
+     *
+     * @param inputStream 输入流
+     * @param minWritable 至少预留多少空间给这次读取
+     * @return 读到的字节数，流结束返回 -1
+     */
+    public int readFrom(InputStream inputStream, int minWritable) throws IOException {
+        ensureWritable(minWritable);
+        int num = inputStream.read(mBuffer, mWriteIndex, mBuffer.length - mWriteIndex);
+        if (num > 0) mWriteIndex += num;
+        return num;
+    }
+
+    /**
+     * 追加数据到尾部
+     *
+     * @param src 数据
+     * @param offset 起始位置
+     * @param length 长度
+     */
+    public void write(byte[] src, int offset, int length) {
+        ensureWritable(length);
+        System.arraycopy(src, offset, mBuffer, mWriteIndex, length);
+        mWriteIndex += length;
+    }
+
+    /**
+     * 从头部取出指定长度的数据，作为一帧交给调用者
+     *
+     * @param length 长度
+     * @return 新数组
+     */
+    public byte[] take(int length) {
+        byte[] frame = new byte[length];
+        System.arraycopy(mBuffer, mReadIndex, frame, 0, length);
+        skip(length);
+        return frame;
+    }
+
+    /**
+     * 丢弃头部指定长度的数据
+     *
+     * @param length 长度
+     */
+    public void skip(int length) {
+        if (length < 0 || length > readableBytes()) {
+            throw new IndexOutOfBoundsException("skip " + length + ", readable " + readableBytes());
+        }
+        mReadIndex += length;
+        // 读空了就回到开头，下次不用搬数据
+        if (mReadIndex == mWriteIndex) {
+            mReadIndex = 0;
+            mWriteIndex = 0;
+        }
+    }
+
+    /**
+     * 去掉尾部最后写入的若干字节
+     *
+     * @param length 长度
+     */
+    public void removeLast(int length) {
+        if (length < 0 || length > readableBytes()) {
+            throw new IndexOutOfBoundsException("removeLast " + length + ", readable " + readableBytes());
+        }
+        mWriteIndex -= length;
+        if (mReadIndex == mWriteIndex) {
+            mReadIndex = 0;
+            mWriteIndex = 0;
+        }
+    }
+
+    /**
+     * 清空
+     */
+    public void clear() {
+        mReadIndex = 0;
+        mWriteIndex = 0;
+    }
+
+    /**
+     * 保证尾部至少有 minWritable 的空间
+     */
+    private void ensureWritable(int minWritable) {
+        if (mBuffer.length - mWriteIndex >= minWritable) return;
+        int readable = readableBytes();
+        // 把未读数据挪到开头就够用的话就不扩容
+        if (mBuffer.length - readable >= minWritable && mReadIndex >= readable) {
+            System.arraycopy(mBuffer, mReadIndex, mBuffer, 0, readable);
+        } else {
+            // 至少翻倍，否则挪不划算时会换一个一样大的数组，白白多一次分配
+            int newCapacity = mBuffer.length << 1;
+            while (newCapacity - readable < minWritable) newCapacity <<= 1;
+            byte[] newBuffer = new byte[newCapacity];
+            System.arraycopy(mBuffer, mReadIndex, newBuffer, 0, readable);
+            mBuffer = newBuffer;
+        }
+        mReadIndex = 0;
+        mWriteIndex = readable;
+    }
+}
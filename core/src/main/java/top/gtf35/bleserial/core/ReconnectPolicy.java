@@ -0,0 +1,76 @@
+package top.gtf35.bleserial.core;
+
+import java.util.Random;
+
+/**
+ * 自动重连策略
+ * 功能：连接意外断开后按指数退避重试，每次的等待时间带随机抖动
+ *      避免多台设备同时断开后在同一时刻一起重连
+ *      可以限制最多重试次数和从断开开始算起的重连期限
+ * @author gtf35 gtf@gtf35.top
+ */
+public class ReconnectPolicy {
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final long mDeadlineMs;
+
+    /**
+     * 构造重连策略
+     *
+     * @param initialDelayMs 第一次重试前等待的毫秒数
+     * @param maxDelayMs 两次重试之间最多等待的毫秒数
+     * @param multiplier 每次重试等待时间的倍数，不小于 1
+     * @param jitter 随机抖动的比例，0 到 1 之间，0.2 表示上下浮动 20%
+     * @param maxAttempts 最多重试次数，不大于 0 表示不限
+     * @param deadlineMs 从断开开始最多重试多少毫秒，不大于 0 表示不限
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, double multiplier, double jitter,
+                    int maxAttempts, long deadlineMs) {
+        if (initialDelayMs < 0 || maxDelayMs < initialDelayMs) {
+            throw new IllegalArgumentException("等待时间不合法：" + initialDelayMs + ", " + maxDelayMs);
+        }
+        if (multiplier < 1) throw new IllegalArgumentException("倍数不能小于 1：" + multiplier);
+        if (jitter < 0 || jitter > 1) throw new IllegalArgumentException("抖动比例不合法：" + jitter);
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+        mDeadlineMs = deadlineMs;
+    }
+
+    /**
+     * 默认策略：0.5 秒起，每次翻倍，最多等 30 秒，抖动 20%，不限次数和期限
+     */
+    public static ReconnectPolicy createDefault() {
+        return new ReconnectPolicy(500, 30000, 2, 0.2, 0, 0);
+    }
+
+    /**
+     * 第 attempt 次重试前等待的毫秒数
+     *
+     * @param attempt 从 0 开始的重试次数
+     * @param random 抖动用的随机数
+     */
+    public long delayMs(int attempt, Random random) {
+        double delay = mInitialDelayMs;
+        for (int i = 0; i < attempt && delay < mMaxDelayMs; i++) delay *= mMultiplier;
+        delay = Math.min(delay, mMaxDelayMs);
+        if (mJitter > 0) delay *= 1 + mJitter * (random.nextDouble() * 2 - 1);
+        return Math.max(0, Math.round(delay));
+    }
+
+    /**
+     * 是否还能进行第 attempt 次重试
+     *
+     * @param attempt 从 0 开始的重试次数
+     * @param elapsedMs 从断开开始已经过去的毫秒数
+     */
+    public boolean canRetry(int attempt, long elapsedMs) {
+        if (mMaxAttempts > 0 && attempt >= mMaxAttempts) return false;
+        return mDeadlineMs <= 0 || elapsedMs < mDeadlineMs;
+    }
+}
@@ -0,0 +1,346 @@
+package top.gtf35.bleserial.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 回放传输层
+ * 功能：把 SessionRecorder 录下来的会话当作设备回放，收到的数据按原来的顺序从输入流读出
+ *      可以按原始节奏、按倍速或者尽快回放，尽快回放用来在 CI 上压测解码器和回调
+ *      录制里的发送数据作为期望值，和这次实际写出的数据逐字节比较，记下第一个不一致的位置
+ *      可以让回放在每段期望的发送数据处等待实际写出，保证请求和应答的先后和录制时一样
+ *      回放完输入流返回 -1，会话会当作连接断开；close 之后再 open 从头回放
+ * @author gtf35 gtf@gtf35.top
+ */
+public class ReplayTransport implements SerialTransport {
+    // 尽快回放，不等待
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final String mName;
+    private final List<File> mFiles;
+    private final List<SessionRecorder.Record> mRecords;
+    private final double mSpeed;
+    private volatile long mResponseTimeoutMs = -1;
+    private final Object mLock = new Object();
+    // 以下字段只在持有 mLock 时读写
+    private SessionRecorder.Reader mReader;
+    private int mRecordIndex;
+    private boolean mOpened = false;
+    private boolean mFinished = false;
+    private long mStartNanos;
+    // 第一条记录的时间，作为回放的起点
+    private long mFirstRecordNanos = -1;
+    // 正在从输入流读出的记录
+    private byte[] mCurrent;
+    private int mCurrentOffset;
+    // 录制里的发送数据和这次实际写出的数据
+    private byte[] mExpectedTx = new byte[256];
+    private int mExpectedTxLength = 0;
+    private byte[] mActualTx = new byte[256];
+    private int mActualTxLength = 0;
+    private int mMismatchOffset = -1;
+    // 已经比较过的字节数
+    private int mComparedLength = 0;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readReplay(b, off, len);
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeReplay(b, off, len);
+        }
+    };
+
+    /**
+     * 回放录制文件
+     *
+     * @param files 录制文件，见 SessionRecorder.listFiles
+     * @param speed 回放倍速，1 为原始节奏，AS_FAST_AS_POSSIBLE 为尽快回放
+     */
+    public ReplayTransport(List<File> files, double speed) {
+        this("replay:" + (files.isEmpty() ? "" : files.get(0).getName()), files, null, speed);
+    }
+
+    /**
+     * 回放内存里的记录，用于测试
+     *
+     * @param name 名字
+     * @param records 记录，按时间排好
+     * @param speed 回放倍速，1 为原始节奏，AS_FAST_AS_POSSIBLE 为尽快回放
+     */
+    public ReplayTransport(String name, List<SessionRecorder.Record> records, double speed) {
+        this(name, null, records, speed);
+    }
+
+    private ReplayTransport(String name, List<File> files, List<SessionRecorder.Record> records, double speed) {
+        if (speed < 0) throw new IllegalArgumentException("倍速不能小于 0：" + speed);
+        mName = name;
+        mFiles = files;
+        mRecords = records;
+        mSpeed = speed;
+    }
+
+    /**
+     * 回放到录制里的发送数据时，等这次实际写出同样多的数据再继续回放后面收到的数据
+     *
+     * @param timeoutMs 最多等待的毫秒数，超时后不再等待接着回放，小于 0 表示不等待
+     */
+    public void setWaitForResponses(long timeoutMs) {
+        mResponseTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void open() throws IOException {
+        synchronized (mLock) {
+            closeReader();
+            if (mFiles != null) mReader = new SessionRecorder.Reader(mFiles);
+            mRecordIndex = 0;
+            mOpened = true;
+            mFinished = false;
+            mStartNanos = System.nanoTime();
+            mFirstRecordNanos = -1;
+            mCurrent = null;
+            mExpectedTxLength = 0;
+            mActualTxLength = 0;
+            mMismatchOffset = -1;
+            mComparedLength = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            mOpened = false;
+            closeReader();
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 是否已经回放完所有记录
+     */
+    public boolean isFinished() {
+        synchronized (mLock) {
+            return mFinished;
+        }
+    }
+
+    /**
+     * 等待回放完
+     *
+     * @param timeoutMs 最多等待的毫秒数
+     * @return 是否回放完了
+     */
+    public boolean awaitFinished(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            while (!mFinished) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                mLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 实际写出的数据和录制里第一个不一样的位置，一致返回 -1
+     */
+    public int getTxMismatchOffset() {
+        synchronized (mLock) {
+            return mMismatchOffset;
+        }
+    }
+
+    /**
+     * 实际写出的数据和录制里的发送数据是否完全一样，回放完之后调用
+     */
+    public boolean isTxMatched() {
+        synchronized (mLock) {
+            return mMismatchOffset < 0 && mActualTxLength == mExpectedTxLength;
+        }
+    }
+
+    /**
+     * 已经回放到的录制里的发送数据
+     */
+    public byte[] getExpectedTx() {
+        synchronized (mLock) {
+            return Arrays.copyOf(mExpectedTx, mExpectedTxLength);
+        }
+    }
+
+    /**
+     * 这次实际写出的数据
+     */
+    public byte[] getActualTx() {
+        synchronized (mLock) {
+            return Arrays.copyOf(mActualTx, mActualTxLength);
+        }
+    }
+
+    /**
+     * 输入流：按节奏读出收到的数据，读到发送数据时记为期望值
+     */
+    private int readReplay(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        synchronized (mLock) {
+            while (true) {
+                if (!mOpened) throw new IOException("已关闭");
+                if (mCurrent != null && mCurrentOffset < mCurrent.length) {
+                    int n = Math.min(len, mCurrent.length - mCurrentOffset);
+                    System.arraycopy(mCurrent, mCurrentOffset, b, off, n);
+                    mCurrentOffset += n;
+                    return n;
+                }
+                SessionRecorder.Record record = nextRecord();
+                if (record == null) {
+                    mFinished = true;
+                    mLock.notifyAll();
+                    return -1;
+                }
+                if (mFirstRecordNanos < 0) mFirstRecordNanos = record.nanos;
+                if (record.direction == SessionRecorder.TX) {
+                    expectTx(record.data);
+                    continue;
+                }
+                awaitDue(record.nanos - mFirstRecordNanos);
+                mCurrent = record.data;
+                mCurrentOffset = 0;
+            }
+        }
+    }
+
+    /**
+     * 输出流：记下实际写出的数据并和期望值比较
+     */
+    private void writeReplay(byte[] b, int off, int len) throws IOException {
+        synchronized (mLock) {
+            if (!mOpened) throw new IOException("已关闭");
+            mActualTx = append(mActualTx, mActualTxLength, b, off, len);
+            mActualTxLength += len;
+            compareTx();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 下一条记录，持有 mLock 时调用
+     */
+    private SessionRecorder.Record nextRecord() throws IOException {
+        if (mReader != null) return mReader.next();
+        if (mRecords != null && mRecordIndex < mRecords.size()) return mRecords.get(mRecordIndex++);
+        return null;
+    }
+
+    /**
+     * 记下期望的发送数据，需要的话等实际写出，持有 mLock 时调用
+     */
+    private void expectTx(byte[] data) throws IOException {
+        mExpectedTx = append(mExpectedTx, mExpectedTxLength, data, 0, data.length);
+        mExpectedTxLength += data.length;
+        compareTx();
+        long timeoutMs = mResponseTimeoutMs;
+        if (timeoutMs < 0) return;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (mOpened && mActualTxLength < mExpectedTxLength) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    SerialLog.d("回放等待发送数据超时，期望 " + mExpectedTxLength + " 字节，实际 " + mActualTxLength + " 字节");
+                    return;
+                }
+                mLock.wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("回放被中断");
+        }
+        // 录制时设备的应答本来就在发送之后，后面收到的数据已经过了时间的话马上回放，不用额外补偿
+    }
+
+    /**
+     * 等到这条记录按倍速该出现的时间，持有 mLock 时调用
+     *
+     * @param recordNanos 距离第一条记录的纳秒数
+     */
+    private void awaitDue(long recordNanos) throws IOException {
+        if (mSpeed == AS_FAST_AS_POSSIBLE) return;
+        long due = mStartNanos + (long) (recordNanos / mSpeed);
+        try {
+            long remaining;
+            while (mOpened && (remaining = due - System.nanoTime()) > 0) {
+                // 在锁上等待，close 的时候能马上醒来
+                long ms = remaining / 1000000;
+                mLock.wait(ms, (int) (remaining - ms * 1000000));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("回放被中断");
+        }
+        if (!mOpened) throw new IOException("已关闭");
+    }
+
+    /**
+     * 逐字节比较新增的期望值和实际写出的数据，持有 mLock 时调用
+     */
+    private void compareTx() {
+        if (mMismatchOffset >= 0) return;
+        int length = Math.min(mExpectedTxLength, mActualTxLength);
+        for (int i = mComparedLength; i < length; i++) {
+            if (mExpectedTx[i] != mActualTx[i]) {
+                mMismatchOffset = i;
+                SerialLog.d("回放的发送数据在第 " + i + " 字节和录制的不一致");
+                return;
+            }
+        }
+        mComparedLength = length;
+    }
+
+    private void closeReader() throws IOException {
+        if (mReader != null) mReader.close();
+        mReader = null;
+    }
+
+    private static byte[] append(byte[] array, int length, byte[] src, int offset, int count) {
+        if (array.length < length + count) array = Arrays.copyOf(array, Math.max(array.length * 2, length + count));
+        System.arraycopy(src, offset, array, length, count);
+        return array;
+    }
+}
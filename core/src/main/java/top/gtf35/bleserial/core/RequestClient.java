@@ -0,0 +1,294 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 请求客户端
+ * 功能：发出请求后返回一个 Future，收到的帧按 ResponseCorrelator 匹配到对应的请求
+ *      最多同时有 window 个请求在等响应，不用一问一答地等往返时间
+ *      每个请求的超时由共用的时间轮处理，超时、发送失败都会让请求失败并让出窗口
+ *      作为会话回调的包装使用，匹配不上的帧和其他事件原样交给被包装的回调
+ * @author gtf35 gtf@gtf35.top
+ */
+public class RequestClient implements SerialSession.Callback {
+    private final SerialSession.Callback mDelegate;
+    private final ResponseCorrelator mCorrelator;
+    private final Semaphore mWindow;
+    private final TimerWheel mTimerWheel;
+    // 在等响应的请求，键相同的按发出的先后排队，持有 mInFlight 的锁时读写
+    private final HashMap<Object, ArrayDeque<ResponseFuture>> mInFlight = new HashMap<>();
+    private volatile SerialSession mSession;
+
+    /**
+     * 构造请求客户端，把它作为会话的回调，再调用 bind
+     *
+     * @param delegate 匹配不上的帧和其他事件交给这个回调
+     * @param correlator 响应匹配规则
+     * @param window 最多同时等响应的请求数
+     * @param timerWheel 处理超时的时间轮，可以用 TimerWheel.getDefault()
+     */
+    public RequestClient(SerialSession.Callback delegate, ResponseCorrelator correlator, int window, TimerWheel timerWheel) {
+        if (window <= 0) throw new IllegalArgumentException("窗口必须大于 0：" + window);
+        mDelegate = delegate;
+        mCorrelator = correlator;
+        mWindow = new Semaphore(window, true);
+        mTimerWheel = timerWheel;
+    }
+
+    /**
+     * 绑定发送请求用的会话
+     *
+     * @param session 会话
+     */
+    public void bind(SerialSession session) {
+        mSession = session;
+    }
+
+    /**
+     * 发出请求，窗口满时等待空位，不要在 UI 线程调用
+     *
+     * @param request 请求内容
+     * @param timeoutMs 从调用开始算起等响应的毫秒数，包括等窗口的时间
+     * @return 响应
+     * @throws IllegalArgumentException 请求不符合 ResponseCorrelator 的格式，这时不占用窗口
+     */
+    public ResponseFuture request(byte[] request, long timeoutMs) {
+        final ResponseFuture future = new ResponseFuture(request);
+        // 在占用窗口之前算键，请求格式不对抛出异常时不会漏掉 release
+        future.mKey = mCorrelator.requestKey(request);
+        long begin = System.nanoTime();
+        try {
+            if (!mWindow.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                future.complete(null, "请求窗口已满");
+                return future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.complete(null, "等待请求窗口被中断");
+            return future;
+        }
+        SerialSession session = mSession;
+        if (session == null) {
+            finish(future, null, "未连接");
+            return future;
+        }
+        // 先登记再发送，响应可能比发送完成的回调来得还早
+        synchronized (mInFlight) {
+            ArrayDeque<ResponseFuture> queue = mInFlight.get(future.mKey);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                mInFlight.put(future.mKey, queue);
+            }
+            queue.addLast(future);
+        }
+        long remainingMs = timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        future.mTimeout = mTimerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                finish(future, null, "请求超时");
+            }
+        }, remainingMs);
+        session.send(request, 0).setOnSendComplete(new SendQueue.OnSendComplete() {
+            @Override
+            public void onSendComplete(boolean success, String msg) {
+                if (!success) finish(future, null, msg);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 当前在等响应的请求数
+     */
+    public int inFlight() {
+        synchronized (mInFlight) {
+            int count = 0;
+            for (ArrayDeque<ResponseFuture> queue : mInFlight.values()) count += queue.size();
+            return count;
+        }
+    }
+
+    /**
+     * 让所有在等响应的请求失败
+     *
+     * @param reason 失败原因
+     */
+    public void cancelAll(String reason) {
+        List<ResponseFuture> all = new ArrayList<>();
+        synchronized (mInFlight) {
+            for (ArrayDeque<ResponseFuture> queue : mInFlight.values()) all.addAll(queue);
+        }
+        for (ResponseFuture future : all) finish(future, null, reason);
+    }
+
+    @Override
+    public void onConnectSuccess() {
+        mDelegate.onConnectSuccess();
+    }
+
+    @Override
+    public void onConnectFailed(String msg) {
+        mDelegate.onConnectFailed(msg);
+    }
+
+    @Override
+    public void onReceiveBytes(byte[] bytes) {
+        Object key = mCorrelator.responseKey(bytes);
+        while (key != null) {
+            ResponseFuture future = null;
+            synchronized (mInFlight) {
+                ArrayDeque<ResponseFuture> queue = mInFlight.get(key);
+                // 跳过刚好超时、正在移出队列的请求
+                if (queue != null) {
+                    for (ResponseFuture pending : queue) {
+                        if (!pending.mFinished.get()) {
+                            future = pending;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (future == null) break;
+            if (finish(future, bytes, null)) return;
+        }
+        // 不是响应，或者没有在等的请求
+        mDelegate.onReceiveBytes(bytes);
+    }
+
+    @Override
+    public void onSendBytes(byte[] bytes) {
+        mDelegate.onSendBytes(bytes);
+    }
+
+    /**
+     * 结束一个请求：移出等待队列、取消超时、让出窗口，只有第一次调用生效
+     *
+     * @return 是否由这次调用结束的
+     */
+    private boolean finish(ResponseFuture future, byte[] response, String failure) {
+        if (!future.mFinished.compareAndSet(false, true)) return false;
+        if (future.mKey != null) {
+            synchronized (mInFlight) {
+                ArrayDeque<ResponseFuture> queue = mInFlight.get(future.mKey);
+                if (queue != null) {
+                    queue.remove(future);
+                    if (queue.isEmpty()) mInFlight.remove(future.mKey);
+                }
+            }
+        }
+        if (future.mTimeout != null) future.mTimeout.cancel();
+        mWindow.release();
+        future.complete(response, failure);
+        return true;
+    }
+
+    /**
+     * 一个请求的响应
+     */
+    public static class ResponseFuture implements Future<byte[]> {
+        public final byte[] request;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        // 保证只结束一次
+        private final AtomicBoolean mFinished = new AtomicBoolean(false);
+        private volatile Object mKey;
+        private volatile TimerWheel.Timeout mTimeout;
+        private volatile byte[] mResponse;
+        private volatile String mFailure;
+        private OnResponse mOnResponse;
+
+        public ResponseFuture(byte[] request) {
+            this.request = request;
+        }
+
+        /**
+         * 设置完成回调，已经完成的话马上在当前线程回调
+         * 响应在读取线程回调，超时在时间轮线程回调
+         *
+         * @param onResponse 回调
+         */
+        public void setOnResponse(OnResponse onResponse) {
+            boolean done;
+            synchronized (this) {
+                done = isDone();
+                if (!done) mOnResponse = onResponse;
+            }
+            if (done) onResponse.onResponse(mResponse, mFailure);
+        }
+
+        /**
+         * 没有发出就失败
+         *
+         * @param failure 失败原因
+         */
+        public void fail(String failure) {
+            complete(null, failure);
+        }
+
+        private void complete(byte[] response, String failure) {
+            mFinished.set(true);
+            OnResponse onResponse;
+            synchronized (this) {
+                mResponse = response;
+                mFailure = failure;
+                mDone.countDown();
+                onResponse = mOnResponse;
+            }
+            if (onResponse != null) onResponse.onResponse(response, failure);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // 请求已经发出去了，取消不了
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) throw new TimeoutException();
+            return result();
+        }
+
+        private byte[] result() throws ExecutionException {
+            if (mFailure != null) throw new ExecutionException(new IOException(mFailure));
+            return mResponse;
+        }
+    }
+
+    /**
+     * 响应回调
+     */
+    public interface OnResponse {
+        /**
+         * @param response 响应内容，失败时为 null
+         * @param failure 失败原因，成功时为 null
+         */
+        void onResponse(byte[] response, String failure);
+    }
+}
@@ -0,0 +1,110 @@
+package top.gtf35.bleserial.core;
+
+import java.util.Arrays;
+
+/**
+ * 响应匹配规则
+ * 功能：从请求和收到的帧里各取出一个匹配键，键相等的帧就是这个请求的响应
+ *      键相同的多个请求按发出的先后匹配，所以 FIFO 就是所有请求共用一个键
+ *      内置 FIFO、按前缀匹配和按序号匹配三种，也可以自己实现
+ * @author gtf35 gtf@gtf35.top
+ */
+public abstract class ResponseCorrelator {
+    // FIFO 共用的键
+    private static final Object FIFO_KEY = new Object();
+
+    /**
+     * 请求的匹配键
+     *
+     * @param request 请求内容
+     * @return 匹配键，需要实现 equals 和 hashCode
+     */
+    public abstract Object requestKey(byte[] request);
+
+    /**
+     * 收到的帧的匹配键
+     *
+     * @param frame 收到的帧
+     * @return 匹配键，返回 null 表示不是响应，交给普通的接收回调
+     */
+    public abstract Object responseKey(byte[] frame);
+
+    /**
+     * 按顺序匹配：收到的每一帧都是最早那个还没响应的请求的响应
+     */
+    public static ResponseCorrelator fifo() {
+        return new ResponseCorrelator() {
+            @Override
+            public Object requestKey(byte[] request) {
+                return FIFO_KEY;
+            }
+
+            @Override
+            public Object responseKey(byte[] frame) {
+                return FIFO_KEY;
+            }
+        };
+    }
+
+    /**
+     * 按前缀匹配：响应的前 length 个字节和请求的前 length 个字节一样，例如命令码回显
+     *
+     * @param length 前缀长度
+     */
+    public static ResponseCorrelator prefix(int length) {
+        return field(0, 0, length);
+    }
+
+    /**
+     * 按序号匹配：请求和响应在各自的位置上带有相同的序号
+     *
+     * @param requestOffset 序号在请求里的位置
+     * @param responseOffset 序号在响应里的位置
+     * @param length 序号的字节数
+     */
+    public static ResponseCorrelator sequenceId(int requestOffset, int responseOffset, int length) {
+        return field(requestOffset, responseOffset, length);
+    }
+
+    private static ResponseCorrelator field(final int requestOffset, final int responseOffset, final int length) {
+        return new ResponseCorrelator() {
+            @Override
+            public Object requestKey(byte[] request) {
+                if (request.length < requestOffset + length) {
+                    throw new IllegalArgumentException("请求太短，取不到匹配键：" + request.length);
+                }
+                return new ByteKey(request, requestOffset, length);
+            }
+
+            @Override
+            public Object responseKey(byte[] frame) {
+                // 太短的帧不可能是响应
+                if (frame.length < responseOffset + length) return null;
+                return new ByteKey(frame, responseOffset, length);
+            }
+        };
+    }
+
+    /**
+     * 一段字节作为匹配键
+     */
+    private static final class ByteKey {
+        private final byte[] mBytes;
+        private final int mHash;
+
+        ByteKey(byte[] src, int offset, int length) {
+            mBytes = Arrays.copyOfRange(src, offset, offset + length);
+            mHash = Arrays.hashCode(mBytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteKey && Arrays.equals(mBytes, ((ByteKey) o).mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
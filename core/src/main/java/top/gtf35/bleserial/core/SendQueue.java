@@ -0,0 +1,533 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 发送队列
+ * 功能：调用线程只负责入队，由线程池里的写任务写出，不再阻塞 UI 线程
+ *      有消息时才提交写任务，队列写空就退出，多个连接可以共用一个线程池
+ *      连续的小消息合并成一次 write，最多额外等待 maxDelayMs，最多合并 maxBatchBytes
+ *      队列有上限，满了之后入队按超时等待，超时算发送失败
+ *      每条消息返回一个 SendFuture，可以等待或者设置完成回调
+ *      断线重连期间 detach，消息继续排队，重连后 attach 新的输出流接着写
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SendQueue {
+    private final BlockingDeque<SendFuture> mQueue;
+    private final int mCapacity;
+    private final int mMaxBatchBytes;
+    private final long mMaxDelayMs;
+    private final Executor mExecutor;
+    private final Callback mCallback;
+    // 当前的输出流，断线期间为 null
+    private volatile OutputStream mOutputStream;
+    // 写失败后不让消息失败，留到重连后再写
+    private volatile boolean mKeepOnFailure = false;
+    // 记住已经写出、还没被确认的消息，重连后重发
+    private volatile boolean mReplayUnacknowledged = false;
+    private volatile FlowControl mFlowControl;
+    // 写失败待重写和待重发的消息，优先于 mQueue
+    private final LinkedBlockingDeque<SendFuture> mPriority = new LinkedBlockingDeque<>();
+    // 已经写出、还没被确认的消息
+    private final ArrayDeque<byte[]> mUnacknowledged = new ArrayDeque<>();
+    // 合并写出用的缓冲区，只有写任务使用
+    private final byte[] mBatchBuffer;
+    // 一批里的消息，只有写任务使用
+    private final ArrayList<SendFuture> mBatch = new ArrayList<>();
+    // 上一批放不下、留给下一批的消息
+    private SendFuture mCarry;
+    // 同一时间只有一个写任务在跑
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private volatile boolean mRunning = false;
+
+    /**
+     * 构造发送队列
+     *
+     * @param capacity 最多排队的消息条数
+     * @param maxBatchBytes 一次 write 最多合并的字节数
+     * @param maxDelayMs 为了合并最多额外等待的毫秒数，0 表示只合并已经在排队的消息
+     * @param executor 运行写任务的线程池
+     * @param callback 发送结果回调，在写任务的线程调用
+     */
+    public SendQueue(int capacity, int maxBatchBytes, long maxDelayMs, Executor executor, Callback callback) {
+        mQueue = new LinkedBlockingDeque<>(capacity);
+        mCapacity = capacity;
+        mMaxBatchBytes = maxBatchBytes;
+        mMaxDelayMs = maxDelayMs;
+        mExecutor = executor;
+        mCallback = callback;
+        mBatchBuffer = new byte[maxBatchBytes];
+    }
+
+    /**
+     * 写失败时保留消息，等重连后 attach 再写，用于自动重连
+     *
+     * @param keepOnFailure 是否保留
+     */
+    public void setKeepOnFailure(boolean keepOnFailure) {
+        mKeepOnFailure = keepOnFailure;
+    }
+
+    /**
+     * 记住已经写出、还没被 acknowledge 的消息，重连后 attach 时先重发这些
+     *
+     * @param replayUnacknowledged 是否重发
+     */
+    public void setReplayUnacknowledged(boolean replayUnacknowledged) {
+        mReplayUnacknowledged = replayUnacknowledged;
+    }
+
+    /**
+     * 设置流控，写出时按流控分块并在暂停时等待，等待期间消息继续排队
+     *
+     * @param flowControl 流控，传 null 关闭
+     */
+    public void setFlowControl(FlowControl flowControl) {
+        mFlowControl = flowControl;
+    }
+
+    /**
+     * 开始接受消息，attach 输出流之前消息只排队不写出
+     */
+    public void start() {
+        mRunning = true;
+    }
+
+    /**
+     * 连上之后设置输出流并开始写出
+     *
+     * @param outputStream 输出流
+     */
+    public void attach(OutputStream outputStream) {
+        if (mReplayUnacknowledged) {
+            synchronized (mUnacknowledged) {
+                // 倒着放到最前面，保持原来的顺序
+                Iterator<byte[]> iterator = mUnacknowledged.descendingIterator();
+                while (iterator.hasNext()) mPriority.addFirst(new SendFuture(iterator.next()));
+                mUnacknowledged.clear();
+            }
+        }
+        mOutputStream = outputStream;
+        scheduleDrain();
+    }
+
+    /**
+     * 断线时调用，之后的消息只排队不写出
+     */
+    public void detach() {
+        mOutputStream = null;
+    }
+
+    /**
+     * 确认最早写出的若干条消息已经被对方收到，不再重发
+     *
+     * @param count 条数
+     */
+    public void acknowledge(int count) {
+        synchronized (mUnacknowledged) {
+            for (int i = 0; i < count && !mUnacknowledged.isEmpty(); i++) mUnacknowledged.pollFirst();
+        }
+    }
+
+    /**
+     * 停止，还没写出的消息全部失败
+     */
+    public void stop() {
+        mRunning = false;
+        mOutputStream = null;
+        SendFuture future;
+        while ((future = mPriority.poll()) != null) future.fail("连接已关闭");
+        while ((future = mQueue.poll()) != null) future.fail("连接已关闭");
+        synchronized (mUnacknowledged) {
+            mUnacknowledged.clear();
+        }
+    }
+
+    /**
+     * 消息入队
+     *
+     * @param msg 内容
+     * @param timeoutMs 队列满时最多等待的毫秒数，0 表示不等待
+     * @return 这条消息的发送结果
+     */
+    public SendFuture enqueue(byte[] msg, long timeoutMs) {
+        SendFuture future = new SendFuture(msg);
+        if (!mRunning) {
+            future.fail("未连接");
+            return future;
+        }
+        try {
+            if (!mQueue.offer(future, timeoutMs, TimeUnit.MILLISECONDS)) future.fail("发送队列已满");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.fail("入队被中断");
+        }
+        // 入队期间被停止的话，stop 可能已经清过队列了
+        if (!mRunning && mQueue.remove(future)) future.fail("连接已关闭");
+        scheduleDrain();
+        return future;
+    }
+
+    /**
+     * 当前排队的消息条数
+     */
+    public int size() {
+        return mQueue.size() + mPriority.size();
+    }
+
+    /**
+     * 有消息可写并且没有写任务在跑的话提交一个
+     */
+    private void scheduleDrain() {
+        if (mOutputStream == null || !hasPending() || !mDrainScheduled.compareAndSet(false, true)) return;
+        try {
+            mExecutor.execute(mDrainTask);
+        } catch (RejectedExecutionException e) {
+            mDrainScheduled.set(false);
+            SendFuture future;
+            while ((future = mPriority.poll()) != null) future.fail("线程池已满，无法发送");
+            while ((future = mQueue.poll()) != null) future.fail("线程池已满，无法发送");
+        }
+    }
+
+    private boolean hasPending() {
+        return !mPriority.isEmpty() || !mQueue.isEmpty();
+    }
+
+    /**
+     * 写任务：一直写到队列为空或者断线
+     */
+    private void drain() {
+        while (true) {
+            while (mRunning && mOutputStream != null && (mCarry != null || hasPending())) {
+                collectBatch();
+                writeBatch();
+            }
+            if (!mRunning) {
+                if (mCarry != null) mCarry.fail("连接已关闭");
+                mCarry = null;
+                stop();
+            } else if (mOutputStream == null && mCarry != null) {
+                // 断线了，放不下的那条留到重连后第一个写
+                mPriority.addFirst(mCarry);
+                mCarry = null;
+            }
+            mDrainScheduled.set(false);
+            // 放开标志之后又有新消息入队的话，自己接着写
+            if (!mRunning || mOutputStream == null || !hasPending()
+                    || !mDrainScheduled.compareAndSet(false, true)) return;
+        }
+    }
+
+    /**
+     * 取下一条消息，写失败待重写的优先
+     */
+    private SendFuture pollNext() {
+        SendFuture next = mPriority.poll();
+        return next != null ? next : mQueue.poll();
+    }
+
+    /**
+     * 收集一批消息，至少一条
+     */
+    private void collectBatch() {
+        mBatch.clear();
+        SendFuture first = mCarry != null ? mCarry : pollNext();
+        mCarry = null;
+        if (first == null) return;
+        mBatch.add(first);
+        int batchBytes = first.msg.length;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mMaxDelayMs);
+        while (batchBytes < mMaxBatchBytes) {
+            SendFuture next = pollNext();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                try {
+                    next = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (next == null) break;
+            }
+            if (batchBytes + next.msg.length > mMaxBatchBytes) {
+                mCarry = next;
+                break;
+            }
+            mBatch.add(next);
+            batchBytes += next.msg.length;
+        }
+    }
+
+    /**
+     * 写出一批消息
+     */
+    private void writeBatch() {
+        int size = 0;
+        int batchCount = 0;
+        for (int i = 0; i < mBatch.size(); i++) {
+            SendFuture future = mBatch.get(i);
+            // 已经取消的不再写出
+            if (!future.markWriting()) continue;
+            mBatch.set(batchCount++, future);
+            size += future.msg.length - future.mWritten;
+        }
+        if (batchCount == 0) return;
+        OutputStream outputStream = mOutputStream;
+        // 这一批已经确定写出的字节数
+        int written = 0;
+        try {
+            if (outputStream == null) throw new IOException("连接已断开");
+            byte[] data;
+            int start;
+            if (batchCount == 1) {
+                // 单条消息直接写，不用拷贝
+                SendFuture only = mBatch.get(0);
+                data = only.msg;
+                start = only.mWritten;
+            } else {
+                int offset = 0;
+                for (int i = 0; i < batchCount; i++) {
+                    SendFuture future = mBatch.get(i);
+                    int length = future.msg.length - future.mWritten;
+                    System.arraycopy(future.msg, future.mWritten, mBatchBuffer, offset, length);
+                    offset += length;
+                }
+                data = mBatchBuffer;
+                start = 0;
+            }
+            FlowControl flowControl = mFlowControl;
+            if (flowControl == null) {
+                outputStream.write(data, start, size);
+            } else {
+                // 按流控分块写，暂停时在这里等待，写出并 flush 过的块设备已经收到了
+                while (written < size) {
+                    int length = flowControl.acquire(size - written);
+                    outputStream.write(data, start + written, length);
+                    outputStream.flush();
+                    written += length;
+                }
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            // 断开前已经写完的消息算成功，写了一半的记下写到哪里，重连后只写剩下的，不然设备会收到两遍
+            int first = completeWritten(batchCount, written);
+            if (mKeepOnFailure && mRunning) {
+                // 等重连后按原来的顺序重写，放不下的那条排在这一批后面
+                if (mCarry != null) mPriority.addFirst(mCarry);
+                mCarry = null;
+                for (int i = batchCount - 1; i >= first; i--) {
+                    SendFuture future = mBatch.get(i);
+                    future.markPending();
+                    mPriority.addFirst(future);
+                }
+                // 这个输出流已经坏了，等重连后 attach
+                if (mOutputStream == outputStream) mOutputStream = null;
+                mCallback.onSendFailed("发送数据失败：" + e.getMessage());
+                return;
+            }
+            SerialLog.e("发送数据失败", e);
+            // 先回调再让消息失败，等待消息结果的线程醒来时已经能看到这次失败
+            mCallback.onSendFailed("发送数据失败：" + e.getMessage());
+            for (int i = first; i < batchCount; i++) mBatch.get(i).fail("发送数据失败：" + e.getMessage());
+            return;
+        }
+        completeWritten(batchCount, size);
+    }
+
+    /**
+     * 让这一批里已经整条写出的消息成功，写了一半的那条记下写出的字节数
+     *
+     * @param batchCount 这一批的消息条数
+     * @param written 这一批写出的字节数
+     * @return 第一条没有整条写出的消息的位置
+     */
+    private int completeWritten(int batchCount, int written) {
+        boolean replay = mReplayUnacknowledged;
+        for (int i = 0; i < batchCount; i++) {
+            SendFuture future = mBatch.get(i);
+            int remaining = future.msg.length - future.mWritten;
+            if (written < remaining) {
+                future.mWritten += written;
+                return i;
+            }
+            written -= remaining;
+            if (replay) {
+                synchronized (mUnacknowledged) {
+                    // 最多记住 capacity 条，太久没确认的不再重发
+                    if (mUnacknowledged.size() >= mCapacity) mUnacknowledged.pollFirst();
+                    mUnacknowledged.addLast(future.msg);
+                }
+            }
+            future.succeed();
+            mCallback.onSendBytes(future.msg);
+        }
+        return batchCount;
+    }
+
+    /**
+     * 发送结果回调，在写任务的线程调用
+     */
+    public interface Callback {
+        /**
+         * 一条消息已经写出
+         * @param bytes 内容
+         */
+        void onSendBytes(byte[] bytes);
+
+        /**
+         * 写出失败，setKeepOnFailure 时这批消息已经放回队列等待重连
+         * @param msg 失败信息
+         */
+        void onSendFailed(String msg);
+    }
+
+    /**
+     * 单条消息的完成回调
+     */
+    public interface OnSendComplete {
+        /**
+         * @param success 是否写出成功
+         * @param msg 失败信息，成功时为 null
+         */
+        void onSendComplete(boolean success, String msg);
+    }
+
+    /**
+     * 单条消息的发送结果
+     */
+    public static class SendFuture implements Future<Void> {
+        private static final int PENDING = 0;
+        private static final int WRITING = 1;
+        private static final int DONE = 2;
+
+        public final byte[] msg;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private int mState = PENDING;
+        private boolean mCancelled = false;
+        private String mFailure;
+        private OnSendComplete mOnSendComplete;
+        // 断线前已经写出的字节数，重连后从这里接着写，只在写任务使用
+        int mWritten = 0;
+
+        public SendFuture(byte[] msg) {
+            this.msg = msg;
+        }
+
+        /**
+         * 设置完成回调，已经完成的话立即在当前线程回调
+         *
+         * @param onSendComplete 完成回调
+         */
+        public void setOnSendComplete(OnSendComplete onSendComplete) {
+            synchronized (this) {
+                if (mState != DONE) {
+                    mOnSendComplete = onSendComplete;
+                    return;
+                }
+            }
+            onSendComplete.onSendComplete(mFailure == null, mFailure);
+        }
+
+        /**
+         * 写任务开始写出前调用，已取消返回 false
+         */
+        synchronized boolean markWriting() {
+            if (mState != PENDING) return false;
+            mState = WRITING;
+            return true;
+        }
+
+        /**
+         * 写失败后放回队列，等重连后再写
+         */
+        synchronized void markPending() {
+            if (mState == WRITING) mState = PENDING;
+        }
+
+        void succeed() {
+            complete(null);
+        }
+
+        public void fail(String failure) {
+            complete(failure);
+        }
+
+        private void complete(String failure) {
+            OnSendComplete onSendComplete;
+            synchronized (this) {
+                if (mState == DONE) return;
+                mState = DONE;
+                mFailure = failure;
+                onSendComplete = mOnSendComplete;
+            }
+            mDone.countDown();
+            if (onSendComplete != null) onSendComplete.onSendComplete(failure == null, failure);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (mState != PENDING) return false;
+                mCancelled = true;
+            }
+            complete("已取消");
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return report();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) throw new TimeoutException();
+            return report();
+        }
+
+        private Void report() throws ExecutionException {
+            String failure;
+            synchronized (this) {
+                // 按 Future 的约定，取消的结果是 CancellationException
+                if (mCancelled) throw new CancellationException("已取消");
+                failure = mFailure;
+            }
+            if (failure != null) throw new ExecutionException(new IOException(failure));
+            return null;
+        }
+    }
+}
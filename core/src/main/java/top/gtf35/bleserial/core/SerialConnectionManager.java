@@ -0,0 +1,152 @@
+package top.gtf35.bleserial.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多连接管理
+ * 功能：同时维持多条串口连接，按名字（蓝牙为 MAC）区分
+ *      每条连接有自己的解码器、发送队列和回调
+ *      所有连接共用一个有上限的线程池：每条连接的读取占一个线程，发送任务有消息时才占用线程
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SerialConnectionManager {
+    private final int mMaxSessions;
+    private final ThreadPoolExecutor mExecutor;
+    private final ConcurrentHashMap<String, SerialSession> mSessions = new ConcurrentHashMap<>();
+
+    /**
+     * 构造多连接管理
+     *
+     * @param maxSessions 最多同时连接的数量
+     * @param sendThreads 留给发送任务的线程数
+     */
+    public SerialConnectionManager(int maxSessions, int sendThreads) {
+        mMaxSessions = maxSessions;
+        int threads = maxSessions + sendThreads;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "SerialConnectionManager-" + threadCount.incrementAndGet());
+            }
+        });
+        // 没有连接时线程全部退出
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 建立一条连接，会话在线程池里运行，结束后自动移除
+     *
+     * @param transport 传输层，用 getName 区分连接
+     * @param callback 这条连接的回调
+     * @return 会话；同名连接还在或者连接数已满时返回 null，并回调 onConnectFailed
+     */
+    public SerialSession connect(SerialTransport transport, SerialSession.Callback callback) {
+        return connect(transport, callback, null);
+    }
+
+    /**
+     * 建立一条连接，会话在线程池里运行，结束后自动移除
+     *
+     * @param transport 传输层，用 getName 区分连接
+     * @param callback 这条连接的回调
+     * @param configurator 在开始连接之前配置会话，比如设置解码器，可以为 null
+     * @return 会话；同名连接还在或者连接数已满时返回 null，并回调 onConnectFailed
+     */
+    public synchronized SerialSession connect(SerialTransport transport, SerialSession.Callback callback,
+                                       SessionConfigurator configurator) {
+        final String name = transport.getName();
+        if (mSessions.containsKey(name)) {
+            callback.onConnectFailed("有正在连接的任务");
+            return null;
+        }
+        if (mSessions.size() >= mMaxSessions) {
+            callback.onConnectFailed("连接数已达上限：" + mMaxSessions);
+            return null;
+        }
+        final SerialSession session = new SerialSession(transport, mExecutor, callback);
+        if (configurator != null) configurator.configure(session);
+        // 会话回到 IDLE 就移除
+        session.addOnStateChangeListener(new SerialSession.OnStateChangeListener() {
+            @Override
+            public void onStateChange(SerialSession changed, SerialSession.State state) {
+                if (state == SerialSession.State.IDLE) mSessions.remove(name, changed);
+            }
+        });
+        mSessions.put(name, session);
+        if (!session.start()) {
+            mSessions.remove(name, session);
+            callback.onConnectFailed("线程池已关闭");
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * 获取连接
+     *
+     * @param name 传输层的名字，蓝牙为 MAC
+     * @return 会话，没有时为 null
+     */
+    public SerialSession get(String name) {
+        return mSessions.get(name);
+    }
+
+    /**
+     * 当前所有连接
+     */
+    public List<SerialSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    /**
+     * 发送到指定连接
+     *
+     * @param name 传输层的名字，蓝牙为 MAC
+     * @param bytes 要发送的数据
+     * @return 发送结果
+     */
+    public SendQueue.SendFuture send(String name, byte[] bytes) {
+        SerialSession session = mSessions.get(name);
+        if (session == null) {
+            SendQueue.SendFuture future = new SendQueue.SendFuture(bytes);
+            future.fail("未连接");
+            return future;
+        }
+        return session.send(bytes, 0);
+    }
+
+    /**
+     * 断开指定连接
+     *
+     * @param name 传输层的名字，蓝牙为 MAC
+     */
+    public void disconnect(String name) {
+        SerialSession session = mSessions.remove(name);
+        if (session != null) session.stop();
+    }
+
+    /**
+     * 断开所有连接并释放线程池
+     */
+    public void shutdown() {
+        for (SerialSession session : mSessions.values()) session.stop();
+        mSessions.clear();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 在开始连接之前配置会话
+     */
+    public interface SessionConfigurator {
+        void configure(SerialSession session);
+    }
+}
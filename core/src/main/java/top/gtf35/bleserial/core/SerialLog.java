@@ -0,0 +1,111 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * 日志门面
+ * 功能：按级别过滤，关闭时只比较一次级别，不拼接字符串也不做 16 进制转换
+ *      开销大的消息用 Message 延迟生成，字节数据直接传数组，真正输出时才转换
+ *      输出位置可以替换，BLESPPUtils 换成 android.util.Log，其他环境默认输出到 System.out
+ * @author gtf35 gtf@gtf35.top
+ */
+public final class SerialLog {
+    // 级别和 android.util.Log 的取值一致
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    // 关闭所有日志
+    public static final int OFF = Integer.MAX_VALUE;
+
+    private static final String TAG = "BLEUTILS";
+    // 默认关闭
+    private static volatile int sLevel = OFF;
+    private static volatile Sink sSink = new Sink() {
+        @Override
+        public void log(int level, String tag, String msg, Throwable tr) {
+            System.out.println(tag + ": " + msg);
+            if (tr != null) tr.printStackTrace(System.out);
+        }
+    };
+    // 每个线程一个编码器，复用字符缓冲区
+    private static final ThreadLocal<HexEncoder> sHexEncoder = new ThreadLocal<HexEncoder>() {
+        @Override
+        protected HexEncoder initialValue() {
+            return new HexEncoder(256);
+        }
+    };
+
+    private SerialLog() {
+    }
+
+    /**
+     * 设置输出的最低级别
+     *
+     * @param level 级别，OFF 关闭
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * 设置日志输出位置
+     *
+     * @param sink 输出位置
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    /**
+     * 这个级别的日志会不会输出，拼接开销大的日志先判断一下
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    public static void d(String msg) {
+        if (DEBUG >= sLevel) sSink.log(DEBUG, TAG, msg, null);
+    }
+
+    /**
+     * 打印延迟生成的日志，关闭时不调用 message
+     */
+    public static void d(Message message) {
+        if (DEBUG >= sLevel) sSink.log(DEBUG, TAG, message.get(), null);
+    }
+
+    /**
+     * 打印前缀加上一段字节的 16 进制，关闭时不做转换
+     */
+    public static void d(String prefix, byte[] data, int offset, int length) {
+        if (DEBUG >= sLevel) sSink.log(DEBUG, TAG, sHexEncoder.get().format(prefix, data, offset, length), null);
+    }
+
+    public static void w(String msg, Throwable tr) {
+        if (WARN >= sLevel) sSink.log(WARN, TAG, msg, tr);
+    }
+
+    public static void e(String msg, Throwable tr) {
+        if (ERROR >= sLevel) sSink.log(ERROR, TAG, msg, tr);
+    }
+
+    /**
+     * 日志输出位置
+     */
+    public interface Sink {
+        /**
+         * @param level 级别
+         * @param tag 标签
+         * @param msg 内容
+         * @param tr 异常，没有为 null
+         */
+        void log(int level, String tag, String msg, Throwable tr);
+    }
+
+    /**
+     * 延迟生成的日志内容，只有真正输出时才调用
+     */
+    public interface Message {
+        String get();
+    }
+}
@@ -0,0 +1,742 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 串口会话
+ * 功能：一条连接的完整收发流程，和 Android 无关
+ *      start 之后在线程池里建立连接并阻塞读取，按帧解码器切分后回调
+ *      发送交给发送队列，写任务也跑在同一个线程池里
+ *      状态 IDLE → CONNECTING → CONNECTED → CLOSING → IDLE，回到 IDLE 后可以再次 start
+ *      设置重连策略后意外断开会回到 CONNECTING 自动重连，期间发送的消息继续排队
+ *      多个会话可以共用一个线程池，见 SerialConnectionManager
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SerialSession {
+    /**
+     * 会话状态
+     */
+    public enum State {
+        // 空闲，可以 start
+        IDLE,
+        // 正在建立连接
+        CONNECTING,
+        // 已连接，正在收发
+        CONNECTED,
+        // 正在关闭，读取线程退出后回到 IDLE
+        CLOSING
+    }
+
+    private final SerialTransport mTransport;
+    private final Executor mExecutor;
+    private final Callback mCallback;
+    private FrameDecoder mFrameDecoder = new DelimiterFrameDecoder("\r\n".getBytes());
+    private volatile OnReceiveBuffer mOnReceiveBuffer;
+    private volatile FramePublisher mFramePublisher;
+    private volatile RawReceiver mRawReceiver;
+    private int mSendQueueCapacity = 64;
+    private int mSendMaxBatchBytes = 512;
+    private long mSendMaxDelayMs = 0;
+    private volatile SendQueue mSendQueue;
+    private volatile ReconnectPolicy mReconnectPolicy;
+    private volatile boolean mReplayUnacknowledged = false;
+    private volatile FlowControl mFlowControl;
+    private volatile FrameCheck mFrameCheck;
+    private volatile OnBadFrame mOnBadFrame;
+    private final Random mRandom = new Random();
+    private final SessionMetrics mMetrics = new SessionMetrics();
+    private volatile SessionRecorder mRecorder;
+    // 状态只在持有 mStateLock 时修改
+    private final Object mStateLock = new Object();
+    private volatile State mState = State.IDLE;
+    private final CopyOnWriteArrayList<OnStateChangeListener> mOnStateChangeListeners = new CopyOnWriteArrayList<>();
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            runLoop();
+        }
+    };
+
+    /**
+     * 构造会话，调用 start 之后才开始连接
+     *
+     * @param transport 传输层，需要支持 close 之后再次 open
+     * @param executor 运行读取循环和发送任务的线程池
+     * @param callback 会话回调，在读取线程或发送任务的线程调用
+     */
+    public SerialSession(SerialTransport transport, Executor executor, Callback callback) {
+        mTransport = transport;
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /**
+     * 设置帧解码器，连接之前调用
+     *
+     * @param frameDecoder 帧解码器
+     */
+    public void setFrameDecoder(FrameDecoder frameDecoder) {
+        mFrameDecoder = frameDecoder;
+    }
+
+    /**
+     * 设置零拷贝接收回调，设置后不再回调 Callback.onReceiveBytes
+     *
+     * @param onReceiveBuffer 接收回调，传 null 恢复使用 onReceiveBytes
+     */
+    public void setOnReceiveBuffer(OnReceiveBuffer onReceiveBuffer) {
+        mOnReceiveBuffer = onReceiveBuffer;
+    }
+
+    /**
+     * 设置帧的发布者，连接之前调用
+     * 设置后收到的帧交给它的订阅者，不再回调 onReceiveBytes 和 OnReceiveBuffer
+     * 订阅者没有需求时读取线程暂停 read，由 RFCOMM 的流控让设备停下
+     *
+     * @param framePublisher 发布者，传 null 恢复使用回调
+     */
+    public void setFramePublisher(FramePublisher framePublisher) {
+        mFramePublisher = framePublisher;
+    }
+
+    /**
+     * 设置原始数据接收，可以随时设置，用于传文件之类需要逐字节应答的场景
+     * 设置后读到的数据去掉流控字符后不经过帧解码器，直接交给它，缓冲区里还没解完的数据也一起交出去
+     * 订阅者的需求也不再限制读取；传 null 恢复按帧解码，解码器从头开始
+     *
+     * @param rawReceiver 原始数据接收，传 null 恢复按帧解码
+     */
+    public void setRawReceiver(RawReceiver rawReceiver) {
+        mRawReceiver = rawReceiver;
+        // 等待订阅者需求的读取线程需要马上开始读
+        FramePublisher framePublisher = mFramePublisher;
+        if (framePublisher != null) framePublisher.wakeUp();
+    }
+
+    /**
+     * 是否设置了原始数据接收
+     */
+    public boolean isReceivingRaw() {
+        return mRawReceiver != null;
+    }
+
+    /**
+     * 设置发送队列，连接之前调用
+     *
+     * @param capacity 最多排队的消息条数
+     * @param maxBatchBytes 一次 write 最多合并的字节数
+     * @param maxDelayMs 为了合并小消息最多额外等待的毫秒数
+     */
+    public void setSendQueue(int capacity, int maxBatchBytes, long maxDelayMs) {
+        mSendQueueCapacity = capacity;
+        mSendMaxBatchBytes = maxBatchBytes;
+        mSendMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * 设置自动重连，连接之前调用
+     * 重连期间发送的消息和写失败的消息都会留在队列里，重连后接着写
+     * 意外断开时不回调 onConnectFailed，状态回到 CONNECTING，重连成功再次回调 onConnectSuccess，放弃重连时才回调 onConnectFailed
+     *
+     * @param policy 重连策略，传 null 关闭自动重连
+     * @param replayUnacknowledged 重连后是否重发已经写出、还没被 acknowledge 的消息
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy, boolean replayUnacknowledged) {
+        mReconnectPolicy = policy;
+        mReplayUnacknowledged = replayUnacknowledged;
+    }
+
+    /**
+     * 设置软件流控，连接之前调用
+     * 收到的 XON/XOFF 或者额度由读取线程处理并从数据里去掉，发送队列按流控暂停
+     *
+     * @param flowControl 流控，传 null 关闭
+     */
+    public void setFlowControl(FlowControl flowControl) {
+        mFlowControl = flowControl;
+    }
+
+    /**
+     * 设置帧校验，连接之前调用
+     * 发送的消息加上校验值；收到的帧在接收缓冲区上校验，通过的去掉校验值再交给回调，没通过的交给 onBadFrame
+     * 原始数据接收期间收发都不经过校验
+     *
+     * @param frameCheck 帧校验，传 null 关闭
+     * @param onBadFrame 没通过校验的帧的回调，可以为 null
+     */
+    public void setFrameCheck(FrameCheck frameCheck, OnBadFrame onBadFrame) {
+        mFrameCheck = frameCheck;
+        mOnBadFrame = onBadFrame;
+    }
+
+    /**
+     * 设置录制，收到的原始数据和写出的消息都会记下来，可以随时设置
+     *
+     * @param recorder 录制器，传 null 停止录制，录制器由调用者关闭
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * 确认最早写出的若干条消息已经被对方收到，重连后不再重发
+     *
+     * @param count 条数
+     */
+    public void acknowledge(int count) {
+        SendQueue sendQueue = mSendQueue;
+        if (sendQueue != null) sendQueue.acknowledge(count);
+    }
+
+    /**
+     * 开始连接，只有 IDLE 状态才能开始
+     *
+     * @return 是否开始了
+     */
+    public boolean start() {
+        if (!compareAndSetState(State.IDLE, State.CONNECTING)) return false;
+        mMetrics.onStart();
+        try {
+            mExecutor.execute(mLoop);
+        } catch (RejectedExecutionException e) {
+            compareAndSetState(State.CONNECTING, State.IDLE);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 断开连接，不会阻塞，读取线程退出后回到 IDLE
+     */
+    public void stop() {
+        if (compareAndSetState(State.CONNECTED, State.CLOSING)
+                || compareAndSetState(State.CONNECTING, State.CLOSING)) {
+            closeResources();
+        }
+    }
+
+    /**
+     * 等待回到 IDLE
+     *
+     * @param timeoutMs 最多等待的毫秒数
+     * @return 是否已经是 IDLE
+     */
+    public boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mStateLock) {
+            while (mState != State.IDLE) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                mStateLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取循环：连接并一直接收数据，直到断开或者 stop
+     */
+    private void runLoop() {
+        final ReconnectPolicy policy = mReconnectPolicy;
+        // 发送队列在连接之前创建，重连期间消息继续排队
+        SendQueue sendQueue = new SendQueue(mSendQueueCapacity, mSendMaxBatchBytes, mSendMaxDelayMs,
+                mExecutor, new SendQueue.Callback() {
+            @Override
+            public void onSendBytes(byte[] bytes) {
+                mMetrics.onFrameOut(bytes.length);
+                SessionRecorder recorder = mRecorder;
+                if (recorder != null) recorder.record(SessionRecorder.TX, bytes, 0, bytes.length);
+                mCallback.onSendBytes(bytes);
+            }
+
+            @Override
+            public void onSendFailed(String msg) {
+                mMetrics.onError();
+                if (policy == null) {
+                    mCallback.onConnectFailed(msg);
+                    return;
+                }
+                // 消息已经放回队列，关掉传输层让读取线程发现断开并重连
+                SerialLog.d(msg + "，准备重连");
+                try {
+                    mTransport.close();
+                } catch (IOException e) {
+                    SerialLog.w("关闭连接失败", e);
+                }
+            }
+        });
+        sendQueue.setKeepOnFailure(policy != null);
+        sendQueue.setReplayUnacknowledged(policy != null && mReplayUnacknowledged);
+        final FlowControl flowControl = mFlowControl;
+        sendQueue.setFlowControl(flowControl);
+        sendQueue.start();
+        mSendQueue = sendQueue;
+        try {
+            // 还没开始就被 stop 了
+            if (mState != State.CONNECTING) return;
+            // 尝试连接
+            try {
+                // 等待连接，会阻塞线程
+                mTransport.open();
+                if (flowControl != null) flowControl.reset();
+                sendQueue.attach(mTransport.getOutputStream());
+                SerialLog.d("连接成功:" + mTransport.getName());
+            } catch (Exception connectException) {
+                // 连接期间被 stop 的话不算失败
+                if (mState == State.CONNECTING) {
+                    SerialLog.e("连接失败:" + connectException.getMessage(), connectException);
+                    mMetrics.onError();
+                    mCallback.onConnectFailed("连接失败:" + connectException.getMessage());
+                }
+                return;
+            }
+            // 连接期间被 stop 了
+            if (!compareAndSetState(State.CONNECTING, State.CONNECTED)) return;
+            mMetrics.onConnected();
+            mCallback.onConnectSuccess();
+            String disconnect = receive();
+            // 意外断开的话按策略重连，重连成功接着接收；会重连的断开不算失败，放弃重连时由 reconnect 报告
+            while (disconnect != null && policy != null && reconnect(policy, sendQueue)) disconnect = receive();
+            if (disconnect != null && policy == null) mCallback.onConnectFailed(disconnect);
+        } finally {
+            // 对方断开或者连接失败时也经过 CLOSING
+            if (!compareAndSetState(State.CONNECTED, State.CLOSING)) {
+                compareAndSetState(State.CONNECTING, State.CLOSING);
+            }
+            closeResources();
+            compareAndSetState(State.CLOSING, State.IDLE);
+        }
+    }
+
+    /**
+     * 意外断开后按策略重连，会阻塞到重连成功、放弃或者被 stop
+     *
+     * @return 是否重连成功
+     */
+    private boolean reconnect(ReconnectPolicy policy, SendQueue sendQueue) {
+        sendQueue.detach();
+        // 断开之后不会再收到 XON 或者额度，等待中的写任务马上失败，消息放回队列
+        FlowControl flowControl = mFlowControl;
+        if (flowControl != null) flowControl.close();
+        // 主动 stop 的不重连
+        if (!compareAndSetState(State.CONNECTED, State.CONNECTING)) return false;
+        long begin = System.nanoTime();
+        int attempt = 0;
+        while (policy.canRetry(attempt, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin))) {
+            long delayMs = policy.delayMs(attempt++, mRandom);
+            SerialLog.d("第 " + attempt + " 次重连，等待 " + delayMs + "ms");
+            // 在状态锁上等待，stop 的时候能马上醒来
+            long deadline = System.currentTimeMillis() + delayMs;
+            synchronized (mStateLock) {
+                try {
+                    long remaining;
+                    while (mState == State.CONNECTING && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        mStateLock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (mState != State.CONNECTING) return false;
+            }
+            try {
+                mTransport.close();
+                mTransport.open();
+                if (flowControl != null) flowControl.reset();
+                sendQueue.attach(mTransport.getOutputStream());
+            } catch (Exception e) {
+                SerialLog.d("重连失败:" + e.getMessage());
+                continue;
+            }
+            // 重连期间被 stop 了
+            if (!compareAndSetState(State.CONNECTING, State.CONNECTED)) return false;
+            long recoveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            mMetrics.onReconnect(recoveryMs);
+            SerialLog.d("重连成功:" + mTransport.getName() + "，用时 " + recoveryMs + "ms");
+            mCallback.onConnectSuccess();
+            return true;
+        }
+        if (mState == State.CONNECTING) {
+            mMetrics.onError();
+            mCallback.onConnectFailed("重连失败：已经重试 " + attempt + " 次");
+        }
+        return false;
+    }
+
+    /**
+     * 开始监听数据接收
+     *
+     * @return 意外断开的原因，主动 stop 时为 null
+     */
+    private String receive() {
+        try {
+            InputStream inputStream = mTransport.getInputStream();
+            ReceiveBuffer receiveBuffer = new ReceiveBuffer(1024);
+            FrameDecoder frameDecoder = mFrameDecoder;
+            frameDecoder.reset();
+            FlowControl flowControl = mFlowControl;
+            FrameOutput frameOutput = new FrameOutput();
+            while (mState == State.CONNECTED) {
+                // 订阅者处理不过来的时候先不读，数据留在 RFCOMM 的缓冲区里
+                FramePublisher framePublisher = mFramePublisher;
+                if (framePublisher != null && mRawReceiver == null && !framePublisher.awaitDemand(this)) break;
+                // 阻塞等待数据，有数据到来才会返回，socket 被关闭时会抛出异常
+                int num = receiveBuffer.readFrom(inputStream, 256);
+                if (num < 0) {
+                    if (mState != State.CONNECTED) return null;
+                    mMetrics.onError();
+                    return "连接已断开";
+                }
+                mMetrics.onRead(num);
+                SessionRecorder recorder = mRecorder;
+                // 记录的是解码之前的原始数据
+                if (recorder != null) {
+                    recorder.record(SessionRecorder.RX, receiveBuffer.array(), receiveBuffer.writeIndex() - num, num);
+                }
+                // 流控字符不交给解码器
+                if (flowControl != null) {
+                    int kept = flowControl.filter(receiveBuffer.array(), receiveBuffer.writeIndex() - num, num);
+                    receiveBuffer.removeLast(num - kept);
+                }
+                RawReceiver rawReceiver = mRawReceiver;
+                if (rawReceiver != null) {
+                    int readable = receiveBuffer.readableBytes();
+                    if (readable > 0) rawReceiver.onRawBytes(receiveBuffer.array(), receiveBuffer.readIndex(), readable);
+                    receiveBuffer.skip(readable);
+                    frameDecoder.reset();
+                    frameOutput.onDecoded(0);
+                    continue;
+                }
+                frameOutput.onRead(System.nanoTime());
+                try {
+                    // 一次 read 可能带有多个完整的帧，逐个返回，剩下的留在缓冲区
+                    frameDecoder.decode(receiveBuffer, frameOutput);
+                } catch (Exception e) {
+                    SerialLog.e("解码收到的数据出错", e);
+                    mMetrics.onError();
+                    mCallback.onConnectFailed("解码收到的数据出错：" + e.getMessage());
+                }
+                frameOutput.onDecoded(receiveBuffer.readableBytes());
+            }
+        } catch (Exception e) {
+            // 主动关闭时 read 会因为 socket 关闭而抛出异常，这不算失败
+            if (mState == State.CONNECTED) {
+                SerialLog.e("接收数据失败", e);
+                mMetrics.onError();
+                return "接收数据失败：" + e.getMessage();
+            }
+            SerialLog.d("连接已关闭，停止接收");
+        }
+        return null;
+    }
+
+    /**
+     * 解出的帧交给回调，顺便统计组装和回调的耗时，只在读取线程使用
+     */
+    private class FrameOutput implements FrameDecoder.Output {
+        // 复用的只读视图，缓冲区扩容换了数组才重新创建
+        private ByteBuffer frameView;
+        private byte[] frameViewArray;
+        // 最近一次 read 返回的时间
+        private long readTime;
+        // 缓冲区里剩下的数据是什么时候读到的，缓冲区为空时为 -1
+        private long pendingSince = -1;
+        // 这次 read 之后解出的帧数
+        private int framesThisRead;
+
+        void onRead(long now) {
+            readTime = now;
+            framesThisRead = 0;
+            if (pendingSince < 0) pendingSince = now;
+        }
+
+        void onDecoded(int remaining) {
+            if (remaining == 0) {
+                pendingSince = -1;
+            } else if (framesThisRead > 0) {
+                // 这次解出过帧，剩下的数据一定是这次 read 读到的
+                pendingSince = readTime;
+            }
+        }
+
+        @Override
+        public void onFrame(byte[] array, int offset, int length) {
+            long start = System.nanoTime();
+            // 第一帧从缓冲区里最早的数据算起，之后的帧都是这次 read 读到的
+            long assemblyNanos = start - (framesThisRead++ == 0 ? pendingSince : readTime);
+            // 关闭日志时不做 16 进制转换
+            SerialLog.d("收到完整的帧=>", array, offset, length);
+            FrameCheck frameCheck = mFrameCheck;
+            if (frameCheck != null) {
+                if (!frameCheck.verify(array, offset, length)) {
+                    SerialLog.d("帧校验没通过");
+                    OnBadFrame onBadFrame = mOnBadFrame;
+                    if (onBadFrame != null) {
+                        byte[] frame = new byte[length];
+                        System.arraycopy(array, offset, frame, 0, length);
+                        onBadFrame.onBadFrame(frame);
+                    }
+                    return;
+                }
+                // 校验值和后面的停止标志位不交给回调
+                length = frameCheck.payloadLength(length);
+            }
+            FramePublisher framePublisher = mFramePublisher;
+            OnReceiveBuffer onReceiveBuffer = mOnReceiveBuffer;
+            if (framePublisher != null) {
+                // 订阅者可能在别的线程处理，必须拷贝
+                byte[] frame = new byte[length];
+                System.arraycopy(array, offset, frame, 0, length);
+                framePublisher.onFrame(frame);
+            } else if (onReceiveBuffer != null) {
+                if (frameViewArray != array) {
+                    frameViewArray = array;
+                    frameView = ByteBuffer.wrap(array).asReadOnlyBuffer();
+                }
+                frameView.clear();
+                frameView.limit(offset + length);
+                frameView.position(offset);
+                onReceiveBuffer.onReceiveBuffer(frameView);
+            } else {
+                byte[] frame = new byte[length];
+                System.arraycopy(array, offset, frame, 0, length);
+                mCallback.onReceiveBytes(frame);
+            }
+            mMetrics.onFrameIn(assemblyNanos, System.nanoTime() - start);
+        }
+
+        @Override
+        public void onDecodeError(String msg) {
+            mMetrics.onDecodeError();
+            SerialLog.d("解码出错：" + msg);
+        }
+    }
+
+    /**
+     * 释放发送队列和传输层，阻塞在 read 上的读取线程会随之退出
+     */
+    private void closeResources() {
+        SendQueue sendQueue = mSendQueue;
+        mSendQueue = null;
+        if (sendQueue != null) sendQueue.stop();
+        // 因为流控等待的写任务醒来退出
+        FlowControl flowControl = mFlowControl;
+        if (flowControl != null) flowControl.close();
+        // 等待订阅者需求的读取线程醒来退出
+        FramePublisher framePublisher = mFramePublisher;
+        if (framePublisher != null) framePublisher.wakeUp();
+        try {
+            mTransport.close();
+        } catch (IOException e) {
+            SerialLog.w("关闭连接失败", e);
+        }
+    }
+
+    /**
+     * 切换状态并通知监听
+     */
+    private boolean compareAndSetState(State expect, State update) {
+        synchronized (mStateLock) {
+            if (mState != expect) return false;
+            mState = update;
+            mStateLock.notifyAll();
+        }
+        for (OnStateChangeListener listener : mOnStateChangeListeners) listener.onStateChange(this, update);
+        return true;
+    }
+
+    /**
+     * 发送，只负责放进发送队列，由写任务写出
+     *
+     * @param msg 内容
+     * @param timeoutMs 队列满时最多等待的毫秒数
+     * @return 发送结果
+     */
+    public SendQueue.SendFuture send(byte[] msg, long timeoutMs) {
+        SendQueue sendQueue = mSendQueue;
+        if (sendQueue == null) {
+            SendQueue.SendFuture future = new SendQueue.SendFuture(msg);
+            future.fail("未连接");
+            return future;
+        }
+        FrameCheck frameCheck = mFrameCheck;
+        if (frameCheck != null && mRawReceiver == null) msg = frameCheck.seal(msg);
+        return sendQueue.enqueue(msg, timeoutMs);
+    }
+
+    /**
+     * 是否正在连接、已经连接或者正在关闭
+     */
+    public boolean isRunning() {
+        return mState != State.IDLE;
+    }
+
+    /**
+     * 自动重连成功的次数
+     */
+    public long getReconnectCount() {
+        return mMetrics.getReconnectCount();
+    }
+
+    /**
+     * 最近一次从断开到重连成功用了多少毫秒，还没重连过返回 -1
+     */
+    public long getLastRecoveryMs() {
+        return mMetrics.getLastRecoveryMs();
+    }
+
+    /**
+     * 当前的统计快照，可以在任意线程调用
+     */
+    public SessionMetrics.Snapshot getMetrics() {
+        SendQueue sendQueue = mSendQueue;
+        return mMetrics.snapshot(sendQueue == null ? 0 : sendQueue.size());
+    }
+
+    /**
+     * 定时推送统计快照
+     *
+     * @param scheduler 定时用的线程池，回调在它的线程上执行
+     * @param periodMs 推送间隔
+     * @param listener 监听
+     * @return 取消推送用
+     */
+    public ScheduledFuture<?> scheduleMetrics(ScheduledExecutorService scheduler, long periodMs,
+                                       final SessionMetrics.Listener listener) {
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                listener.onMetrics(SerialSession.this, getMetrics());
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 当前状态
+     */
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * 添加状态变化监听，在切换状态的线程调用
+     *
+     * @param listener 监听
+     */
+    public void addOnStateChangeListener(OnStateChangeListener listener) {
+        mOnStateChangeListeners.add(listener);
+    }
+
+    /**
+     * 移除状态变化监听
+     *
+     * @param listener 监听
+     */
+    public void removeOnStateChangeListener(OnStateChangeListener listener) {
+        mOnStateChangeListeners.remove(listener);
+    }
+
+    /**
+     * 传输层
+     */
+    public SerialTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * 会话回调
+     */
+    public interface Callback {
+        /**
+         * 当连接成功
+         */
+        void onConnectSuccess();
+
+        /**
+         * 当连接失败或者收发出错
+         * @param msg 失败信息
+         */
+        void onConnectFailed(String msg);
+
+        /**
+         * 当接收到一帧
+         * @param bytes 内容
+         */
+        void onReceiveBytes(byte[] bytes);
+
+        /**
+         * 当一条消息已经写出
+         * @param bytes 内容
+         */
+        void onSendBytes(byte[] bytes);
+    }
+
+    /**
+     * 状态变化监听
+     */
+    public interface OnStateChangeListener {
+        /**
+         * @param session 会话
+         * @param state 新状态
+         */
+        void onStateChange(SerialSession session, State state);
+    }
+
+    /**
+     * 零拷贝接收回调
+     */
+    public interface OnReceiveBuffer {
+        /**
+         * 当接收到一帧，设置后不再回调 {@link Callback#onReceiveBytes(byte[])}
+         * frame 是接收缓冲区的只读视图，position 到 limit 之间为帧内容
+         * 只在回调期间有效，需要保留请用 {@link SerialSession#retain(ByteBuffer)} 拷贝一份
+         * @param frame 内容
+         */
+        void onReceiveBuffer(ByteBuffer frame);
+    }
+
+    /**
+     * 没通过校验的帧的回调
+     */
+    public interface OnBadFrame {
+        /**
+         * 收到一帧但是没通过校验，在读取线程调用，之后不会再回调 onReceiveBytes
+         * @param frame 帧的全部内容，包括校验值
+         */
+        void onBadFrame(byte[] frame);
+    }
+
+    /**
+     * 原始数据接收
+     */
+    public interface RawReceiver {
+        /**
+         * 读到数据，在读取线程调用，数据只在回调期间有效
+         * @param data 数组
+         * @param offset 起始位置
+         * @param length 长度
+         */
+        void onRawBytes(byte[] data, int offset, int length);
+    }
+
+    /**
+     * 拷贝一份零拷贝回调收到的帧，用于在回调结束后继续持有
+     *
+     * @param frame 回调收到的帧
+     * @return 帧内容
+     */
+    public static byte[] retain(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return bytes;
+    }
+}
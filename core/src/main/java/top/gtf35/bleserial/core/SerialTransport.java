@@ -0,0 +1,38 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 串口传输层
+ * 功能：把收发数据用的流和具体的连接方式分开
+ *      蓝牙 RFCOMM、TCP、内存回环都实现这个接口，上层的分帧、缓冲、收发线程不关心底层是什么
+ * @author gtf35 gtf@gtf35.top
+ */
+public interface SerialTransport {
+    /**
+     * 建立连接，会阻塞线程，close 之后可以再次调用重新连接
+     */
+    void open() throws IOException;
+
+    /**
+     * 输入流，open 成功后才能获取
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * 输出流，open 成功后才能获取
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * 关闭连接，可以重复调用，阻塞在 read 上的线程会随之返回或抛出异常
+     */
+    void close() throws IOException;
+
+    /**
+     * 连接的名字，用于日志和区分连接，蓝牙为 MAC 地址
+     */
+    String getName();
+}
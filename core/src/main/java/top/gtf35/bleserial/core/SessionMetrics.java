@@ -0,0 +1,192 @@
+package top.gtf35.bleserial.core;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话统计
+ * 功能：统计一个会话的收发字节数、帧数、read 次数、出错次数和重连情况
+ *      记录帧组装耗时（帧的第一个字节读到到解出这一帧）和接收回调耗时的分布
+ *      记录从开始连接到连接成功、到收到第一个字节的耗时，用来比较不同的连接方式
+ *      接收相关的计数只在读取线程写，发送相关的只在写任务写，都用 lazySet，不加锁
+ *      snapshot 得到某一时刻的只读快照，可以随时在任意线程调用
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SessionMetrics {
+    private final long mCreateTime = System.currentTimeMillis();
+    // 开始连接的时间，见 onStart
+    private volatile long mStartNanos = System.nanoTime();
+    private volatile long mConnectMs = -1;
+    // 读取线程写
+    private volatile long mFirstByteMs = -1;
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mReads = new AtomicLong();
+    private final AtomicLong mDecodeErrors = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private volatile long mLastRecoveryMs = -1;
+    private final LatencyHistogram mAssembly = new LatencyHistogram();
+    private final LatencyHistogram mCallback = new LatencyHistogram();
+    // 写任务写
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    // 多个线程都会写
+    private final AtomicLong mErrors = new AtomicLong();
+
+    /**
+     * 开始连接，之后的连接耗时和首字节耗时都从这里算起
+     */
+    void onStart() {
+        mStartNanos = System.nanoTime();
+        mConnectMs = -1;
+        mFirstByteMs = -1;
+    }
+
+    /**
+     * 第一次连接成功，重连不算
+     */
+    void onConnected() {
+        if (mConnectMs < 0) mConnectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+    }
+
+    void onRead(int bytes) {
+        if (mFirstByteMs < 0) mFirstByteMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+        mReads.lazySet(mReads.get() + 1);
+        mBytesIn.lazySet(mBytesIn.get() + bytes);
+    }
+
+    /**
+     * 解出一帧
+     *
+     * @param assemblyNanos 帧的第一个字节读到到解出这一帧的纳秒数
+     * @param callbackNanos 接收回调执行的纳秒数
+     */
+    void onFrameIn(long assemblyNanos, long callbackNanos) {
+        mFramesIn.lazySet(mFramesIn.get() + 1);
+        mAssembly.record(assemblyNanos);
+        mCallback.record(callbackNanos);
+    }
+
+    void onDecodeError() {
+        mDecodeErrors.lazySet(mDecodeErrors.get() + 1);
+    }
+
+    void onFrameOut(int length) {
+        mFramesOut.lazySet(mFramesOut.get() + 1);
+        mBytesOut.lazySet(mBytesOut.get() + length);
+    }
+
+    void onError() {
+        mErrors.incrementAndGet();
+    }
+
+    void onReconnect(long recoveryMs) {
+        mReconnects.lazySet(mReconnects.get() + 1);
+        mLastRecoveryMs = recoveryMs;
+    }
+
+    long getReconnectCount() {
+        return mReconnects.get();
+    }
+
+    long getLastRecoveryMs() {
+        return mLastRecoveryMs;
+    }
+
+    /**
+     * 当前统计的快照
+     *
+     * @param sendQueueDepth 发送队列当前排队的条数
+     */
+    Snapshot snapshot(int sendQueueDepth) {
+        return new Snapshot(this, sendQueueDepth);
+    }
+
+    /**
+     * 统计快照，字段都是取快照时的值
+     */
+    public static class Snapshot {
+        // 统计开始到取快照的毫秒数
+        public final long uptimeMs;
+        public final long bytesIn;
+        public final long framesIn;
+        // read 调用次数
+        public final long reads;
+        public final long bytesOut;
+        public final long framesOut;
+        public final long decodeErrors;
+        // 连接失败、收发失败的次数
+        public final long errors;
+        public final long reconnects;
+        public final long lastRecoveryMs;
+        // 开始连接到连接成功的毫秒数，还没连接成功为 -1
+        public final long connectMs;
+        // 开始连接到收到第一个字节的毫秒数，还没收到为 -1
+        public final long timeToFirstByteMs;
+        public final int sendQueueDepth;
+        // 帧组装耗时，单位微秒
+        public final double assemblyMeanMicros;
+        public final long assemblyP50Micros;
+        public final long assemblyP99Micros;
+        public final long assemblyMaxMicros;
+        // 接收回调耗时，单位微秒
+        public final double callbackMeanMicros;
+        public final long callbackP99Micros;
+        public final long callbackMaxMicros;
+
+        private Snapshot(SessionMetrics metrics, int sendQueueDepth) {
+            uptimeMs = System.currentTimeMillis() - metrics.mCreateTime;
+            bytesIn = metrics.mBytesIn.get();
+            framesIn = metrics.mFramesIn.get();
+            reads = metrics.mReads.get();
+            bytesOut = metrics.mBytesOut.get();
+            framesOut = metrics.mFramesOut.get();
+            decodeErrors = metrics.mDecodeErrors.get();
+            errors = metrics.mErrors.get();
+            reconnects = metrics.mReconnects.get();
+            lastRecoveryMs = metrics.mLastRecoveryMs;
+            connectMs = metrics.mConnectMs;
+            timeToFirstByteMs = metrics.mFirstByteMs;
+            this.sendQueueDepth = sendQueueDepth;
+            assemblyMeanMicros = metrics.mAssembly.meanMicros();
+            assemblyP50Micros = metrics.mAssembly.percentileMicros(50);
+            assemblyP99Micros = metrics.mAssembly.percentileMicros(99);
+            assemblyMaxMicros = metrics.mAssembly.maxMicros();
+            callbackMeanMicros = metrics.mCallback.meanMicros();
+            callbackP99Micros = metrics.mCallback.percentileMicros(99);
+            callbackMaxMicros = metrics.mCallback.maxMicros();
+        }
+
+        /**
+         * 平均每次 read 读到的字节数
+         */
+        public double averageChunkSize() {
+            return reads == 0 ? 0 : (double) bytesIn / reads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "in %d B / %d frames / %d reads (%.1f B/read), out %d B / %d frames, "
+                            + "queue %d, errors %d, decode errors %d, reconnects %d (last %d ms), "
+                            + "connect %d ms, first byte %d ms, "
+                            + "assembly mean %.1f p50 %d p99 %d max %d us, callback mean %.1f p99 %d max %d us",
+                    bytesIn, framesIn, reads, averageChunkSize(), bytesOut, framesOut,
+                    sendQueueDepth, errors, decodeErrors, reconnects, lastRecoveryMs,
+                    connectMs, timeToFirstByteMs,
+                    assemblyMeanMicros, assemblyP50Micros, assemblyP99Micros, assemblyMaxMicros,
+                    callbackMeanMicros, callbackP99Micros, callbackMaxMicros);
+        }
+    }
+
+    /**
+     * 定时推送统计
+     */
+    public interface Listener {
+        /**
+         * @param session 会话
+         * @param snapshot 统计快照
+         */
+        void onMetrics(SerialSession session, Snapshot snapshot);
+    }
+}
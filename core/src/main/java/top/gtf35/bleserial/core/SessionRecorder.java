@@ -0,0 +1,369 @@
+package top.gtf35.bleserial.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 会话录制
+ * 功能：把收发的原始字节连同方向和纳秒时间戳追加写到二进制文件里，用于事后分析和回放
+ *      record 只是拷贝进内存缓冲区，由线程池里的写任务用 FileChannel 整块写出，不阻塞读取线程
+ *      写满的缓冲区排队等写任务，最多用 maxBuffers 块，磁盘跟不上时丢掉新的记录并计数，不会让读取变慢
+ *      文件超过 maxFileBytes 时换下一个文件，一条记录不会跨文件
+ *      文件格式：文件头 [魔数 "BSRL" 4][版本 1][开始时间毫秒 8]
+ *              每条记录 [方向 1][距开始的纳秒 8][长度 4][内容]，多字节整数都是大端
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SessionRecorder implements Closeable {
+    // 方向：收到的数据
+    public static final byte RX = 0;
+    // 方向：发出的数据
+    public static final byte TX = 1;
+
+    private static final int MAGIC = 0x4253524c;
+    private static final byte VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 13;
+    private static final int RECORD_HEADER_LENGTH = 13;
+
+    private final File mDir;
+    private final String mPrefix;
+    private final long mMaxFileBytes;
+    private final Executor mExecutor;
+    private final long mStartMillis = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+    // 以下缓冲区都只在持有 this 的锁时读写
+    private final int mBufferBytes;
+    private final int mMaxBuffers;
+    // 已经创建的缓冲区块数
+    private int mBuffers = 1;
+    // 正在接收记录的缓冲区
+    private ByteBuffer mActive;
+    // 写满了等待写到文件的缓冲区
+    private final ArrayDeque<ByteBuffer> mFull = new ArrayDeque<>();
+    // 写完了可以复用的缓冲区
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<>();
+    private long mDroppedRecords = 0;
+    private long mRecordedBytes = 0;
+    private boolean mClosed = false;
+    // 写文件只在持有 mWriteLock 时进行
+    private final Object mWriteLock = new Object();
+    private FileChannel mChannel;
+    private int mFileIndex = 0;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            try {
+                flush();
+            } catch (IOException e) {
+                SerialLog.e("写录制文件失败", e);
+            }
+        }
+    };
+
+    /**
+     * 构造录制器，第一个文件马上创建
+     *
+     * @param dir 保存的目录
+     * @param prefix 文件名前缀，文件名为 前缀-序号.rec
+     * @param maxFileBytes 单个文件的大小上限
+     * @param bufferBytes 每块内存缓冲区的大小，更长的数据会拆成几条记录
+     * @param maxBuffers 最多用几块缓冲区，决定能扛住多大的突发流量
+     * @param executor 运行写任务的线程池
+     */
+    public SessionRecorder(File dir, String prefix, long maxFileBytes, int bufferBytes, int maxBuffers,
+                    Executor executor) throws IOException {
+        if (bufferBytes <= RECORD_HEADER_LENGTH) throw new IllegalArgumentException("缓冲区太小：" + bufferBytes);
+        if (maxFileBytes < FILE_HEADER_LENGTH + bufferBytes) {
+            throw new IllegalArgumentException("文件大小上限不能小于缓冲区：" + maxFileBytes);
+        }
+        mDir = dir;
+        mPrefix = prefix;
+        mMaxFileBytes = maxFileBytes;
+        mExecutor = executor;
+        mBufferBytes = bufferBytes;
+        mMaxBuffers = Math.max(maxBuffers, 2);
+        mActive = ByteBuffer.allocate(bufferBytes);
+        synchronized (mWriteLock) {
+            openNextFile();
+        }
+    }
+
+    /**
+     * 记录一段数据，可以在任意线程调用，不会阻塞在磁盘上
+     *
+     * @param direction RX 或者 TX
+     * @param data 数据
+     * @param offset 起始位置
+     * @param length 长度
+     */
+    public void record(byte direction, byte[] data, int offset, int length) {
+        long nanos = System.nanoTime() - mStartNanos;
+        synchronized (this) {
+            if (mClosed) return;
+            // 比一块缓冲区还大的数据拆成几条时间戳相同的记录
+            int maxPiece = mBufferBytes - RECORD_HEADER_LENGTH;
+            do {
+                int piece = Math.min(length, maxPiece);
+                if (mActive.remaining() < RECORD_HEADER_LENGTH + piece && !nextBuffer()) {
+                    // 缓冲区都满了，磁盘跟不上
+                    mDroppedRecords++;
+                } else {
+                    mActive.put(direction).putLong(nanos).putInt(piece).put(data, offset, piece);
+                    mRecordedBytes += piece;
+                }
+                offset += piece;
+                length -= piece;
+            } while (length > 0);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * 因为缓冲区满被丢掉的记录数
+     */
+    public synchronized long getDroppedRecords() {
+        return mDroppedRecords;
+    }
+
+    /**
+     * 已经记录的数据字节数，不含记录头
+     */
+    public synchronized long getRecordedBytes() {
+        return mRecordedBytes;
+    }
+
+    /**
+     * 写出剩下的记录并关闭文件，关闭后 record 不再记录
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+        }
+        synchronized (mWriteLock) {
+            flush();
+            mChannel.close();
+        }
+    }
+
+    /**
+     * 当前缓冲区放不下时换一块空的，持有 this 的锁时调用
+     *
+     * @return 是否换到了
+     */
+    private boolean nextBuffer() {
+        ByteBuffer next = mFree.pollFirst();
+        if (next == null) {
+            if (mBuffers >= mMaxBuffers) return false;
+            next = ByteBuffer.allocate(mBufferBytes);
+            mBuffers++;
+        }
+        mFull.addLast(mActive);
+        mActive = next;
+        return true;
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled.compareAndSet(false, true)) return;
+        try {
+            mExecutor.execute(mFlushTask);
+        } catch (RejectedExecutionException e) {
+            mFlushScheduled.set(false);
+        }
+    }
+
+    /**
+     * 把写满的缓冲区和当前缓冲区里的记录写到文件里，直到没有待写的记录
+     */
+    private void flush() throws IOException {
+        synchronized (mWriteLock) {
+            if (!mChannel.isOpen()) return;
+            while (true) {
+                ByteBuffer full;
+                synchronized (this) {
+                    full = mFull.pollFirst();
+                    if (full == null) {
+                        if (mActive.position() == 0) return;
+                        // 没有写满的了，把当前这块换下来写，让记录尽快落盘
+                        full = mActive;
+                        mActive = mFree.pollFirst();
+                        if (mActive == null) {
+                            // 只有一块缓冲区的时候才会走到这里，不会超过 mMaxBuffers
+                            mActive = ByteBuffer.allocate(mBufferBytes);
+                            mBuffers++;
+                        }
+                    }
+                }
+                full.flip();
+                try {
+                    if (mChannel.position() + full.remaining() > mMaxFileBytes) openNextFile();
+                    while (full.hasRemaining()) mChannel.write(full);
+                } finally {
+                    full.clear();
+                    synchronized (this) {
+                        mFree.addLast(full);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭当前文件，创建下一个并写好文件头，持有 mWriteLock 时调用
+     */
+    private void openNextFile() throws IOException {
+        if (mChannel != null) mChannel.close();
+        File file = new File(mDir, String.format(Locale.US, "%s-%04d.rec", mPrefix, mFileIndex++));
+        mChannel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+        header.putInt(MAGIC).put(VERSION).putLong(mStartMillis);
+        header.flip();
+        while (header.hasRemaining()) mChannel.write(header);
+    }
+
+    /**
+     * 按序号排好的录制文件
+     *
+     * @param dir 保存的目录
+     * @param prefix 文件名前缀
+     */
+    public static List<File> listFiles(File dir, final String prefix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(prefix + "-") && name.endsWith(".rec");
+            }
+        });
+        if (files == null) return new ArrayList<>();
+        // 序号是定长的，按文件名排序就是按序号排序
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * 一条记录
+     */
+    public static class Record {
+        // RX 或者 TX
+        public final byte direction;
+        // 距离开始录制的纳秒数
+        public final long nanos;
+        public final byte[] data;
+
+        public Record(byte direction, long nanos, byte[] data) {
+            this.direction = direction;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 按顺序读取录制文件，多个轮换出来的文件连起来读
+     */
+    public static class Reader implements Closeable {
+        private final List<File> mFiles;
+        private int mFileIndex = 0;
+        private FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+        private long mStartMillis = -1;
+
+        /**
+         * @param files 录制文件，按录制的先后排好，见 listFiles
+         */
+        public Reader(List<File> files) {
+            mFiles = files;
+            mBuffer.limit(0);
+        }
+
+        /**
+         * 开始录制的时间，读到第一条记录之后才有效
+         */
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /**
+         * 下一条记录
+         *
+         * @return 记录，全部读完返回 null
+         */
+        public Record next() throws IOException {
+            while (true) {
+                if (mChannel == null) {
+                    if (mFileIndex >= mFiles.size()) return null;
+                    mChannel = new FileInputStream(mFiles.get(mFileIndex++)).getChannel();
+                    mBuffer.limit(0);
+                    readHeader();
+                }
+                if (fill(1)) break;
+                // 这个文件读完了
+                mChannel.close();
+                mChannel = null;
+            }
+            if (!fill(RECORD_HEADER_LENGTH)) throw new EOFException("记录头不完整");
+            byte direction = mBuffer.get();
+            long nanos = mBuffer.getLong();
+            int length = mBuffer.getInt();
+            if (length < 0) throw new IOException("记录长度不合法：" + length);
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                if (!fill(1)) throw new EOFException("记录内容不完整");
+                int n = Math.min(mBuffer.remaining(), length - offset);
+                mBuffer.get(data, offset, n);
+                offset += n;
+            }
+            return new Record(direction, nanos, data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mChannel != null) mChannel.close();
+            mChannel = null;
+            mFileIndex = mFiles.size();
+        }
+
+        private void readHeader() throws IOException {
+            if (!fill(FILE_HEADER_LENGTH)) throw new EOFException("文件头不完整");
+            if (mBuffer.getInt() != MAGIC) throw new IOException("不是录制文件");
+            byte version = mBuffer.get();
+            if (version != VERSION) throw new IOException("不支持的版本：" + version);
+            mStartMillis = mBuffer.getLong();
+        }
+
+        /**
+         * 保证缓冲区里至少有 count 个字节
+         *
+         * @return 文件结束前凑不够返回 false
+         */
+        private boolean fill(int count) throws IOException {
+            if (mBuffer.remaining() >= count) return true;
+            mBuffer.compact();
+            try {
+                while (mBuffer.position() < count) {
+                    if (mChannel.read(mBuffer) < 0) return false;
+                }
+            } finally {
+                mBuffer.flip();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package top.gtf35.bleserial.core;
+
+/**
+ * SLIP 帧解码器 (RFC 1055)
+ * 功能：以 0xC0 分隔帧，反转义 0xDB 0xDC / 0xDB 0xDD
+ *      反转义后的数据不会比原数据长，直接在缓冲区里原地解码
+ *      空帧忽略，遇到非法转义或者超过最大长度时丢弃整帧，一直丢到下一个 END
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SlipFrameDecoder implements FrameDecoder {
+    private static final byte END = (byte) 0xC0;
+    private static final byte ESC = (byte) 0xDB;
+    private static final byte ESC_END = (byte) 0xDC;
+    private static final byte ESC_ESC = (byte) 0xDD;
+
+    private final int mMaxFrameLength;
+    // 相对于缓冲区读位置：已经扫描过的字节数
+    private int mScanned = 0;
+    // 相对于缓冲区读位置：已经解码出的字节数
+    private int mDecoded = 0;
+    // 上一个字节是不是 ESC
+    private boolean mEscaping = false;
+    // 当前帧是否已经出错，出错后丢弃到下一个 END
+    private boolean mBroken = false;
+
+    /**
+     * @param maxFrameLength 解码后的最大帧长度
+     */
+    public SlipFrameDecoder(int maxFrameLength) {
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void decode(ReceiveBuffer buffer, Output output) {
+        byte[] data = buffer.array();
+        int start = buffer.readIndex();
+        int end = buffer.writeIndex();
+        for (int i = start + mScanned; i < end; i++) {
+            byte b = data[i];
+            if (b == END) {
+                int consumed = i + 1 - start;
+                if (mBroken) {
+                    output.onDecodeError("SLIP 帧不合法，已丢弃");
+                } else if (mEscaping) {
+                    output.onDecodeError("SLIP 帧在转义字符后结束，已丢弃");
+                } else if (mDecoded > 0) {
+                    output.onFrame(data, start, mDecoded);
+                }
+                buffer.skip(consumed);
+                reset();
+                // skip 之后读位置可能回到 0，重新定位
+                data = buffer.array();
+                start = buffer.readIndex();
+                end = buffer.writeIndex();
+                i = start - 1;
+                continue;
+            }
+            if (mBroken) continue;
+            if (mEscaping) {
+                mEscaping = false;
+                if (b == ESC_END) {
+                    b = END;
+                } else if (b == ESC_ESC) {
+                    b = ESC;
+                } else {
+                    mBroken = true;
+                    continue;
+                }
+            } else if (b == ESC) {
+                mEscaping = true;
+                continue;
+            }
+            if (mDecoded >= mMaxFrameLength) {
+                mBroken = true;
+                continue;
+            }
+            data[start + mDecoded++] = b;
+        }
+        if (mBroken) {
+            // 出错的帧不会交付，扫描过的数据直接丢掉，设备一直不发 END 时缓冲区也不会无限增长
+            // 出错状态保持到下一个 END
+            buffer.skip(end - start);
+            mScanned = 0;
+            mDecoded = 0;
+            mEscaping = false;
+            return;
+        }
+        mScanned = end - start;
+    }
+
+    @Override
+    public void reset() {
+        mScanned = 0;
+        mDecoded = 0;
+        mEscaping = false;
+        mBroken = false;
+    }
+}
@@ -0,0 +1,62 @@
+package top.gtf35.bleserial.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP 传输层
+ * 功能：连接 TCP 串口服务器，或者在电脑上跑收发链路的压测
+ * @author gtf35 gtf@gtf35.top
+ */
+public class TcpTransport implements SerialTransport {
+    private final String mHost;
+    private final int mPort;
+    private final int mConnectTimeoutMs;
+    private volatile Socket mSocket = new Socket();
+
+    /**
+     * @param host 主机
+     * @param port 端口
+     * @param connectTimeoutMs 连接超时毫秒数，0 表示不超时
+     */
+    public TcpTransport(String host, int port, int connectTimeoutMs) {
+        mHost = host;
+        mPort = port;
+        mConnectTimeoutMs = connectTimeoutMs;
+    }
+
+    @Override
+    public void open() throws IOException {
+        // close 之后可以再次 open，Socket 不能重复连接，用新的
+        Socket socket = mSocket;
+        if (socket.isClosed()) {
+            socket = new Socket();
+            mSocket = socket;
+        }
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeoutMs);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    @Override
+    public String getName() {
+        return mHost + ":" + mPort;
+    }
+}
@@ -0,0 +1,217 @@
+package top.gtf35.bleserial.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 时间轮定时器
+ * 功能：大量短超时共用一个线程，添加和取消都是 O(1)，用于请求超时
+ *      时间按 tick 划分成格子，超时任务挂在到期的格子上，超过一圈的记下还要转几圈
+ *      精度为一个 tick，到期的任务在定时线程上执行，任务里不要做耗时操作
+ *      没有任务时线程等待，不会空转
+ * @author gtf35 gtf@gtf35.top
+ */
+public class TimerWheel {
+    private static TimerWheel sDefault;
+
+    private final long mTickNanos;
+    private final Entry[] mWheel;
+    private final Object mLock = new Object();
+    // 以下字段只在持有 mLock 时读写
+    private long mStartNanos;
+    // 已经处理到的 tick
+    private long mTick = 0;
+    private int mPending = 0;
+    private Thread mThread;
+    private boolean mStopped = false;
+
+    /**
+     * 构造时间轮，第一次 schedule 时才启动线程
+     *
+     * @param tickMs 一格的毫秒数，也是定时的精度
+     * @param wheelSize 一圈的格数
+     */
+    public TimerWheel(long tickMs, int wheelSize) {
+        if (tickMs <= 0 || wheelSize <= 0) throw new IllegalArgumentException("参数不合法：" + tickMs + ", " + wheelSize);
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        mWheel = new Entry[wheelSize];
+    }
+
+    /**
+     * 全局共用的时间轮，10ms 一格，一圈 512 格
+     */
+    public static synchronized TimerWheel getDefault() {
+        if (sDefault == null) sDefault = new TimerWheel(10, 512);
+        return sDefault;
+    }
+
+    /**
+     * 添加定时任务
+     *
+     * @param task 到期后在定时线程上执行
+     * @param delayMs 多少毫秒后执行
+     * @return 用来取消
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        synchronized (mLock) {
+            if (mStopped) throw new IllegalStateException("定时器已停止");
+            if (mThread == null) start();
+            long elapsed = System.nanoTime() - mStartNanos;
+            // 空闲期间定时线程没有数格子，直接跳到当前的格子
+            if (mPending == 0) mTick = Math.max(mTick, elapsed / mTickNanos);
+            // 向上取整，保证不会提前执行
+            long deadlineTick = (elapsed + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)) + mTickNanos - 1) / mTickNanos;
+            // 已经过去的格子不会再处理，放到下一格
+            if (deadlineTick <= mTick) deadlineTick = mTick + 1;
+            Entry entry = new Entry(task, deadlineTick);
+            int index = (int) (deadlineTick % mWheel.length);
+            entry.next = mWheel[index];
+            if (entry.next != null) entry.next.prev = entry;
+            mWheel[index] = entry;
+            entry.index = index;
+            mPending++;
+            mLock.notifyAll();
+            return entry;
+        }
+    }
+
+    /**
+     * 等待中的任务数
+     */
+    public int size() {
+        synchronized (mLock) {
+            return mPending;
+        }
+    }
+
+    /**
+     * 停止定时线程，没执行的任务不再执行
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mStopped = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void start() {
+        mStartNanos = System.nanoTime();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "TimerWheel");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * 定时线程：每个 tick 处理一格
+     */
+    private void runLoop() {
+        Entry expired = null;
+        while (true) {
+            synchronized (mLock) {
+                try {
+                    while (!mStopped) {
+                        if (mPending == 0) {
+                            // 没有任务时一直等，来了新任务再接着数格子
+                            mLock.wait();
+                            continue;
+                        }
+                        long nextTickNanos = mStartNanos + (mTick + 1) * mTickNanos;
+                        long remaining = nextTickNanos - System.nanoTime();
+                        if (remaining <= 0) break;
+                        long ms = remaining / 1000000;
+                        mLock.wait(ms, (int) (remaining - ms * 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mStopped) return;
+                mTick++;
+                expired = collectExpired();
+            }
+            // 在锁外执行，任务里可以再 schedule
+            while (expired != null) {
+                Entry next = expired.next;
+                try {
+                    expired.task.run();
+                } catch (RuntimeException e) {
+                    SerialLog.e("定时任务出错", e);
+                }
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * 从当前格子取出到期的任务，持有 mLock 时调用
+     *
+     * @return 到期任务组成的链表
+     */
+    private Entry collectExpired() {
+        Entry expired = null;
+        int index = (int) (mTick % mWheel.length);
+        Entry entry = mWheel[index];
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.deadlineTick <= mTick) {
+                unlink(entry);
+                entry.next = expired;
+                expired = entry;
+            }
+            entry = next;
+        }
+        return expired;
+    }
+
+    /**
+     * 从格子里摘掉，持有 mLock 时调用
+     */
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            mWheel[entry.index] = entry.next;
+        }
+        if (entry.next != null) entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        entry.index = -1;
+        mPending--;
+    }
+
+    /**
+     * 定时任务的句柄
+     */
+    public interface Timeout {
+        /**
+         * 取消，已经执行或者已经取消的返回 false
+         */
+        boolean cancel();
+    }
+
+    private class Entry implements Timeout {
+        final Runnable task;
+        final long deadlineTick;
+        // 所在的格子，不在时间轮里时为 -1
+        int index = -1;
+        Entry prev;
+        Entry next;
+
+        Entry(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        @Override
+        public boolean cancel() {
+            synchronized (mLock) {
+                if (index < 0) return false;
+                unlink(this);
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CallbackDispatcher 的测试
+ * 功能：回调慢的时候读取线程继续读，各种溢出策略的计数和顺序，直接执行的线程池不会死锁
+ * @author gtf35 gtf@gtf35.top
+ */
+public class CallbackDispatcherTest {
+    private static final int FRAMES = 500;
+    private static final long SLOW_MS = 4;
+
+    @Test
+    public void readerKeepsDrainingWhileListenerIsSlow() throws Exception {
+        ExecutorService sessionExecutor = Executors.newCachedThreadPool();
+        ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+        // 管道只有 64 字节，读取线程不读的话设备端很快就写不进去
+        LoopbackTransport[] pair = LoopbackTransport.createPair(64);
+        LoopbackTransport device = pair[1];
+        device.open();
+        final AtomicInteger received = new AtomicInteger();
+        final CountDownLatch allReceived = new CountDownLatch(FRAMES);
+        CallbackDispatcher dispatcher = new CallbackDispatcher(new TestCallback() {
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+                sleep(SLOW_MS);
+                received.incrementAndGet();
+                allReceived.countDown();
+            }
+        }, callbackExecutor, FRAMES, CallbackDispatcher.OverflowPolicy.BLOCK);
+        SerialSession session = new SerialSession(pair[0], sessionExecutor, dispatcher);
+        try {
+            session.start();
+            awaitConnected(session);
+            long begin = System.nanoTime();
+            OutputStream out = device.getOutputStream();
+            for (int i = 0; i < FRAMES; i++) out.write(String.format("%06d\r\n", i).getBytes());
+            long writeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            // 回调在读取线程执行的话写完至少要 FRAMES * SLOW_MS 毫秒
+            assertTrue("设备端写了 " + writeMs + "ms，读取线程被回调拖住了", writeMs < FRAMES * SLOW_MS / 2);
+            assertTrue(received.get() < FRAMES);
+            // 回调之后还是会按顺序处理完，一个不丢
+            assertTrue(allReceived.await(10, TimeUnit.SECONDS));
+            assertEquals(0, dispatcher.getDroppedCount());
+        } finally {
+            session.stop();
+            device.close();
+            session.awaitIdle(2000);
+            sessionExecutor.shutdownNow();
+            callbackExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsNewestEvents() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(new TestCallback() {
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+                await(release);
+                delivered.add(new String(bytes));
+            }
+        }, executor, 4, CallbackDispatcher.OverflowPolicy.DROP_OLDEST);
+        // 第一个事件卡在回调里，后面的排队
+        dispatcher.onReceiveBytes("0".getBytes());
+        waitUntilQueued(dispatcher, 0);
+        for (int i = 1; i <= 10; i++) dispatcher.onReceiveBytes(String.valueOf(i).getBytes());
+        assertEquals(6, dispatcher.getDroppedCount());
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("0", "7", "8", "9", "10"), delivered);
+    }
+
+    @Test
+    public void coalesceReplacesQueuedFrame() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(new TestCallback() {
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+                await(release);
+                delivered.add(new String(bytes));
+            }
+        }, executor, 1, CallbackDispatcher.OverflowPolicy.COALESCE);
+        dispatcher.onReceiveBytes("0".getBytes());
+        waitUntilQueued(dispatcher, 0);
+        for (int i = 1; i <= 10; i++) dispatcher.onReceiveBytes(String.valueOf(i).getBytes());
+        // 连接事件不受容量限制，也不会被覆盖
+        dispatcher.onConnectFailed("断开");
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("0", "10"), delivered);
+        assertEquals(9, dispatcher.getDroppedCount());
+    }
+
+    @Test(timeout = 5000)
+    public void blockWithInlineExecutorDoesNotDeadlock() {
+        final List<String> delivered = new ArrayList<>();
+        final CallbackDispatcher[] holder = new CallbackDispatcher[1];
+        Executor inline = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        holder[0] = new CallbackDispatcher(new TestCallback() {
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+                delivered.add(new String(bytes));
+                // 回调里再触发事件，超过容量也不能等自己
+                if (delivered.size() == 1) {
+                    for (int i = 0; i < 5; i++) holder[0].onSendBytes(new byte[]{(byte) i});
+                }
+            }
+        }, inline, 2, CallbackDispatcher.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 3; i++) holder[0].onReceiveBytes(String.valueOf(i).getBytes());
+        assertEquals(Arrays.asList("0", "1", "2"), delivered);
+        assertEquals(0, holder[0].getDroppedCount());
+        assertEquals(0, holder[0].size());
+    }
+
+    private static void waitUntilQueued(CallbackDispatcher dispatcher, int size) throws InterruptedException {
+        // 等第一个事件被分发线程取走
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.size() != size && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertEquals(size, dispatcher.size());
+    }
+
+    private static void awaitConnected(SerialSession session) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getState() != SerialSession.State.CONNECTED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(SerialSession.State.CONNECTED, session.getState());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class TestCallback implements SerialSession.Callback {
+        @Override
+        public void onConnectSuccess() {
+        }
+
+        @Override
+        public void onConnectFailed(String msg) {
+        }
+
+        @Override
+        public void onReceiveBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void onSendBytes(byte[] bytes) {
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Crc 的测试
+ * 功能：几种常用 CRC 对 "123456789" 的校验值和公开的标准值一致，CRC-32 和 java.util.zip.CRC32 一致
+ *      slicing-by-8 一次处理 8 个字节，和逐位计算的结果在 0 到 64 的每个长度、不同起始位置上都一致
+ * @author gtf35 gtf@gtf35.top
+ */
+public class CrcTest {
+    private static final byte[] CHECK = "123456789".getBytes();
+
+    @Test
+    public void checkValues() {
+        assertEquals(0x29b1, Crc.CRC16_CCITT.compute(CHECK, 0, CHECK.length));
+        assertEquals(0x31c3, Crc.CRC16_XMODEM.compute(CHECK, 0, CHECK.length));
+        assertEquals(0x4b37, Crc.CRC16_MODBUS.compute(CHECK, 0, CHECK.length));
+        assertEquals(0xcbf43926, Crc.CRC32.compute(CHECK, 0, CHECK.length));
+        CRC32 crc32 = new CRC32();
+        crc32.update(CHECK, 0, CHECK.length);
+        assertEquals((int) crc32.getValue(), Crc.CRC32.compute(CHECK, 0, CHECK.length));
+    }
+
+    @Test
+    public void crc32MatchesJdk() {
+        Random random = new Random(11);
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        for (int i = 0; i < 200; i++) {
+            int offset = random.nextInt(100);
+            int length = random.nextInt(data.length - offset);
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, offset, length);
+            assertEquals("offset " + offset + " 长度 " + length,
+                    (int) crc32.getValue(), Crc.CRC32.compute(data, offset, length));
+        }
+    }
+
+    @Test
+    public void slicingMatchesBitwiseAtEveryLength() {
+        Crc[] crcs = {Crc.CRC16_CCITT, Crc.CRC16_XMODEM, Crc.CRC16_MODBUS, Crc.CRC32,
+                new Crc(8, 0x07, 0, false, 0, false), new Crc(24, 0x864cfb, 0xb704ce, false, 0, false)};
+        int[][] params = {{16, 0x1021, 0xffff, 0, 0}, {16, 0x1021, 0, 0, 0}, {16, 0x8005, 0xffff, 1, 0},
+                {32, 0x04c11db7, 0xffffffff, 1, 0xffffffff}, {8, 0x07, 0, 0, 0}, {24, 0x864cfb, 0xb704ce, 0, 0}};
+        byte[] data = new byte[64 + 8];
+        new Random(12).nextBytes(data);
+        for (int c = 0; c < crcs.length; c++) {
+            int[] p = params[c];
+            for (int length = 0; length <= 64; length++) {
+                // 起始位置不同时 8 字节分组和尾部的划分也不同
+                for (int offset = 0; offset < 8; offset++) {
+                    int expected = bitwise(p[0], p[1], p[2], p[3] != 0, p[4], data, offset, length);
+                    assertEquals(crcs[c].width() + " 位，offset " + offset + " 长度 " + length,
+                            expected, crcs[c].compute(data, offset, length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lengthAndByteOrder() {
+        assertEquals(2, Crc.CRC16_CCITT.length());
+        assertEquals(4, Crc.CRC32.length());
+        assertEquals(3, new Crc(24, 0x864cfb, 0, false, 0, false).length());
+        assertEquals(false, Crc.CRC16_XMODEM.isLittleEndian());
+        assertEquals(true, Crc.CRC16_MODBUS.isLittleEndian());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadWidth() {
+        new Crc(7, 0x07, 0, false, 0, false);
+    }
+
+    /**
+     * 逐位计算的 CRC，不查表
+     */
+    private static int bitwise(int width, int poly, int init, boolean reflected, int xorOut,
+                               byte[] data, int offset, int length) {
+        long mask = (1L << width) - 1;
+        long topBit = 1L << (width - 1);
+        long crc = init & mask;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            if (reflected) b = Integer.reverse(b) >>> 24;
+            crc ^= (long) b << (width - 8);
+            for (int j = 0; j < 8; j++) crc = (crc & topBit) != 0 ? ((crc << 1) ^ poly) & mask : (crc << 1) & mask;
+        }
+        if (reflected) crc = (Long.reverse(crc) >>> (64 - width)) & mask;
+        return (int) ((crc ^ xorOut) & mask);
+    }
+}
@@ -0,0 +1,129 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * DelimiterScanner 和 DelimiterFrameDecoder 的测试
+ * 功能：分隔符被拆在两次 read 之间、一次 read 带有多个帧、帧的前缀和分隔符部分重叠
+ *      超过最大长度仍没有分隔符时丢弃
+ * @author gtf35 gtf@gtf35.top
+ */
+public class DelimiterScannerTest {
+    private static final byte[] CRLF = "\r\n".getBytes();
+
+    @Test
+    public void findsDelimiterInOneScan() {
+        DelimiterScanner scanner = new DelimiterScanner(CRLF);
+        byte[] data = "ab\r\ncd".getBytes();
+        assertEquals(4, scanner.scan(data, 0, data.length));
+        // 找到之后从头匹配，剩下的数据里没有分隔符
+        assertEquals(-1, scanner.scan(data, 4, data.length));
+    }
+
+    @Test
+    public void delimiterSplitAcrossScans() {
+        DelimiterScanner scanner = new DelimiterScanner(CRLF);
+        byte[] data = "abc\r\ndef".getBytes();
+        assertEquals(-1, scanner.scan(data, 0, 4));
+        assertEquals(5, scanner.scan(data, 4, data.length));
+    }
+
+    @Test
+    public void overlappingPrefixIsNotMissed() {
+        // 前面的 "aa" 失配后要退回到已经匹配的 "a"，而不是从头开始
+        DelimiterScanner scanner = new DelimiterScanner("aab".getBytes());
+        byte[] data = "xaaab".getBytes();
+        assertEquals(-1, scanner.scan(data, 0, 3));
+        assertEquals(5, scanner.scan(data, 3, data.length));
+    }
+
+    @Test
+    public void resetDropsProgress() {
+        DelimiterScanner scanner = new DelimiterScanner(CRLF);
+        byte[] data = "a\r\n".getBytes();
+        assertEquals(-1, scanner.scan(data, 0, 2));
+        scanner.reset();
+        assertEquals(-1, scanner.scan(data, 2, 3));
+    }
+
+    @Test
+    public void emptyDelimiterTakesWholeChunk() {
+        DelimiterScanner scanner = new DelimiterScanner(new byte[0]);
+        byte[] data = "abc".getBytes();
+        assertEquals(3, scanner.scan(data, 0, 3));
+        assertEquals(-1, scanner.scan(data, 3, 3));
+    }
+
+    @Test
+    public void decoderJoinsDelimiterSplitAcrossReads() {
+        Decoded decoded = decode(new DelimiterFrameDecoder(CRLF), "hello\r", "\nworld\r\n");
+        assertEquals(Arrays.asList("hello\r\n", "world\r\n"), decoded.frames);
+    }
+
+    @Test
+    public void decoderSplitsSeveralFramesInOneRead() {
+        Decoded decoded = decode(new DelimiterFrameDecoder(CRLF), "a\r\nbb\r\nccc\r\ndd");
+        assertEquals(Arrays.asList("a\r\n", "bb\r\n", "ccc\r\n"), decoded.frames);
+        // 不完整的帧留在缓冲区
+        assertEquals(2, decoded.buffer.readableBytes());
+    }
+
+    @Test
+    public void decoderHandlesEverySplitPoint() {
+        String stream = "one\r\ntwo\r\nthree\r\n";
+        for (int first = 0; first <= stream.length(); first++) {
+            for (int second = first; second <= stream.length(); second++) {
+                Decoded decoded = decode(new DelimiterFrameDecoder(CRLF), stream.substring(0, first),
+                        stream.substring(first, second), stream.substring(second));
+                assertEquals("切在 " + first + " 和 " + second, Arrays.asList("one\r\n", "two\r\n", "three\r\n"),
+                        decoded.frames);
+                assertEquals(0, decoded.buffer.readableBytes());
+            }
+        }
+    }
+
+    @Test
+    public void decoderDropsOverlongFrame() {
+        Decoded decoded = decode(new DelimiterFrameDecoder(CRLF, 8), "0123456789", "ab\r\nok\r\n");
+        assertEquals(1, decoded.errors);
+        // 丢掉的是超长的那部分，之后的帧正常解出
+        assertEquals("ok\r\n", decoded.frames.get(decoded.frames.size() - 1));
+        assertEquals(0, decoded.buffer.readableBytes());
+    }
+
+    /**
+     * 每个字符串当作一次 read，每次之后解一次
+     */
+    private static Decoded decode(FrameDecoder decoder, String... reads) {
+        final Decoded decoded = new Decoded();
+        FrameDecoder.Output output = new FrameDecoder.Output() {
+            @Override
+            public void onFrame(byte[] array, int offset, int length) {
+                decoded.frames.add(new String(array, offset, length));
+            }
+
+            @Override
+            public void onDecodeError(String msg) {
+                decoded.errors++;
+            }
+        };
+        for (String read : reads) {
+            byte[] bytes = read.getBytes();
+            decoded.buffer.write(bytes, 0, bytes.length);
+            decoder.decode(decoded.buffer, output);
+        }
+        return decoded;
+    }
+
+    private static class Decoded {
+        final ReceiveBuffer buffer = new ReceiveBuffer(16);
+        final List<String> frames = new ArrayList<>();
+        int errors = 0;
+    }
+}
@@ -0,0 +1,194 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * FailoverTransport 的测试
+ * 功能：按顺序连接候选，第一个连上的作为这次的连接，后面的不再尝试，全部失败时 open 失败
+ *      重新 open 时先试上次连上的，再按原来的顺序试其余的
+ *      close 能打断正在阻塞连接的候选，open 马上失败，后面的候选不再尝试
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FailoverTransportTest {
+    // 候选开始连接的顺序
+    private final List<String> mStarted = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void triesCandidatesInOrder() throws Exception {
+        SimulatedTransport refused = new SimulatedTransport("refused", false);
+        SimulatedTransport ok = new SimulatedTransport("ok", true);
+        SimulatedTransport unused = new SimulatedTransport("unused", true);
+        FailoverTransport transport = new FailoverTransport(Arrays.asList(refused, ok, unused));
+        // 没连上时用第一个候选的名字
+        assertEquals("refused", transport.getName());
+        transport.open();
+        assertEquals(Arrays.asList("refused", "ok"), mStarted);
+        assertSame(ok, transport.getCurrent());
+        assertEquals("ok", transport.getName());
+        transport.getOutputStream().write(1);
+        assertEquals(1, ok.output.size());
+        transport.close();
+        assertTrue(ok.closed);
+    }
+
+    @Test
+    public void allCandidatesFail() throws Exception {
+        FailoverTransport transport = new FailoverTransport(Arrays.asList(
+                new SimulatedTransport("first", false), new SimulatedTransport("second", false)));
+        try {
+            transport.open();
+            fail("候选都失败时应该抛出异常");
+        } catch (IOException e) {
+            assertEquals("候选的连接都失败了：second 拒绝连接", e.getMessage());
+        }
+        assertEquals(Arrays.asList("first", "second"), mStarted);
+        assertNull(transport.getCurrent());
+        try {
+            transport.getInputStream();
+            fail("没连上时应该抛出异常");
+        } catch (IOException e) {
+            assertEquals("未连接", e.getMessage());
+        }
+    }
+
+    @Test
+    public void reopenTriesLastSuccessFirst() throws Exception {
+        SimulatedTransport first = new SimulatedTransport("first", false);
+        SimulatedTransport second = new SimulatedTransport("second", true);
+        SimulatedTransport third = new SimulatedTransport("third", true);
+        FailoverTransport transport = new FailoverTransport(Arrays.asList(first, second, third));
+        transport.open();
+        assertSame(second, transport.getCurrent());
+        transport.close();
+        // 上次连上的先试，连上了就不再试排在前面的
+        mStarted.clear();
+        transport.open();
+        assertEquals(Collections.singletonList("second"), mStarted);
+        assertSame(second, transport.getCurrent());
+        transport.close();
+        // 上次连上的这次失败，再按原来的顺序试其余的
+        mStarted.clear();
+        second.succeeds = false;
+        first.succeeds = true;
+        transport.open();
+        assertEquals(Arrays.asList("second", "first"), mStarted);
+        assertSame(first, transport.getCurrent());
+        transport.close();
+        mStarted.clear();
+        transport.open();
+        assertEquals(Collections.singletonList("first"), mStarted);
+        transport.close();
+    }
+
+    @Test
+    public void closeInterruptsBlockingOpen() throws Exception {
+        final SimulatedTransport blocking = new SimulatedTransport("blocking", true);
+        blocking.delayMs = 60000;
+        SimulatedTransport next = new SimulatedTransport("next", true);
+        final FailoverTransport transport = new FailoverTransport(Arrays.asList(blocking, next));
+        final AtomicReference<Throwable> result = new AtomicReference<>();
+        Thread opener = new Thread("opener") {
+            @Override
+            public void run() {
+                try {
+                    transport.open();
+                    result.set(new AssertionError("open 不应该成功"));
+                } catch (Throwable e) {
+                    result.set(e);
+                }
+            }
+        };
+        opener.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!blocking.started && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertTrue(blocking.started);
+        long begin = System.nanoTime();
+        transport.close();
+        opener.join(5000);
+        assertFalse(opener.isAlive());
+        assertTrue("close 之后 " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms 才返回",
+                System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(2));
+        assertTrue(result.get() instanceof IOException);
+        assertEquals("连接已关闭", result.get().getMessage());
+        assertTrue(blocking.closed);
+        // 被关闭后不再试下一个候选
+        assertEquals(Collections.singletonList("blocking"), mStarted);
+        assertNull(transport.getCurrent());
+    }
+
+    /**
+     * 模拟的候选：open 阻塞 delayMs 后按设定成功或者失败，阻塞时被关闭则马上失败
+     *      和 RfcommTransport 一样，close 之后可以再次 open
+     */
+    private class SimulatedTransport implements SerialTransport {
+        private final String mName;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        volatile long delayMs = 0;
+        volatile boolean succeeds;
+        volatile boolean started = false;
+        volatile boolean closed = false;
+
+        SimulatedTransport(String name, boolean succeeds) {
+            mName = name;
+            this.succeeds = succeeds;
+        }
+
+        @Override
+        public synchronized void open() throws IOException {
+            closed = false;
+            started = true;
+            mStarted.add(mName);
+            long deadline = System.currentTimeMillis() + delayMs;
+            long remaining;
+            while (!closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new IOException("连接被中断");
+                }
+            }
+            if (closed) throw new IOException(mName + " 已关闭");
+            if (!succeeds) throw new IOException(mName + " 拒绝连接");
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+}
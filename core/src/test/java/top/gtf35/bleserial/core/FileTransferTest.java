@@ -0,0 +1,308 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FileTransfer 的测试
+ * 功能：在回环传输层的另一端按脚本扮演接收方，逐字节检查发出的块
+ *      接收方发 NAK 开始时 XMODEM 退回 8 位校验和，YMODEM 的第 0 块带文件名和大小，最后是空的第 0 块
+ *      窗口模式收到 NAK 或者超时从出错的块重发，接收方连续两个 CAN 时放弃并且不再发 CAN
+ *      一块重试次数用完时失败并通知接收方取消
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FileTransferTest {
+    private static final int SOH = 0x01;
+    private static final int STX = 0x02;
+    private static final int EOT = 0x04;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int CAN = 0x18;
+    private static final int SUB = 0x1A;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final RecordingListener mListener = new RecordingListener();
+    private LoopbackTransport mDevice;
+    private SerialSession mSession;
+    private RandomAccessFile mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(16 * 1024);
+        mDevice = pair[1];
+        mDevice.open();
+        RecordingSessionCallback callback = new RecordingSessionCallback();
+        mSession = new SerialSession(pair[0], mExecutor, callback);
+        mSession.start();
+        assertEquals("连接成功", callback.next());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSession.stop();
+        mDevice.close();
+        mSession.awaitIdle(2000);
+        mExecutor.shutdownNow();
+        if (mFile != null) mFile.close();
+    }
+
+    @Test(timeout = 10000)
+    public void xmodemFallsBackToChecksumOnNak() throws Exception {
+        byte[] content = content(200);
+        Future<Boolean> result = send(new FileTransfer(mSession, FileTransfer.Protocol.XMODEM_CRC, 1), content, "x.bin");
+        // 接收方发 NAK 而不是 C，表示只支持 8 位校验和
+        write(NAK);
+        byte[] first = readBlock(SOH, 1, false);
+        write(ACK);
+        byte[] second = readBlock(SOH, 2, false);
+        write(ACK);
+        assertArrayEquals(Arrays.copyOf(content, 128), first);
+        assertArrayEquals(Arrays.copyOfRange(content, 128, 200), Arrays.copyOf(second, 72));
+        assertPadded(second, 72);
+        // 第一个 EOT 按惯例 NAK，发送方再发一次
+        assertEquals(EOT, readByte());
+        write(NAK);
+        assertEquals(EOT, readByte());
+        write(ACK);
+        assertTrue(result.get(5, TimeUnit.SECONDS));
+        assertEquals(200, mListener.completedBytes);
+        assertNull(mListener.failure);
+        assertEquals(Arrays.asList(128L, 200L), mListener.progress);
+        assertFalse(mSession.isReceivingRaw());
+    }
+
+    @Test(timeout = 10000)
+    public void ymodemSendsHeaderAndEmptyEndBlock() throws Exception {
+        byte[] content = content(1500);
+        Future<Boolean> result = send(new FileTransfer(mSession, FileTransfer.Protocol.YMODEM_1K, 1), content, "文件.bin");
+        write('C');
+        // 第 0 块：文件名、NUL、十进制大小、NUL，其余填 0，放得下时用 128 字节的块
+        byte[] header = readBlock(SOH, 0, true);
+        byte[] info = "文件.bin\u00001500\u0000".getBytes("UTF-8");
+        assertArrayEquals(info, Arrays.copyOf(header, info.length));
+        for (int i = info.length; i < header.length; i++) assertEquals(0, header[i]);
+        write(ACK);
+        write('C');
+        byte[] first = readBlock(STX, 1, true);
+        write(ACK);
+        byte[] second = readBlock(STX, 2, true);
+        write(ACK);
+        assertArrayEquals(Arrays.copyOf(content, 1024), first);
+        assertArrayEquals(Arrays.copyOfRange(content, 1024, 1500), Arrays.copyOf(second, 476));
+        assertPadded(second, 476);
+        assertEquals(EOT, readByte());
+        write(NAK);
+        assertEquals(EOT, readByte());
+        write(ACK);
+        // 接收方再要下一个文件，空的第 0 块表示结束
+        write('C');
+        byte[] end = readBlock(SOH, 0, true);
+        assertArrayEquals(new byte[128], end);
+        write(ACK);
+        assertTrue(result.get(5, TimeUnit.SECONDS));
+        assertEquals(1500, mListener.completedBytes);
+    }
+
+    @Test(timeout = 10000)
+    public void windowedResendsAfterNakAndTimeout() throws Exception {
+        byte[] content = content(5 * 1024);
+        FileTransfer transfer = new FileTransfer(mSession, FileTransfer.Protocol.WINDOWED, 4);
+        transfer.setTimeouts(5000, 300);
+        Future<Boolean> result = send(transfer, content, "w.bin");
+        write('C');
+        readBlock(SOH, 0, true);
+        write(ACK);
+        write('C');
+        // 不等应答，一次发出整个窗口
+        for (int number = 1; number <= 4; number++) {
+            assertArrayEquals(block(content, number), readBlock(STX, number, true));
+        }
+        // 确认第 1 块，窗口滑动，发出第 5 块
+        write(ACK, 1, 0xfe);
+        assertArrayEquals(block(content, 5), readBlock(STX, 5, true));
+        // 第 2 块出错，从第 2 块开始重发
+        write(NAK, 2, 0xfd);
+        for (int number = 2; number <= 5; number++) {
+            assertArrayEquals(block(content, number), readBlock(STX, number, true));
+        }
+        // 不应答，超时后从最早没确认的第 2 块重发
+        long begin = System.nanoTime();
+        for (int number = 2; number <= 5; number++) {
+            assertArrayEquals(block(content, number), readBlock(STX, number, true));
+        }
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("等了 " + waitedMs + "ms", waitedMs >= 250);
+        // 确认最后一块，前面的都算确认了
+        write(ACK, 5, 0xfa);
+        assertEquals(EOT, readByte());
+        write(ACK);
+        write('C');
+        assertArrayEquals(new byte[128], readBlock(SOH, 0, true));
+        write(ACK);
+        assertTrue(result.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1024L, 5120L), mListener.progress);
+    }
+
+    @Test(timeout = 10000)
+    public void remoteCancelAborts() throws Exception {
+        Future<Boolean> result = send(new FileTransfer(mSession, FileTransfer.Protocol.XMODEM_CRC, 1),
+                content(300), "c.bin");
+        write('C');
+        readBlock(SOH, 1, true);
+        write(CAN, CAN);
+        assertFalse(result.get(5, TimeUnit.SECONDS));
+        assertEquals("接收方取消了传输", mListener.failure);
+        // 接收方自己取消的，不用再发 CAN
+        Thread.sleep(200);
+        assertEquals(0, mDevice.getInputStream().available());
+        assertFalse(mSession.isReceivingRaw());
+    }
+
+    @Test(timeout = 10000)
+    public void failsAfterTooManyRetries() throws Exception {
+        Future<Boolean> result = send(new FileTransfer(mSession, FileTransfer.Protocol.XMODEM_CRC, 1),
+                content(100), "r.bin");
+        write('C');
+        // 第一次加上 10 次重试
+        for (int i = 0; i <= 10; i++) {
+            readBlock(SOH, 1, true);
+            write(NAK);
+        }
+        assertFalse(result.get(5, TimeUnit.SECONDS));
+        assertEquals("第 1 块重试次数太多", mListener.failure);
+        // 通知接收方取消
+        assertEquals(CAN, readByte());
+        assertEquals(CAN, readByte());
+        assertEquals(CAN, readByte());
+        assertEquals(-1, mListener.completedBytes);
+    }
+
+    /**
+     * 在另一个线程发送内容为 content 的文件，等会话切换到原始数据接收再返回，不然接收方发的 C 会被当成帧
+     */
+    private Future<Boolean> send(final FileTransfer transfer, byte[] content, final String name) throws Exception {
+        File file = mFolder.newFile(name);
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.write(content);
+        final FileChannel channel = mFile.getChannel();
+        Future<Boolean> result = mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return transfer.send(channel, name, mListener);
+            }
+        });
+        while (!mSession.isReceivingRaw() && !result.isDone()) Thread.sleep(1);
+        return result;
+    }
+
+    private void write(int... bytes) throws IOException {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) data[i] = (byte) bytes[i];
+        mDevice.getOutputStream().write(data);
+    }
+
+    private int readByte() throws IOException {
+        return mDevice.getInputStream().read();
+    }
+
+    /**
+     * 读一块并检查块头、块号和校验，返回数据部分
+     */
+    private byte[] readBlock(int start, int number, boolean crc) throws IOException {
+        InputStream input = mDevice.getInputStream();
+        int blockSize = start == SOH ? 128 : 1024;
+        byte[] block = new byte[3 + blockSize + (crc ? 2 : 1)];
+        int read = 0;
+        while (read < block.length) {
+            int n = input.read(block, read, block.length - read);
+            if (n < 0) throw new IOException("连接已断开");
+            read += n;
+        }
+        assertEquals(start, block[0]);
+        assertEquals(number, block[1] & 0xff);
+        assertEquals(~number & 0xff, block[2] & 0xff);
+        byte[] data = Arrays.copyOfRange(block, 3, 3 + blockSize);
+        if (crc) {
+            int value = Crc.CRC16_XMODEM.compute(data, 0, data.length);
+            assertEquals((value >> 8) & 0xff, block[block.length - 2] & 0xff);
+            assertEquals(value & 0xff, block[block.length - 1] & 0xff);
+        } else {
+            int sum = 0;
+            for (byte b : data) sum += b;
+            assertEquals(sum & 0xff, block[block.length - 1] & 0xff);
+        }
+        return data;
+    }
+
+    private static void assertPadded(byte[] data, int length) {
+        for (int i = length; i < data.length; i++) assertEquals(SUB, data[i]);
+    }
+
+    /**
+     * 第 number 块 1024 字节的数据，最后一块不足时用 SUB 填充
+     */
+    private static byte[] block(byte[] content, int number) {
+        byte[] block = new byte[1024];
+        Arrays.fill(block, (byte) SUB);
+        int from = (number - 1) * 1024;
+        System.arraycopy(content, from, block, 0, Math.min(1024, content.length - from));
+        return block;
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * 记下进度和结果
+     */
+    private static class RecordingListener implements FileTransfer.Listener {
+        final List<Long> progress = new ArrayList<>();
+        volatile long completedBytes = -1;
+        volatile String failure;
+
+        @Override
+        public void onProgress(long sentBytes, long totalBytes, long bytesPerSecond) {
+            progress.add(sentBytes);
+        }
+
+        @Override
+        public void onComplete(long totalBytes, long elapsedMs) {
+            completedBytes = totalBytes;
+        }
+
+        @Override
+        public void onFailed(String msg) {
+            failure = msg;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FlowControl 的测试
+ * 功能：回环的另一端模拟一个串口缓冲区很小、处理得比链路慢的设备，缓冲区满了之后收到的字节算丢失
+ *      不开流控时设备一定会丢数据，XON_XOFF 和 CREDIT 两种方式都不能丢，收到的内容和发出的一致
+ *      流控暂停期间断开重连，断开前已经写出的部分不会再写一遍
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FlowControlTest {
+    // 设备的串口缓冲区
+    private static final int DEVICE_BUFFER = 512;
+    // 每毫秒链路最多送到设备的字节数，是设备处理速度的两倍
+    private static final int LINK_PER_TICK = 32;
+    // 每毫秒设备处理掉的字节数
+    private static final int DRAIN_PER_TICK = 16;
+    // 缓冲区到这么多时发 XOFF，降到这么多时发 XON
+    private static final int XOFF_LEVEL = 128;
+    private static final int XON_LEVEL = 32;
+    // 处理掉这么多字节后再发放额度
+    private static final int GRANT_STEP = 64;
+    private static final int MESSAGES = 128;
+    private static final int MESSAGE_LENGTH = 64;
+
+    @Test
+    public void withoutFlowControlDeviceOverflows() throws Exception {
+        SimulatedDevice device = run(null, Mode.NONE);
+        // 模拟本身要能复现问题，否则下面两个测试说明不了什么
+        assertTrue("没有流控也没丢数据，模拟的设备太快了", device.lost > 0);
+    }
+
+    @Test
+    public void xonXoffLosesNothing() throws Exception {
+        FlowControl flowControl = FlowControl.xonXoff(16);
+        SimulatedDevice device = run(flowControl, Mode.XON_XOFF);
+        assertEquals("设备丢了 " + device.lost + " 字节", 0, device.lost);
+        assertArrayEquals(payload(), device.accepted.toByteArray());
+        assertTrue(flowControl.getPauseCount() > 0);
+    }
+
+    @Test
+    public void creditLosesNothing() throws Exception {
+        FlowControl flowControl = FlowControl.credit(DEVICE_BUFFER);
+        SimulatedDevice device = run(flowControl, Mode.CREDIT);
+        assertEquals("设备丢了 " + device.lost + " 字节", 0, device.lost);
+        assertArrayEquals(payload(), device.accepted.toByteArray());
+        assertTrue(flowControl.getPauseCount() > 0);
+        // 额度刚好是设备缓冲区里空着的部分，发完之后不会有多的
+        assertTrue(flowControl.getCredit() <= DEVICE_BUFFER);
+    }
+
+    @Test
+    public void creditSplitAcrossReadsIsParsed() {
+        FlowControl flowControl = FlowControl.credit(0);
+        flowControl.reset();
+        byte[] first = {'a', FlowControl.DC2, 0x01};
+        byte[] second = {0x02, 'b'};
+        assertEquals(1, flowControl.filter(first, 0, first.length));
+        assertEquals(0, flowControl.getCredit());
+        assertEquals(1, flowControl.filter(second, 0, second.length));
+        assertEquals('b', second[0]);
+        assertEquals(0x0102, flowControl.getCredit());
+    }
+
+    @Test
+    public void xonXoffBytesAreStripped() {
+        FlowControl flowControl = FlowControl.xonXoff(0);
+        flowControl.reset();
+        byte[] data = {'a', FlowControl.XOFF, 'b', FlowControl.XON, FlowControl.XOFF, 'c'};
+        assertEquals(3, flowControl.filter(data, 0, data.length));
+        assertEquals("abc", new String(data, 0, 3));
+        assertTrue(flowControl.isPaused());
+        // XON 之后的 XOFF 算新的一次暂停
+        assertEquals(2, flowControl.getPauseCount());
+    }
+
+    @Test
+    public void disconnectDuringStallDoesNotResendWrittenBytes() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        LoopbackTransport[] pair = LoopbackTransport.createPair(1024);
+        LoopbackTransport device = pair[1];
+        device.open();
+        // 只有 20 字节的额度，写出 20 字节后停在流控上
+        FlowControl flowControl = FlowControl.credit(20);
+        SerialSession session = new SerialSession(pair[0], executor, new NullCallback());
+        session.setFlowControl(flowControl);
+        session.setReconnectPolicy(new ReconnectPolicy(10, 100, 2, 0, 0, 0), false);
+        try {
+            session.start();
+            awaitConnected(session);
+            byte[] payload = payload();
+            byte[] first = new byte[MESSAGE_LENGTH];
+            byte[] second = new byte[MESSAGE_LENGTH];
+            System.arraycopy(payload, 0, first, 0, MESSAGE_LENGTH);
+            System.arraycopy(payload, MESSAGE_LENGTH, second, 0, MESSAGE_LENGTH);
+            SendQueue.SendFuture firstFuture = session.send(first, 1000);
+            SendQueue.SendFuture secondFuture = session.send(second, 1000);
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            readAtLeast(device, received, 20);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!flowControl.isPaused() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertTrue(flowControl.isPaused());
+            assertEquals(20, received.size());
+            // 写任务还停在流控上的时候断开
+            device.close();
+            deadline = System.currentTimeMillis() + 5000;
+            while (!(session.getReconnectCount() == 1 && session.getState() == SerialSession.State.CONNECTED)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, session.getReconnectCount());
+            // 重连后设备发放足够的额度
+            device.getOutputStream().write(new byte[]{FlowControl.DC2, 0x01, 0x00});
+            readAtLeast(device, received, 2 * MESSAGE_LENGTH);
+            firstFuture.get(5, TimeUnit.SECONDS);
+            secondFuture.get(5, TimeUnit.SECONDS);
+            // 没有多出来的重复数据
+            Thread.sleep(50);
+            assertEquals(0, device.getInputStream().available());
+            byte[] expected = new byte[2 * MESSAGE_LENGTH];
+            System.arraycopy(payload, 0, expected, 0, expected.length);
+            assertArrayEquals(expected, received.toByteArray());
+        } finally {
+            session.stop();
+            device.close();
+            session.awaitIdle(2000);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 从设备端读到一共至少 count 字节
+     */
+    private static void readAtLeast(LoopbackTransport device, ByteArrayOutputStream received, int count)
+            throws Exception {
+        InputStream inputStream = device.getInputStream();
+        byte[] buffer = new byte[256];
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < count && System.currentTimeMillis() < deadline) {
+            int available = inputStream.available();
+            if (available == 0) {
+                Thread.sleep(1);
+                continue;
+            }
+            int num = inputStream.read(buffer, 0, Math.min(available, buffer.length));
+            received.write(buffer, 0, num);
+        }
+        assertTrue("只收到 " + received.size() + " 字节", received.size() >= count);
+    }
+
+    /**
+     * 开一个会话把 payload 发给模拟设备，等设备收完
+     */
+    private static SimulatedDevice run(FlowControl flowControl, Mode mode) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        // 链路本身只积压很少的数据，多出来的都在发送队列里
+        LoopbackTransport[] pair = LoopbackTransport.createPair(LINK_PER_TICK);
+        pair[1].open();
+        SimulatedDevice device = new SimulatedDevice(pair[1], mode, MESSAGES * MESSAGE_LENGTH);
+        SerialSession session = new SerialSession(pair[0], executor, new NullCallback());
+        session.setFlowControl(flowControl);
+        try {
+            session.start();
+            awaitConnected(session);
+            device.start();
+            byte[] payload = payload();
+            List<SendQueue.SendFuture> futures = new ArrayList<>();
+            for (int i = 0; i < MESSAGES; i++) {
+                byte[] msg = new byte[MESSAGE_LENGTH];
+                System.arraycopy(payload, i * MESSAGE_LENGTH, msg, 0, MESSAGE_LENGTH);
+                futures.add(session.send(msg, 10000));
+            }
+            for (SendQueue.SendFuture future : futures) future.get(20, TimeUnit.SECONDS);
+            device.join(20000);
+            assertTrue("设备没有收完", !device.isAlive());
+            if (device.failure != null) throw device.failure;
+            return device;
+        } finally {
+            device.interrupt();
+            session.stop();
+            pair[1].close();
+            session.awaitIdle(2000);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 发给设备的全部数据，不含流控字符
+     */
+    private static byte[] payload() {
+        byte[] payload = new byte[MESSAGES * MESSAGE_LENGTH];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) ('a' + i % 26);
+        return payload;
+    }
+
+    private static void awaitConnected(SerialSession session) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getState() != SerialSession.State.CONNECTED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(SerialSession.State.CONNECTED, session.getState());
+    }
+
+    private enum Mode {
+        NONE,
+        XON_XOFF,
+        CREDIT
+    }
+
+    /**
+     * 模拟设备：每毫秒从链路收最多 LINK_PER_TICK 字节放进缓冲区，处理掉 DRAIN_PER_TICK 字节
+     *      缓冲区满了还收到的字节算丢失，按流控方式回 XON/XOFF 或者发放额度
+     */
+    private static class SimulatedDevice extends Thread {
+        private final InputStream mInputStream;
+        private final OutputStream mOutputStream;
+        private final Mode mMode;
+        private final int mExpected;
+        // 以下字段在线程结束之后读
+        final ByteArrayOutputStream accepted = new ByteArrayOutputStream();
+        int lost = 0;
+        Exception failure;
+
+        SimulatedDevice(LoopbackTransport transport, Mode mode, int expected) {
+            super("simulated-device");
+            mInputStream = transport.getInputStream();
+            mOutputStream = transport.getOutputStream();
+            mMode = mode;
+            mExpected = expected;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[LINK_PER_TICK];
+            int buffered = 0;
+            int drainedSinceGrant = 0;
+            boolean stopped = false;
+            try {
+                while (accepted.size() + lost < mExpected) {
+                    int available = mInputStream.available();
+                    if (available > 0) {
+                        int num = mInputStream.read(chunk, 0, Math.min(available, chunk.length));
+                        for (int i = 0; i < num; i++) {
+                            if (buffered == DEVICE_BUFFER) {
+                                lost++;
+                                continue;
+                            }
+                            buffered++;
+                            accepted.write(chunk[i]);
+                        }
+                    }
+                    if (mMode == Mode.XON_XOFF && !stopped && buffered >= XOFF_LEVEL) {
+                        mOutputStream.write(FlowControl.XOFF);
+                        stopped = true;
+                    }
+                    int drained = Math.min(buffered, DRAIN_PER_TICK);
+                    buffered -= drained;
+                    if (mMode == Mode.XON_XOFF && stopped && buffered <= XON_LEVEL) {
+                        mOutputStream.write(FlowControl.XON);
+                        stopped = false;
+                    }
+                    drainedSinceGrant += drained;
+                    if (mMode == Mode.CREDIT && drainedSinceGrant >= GRANT_STEP) {
+                        mOutputStream.write(new byte[]{FlowControl.DC2,
+                                (byte) (drainedSinceGrant >> 8), (byte) drainedSinceGrant});
+                        drainedSinceGrant = 0;
+                    }
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                // 测试结束
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private static class NullCallback implements SerialSession.Callback {
+        @Override
+        public void onConnectSuccess() {
+        }
+
+        @Override
+        public void onConnectFailed(String msg) {
+        }
+
+        @Override
+        public void onReceiveBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void onSendBytes(byte[] bytes) {
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FrameCheck 的测试
+ * 功能：每种算法的校验值，seal 之后 verify 通过，改动任意一个字节不通过，计数正确
+ *      校验值插在 trailerLength 个字节之前，字节序和算法一致
+ *      接到 SerialSession 上时，坏帧只交给错误回调，不交给 onReceiveBytes
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FrameCheckTest {
+    private static final byte[] CHECK = "123456789".getBytes();
+
+    @Test
+    public void checkValues() {
+        assertEquals(0x29b1, compute(FrameCheck.Algorithm.CRC16_CCITT));
+        assertEquals(0x31c3, compute(FrameCheck.Algorithm.CRC16_XMODEM));
+        assertEquals(0x4b37, compute(FrameCheck.Algorithm.CRC16_MODBUS));
+        assertEquals(0xcbf43926, compute(FrameCheck.Algorithm.CRC32));
+        // 0x31 到 0x39 相加是 0x1dd
+        assertEquals(0xdd, compute(FrameCheck.Algorithm.SUM8));
+        assertEquals(0x31, compute(FrameCheck.Algorithm.XOR8));
+    }
+
+    @Test
+    public void sealThenVerifyRoundTrip() {
+        for (FrameCheck.Algorithm algorithm : FrameCheck.Algorithm.values()) {
+            for (int trailerLength = 0; trailerLength <= 2; trailerLength++) {
+                FrameCheck frameCheck = new FrameCheck(algorithm, trailerLength);
+                byte[] msg = Arrays.copyOf("hello world\r\n".getBytes(), 11 + trailerLength);
+                byte[] sealed = frameCheck.seal(msg);
+                String name = algorithm + " trailerLength " + trailerLength;
+                assertEquals(name, msg.length + algorithm.length(), sealed.length);
+                assertEquals(name, 11, frameCheck.payloadLength(sealed.length));
+                // 消息内容和末尾的字节原样保留
+                assertArrayEquals(name, Arrays.copyOf(msg, 11), Arrays.copyOf(sealed, 11));
+                assertArrayEquals(name, Arrays.copyOfRange(msg, 11, msg.length),
+                        Arrays.copyOfRange(sealed, 11 + algorithm.length(), sealed.length));
+                assertTrue(name, frameCheck.verify(sealed, 0, sealed.length));
+                // 改动校验范围内或者校验值的任意一个字节都不通过
+                for (int i = 0; i < 11 + algorithm.length(); i++) {
+                    byte[] corrupted = sealed.clone();
+                    corrupted[i] ^= 0x01;
+                    assertFalse(name + " 第 " + i + " 个字节", frameCheck.verify(corrupted, 0, corrupted.length));
+                }
+                assertEquals(name, 1, frameCheck.getPassedCount());
+                assertEquals(name, 11 + algorithm.length(), frameCheck.getFailedCount());
+            }
+        }
+    }
+
+    @Test
+    public void checkValueByteOrder() {
+        // CCITT 高字节在前，MODBUS 和 CRC-32 低字节在前
+        byte[] sealed = new FrameCheck(FrameCheck.Algorithm.CRC16_CCITT).seal(CHECK);
+        assertArrayEquals(new byte[]{0x29, (byte) 0xb1}, Arrays.copyOfRange(sealed, 9, 11));
+        sealed = new FrameCheck(FrameCheck.Algorithm.CRC16_MODBUS).seal(CHECK);
+        assertArrayEquals(new byte[]{0x37, 0x4b}, Arrays.copyOfRange(sealed, 9, 11));
+        sealed = new FrameCheck(FrameCheck.Algorithm.CRC32).seal(CHECK);
+        assertArrayEquals(new byte[]{0x26, 0x39, (byte) 0xf4, (byte) 0xcb}, Arrays.copyOfRange(sealed, 9, 13));
+    }
+
+    @Test
+    public void verifyInsideLargerArray() {
+        FrameCheck frameCheck = new FrameCheck(FrameCheck.Algorithm.CRC32, 2);
+        byte[] sealed = frameCheck.seal("payload\r\n".getBytes());
+        byte[] buffer = new byte[sealed.length + 10];
+        System.arraycopy(sealed, 0, buffer, 5, sealed.length);
+        assertTrue(frameCheck.verify(buffer, 5, sealed.length));
+        assertFalse(frameCheck.verify(buffer, 4, sealed.length));
+    }
+
+    @Test
+    public void tooShortFrameFails() {
+        FrameCheck frameCheck = new FrameCheck(FrameCheck.Algorithm.CRC16_CCITT, 2);
+        byte[] frame = {0x01, 0x02, '\r'};
+        assertTrue(frameCheck.payloadLength(frame.length) < 0);
+        assertFalse(frameCheck.verify(frame, 0, frame.length));
+        assertEquals(1, frameCheck.getFailedCount());
+        assertEquals(0, frameCheck.getPassedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sealRejectsMessageShorterThanTrailer() {
+        new FrameCheck(FrameCheck.Algorithm.XOR8, 2).seal(new byte[]{'\n'});
+    }
+
+    @Test
+    public void sessionDropsCorruptedFrames() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        LoopbackTransport[] pair = LoopbackTransport.createPair(256);
+        LoopbackTransport device = pair[1];
+        device.open();
+        RecordingSessionCallback callback = new RecordingSessionCallback();
+        final BlockingQueue<byte[]> badFrames = new LinkedBlockingQueue<>();
+        // 校验值在 \r\n 之前
+        FrameCheck frameCheck = new FrameCheck(FrameCheck.Algorithm.CRC16_CCITT, 2);
+        SerialSession session = new SerialSession(pair[0], executor, callback);
+        session.setFrameCheck(frameCheck, new SerialSession.OnBadFrame() {
+            @Override
+            public void onBadFrame(byte[] frame) {
+                badFrames.add(frame);
+            }
+        });
+        try {
+            session.start();
+            assertEquals("连接成功", callback.next());
+            byte[] good = frameCheck.seal("good\r\n".getBytes());
+            byte[] bad = frameCheck.seal("evil\r\n".getBytes());
+            bad[0] = 'E';
+            device.getOutputStream().write(bad);
+            device.getOutputStream().write(good);
+            // 坏帧不会交给 onReceiveBytes，下一个事件就是好帧，已经去掉校验值和停止标志位
+            assertEquals("收到 good", callback.next());
+            byte[] badFrame = badFrames.poll(5, TimeUnit.SECONDS);
+            assertNotNull(badFrame);
+            // 错误回调拿到的是包括校验值的整帧
+            assertArrayEquals(bad, badFrame);
+            assertEquals(1, frameCheck.getPassedCount());
+            assertEquals(1, frameCheck.getFailedCount());
+            assertTrue(callback.events.isEmpty());
+            // 发送的消息加上了校验值
+            session.send("ping\r\n".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+            byte[] sent = new byte[8];
+            int read = 0;
+            while (read < sent.length) read += device.getInputStream().read(sent, read, sent.length - read);
+            assertArrayEquals(frameCheck.seal("ping\r\n".getBytes()), sent);
+        } finally {
+            session.stop();
+            device.close();
+            session.awaitIdle(2000);
+            executor.shutdownNow();
+        }
+    }
+
+    private static int compute(FrameCheck.Algorithm algorithm) {
+        return new FrameCheck(algorithm).compute(CHECK, 0, CHECK.length);
+    }
+}
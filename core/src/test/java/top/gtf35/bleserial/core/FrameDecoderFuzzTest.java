@@ -0,0 +1,388 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 帧解码器的模糊测试
+ * 功能：五种解码器都用随机的帧内容和随机的切分位置喂数据，检查解出的帧和发出的一致
+ *      再喂随机的垃圾数据，检查不抛异常、缓冲区不会无限增长，有分隔符的解码器之后能重新同步
+ *      超长的垃圾数据整段丢掉，后半段不会被当成新的一帧
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FrameDecoderFuzzTest {
+    private static final int MAX_FRAME = 256;
+    private static final int MAX_CHUNK = 64;
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void delimiterRoundTrip() {
+        roundTrip(new DelimiterCodec());
+    }
+
+    @Test
+    public void fixedLengthRoundTrip() {
+        roundTrip(new FixedLengthCodec());
+    }
+
+    @Test
+    public void lengthFieldRoundTrip() {
+        roundTrip(new LengthFieldCodec());
+    }
+
+    @Test
+    public void slipRoundTrip() {
+        roundTrip(new SlipCodec());
+    }
+
+    @Test
+    public void cobsRoundTrip() {
+        roundTrip(new CobsCodec());
+    }
+
+    @Test
+    public void garbageKeepsBufferBounded() {
+        Codec[] codecs = {new DelimiterCodec(), new FixedLengthCodec(), new LengthFieldCodec(),
+                new SlipCodec(), new CobsCodec()};
+        for (Codec codec : codecs) {
+            Random random = new Random(4);
+            byte[] garbage = new byte[256 * 1024];
+            random.nextBytes(garbage);
+            Feed feed = feed(codec.decoder(), garbage, random);
+            assertTrue(codec + " 缓冲区增长到 " + feed.maxReadable, feed.maxReadable <= 2 * MAX_FRAME + MAX_CHUNK);
+            for (byte[] frame : feed.frames) assertTrue(codec + " 帧太长：" + frame.length, frame.length <= MAX_FRAME + 2);
+        }
+    }
+
+    @Test
+    public void slipWithoutEndDoesNotGrowBuffer() {
+        // 全是非法转义，帧一直是坏的，也一直收不到 END
+        byte[] noise = new byte[256 * 1024];
+        for (int i = 0; i < noise.length; i += 2) {
+            noise[i] = (byte) 0xDB;
+            noise[i + 1] = 0x01;
+        }
+        Feed feed = feed(new SlipFrameDecoder(MAX_FRAME), noise, new Random(5));
+        assertTrue("缓冲区增长到 " + feed.maxReadable, feed.maxReadable <= MAX_CHUNK);
+        assertTrue(feed.frames.isEmpty());
+    }
+
+    @Test
+    public void delimitedDecodersResyncAfterGarbage() {
+        Codec[] codecs = {new DelimiterCodec(), new SlipCodec(), new CobsCodec()};
+        for (Codec codec : codecs) {
+            for (int seed = 0; seed < ROUNDS; seed++) {
+                Random random = new Random(seed);
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                // 不含分隔符、比最大帧长得多的垃圾数据，整段都要丢掉，不能把后半段当成一帧
+                byte[] separator = codec.separator();
+                byte[] garbage = new byte[2 * MAX_FRAME + 8 + random.nextInt(2 * MAX_FRAME)];
+                random.nextBytes(garbage);
+                for (int i = 0; i < garbage.length; i++) {
+                    for (byte b : separator) {
+                        if (garbage[i] == b) garbage[i] = 0x01;
+                    }
+                }
+                stream.write(garbage, 0, garbage.length);
+                // 分隔符结束垃圾数据，之后的帧要能正常解出
+                stream.write(separator, 0, separator.length);
+                byte[] payload = codec.payload(random);
+                byte[] wire = codec.encode(payload);
+                stream.write(wire, 0, wire.length);
+                Feed feed = feed(codec.decoder(), stream.toByteArray(), random);
+                assertTrue(codec + " seed " + seed + " 没有报告错误", feed.errors > 0);
+                assertEquals(codec + " seed " + seed + " 帧数", 1, feed.frames.size());
+                assertArrayEquals(codec + " seed " + seed, codec.expected(payload), feed.frames.get(0));
+            }
+        }
+    }
+
+    @Test
+    public void cobsDiscardsTailOfOversizedFrame() {
+        // 0x01 单独就是合法的 COBS，超长帧的后半段如果被当成新的一帧就会解出一串 0
+        byte[] stream = new byte[3 * MAX_FRAME + 1];
+        Arrays.fill(stream, 0, 3 * MAX_FRAME, (byte) 0x01);
+        byte[] frame = new CobsCodec().encode(new byte[]{'o', 'k'});
+        stream = concat(stream, frame);
+        Feed feed = new Feed();
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        FrameDecoder decoder = new CobsFrameDecoder(MAX_FRAME);
+        // 超长的部分分两次到达，第二次到达时已经超过最大长度
+        buffer.write(stream, 0, MAX_FRAME + 1);
+        decoder.decode(buffer, feed.output());
+        buffer.write(stream, MAX_FRAME + 1, stream.length - MAX_FRAME - 1);
+        decoder.decode(buffer, feed.output());
+        assertEquals(1, feed.errors);
+        assertEquals(1, feed.frames.size());
+        assertArrayEquals(new byte[]{'o', 'k'}, feed.frames.get(0));
+    }
+
+    @Test
+    public void cobsRejectsOversizedFrameArrivingAtOnce() {
+        byte[] oversized = new byte[MAX_FRAME + 2];
+        Arrays.fill(oversized, 0, MAX_FRAME + 1, (byte) 0x01);
+        byte[] stream = concat(oversized, new CobsCodec().encode(new byte[]{'o', 'k'}));
+        Feed feed = new Feed();
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        buffer.write(stream, 0, stream.length);
+        new CobsFrameDecoder(MAX_FRAME).decode(buffer, feed.output());
+        assertEquals(1, feed.errors);
+        assertEquals(1, feed.frames.size());
+        assertArrayEquals(new byte[]{'o', 'k'}, feed.frames.get(0));
+        assertEquals(0, buffer.readableBytes());
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void roundTrip(Codec codec) {
+        for (int seed = 0; seed < ROUNDS; seed++) {
+            Random random = new Random(seed);
+            List<byte[]> expected = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            int frames = 1 + random.nextInt(20);
+            for (int i = 0; i < frames; i++) {
+                byte[] payload = codec.payload(random);
+                expected.add(codec.expected(payload));
+                byte[] wire = codec.encode(payload);
+                stream.write(wire, 0, wire.length);
+            }
+            Feed feed = feed(codec.decoder(), stream.toByteArray(), random);
+            assertEquals(codec + " seed " + seed + " 解码出错", 0, feed.errors);
+            assertEquals(codec + " seed " + seed + " 帧数", expected.size(), feed.frames.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(codec + " seed " + seed + " 第 " + i + " 帧", expected.get(i), feed.frames.get(i));
+            }
+        }
+    }
+
+    /**
+     * 按随机长度切块喂给解码器，每块之后解一次
+     */
+    private static Feed feed(FrameDecoder decoder, byte[] stream, Random random) {
+        Feed feed = new Feed();
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        FrameDecoder.Output output = feed.output();
+        int offset = 0;
+        while (offset < stream.length) {
+            int chunk = Math.min(stream.length - offset, 1 + random.nextInt(MAX_CHUNK));
+            buffer.write(stream, offset, chunk);
+            offset += chunk;
+            feed.maxReadable = Math.max(feed.maxReadable, buffer.readableBytes());
+            decoder.decode(buffer, output);
+        }
+        return feed;
+    }
+
+    private static class Feed {
+        final List<byte[]> frames = new ArrayList<>();
+        int errors = 0;
+        int maxReadable = 0;
+
+        /**
+         * 把解出的帧和错误记到这里
+         */
+        FrameDecoder.Output output() {
+            return new FrameDecoder.Output() {
+                @Override
+                public void onFrame(byte[] array, int offset, int length) {
+                    frames.add(Arrays.copyOfRange(array, offset, offset + length));
+                }
+
+                @Override
+                public void onDecodeError(String msg) {
+                    errors++;
+                }
+            };
+        }
+    }
+
+    /**
+     * 一种帧格式的编码和对应的解码器
+     */
+    private abstract static class Codec {
+        abstract FrameDecoder decoder();
+
+        abstract byte[] encode(byte[] payload);
+
+        /**
+         * 解码器应该交出的帧
+         */
+        byte[] expected(byte[] payload) {
+            return payload;
+        }
+
+        /**
+         * 结束垃圾数据的分隔符
+         */
+        byte[] separator() {
+            return new byte[0];
+        }
+
+        byte[] payload(Random random) {
+            byte[] payload = new byte[1 + random.nextInt(MAX_FRAME - 4)];
+            random.nextBytes(payload);
+            return payload;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+
+    private static class DelimiterCodec extends Codec {
+        @Override
+        FrameDecoder decoder() {
+            return new DelimiterFrameDecoder("\r\n".getBytes(), MAX_FRAME);
+        }
+
+        @Override
+        byte[] payload(Random random) {
+            // 内容不能含有停止标志位
+            byte[] payload = new byte[1 + random.nextInt(MAX_FRAME - 4)];
+            for (int i = 0; i < payload.length; i++) payload[i] = (byte) (0x20 + random.nextInt(0x5f));
+            return payload;
+        }
+
+        @Override
+        byte[] encode(byte[] payload) {
+            return expected(payload);
+        }
+
+        @Override
+        byte[] expected(byte[] payload) {
+            // 交出的帧包含停止标志位
+            byte[] frame = Arrays.copyOf(payload, payload.length + 2);
+            frame[payload.length] = '\r';
+            frame[payload.length + 1] = '\n';
+            return frame;
+        }
+
+        @Override
+        byte[] separator() {
+            return "\r\n".getBytes();
+        }
+    }
+
+    private static class FixedLengthCodec extends Codec {
+        @Override
+        FrameDecoder decoder() {
+            return new FixedLengthFrameDecoder(16);
+        }
+
+        @Override
+        byte[] payload(Random random) {
+            byte[] payload = new byte[16];
+            random.nextBytes(payload);
+            return payload;
+        }
+
+        @Override
+        byte[] encode(byte[] payload) {
+            return payload;
+        }
+    }
+
+    private static class LengthFieldCodec extends Codec {
+        @Override
+        FrameDecoder decoder() {
+            return new LengthFieldFrameDecoder(0, 2, true, 0, MAX_FRAME);
+        }
+
+        @Override
+        byte[] encode(byte[] payload) {
+            return expected(payload);
+        }
+
+        @Override
+        byte[] expected(byte[] payload) {
+            // 交出的帧包含帧头
+            byte[] frame = new byte[payload.length + 2];
+            frame[0] = (byte) (payload.length >> 8);
+            frame[1] = (byte) payload.length;
+            System.arraycopy(payload, 0, frame, 2, payload.length);
+            return frame;
+        }
+    }
+
+    private static class SlipCodec extends Codec {
+        @Override
+        FrameDecoder decoder() {
+            return new SlipFrameDecoder(MAX_FRAME);
+        }
+
+        @Override
+        byte[] encode(byte[] payload) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0xC0);
+            for (byte b : payload) {
+                if (b == (byte) 0xC0) {
+                    out.write(0xDB);
+                    out.write(0xDC);
+                } else if (b == (byte) 0xDB) {
+                    out.write(0xDB);
+                    out.write(0xDD);
+                } else {
+                    out.write(b);
+                }
+            }
+            out.write(0xC0);
+            return out.toByteArray();
+        }
+
+        @Override
+        byte[] separator() {
+            return new byte[]{(byte) 0xC0};
+        }
+    }
+
+    private static class CobsCodec extends Codec {
+        @Override
+        FrameDecoder decoder() {
+            return new CobsFrameDecoder(MAX_FRAME + 2);
+        }
+
+        @Override
+        byte[] encode(byte[] payload) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int blockStart = 0;
+            int i = 0;
+            while (true) {
+                if (i - blockStart == 254) {
+                    // 满 254 字节的块后面没有隐含的 0
+                    out.write(0xFF);
+                    out.write(payload, blockStart, 254);
+                    blockStart = i;
+                    continue;
+                }
+                if (i == payload.length || payload[i] == 0) {
+                    out.write(i - blockStart + 1);
+                    out.write(payload, blockStart, i - blockStart);
+                    if (i == payload.length) break;
+                    blockStart = i + 1;
+                }
+                i++;
+            }
+            out.write(0);
+            return out.toByteArray();
+        }
+
+        @Override
+        byte[] separator() {
+            return new byte[]{0};
+        }
+    }
+}
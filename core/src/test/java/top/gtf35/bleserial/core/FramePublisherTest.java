@@ -0,0 +1,213 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FramePublisher 的测试
+ * 功能：按 Reactive Streams 规范的要求检查需求、取消、结束信号和重复订阅
+ * @author gtf35 gtf@gtf35.top
+ */
+public class FramePublisherTest {
+
+    @Test
+    public void deliversOnlyWhatWasRequested() {
+        FramePublisher publisher = new FramePublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(2);
+        publisher.onFrame(frame(1));
+        publisher.onFrame(frame(2));
+        publisher.onFrame(frame(3));
+        assertEquals(2, subscriber.frames.size());
+        // 超出需求的帧暂存，再 request 时交付
+        subscriber.subscription.request(1);
+        assertEquals(3, subscriber.frames.size());
+        assertEquals(3, subscriber.frames.get(2)[0]);
+        assertEquals(3, publisher.getDeliveredCount());
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void nonPositiveRequestSignalsError() {
+        FramePublisher publisher = new FramePublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        // 规范 3.9 之后订阅已经取消，可以重新订阅
+        assertFalse(publisher.hasSubscriber());
+    }
+
+    @Test
+    public void cancelStopsDeliveryAndAllowsResubscribe() {
+        FramePublisher publisher = new FramePublisher();
+        RecordingSubscriber first = new RecordingSubscriber();
+        publisher.subscribe(first);
+        first.subscription.request(10);
+        publisher.onFrame(frame(1));
+        first.subscription.cancel();
+        publisher.onFrame(frame(2));
+        assertEquals(1, first.frames.size());
+        assertEquals(1, publisher.getDroppedCount());
+        assertFalse(publisher.hasSubscriber());
+
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(second);
+        second.subscription.request(1);
+        publisher.onFrame(frame(3));
+        assertEquals(1, second.frames.size());
+        assertNull(second.error);
+    }
+
+    @Test
+    public void completeDeliversPendingFramesFirst() {
+        FramePublisher publisher = new FramePublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        publisher.onFrame(frame(1));
+        publisher.onFrame(frame(2));
+        publisher.complete();
+        // 还有一帧没交付，不能先结束
+        assertFalse(subscriber.completed);
+        subscriber.subscription.request(1);
+        assertEquals(2, subscriber.frames.size());
+        assertTrue(subscriber.completed);
+        // 结束之后的 request 和再次结束都不产生信号
+        subscriber.subscription.request(1);
+        publisher.error(new Exception("忽略"));
+        assertNull(subscriber.error);
+        assertEquals(1, subscriber.terminalSignals);
+    }
+
+    @Test
+    public void subscribersAfterTerminationGetTerminalSignalImmediately() {
+        FramePublisher completed = new FramePublisher();
+        completed.complete();
+        RecordingSubscriber late = new RecordingSubscriber();
+        completed.subscribe(late);
+        assertTrue(late.completed);
+        assertTrue(late.frames.isEmpty());
+
+        FramePublisher failed = new FramePublisher();
+        Exception error = new Exception("断开");
+        failed.error(error);
+        RecordingSubscriber lateOnError = new RecordingSubscriber();
+        failed.subscribe(lateOnError);
+        assertEquals(error, lateOnError.error);
+        assertFalse(lateOnError.completed);
+    }
+
+    @Test
+    public void secondSubscriberIsRejected() {
+        FramePublisher publisher = new FramePublisher();
+        RecordingSubscriber first = new RecordingSubscriber();
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        // 规范 1.9：被拒绝的订阅者也要先收到 onSubscribe
+        assertTrue(second.subscription != null);
+        assertTrue(second.error instanceof IllegalStateException);
+        first.subscription.request(1);
+        publisher.onFrame(frame(1));
+        assertEquals(1, first.frames.size());
+        assertNull(first.error);
+        assertTrue(second.frames.isEmpty());
+    }
+
+    @Test
+    public void noFrameIsDeliveredWhileOnSubscribeIsRunning() throws Exception {
+        final FramePublisher publisher = new FramePublisher();
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch frameOffered = new CountDownLatch(1);
+        final AtomicBoolean inOnSubscribe = new AtomicBoolean(false);
+        final AtomicBoolean overlapped = new AtomicBoolean(false);
+        final List<byte[]> delivered = Collections.synchronizedList(new ArrayList<byte[]>());
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    requested.await();
+                    // 模拟读取线程在 onSubscribe 返回之前解出一帧
+                    publisher.onFrame(frame(1));
+                    frameOffered.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+        publisher.subscribe(new RecordingSubscriber() {
+            @Override
+            public void onSubscribe(ReactiveStreams.Subscription s) {
+                inOnSubscribe.set(true);
+                s.request(10);
+                requested.countDown();
+                try {
+                    assertTrue(frameOffered.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inOnSubscribe.set(false);
+            }
+
+            @Override
+            public void onNext(byte[] frame) {
+                if (inOnSubscribe.get()) overlapped.set(true);
+                delivered.add(frame);
+            }
+        });
+        reader.join(5000);
+        assertFalse("onNext 和 onSubscribe 同时执行了", overlapped.get());
+        assertEquals(1, delivered.size());
+    }
+
+    private static byte[] frame(int value) {
+        return new byte[]{(byte) value};
+    }
+
+    /**
+     * 记录收到的信号
+     */
+    private static class RecordingSubscriber implements ReactiveStreams.Subscriber<byte[]> {
+        volatile ReactiveStreams.Subscription subscription;
+        final List<byte[]> frames = Collections.synchronizedList(new ArrayList<byte[]>());
+        volatile boolean completed = false;
+        volatile Throwable error;
+        volatile int terminalSignals = 0;
+
+        @Override
+        public void onSubscribe(ReactiveStreams.Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(byte[] frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            terminalSignals++;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            terminalSignals++;
+        }
+    }
+}
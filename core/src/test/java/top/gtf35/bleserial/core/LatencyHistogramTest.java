@@ -0,0 +1,85 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * LatencyHistogram 的测试
+ * 功能：分桶的边界、百分位取所在桶的上界、平均值和最大值、超出范围的值
+ * @author gtf35 gtf@gtf35.top
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentileMicros(50));
+        assertEquals(0, histogram.percentileMicros(100));
+        assertEquals(0, histogram.meanMicros(), 0);
+        assertEquals(0, histogram.maxMicros());
+    }
+
+    @Test
+    public void percentileIsUpperBoundOfBucket() {
+        // 第 i 个桶是 [2^(i-1), 2^i) 微秒，百分位返回 2^i - 1
+        assertEquals(0, single(0));
+        assertEquals(0, single(999));
+        assertEquals(1, single(1000));
+        assertEquals(1, single(1999));
+        assertEquals(3, single(2000));
+        assertEquals(3, single(3999));
+        assertEquals(7, single(4000));
+        assertEquals(1023, single(1000 * 1000));
+        assertEquals(1023, single(1023 * 1000));
+        assertEquals(2047, single(1024 * 1000));
+    }
+
+    @Test
+    public void percentilesFollowRank() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 90 次 1 微秒，9 次 100 微秒，1 次 10 毫秒
+        for (int i = 0; i < 90; i++) histogram.record(1000);
+        for (int i = 0; i < 9; i++) histogram.record(100 * 1000);
+        histogram.record(10 * 1000 * 1000);
+        assertEquals(100, histogram.count());
+        assertEquals(1, histogram.percentileMicros(50));
+        assertEquals(1, histogram.percentileMicros(90));
+        assertEquals(127, histogram.percentileMicros(91));
+        assertEquals(127, histogram.percentileMicros(99));
+        assertEquals(16383, histogram.percentileMicros(99.5));
+        assertEquals(16383, histogram.percentileMicros(100));
+        // 百分位 0 取最小的非空桶
+        assertEquals(1, histogram.percentileMicros(0));
+        assertEquals((90 * 1 + 9 * 100 + 10000) / 100.0, histogram.meanMicros(), 1e-9);
+        assertEquals(10000, histogram.maxMicros());
+    }
+
+    @Test
+    public void negativeCountsAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.percentileMicros(100));
+        assertEquals(0, histogram.maxMicros());
+    }
+
+    @Test
+    public void overflowBucketReportsMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long nanos = TimeUnit.DAYS.toNanos(30);
+        histogram.record(nanos);
+        // 最后一个桶没有上界，返回记录到的最大值
+        assertEquals(TimeUnit.DAYS.toMicros(30), histogram.percentileMicros(100));
+        assertEquals(TimeUnit.DAYS.toMicros(30), histogram.maxMicros());
+    }
+
+    private static long single(long nanos) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(nanos);
+        return histogram.percentileMicros(100);
+    }
+}
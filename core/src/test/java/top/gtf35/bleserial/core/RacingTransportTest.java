@@ -0,0 +1,217 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * RacingTransport 的测试
+ * 功能：用延迟和结果可控的模拟候选竞速，先连上的赢，其余开始了的都被关掉，没轮到的不开始
+ *      已经开始的都失败时马上开始下一个，全部失败时 open 失败，竞速中 close 让 open 马上失败
+ * @author gtf35 gtf@gtf35.top
+ */
+public class RacingTransportTest {
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void firstToConnectWinsAndLosersAreClosed() throws Exception {
+        SimulatedTransport slow = new SimulatedTransport("slow", 2000, true);
+        SimulatedTransport fast = new SimulatedTransport("fast", 20, true);
+        SimulatedTransport unused = new SimulatedTransport("unused", 20, true);
+        RacingTransport transport = new RacingTransport(Arrays.asList(slow, fast, unused), 100, mExecutor);
+        long begin = System.nanoTime();
+        transport.open();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        // 第二个候选 100ms 后开始，再过 20ms 连上，不用等第一个
+        assertTrue("用了 " + elapsedMs + "ms", elapsedMs >= 100 && elapsedMs < 1000);
+        assertSame(fast, transport.getCurrent());
+        assertEquals("fast", transport.getName());
+        assertTrue(slow.awaitClosed());
+        assertFalse(slow.connected);
+        assertFalse(fast.closed);
+        // 赢家出来之后下一个候选不会再开始
+        assertFalse(unused.started);
+        transport.getOutputStream().write(1);
+        assertEquals(1, fast.output.size());
+        transport.close();
+        assertTrue(fast.closed);
+    }
+
+    @Test
+    public void lateSuccessIsClosed() throws Exception {
+        // 不理会关闭的候选，输了以后照样连上，连上后要被关掉
+        SimulatedTransport stubborn = new SimulatedTransport("stubborn", 300, true);
+        stubborn.ignoresClose = true;
+        SimulatedTransport fast = new SimulatedTransport("fast", 0, true);
+        RacingTransport transport = new RacingTransport(Arrays.asList(stubborn, fast), 50, mExecutor);
+        transport.open();
+        assertSame(fast, transport.getCurrent());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(stubborn.connected && stubborn.closedAfterConnect) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(stubborn.connected);
+        assertTrue(stubborn.closedAfterConnect);
+        assertSame(fast, transport.getCurrent());
+        transport.close();
+    }
+
+    @Test
+    public void failureStartsNextCandidateImmediately() throws Exception {
+        SimulatedTransport refused = new SimulatedTransport("refused", 10, false);
+        SimulatedTransport ok = new SimulatedTransport("ok", 10, true);
+        RacingTransport transport = new RacingTransport(Arrays.asList(refused, ok), 10000, mExecutor);
+        long begin = System.nanoTime();
+        transport.open();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("用了 " + elapsedMs + "ms", elapsedMs < 2000);
+        assertSame(ok, transport.getCurrent());
+        transport.close();
+    }
+
+    @Test
+    public void allCandidatesFail() throws Exception {
+        SimulatedTransport first = new SimulatedTransport("first", 10, false);
+        SimulatedTransport second = new SimulatedTransport("second", 30, false);
+        RacingTransport transport = new RacingTransport(Arrays.asList(first, second), 5, mExecutor);
+        try {
+            transport.open();
+            fail("候选都失败时应该抛出异常");
+        } catch (IOException e) {
+            assertEquals("候选的连接都失败了：second 拒绝连接", e.getMessage());
+        }
+        assertTrue(first.started && second.started);
+        assertNull(transport.getCurrent());
+        try {
+            transport.getInputStream();
+            fail("没连上时应该抛出异常");
+        } catch (IOException e) {
+            assertEquals("未连接", e.getMessage());
+        }
+    }
+
+    @Test
+    public void closeDuringRaceAbortsOpen() throws Exception {
+        final SimulatedTransport first = new SimulatedTransport("first", 60000, true);
+        final SimulatedTransport second = new SimulatedTransport("second", 60000, true);
+        final RacingTransport transport = new RacingTransport(Arrays.asList(first, second), 10, mExecutor);
+        final AtomicReference<Throwable> result = new AtomicReference<>();
+        Thread opener = new Thread("opener") {
+            @Override
+            public void run() {
+                try {
+                    transport.open();
+                    result.set(new AssertionError("open 不应该成功"));
+                } catch (Throwable e) {
+                    result.set(e);
+                }
+            }
+        };
+        opener.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(first.started && second.started) && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertTrue(first.started && second.started);
+        long begin = System.nanoTime();
+        transport.close();
+        opener.join(5000);
+        assertFalse(opener.isAlive());
+        assertTrue("close 之后 " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms 才返回",
+                System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(2));
+        assertTrue(result.get() instanceof IOException);
+        assertEquals("连接已关闭", result.get().getMessage());
+        assertTrue(first.awaitClosed());
+        assertTrue(second.awaitClosed());
+        assertNull(transport.getCurrent());
+    }
+
+    /**
+     * 模拟的候选：open 阻塞 delayMs 后按设定成功或者失败，阻塞时被关闭则马上失败，像 socket 的 connect 一样
+     */
+    private static class SimulatedTransport implements SerialTransport {
+        private final String mName;
+        private final long mDelayMs;
+        private final boolean mSucceeds;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        volatile boolean ignoresClose = false;
+        volatile boolean started = false;
+        volatile boolean connected = false;
+        volatile boolean closed = false;
+        volatile boolean closedAfterConnect = false;
+
+        SimulatedTransport(String name, long delayMs, boolean succeeds) {
+            mName = name;
+            mDelayMs = delayMs;
+            mSucceeds = succeeds;
+        }
+
+        @Override
+        public synchronized void open() throws IOException {
+            started = true;
+            long deadline = System.currentTimeMillis() + mDelayMs;
+            long remaining;
+            while ((ignoresClose || !closed) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new IOException("连接被中断");
+                }
+            }
+            if (closed && !ignoresClose) throw new IOException(mName + " 已关闭");
+            if (!mSucceeds) throw new IOException(mName + " 拒绝连接");
+            connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (connected) closedAfterConnect = true;
+            notifyAll();
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * 等待被关闭，关闭是在别的线程异步进行的
+         */
+        boolean awaitClosed() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!closed && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            return closed;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ReceiveBuffer 的测试
+ * 功能：空间不够时挪动还是扩容，读空之后回到开头，从输入流读取和去掉尾部数据
+ * @author gtf35 gtf@gtf35.top
+ */
+public class ReceiveBufferTest {
+
+    @Test
+    public void compactsWhenMovingFreesEnoughSpace() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        byte[] array = buffer.array();
+        buffer.write(bytes(0, 12), 0, 12);
+        buffer.skip(10);
+        // 尾部只剩 4 字节，未读的 2 字节挪到开头就能放下 6 字节
+        buffer.write(bytes(12, 6), 0, 6);
+        assertSame(array, buffer.array());
+        assertEquals(0, buffer.readIndex());
+        assertArrayEquals(bytes(10, 8), readable(buffer));
+    }
+
+    @Test
+    public void growsWhenMovingIsNotEnough() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        buffer.write(bytes(0, 12), 0, 12);
+        buffer.skip(2);
+        // 挪完也只有 6 字节空间，放不下 10 字节
+        buffer.write(bytes(12, 10), 0, 10);
+        assertEquals(32, buffer.array().length);
+        assertEquals(0, buffer.readIndex());
+        assertArrayEquals(bytes(2, 20), readable(buffer));
+    }
+
+    @Test
+    public void growsInsteadOfMovingMoreThanItFrees() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        byte[] array = buffer.array();
+        buffer.write(bytes(0, 14), 0, 14);
+        buffer.skip(4);
+        // 挪 10 字节只腾出 4 字节，不如直接扩容
+        buffer.write(bytes(14, 4), 0, 4);
+        assertNotSame(array, buffer.array());
+        assertEquals(32, buffer.array().length);
+        assertArrayEquals(bytes(4, 14), readable(buffer));
+    }
+
+    @Test
+    public void growsByDoublingUntilLargeEnough() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        buffer.write(bytes(0, 100), 0, 100);
+        assertEquals(128, buffer.array().length);
+        assertArrayEquals(bytes(0, 100), readable(buffer));
+    }
+
+    @Test
+    public void skippingEverythingRewinds() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        buffer.write(bytes(0, 10), 0, 10);
+        buffer.skip(4);
+        assertEquals(4, buffer.readIndex());
+        buffer.skip(6);
+        assertEquals(0, buffer.readIndex());
+        assertEquals(0, buffer.writeIndex());
+        // 回到开头之后整个数组都能用，不用挪也不用扩容
+        byte[] array = buffer.array();
+        buffer.write(bytes(0, 16), 0, 16);
+        assertSame(array, buffer.array());
+    }
+
+    @Test
+    public void takeCopiesFrameAndKeepsRest() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        buffer.write(bytes(0, 10), 0, 10);
+        assertArrayEquals(bytes(0, 3), buffer.take(3));
+        assertArrayEquals(bytes(3, 7), readable(buffer));
+    }
+
+    @Test
+    public void removeLastDropsTail() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        buffer.write(bytes(0, 10), 0, 10);
+        buffer.removeLast(4);
+        assertArrayEquals(bytes(0, 6), readable(buffer));
+        buffer.removeLast(6);
+        assertEquals(0, buffer.writeIndex());
+    }
+
+    @Test
+    public void readFromReservesSpaceAndReportsEnd() throws Exception {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes(0, 40));
+        buffer.write(bytes(100, 10), 0, 10);
+        // 预留 256 字节，一次就能读完
+        assertEquals(40, buffer.readFrom(inputStream, 256));
+        assertTrue(buffer.array().length - 10 >= 256);
+        assertEquals(50, buffer.readableBytes());
+        assertEquals(-1, buffer.readFrom(inputStream, 256));
+        assertEquals(50, buffer.readableBytes());
+    }
+
+    @Test
+    public void rejectsOutOfRange() {
+        ReceiveBuffer buffer = new ReceiveBuffer(16);
+        buffer.write(bytes(0, 4), 0, 4);
+        try {
+            buffer.skip(5);
+            fail("不能跳过比未读数据更多的字节");
+        } catch (IndexOutOfBoundsException expected) {
+            // 超出范围
+        }
+        try {
+            buffer.removeLast(-1);
+            fail("长度不能为负");
+        } catch (IndexOutOfBoundsException expected) {
+            // 超出范围
+        }
+        assertEquals(4, buffer.readableBytes());
+    }
+
+    private static byte[] bytes(int first, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) (first + i);
+        return bytes;
+    }
+
+    private static byte[] readable(ReceiveBuffer buffer) {
+        return Arrays.copyOfRange(buffer.array(), buffer.readIndex(), buffer.writeIndex());
+    }
+}
@@ -0,0 +1,291 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 自动重连的测试
+ * 功能：ReconnectPolicy 的退避时间、抖动范围和次数期限
+ *      用一个能注入断开和打开失败的传输层跑会话，检查重试的间隔按策略退避，
+ *      重连后先重发没确认的消息再发断开期间排队的消息，重试次数用完后回到 IDLE
+ *      会重连的断开不回调失败，只有放弃重连时才回调
+ * @author gtf35 gtf@gtf35.top
+ */
+public class ReconnectTest {
+    private final RecordingSessionCallback mCallback = new RecordingSessionCallback();
+    private ExecutorService mExecutor;
+    private LoopbackTransport mDevice;
+    private FlakyTransport mTransport;
+    private DeviceReader mDeviceReader;
+    private SerialSession mSession;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newCachedThreadPool();
+        LoopbackTransport[] pair = LoopbackTransport.createPair(1024);
+        mDevice = pair[1];
+        mTransport = new FlakyTransport(pair[0]);
+        mSession = new SerialSession(mTransport, mExecutor, mCallback);
+        mDeviceReader = new DeviceReader(mDevice.getInputStream());
+        mDeviceReader.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSession.stop();
+        mSession.awaitIdle(2000);
+        mDeviceReader.interrupt();
+        mDevice.close();
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void delayGrowsExponentiallyUpToMax() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2, 0, 0, 0);
+        Random random = new Random(1);
+        long[] expected = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 0; attempt < expected.length; attempt++) {
+            assertEquals("第 " + attempt + " 次", expected[attempt], policy.delayMs(attempt, random));
+        }
+        // 次数很大也不会溢出
+        assertEquals(1000, policy.delayMs(Integer.MAX_VALUE, random));
+    }
+
+    @Test
+    public void jitterStaysWithinRatio() {
+        ReconnectPolicy policy = new ReconnectPolicy(1000, 1000, 2, 0.2, 0, 0);
+        Random random = new Random(2);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.delayMs(0, random);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min >= 800 && max <= 1200);
+        // 确实在抖动
+        assertTrue(max - min > 200);
+    }
+
+    @Test
+    public void attemptsAndDeadlineLimitRetries() {
+        ReconnectPolicy attempts = new ReconnectPolicy(0, 0, 1, 0, 3, 0);
+        assertTrue(attempts.canRetry(2, Long.MAX_VALUE));
+        assertFalse(attempts.canRetry(3, 0));
+        ReconnectPolicy deadline = new ReconnectPolicy(0, 0, 1, 0, 0, 500);
+        assertTrue(deadline.canRetry(Integer.MAX_VALUE, 499));
+        assertFalse(deadline.canRetry(0, 500));
+        try {
+            new ReconnectPolicy(0, 0, 0.5, 0, 0, 0);
+            fail("倍数小于 1 应该抛出异常");
+        } catch (IllegalArgumentException expected) {
+            // 倍数不合法
+        }
+    }
+
+    @Test
+    public void retriesBackOffBetweenFailedOpens() throws Exception {
+        mSession.setReconnectPolicy(new ReconnectPolicy(20, 1000, 2, 0, 0, 0), false);
+        final List<SerialSession.State> states = Collections.synchronizedList(new ArrayList<SerialSession.State>());
+        mSession.addOnStateChangeListener(new SerialSession.OnStateChangeListener() {
+            @Override
+            public void onStateChange(SerialSession session, SerialSession.State state) {
+                states.add(state);
+            }
+        });
+        connect();
+        // 断开后前三次打开失败，第四次成功
+        mTransport.failNextOpens(3);
+        long disconnectedAt = System.nanoTime();
+        mDevice.close();
+        // 会重连的断开不报告失败，只是状态回到 CONNECTING
+        assertEquals("连接成功", mCallback.events.poll(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(SerialSession.State.CONNECTING, SerialSession.State.CONNECTED,
+                SerialSession.State.CONNECTING, SerialSession.State.CONNECTED), states);
+        List<Long> opens = mTransport.openTimes();
+        assertEquals(4, opens.size());
+        long[] expected = {20, 40, 80, 160};
+        long previous = disconnectedAt;
+        for (int i = 0; i < expected.length; i++) {
+            long gapMs = TimeUnit.NANOSECONDS.toMillis(opens.get(i) - previous);
+            // 等待按毫秒计，可能早醒不到 1ms
+            assertTrue("第 " + i + " 次重试只等了 " + gapMs + "ms", gapMs >= expected[i] - 2);
+            assertTrue("第 " + i + " 次重试等了 " + gapMs + "ms", gapMs < expected[i] + 500);
+            previous = opens.get(i);
+        }
+        assertEquals(1, mSession.getReconnectCount());
+        assertEquals(SerialSession.State.CONNECTED, mSession.getState());
+    }
+
+    @Test
+    public void unacknowledgedMessagesAreReplayedBeforeQueuedOnes() throws Exception {
+        mSession.setReconnectPolicy(new ReconnectPolicy(10, 100, 2, 0, 0, 0), true);
+        connect();
+        mSession.send("A\r\n".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+        mSession.send("B\r\n".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+        mDeviceReader.await("A\r\nB\r\n");
+        mTransport.failNextOpens(2);
+        mDevice.close();
+        // 断开期间发的消息排队等重连
+        SendQueue.SendFuture queued = mSession.send("C\r\n".getBytes(), 1000);
+        assertEquals("连接成功", mCallback.events.poll(5, TimeUnit.SECONDS));
+        queued.get(5, TimeUnit.SECONDS);
+        mDeviceReader.await("A\r\nB\r\nA\r\nB\r\nC\r\n");
+    }
+
+    @Test
+    public void acknowledgedMessagesAreNotReplayed() throws Exception {
+        mSession.setReconnectPolicy(new ReconnectPolicy(10, 100, 2, 0, 0, 0), true);
+        connect();
+        mSession.send("A\r\n".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+        mSession.send("B\r\n".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+        mDeviceReader.await("A\r\nB\r\n");
+        // 设备确认收到了 A
+        mSession.acknowledge(1);
+        mDevice.close();
+        assertEquals("连接成功", mCallback.events.poll(5, TimeUnit.SECONDS));
+        mSession.send("C\r\n".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+        mDeviceReader.await("A\r\nB\r\nB\r\nC\r\n");
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        mSession.setReconnectPolicy(new ReconnectPolicy(5, 5, 1, 0, 2, 0), false);
+        connect();
+        mTransport.failNextOpens(Integer.MAX_VALUE);
+        mDevice.close();
+        assertEquals("失败 重连失败：已经重试 2 次", mCallback.events.poll(5, TimeUnit.SECONDS));
+        assertTrue(mSession.awaitIdle(2000));
+        assertEquals(2, mTransport.openTimes().size());
+    }
+
+    private void connect() throws Exception {
+        assertTrue(mSession.start());
+        assertEquals("连接成功", mCallback.events.poll(5, TimeUnit.SECONDS));
+        mTransport.openTimes();
+    }
+
+    /**
+     * 可以让接下来的几次 open 失败，记下断开之后每次 open 的时间
+     */
+    private static class FlakyTransport implements SerialTransport {
+        private final SerialTransport mTarget;
+        private final List<Long> mOpenTimes = new ArrayList<>();
+        private int mFailures = 0;
+
+        FlakyTransport(SerialTransport target) {
+            mTarget = target;
+        }
+
+        synchronized void failNextOpens(int count) {
+            mFailures = count;
+        }
+
+        /**
+         * 取走记下的 open 时间
+         */
+        synchronized List<Long> openTimes() {
+            List<Long> times = new ArrayList<>(mOpenTimes);
+            mOpenTimes.clear();
+            return times;
+        }
+
+        @Override
+        public void open() throws IOException {
+            synchronized (this) {
+                mOpenTimes.add(System.nanoTime());
+                if (mFailures > 0) {
+                    mFailures--;
+                    throw new IOException("设备不在范围内");
+                }
+            }
+            mTarget.open();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mTarget.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mTarget.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTarget.close();
+        }
+
+        @Override
+        public String getName() {
+            return mTarget.getName();
+        }
+    }
+
+    /**
+     * 设备端一直读，断开期间等重新打开，收到的数据跨连接累计
+     */
+    private static class DeviceReader extends Thread {
+        private final InputStream mInputStream;
+        private final StringBuilder mReceived = new StringBuilder();
+
+        DeviceReader(InputStream inputStream) {
+            super("device-reader");
+            mInputStream = inputStream;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[256];
+            try {
+                while (!isInterrupted()) {
+                    int num;
+                    try {
+                        num = mInputStream.read(buffer, 0, buffer.length);
+                    } catch (IOException e) {
+                        return;
+                    }
+                    if (num < 0) {
+                        // 管道关着，等会话重新打开
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    synchronized (this) {
+                        mReceived.append(new String(buffer, 0, num));
+                        notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // 测试结束
+            }
+        }
+
+        synchronized void await(String expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            long remaining;
+            while (!mReceived.toString().equals(expected) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            assertEquals(expected, mReceived.toString());
+        }
+    }
+}
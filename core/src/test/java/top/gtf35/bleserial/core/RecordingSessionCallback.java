@@ -0,0 +1,53 @@
+package top.gtf35.bleserial.core;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试用的会话回调
+ * 功能：把回调按顺序记成字符串：连接成功记为 "连接成功"，失败记为 "失败 " 加信息，收到的帧记为 "收到 " 加内容
+ *      发出的数据不记录
+ * @author gtf35 gtf@gtf35.top
+ */
+class RecordingSessionCallback implements SerialSession.Callback {
+    final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    /**
+     * 下一个事件，最多等 5 秒，没有返回 null
+     */
+    String next() throws InterruptedException {
+        return events.poll(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 下一个失败事件的信息，跳过其他事件，最多等 5 秒，没有返回 null
+     */
+    String nextFailure() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        String event;
+        while ((event = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+            if (event.startsWith("失败 ")) return event.substring("失败 ".length());
+        }
+        return null;
+    }
+
+    @Override
+    public void onConnectSuccess() {
+        events.add("连接成功");
+    }
+
+    @Override
+    public void onConnectFailed(String msg) {
+        events.add("失败 " + msg);
+    }
+
+    @Override
+    public void onReceiveBytes(byte[] bytes) {
+        events.add("收到 " + new String(bytes));
+    }
+
+    @Override
+    public void onSendBytes(byte[] bytes) {
+    }
+}
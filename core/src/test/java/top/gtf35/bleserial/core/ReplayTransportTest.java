@@ -0,0 +1,235 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ReplayTransport 的测试
+ * 功能：SessionRecorder 录下来的会话通过 SerialSession 回放，帧的顺序和内容不变，回放完算连接断开
+ *      按倍速回放时帧之间的间隔按倍速缩短，尽快回放不等待
+ *      实际写出的数据和录制的发送数据比较，记下第一个不一致的位置
+ *      等待应答时，录制里发送之后收到的数据要等实际写出之后才回放
+ * @author gtf35 gtf@gtf35.top
+ */
+public class ReplayTransportTest {
+    // 在调用 record 的线程里直接写文件
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final RecordingSessionCallback mCallback = new RecordingSessionCallback();
+    private SerialSession mSession;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mSession != null) {
+            mSession.stop();
+            mSession.awaitIdle(2000);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void fastReplayKeepsFrameOrder() throws Exception {
+        File dir = mFolder.getRoot();
+        SessionRecorder recorder = new SessionRecorder(dir, "fast", 4096, 256, 4, DIRECT);
+        record(recorder, SessionRecorder.RX, "one\r\n");
+        // 录制时一帧可能分几次收到，也可能一次收到几帧
+        record(recorder, SessionRecorder.RX, "tw");
+        record(recorder, SessionRecorder.RX, "o\r\nthree\r");
+        record(recorder, SessionRecorder.RX, "\nfour\r\n");
+        recorder.close();
+        ReplayTransport transport = new ReplayTransport(SessionRecorder.listFiles(dir, "fast"),
+                ReplayTransport.AS_FAST_AS_POSSIBLE);
+        assertEquals("replay:fast-0000.rec", transport.getName());
+        long begin = System.nanoTime();
+        start(transport);
+        assertEquals("收到 one\r\n", mCallback.next());
+        assertEquals("收到 two\r\n", mCallback.next());
+        assertEquals("收到 three\r\n", mCallback.next());
+        assertEquals("收到 four\r\n", mCallback.next());
+        // 回放完输入流结束，会话当作连接断开
+        assertEquals("失败 连接已断开", mCallback.next());
+        assertTrue(transport.awaitFinished(2000));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("用了 " + elapsedMs + "ms", elapsedMs < 1000);
+        assertTrue(transport.isTxMatched());
+    }
+
+    @Test
+    public void scaledReplayKeepsPacing() throws Exception {
+        File dir = mFolder.getRoot();
+        SessionRecorder recorder = new SessionRecorder(dir, "paced", 4096, 256, 4, DIRECT);
+        record(recorder, SessionRecorder.RX, "a\r\n");
+        Thread.sleep(300);
+        record(recorder, SessionRecorder.RX, "b\r\n");
+        Thread.sleep(300);
+        record(recorder, SessionRecorder.RX, "c\r\n");
+        recorder.close();
+        List<File> files = SessionRecorder.listFiles(dir, "paced");
+        // 两倍速：录制时间隔 600ms 以上，回放时 300ms 以上
+        ReplayTransport transport = new ReplayTransport(files, 2);
+        long begin = System.nanoTime();
+        start(transport);
+        assertEquals("收到 a\r\n", mCallback.next());
+        long firstMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertEquals("收到 b\r\n", mCallback.next());
+        assertEquals("收到 c\r\n", mCallback.next());
+        long lastMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("第一帧用了 " + firstMs + "ms", firstMs < 200);
+        assertTrue("最后一帧用了 " + lastMs + "ms", lastMs >= 295 && lastMs < 590);
+        assertEquals("失败 连接已断开", mCallback.next());
+    }
+
+    @Test
+    public void matchingTx() throws Exception {
+        ReplayTransport transport = new ReplayTransport("match", Arrays.asList(
+                new SessionRecorder.Record(SessionRecorder.TX, 0, "AT\r\n".getBytes()),
+                new SessionRecorder.Record(SessionRecorder.RX, 1, "OK\r\n".getBytes())),
+                ReplayTransport.AS_FAST_AS_POSSIBLE);
+        transport.open();
+        assertEquals("OK\r\n", readToEnd(transport));
+        assertTrue(transport.isFinished());
+        // 回放完了还没写出，不算一致
+        assertFalse(transport.isTxMatched());
+        transport.getOutputStream().write("AT".getBytes());
+        assertEquals(-1, transport.getTxMismatchOffset());
+        assertFalse(transport.isTxMatched());
+        transport.getOutputStream().write("\r\n".getBytes());
+        assertEquals(-1, transport.getTxMismatchOffset());
+        assertTrue(transport.isTxMatched());
+        assertArrayEquals("AT\r\n".getBytes(), transport.getExpectedTx());
+        assertArrayEquals("AT\r\n".getBytes(), transport.getActualTx());
+        // 多写的数据也不算一致
+        transport.getOutputStream().write('x');
+        assertFalse(transport.isTxMatched());
+        transport.close();
+    }
+
+    @Test
+    public void divergingTx() throws Exception {
+        ReplayTransport transport = new ReplayTransport("diverge", Arrays.asList(
+                new SessionRecorder.Record(SessionRecorder.TX, 0, "AT+A\r\n".getBytes()),
+                new SessionRecorder.Record(SessionRecorder.TX, 1, "AT+B\r\n".getBytes())),
+                ReplayTransport.AS_FAST_AS_POSSIBLE);
+        transport.open();
+        // 先写后回放也一样比较
+        transport.getOutputStream().write("AT+A\r\nAT+C\r\n".getBytes());
+        assertEquals(-1, transport.getTxMismatchOffset());
+        assertEquals("", readToEnd(transport));
+        assertEquals(9, transport.getTxMismatchOffset());
+        assertFalse(transport.isTxMatched());
+        // 重新打开从头回放，比较结果清空
+        transport.open();
+        assertEquals(-1, transport.getTxMismatchOffset());
+        assertEquals("", readToEnd(transport));
+        transport.getOutputStream().write("AT+A\r\nAT+B\r\n".getBytes());
+        assertTrue(transport.isTxMatched());
+        transport.close();
+    }
+
+    @Test
+    public void waitForResponsesHoldsBackRx() throws Exception {
+        File dir = mFolder.getRoot();
+        SessionRecorder recorder = new SessionRecorder(dir, "wait", 4096, 256, 4, DIRECT);
+        record(recorder, SessionRecorder.RX, "ready\r\n");
+        record(recorder, SessionRecorder.TX, "get\r\n");
+        record(recorder, SessionRecorder.RX, "value\r\n");
+        recorder.close();
+        ReplayTransport transport = new ReplayTransport(SessionRecorder.listFiles(dir, "wait"),
+                ReplayTransport.AS_FAST_AS_POSSIBLE);
+        transport.setWaitForResponses(10000);
+        start(transport);
+        assertEquals("收到 ready\r\n", mCallback.next());
+        // 还没发请求，应答不会回放
+        assertNull(mCallback.events.poll(300, TimeUnit.MILLISECONDS));
+        assertFalse(transport.isFinished());
+        // 写出一部分还不够
+        mSession.send("ge".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+        assertNull(mCallback.events.poll(200, TimeUnit.MILLISECONDS));
+        mSession.send("t\r\n".getBytes(), 1000).get(5, TimeUnit.SECONDS);
+        assertEquals("收到 value\r\n", mCallback.next());
+        assertEquals("失败 连接已断开", mCallback.next());
+        assertTrue(transport.isTxMatched());
+    }
+
+    @Test
+    public void waitForResponsesGivesUpAfterTimeout() throws Exception {
+        ReplayTransport transport = new ReplayTransport("timeout", Arrays.asList(
+                new SessionRecorder.Record(SessionRecorder.TX, 0, "get\r\n".getBytes()),
+                new SessionRecorder.Record(SessionRecorder.RX, 1, "value\r\n".getBytes())),
+                ReplayTransport.AS_FAST_AS_POSSIBLE);
+        transport.setWaitForResponses(200);
+        transport.open();
+        long begin = System.nanoTime();
+        assertEquals("value\r\n", readToEnd(transport));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("用了 " + elapsedMs + "ms", elapsedMs >= 190 && elapsedMs < 2000);
+        assertFalse(transport.isTxMatched());
+        transport.close();
+    }
+
+    @Test
+    public void closeStopsReplay() throws Exception {
+        ReplayTransport transport = new ReplayTransport("closed", Arrays.asList(
+                new SessionRecorder.Record(SessionRecorder.RX, 0, "a".getBytes())),
+                ReplayTransport.AS_FAST_AS_POSSIBLE);
+        transport.open();
+        transport.close();
+        try {
+            transport.getInputStream().read(new byte[1], 0, 1);
+            fail("关闭后读取应该抛出异常");
+        } catch (IOException e) {
+            assertEquals("已关闭", e.getMessage());
+        }
+    }
+
+    private void start(ReplayTransport transport) throws InterruptedException {
+        mSession = new SerialSession(transport, mExecutor, mCallback);
+        mSession.start();
+        assertEquals("连接成功", mCallback.next());
+    }
+
+    private static void record(SessionRecorder recorder, byte direction, String data) {
+        byte[] bytes = data.getBytes();
+        recorder.record(direction, bytes, 0, bytes.length);
+    }
+
+    /**
+     * 从输入流读到结束
+     */
+    private static String readToEnd(ReplayTransport transport) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        byte[] buffer = new byte[64];
+        int n;
+        while ((n = transport.getInputStream().read(buffer, 0, buffer.length)) >= 0) {
+            builder.append(new String(buffer, 0, n));
+        }
+        return builder.toString();
+    }
+}
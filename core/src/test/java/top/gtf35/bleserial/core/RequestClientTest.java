@@ -0,0 +1,271 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * RequestClient 的测试
+ * 功能：格式不对的请求不能占用窗口，在途的请求不超过窗口，窗口满时等待或者失败
+ *      FIFO、前缀和序号三种匹配，响应乱序也能对上，匹配不上的帧交给被包装的回调
+ *      超时由时间轮处理，超时、发送失败和 cancelAll 都让请求失败并让出窗口
+ * @author gtf35 gtf@gtf35.top
+ */
+public class RequestClientTest {
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final RecordingSessionCallback mCallback = new RecordingSessionCallback();
+    private final TimerWheel mTimerWheel = new TimerWheel(10, 64);
+    private LoopbackTransport mDevice;
+    private SerialSession mSession;
+    private RequestClient mClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mSession != null) {
+            mSession.stop();
+            mDevice.close();
+            mSession.awaitIdle(2000);
+        }
+        mExecutor.shutdownNow();
+        mTimerWheel.stop();
+    }
+
+    @Test
+    public void malformedRequestsDoNotLeakWindowPermits() throws Exception {
+        RequestClient client = new RequestClient(new NullCallback(), ResponseCorrelator.prefix(4), 1,
+                TimerWheel.getDefault());
+        for (int i = 0; i < 3; i++) {
+            try {
+                client.request(new byte[]{1}, 100);
+                fail("太短的请求应该抛出异常");
+            } catch (IllegalArgumentException expected) {
+                // 请求太短
+            }
+        }
+        // 窗口还在的话，没有绑定会话的请求以未连接失败，而不是等窗口超时
+        RequestClient.ResponseFuture future = client.request(new byte[]{1, 2, 3, 4}, 100);
+        try {
+            future.get();
+            fail("没有会话应该失败");
+        } catch (ExecutionException e) {
+            assertEquals("未连接", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void windowLimitsRequestsInFlight() throws Exception {
+        connect(ResponseCorrelator.fifo(), 2);
+        RequestClient.ResponseFuture first = mClient.request("a\r\n".getBytes(), 5000);
+        RequestClient.ResponseFuture second = mClient.request("b\r\n".getBytes(), 5000);
+        assertEquals("a\r\n", readLine());
+        assertEquals("b\r\n", readLine());
+        assertEquals(2, mClient.inFlight());
+        // 窗口满了，等不到空位就失败，不会发出去
+        long begin = System.nanoTime();
+        RequestClient.ResponseFuture rejected = mClient.request("x\r\n".getBytes(), 100);
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("等了 " + waitedMs + "ms", waitedMs >= 90);
+        assertEquals("请求窗口已满", failure(rejected));
+        assertEquals(2, mClient.inFlight());
+        // 第三个请求阻塞到有请求完成
+        Future<RequestClient.ResponseFuture> third = mExecutor.submit(new Callable<RequestClient.ResponseFuture>() {
+            @Override
+            public RequestClient.ResponseFuture call() {
+                return mClient.request("c\r\n".getBytes(), 5000);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+        assertEquals(0, mDevice.getInputStream().available());
+        respond("A\r\n");
+        assertEquals("A\r\n", new String(first.get(5, TimeUnit.SECONDS)));
+        assertEquals("c\r\n", readLine());
+        RequestClient.ResponseFuture thirdFuture = third.get(5, TimeUnit.SECONDS);
+        assertEquals(2, mClient.inFlight());
+        respond("B\r\nC\r\n");
+        assertEquals("B\r\n", new String(second.get(5, TimeUnit.SECONDS)));
+        assertEquals("C\r\n", new String(thirdFuture.get(5, TimeUnit.SECONDS)));
+        assertEquals(0, mClient.inFlight());
+    }
+
+    @Test
+    public void fifoMatchesInOrder() throws Exception {
+        connect(ResponseCorrelator.fifo(), 4);
+        RequestClient.ResponseFuture[] futures = new RequestClient.ResponseFuture[3];
+        for (int i = 0; i < futures.length; i++) futures[i] = mClient.request(("q" + i + "\r\n").getBytes(), 5000);
+        respond("r0\r\nr1\r\nr2\r\n");
+        for (int i = 0; i < futures.length; i++) {
+            assertEquals("r" + i + "\r\n", new String(futures[i].get(5, TimeUnit.SECONDS)));
+        }
+        // 没有在等的请求时收到的帧交给被包装的回调
+        respond("extra\r\n");
+        assertEquals("收到 extra\r\n", mCallback.next());
+    }
+
+    @Test
+    public void prefixMatchesOutOfOrder() throws Exception {
+        connect(ResponseCorrelator.prefix(2), 4);
+        RequestClient.ResponseFuture temperature = mClient.request("T1?\r\n".getBytes(), 5000);
+        RequestClient.ResponseFuture humidity = mClient.request("H1?\r\n".getBytes(), 5000);
+        // 前缀相同的请求按发出的先后匹配
+        RequestClient.ResponseFuture temperatureAgain = mClient.request("T1!\r\n".getBytes(), 5000);
+        respond("H1=40\r\nZZ=0\r\nT1=20\r\nT1=21\r\n");
+        assertEquals("H1=40\r\n", new String(humidity.get(5, TimeUnit.SECONDS)));
+        assertEquals("T1=20\r\n", new String(temperature.get(5, TimeUnit.SECONDS)));
+        assertEquals("T1=21\r\n", new String(temperatureAgain.get(5, TimeUnit.SECONDS)));
+        // 前缀对不上的帧不是响应
+        assertEquals("收到 ZZ=0\r\n", mCallback.next());
+        // 太短取不到前缀的帧也不是
+        respond("\r\n");
+        assertEquals("收到 \r\n", mCallback.next());
+    }
+
+    @Test
+    public void sequenceIdMatchesOutOfOrder() throws Exception {
+        // 请求 Q 后面跟序号，响应 RS 后面跟序号
+        connect(ResponseCorrelator.sequenceId(1, 2, 1), 8);
+        RequestClient.ResponseFuture[] futures = new RequestClient.ResponseFuture[5];
+        for (int i = 0; i < futures.length; i++) futures[i] = mClient.request(("Q" + i + "\r\n").getBytes(), 5000);
+        assertEquals(5, mClient.inFlight());
+        for (int i = futures.length - 1; i >= 0; i--) respond("RS" + i + ":" + (i * i) + "\r\n");
+        for (int i = 0; i < futures.length; i++) {
+            assertEquals("RS" + i + ":" + (i * i) + "\r\n", new String(futures[i].get(5, TimeUnit.SECONDS)));
+        }
+        assertEquals(0, mClient.inFlight());
+        assertNull(mCallback.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void timeoutReleasesWindow() throws Exception {
+        connect(ResponseCorrelator.prefix(1), 1);
+        long begin = System.nanoTime();
+        RequestClient.ResponseFuture slow = mClient.request("a\r\n".getBytes(), 200);
+        // 超时挂在时间轮上
+        assertEquals(1, mTimerWheel.size());
+        assertEquals("请求超时", failure(slow));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("用了 " + elapsedMs + "ms", elapsedMs >= 190 && elapsedMs < 2000);
+        assertEquals(0, mClient.inFlight());
+        assertEquals(0, mTimerWheel.size());
+        // 窗口已经让出来，不用等
+        RequestClient.ResponseFuture next = mClient.request("b\r\n".getBytes(), 0);
+        assertEquals(1, mTimerWheel.size());
+        // 超时的请求迟到的响应不再匹配
+        respond("a late\r\nb ok\r\n");
+        assertEquals("b ok\r\n", new String(next.get(5, TimeUnit.SECONDS)));
+        assertEquals("收到 a late\r\n", mCallback.next());
+        // 收到响应后超时被取消
+        assertEquals(0, mTimerWheel.size());
+    }
+
+    @Test
+    public void sendFailureFailsRequest() throws Exception {
+        connect(ResponseCorrelator.fifo(), 1);
+        mSession.stop();
+        assertTrue(mSession.awaitIdle(2000));
+        assertEquals("未连接", failure(mClient.request("a\r\n".getBytes(), 100)));
+        assertEquals(0, mClient.inFlight());
+        assertEquals(0, mTimerWheel.size());
+        // 失败的请求让出了窗口，下一个请求也是马上以发送失败结束，而不是等窗口
+        assertEquals("未连接", failure(mClient.request("b\r\n".getBytes(), 0)));
+    }
+
+    @Test
+    public void cancelAllFailsOutstandingRequests() throws Exception {
+        connect(ResponseCorrelator.fifo(), 3);
+        RequestClient.ResponseFuture[] futures = new RequestClient.ResponseFuture[3];
+        for (int i = 0; i < futures.length; i++) futures[i] = mClient.request(("q" + i + "\r\n").getBytes(), 5000);
+        // 都已经写出，在等响应
+        for (int i = 0; i < futures.length; i++) assertEquals("q" + i + "\r\n", readLine());
+        // 断开时像 BLESPPUtils.disconnect 那样停止会话并让在等的请求失败
+        mSession.stop();
+        mClient.cancelAll("已断开");
+        for (RequestClient.ResponseFuture future : futures) assertEquals("已断开", failure(future));
+        assertEquals(0, mClient.inFlight());
+        assertEquals(0, mTimerWheel.size());
+        // 窗口全部让出来了
+        mSession.awaitIdle(2000);
+        for (int i = 0; i < 3; i++) assertEquals("未连接", failure(mClient.request("r\r\n".getBytes(), 0)));
+    }
+
+    /**
+     * 连接回环传输层，会话的回调是包装了 mCallback 的 RequestClient
+     */
+    private void connect(ResponseCorrelator correlator, int window) throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(4096);
+        mDevice = pair[1];
+        mDevice.open();
+        mClient = new RequestClient(mCallback, correlator, window, mTimerWheel);
+        mSession = new SerialSession(pair[0], mExecutor, mClient);
+        mClient.bind(mSession);
+        mSession.start();
+        assertEquals("连接成功", mCallback.next());
+    }
+
+    private void respond(String response) throws IOException {
+        mDevice.getOutputStream().write(response.getBytes());
+    }
+
+    /**
+     * 设备读到的一行请求，包括 \r\n
+     */
+    private String readLine() throws IOException {
+        InputStream input = mDevice.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) >= 0) {
+            line.append((char) b);
+            if (b == '\n') break;
+        }
+        return line.toString();
+    }
+
+    /**
+     * 请求失败的原因，成功时测试失败
+     */
+    private static String failure(RequestClient.ResponseFuture future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("请求应该失败");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause().getMessage();
+        } catch (TimeoutException e) {
+            fail("请求没有结束");
+            return null;
+        }
+    }
+
+    private static class NullCallback implements SerialSession.Callback {
+        @Override
+        public void onConnectSuccess() {
+        }
+
+        @Override
+        public void onConnectFailed(String msg) {
+        }
+
+        @Override
+        public void onReceiveBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void onSendBytes(byte[] bytes) {
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SendQueue 的测试
+ * 功能：写出顺序、小消息合并、队列满时超时、写失败和停止时消息以失败结束
+ *      写失败保留消息的话重新 attach 后按原来的顺序写出，取消的消息不再写出
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SendQueueTest {
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final RecordingCallback mCallback = new RecordingCallback();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void writesInEnqueueOrder() throws Exception {
+        SendQueue queue = new SendQueue(1000, 64, 0, mExecutor, mCallback);
+        RecordingStream stream = new RecordingStream();
+        queue.start();
+        queue.attach(stream);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        SendQueue.SendFuture last = null;
+        for (int i = 0; i < 500; i++) {
+            byte[] msg = String.format("%04d,", i).getBytes();
+            expected.write(msg, 0, msg.length);
+            last = queue.enqueue(msg, 1000);
+        }
+        last.get(5, TimeUnit.SECONDS);
+        assertArrayEquals(expected.toByteArray(), stream.bytes());
+        assertEquals(500, mCallback.sent.size());
+        assertEquals("0000,", new String(mCallback.sent.get(0)));
+        assertEquals("0499,", new String(mCallback.sent.get(499)));
+    }
+
+    @Test
+    public void coalescesQueuedMessages() throws Exception {
+        SendQueue queue = new SendQueue(100, 16, 0, mExecutor, mCallback);
+        RecordingStream stream = new RecordingStream();
+        queue.start();
+        // attach 之前只排队
+        SendQueue.SendFuture last = null;
+        for (int i = 0; i < 10; i++) last = queue.enqueue(new byte[]{(byte) i, 1, 2, 3}, 0);
+        assertEquals(10, queue.size());
+        queue.attach(stream);
+        last.get(5, TimeUnit.SECONDS);
+        // 40 字节按 16 字节一批
+        assertEquals(Arrays.asList(16, 16, 8), stream.writes);
+        assertEquals(40, stream.bytes().length);
+    }
+
+    @Test
+    public void fullQueueTimesOut() throws Exception {
+        SendQueue queue = new SendQueue(2, 64, 0, mExecutor, mCallback);
+        queue.start();
+        queue.enqueue(new byte[1], 0);
+        queue.enqueue(new byte[1], 0);
+        long begin = System.nanoTime();
+        SendQueue.SendFuture future = queue.enqueue(new byte[1], 50);
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue("只等了 " + waitedMs + "ms", waitedMs >= 45);
+        assertFailure("发送队列已满", future);
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void enqueueBeforeStartFails() throws Exception {
+        SendQueue queue = new SendQueue(2, 64, 0, mExecutor, mCallback);
+        assertFailure("未连接", queue.enqueue(new byte[1], 0));
+    }
+
+    @Test
+    public void writeFailureFailsBatch() throws Exception {
+        SendQueue queue = new SendQueue(100, 64, 0, mExecutor, mCallback);
+        queue.start();
+        SendQueue.SendFuture first = queue.enqueue(new byte[]{1}, 0);
+        SendQueue.SendFuture second = queue.enqueue(new byte[]{2}, 0);
+        final AtomicReference<String> completed = new AtomicReference<>();
+        final CountDownLatch completeCalled = new CountDownLatch(1);
+        second.setOnSendComplete(new SendQueue.OnSendComplete() {
+            @Override
+            public void onSendComplete(boolean success, String msg) {
+                completed.set(success + " " + msg);
+                completeCalled.countDown();
+            }
+        });
+        queue.attach(new BrokenStream());
+        assertFailure("发送数据失败：断开", first);
+        assertFailure("发送数据失败：断开", second);
+        assertTrue(completeCalled.await(5, TimeUnit.SECONDS));
+        assertEquals("false 发送数据失败：断开", completed.get());
+        assertEquals(Collections.singletonList("发送数据失败：断开"), mCallback.failures);
+    }
+
+    @Test
+    public void keptMessagesAreRewrittenInOrderAfterAttach() throws Exception {
+        SendQueue queue = new SendQueue(100, 2, 0, mExecutor, mCallback);
+        queue.setKeepOnFailure(true);
+        queue.start();
+        List<SendQueue.SendFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) futures.add(queue.enqueue(new byte[]{(byte) i}, 0));
+        queue.attach(new BrokenStream());
+        // 写失败之后断开，等重连
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mCallback.failures.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertEquals(1, mCallback.failures.size());
+        for (SendQueue.SendFuture future : futures) assertFalse(future.isDone());
+        RecordingStream stream = new RecordingStream();
+        queue.attach(stream);
+        for (SendQueue.SendFuture future : futures) future.get(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4}, stream.bytes());
+    }
+
+    @Test
+    public void stopFailsPendingMessages() throws Exception {
+        SendQueue queue = new SendQueue(100, 64, 0, mExecutor, mCallback);
+        queue.start();
+        SendQueue.SendFuture future = queue.enqueue(new byte[]{1}, 0);
+        queue.stop();
+        assertFailure("连接已关闭", future);
+        assertFailure("未连接", queue.enqueue(new byte[]{2}, 0));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void cancelledMessageIsNotWritten() throws Exception {
+        SendQueue queue = new SendQueue(100, 64, 0, mExecutor, mCallback);
+        RecordingStream stream = new RecordingStream();
+        queue.start();
+        SendQueue.SendFuture cancelled = queue.enqueue(new byte[]{1}, 0);
+        SendQueue.SendFuture kept = queue.enqueue(new byte[]{2}, 0);
+        assertTrue(cancelled.cancel(false));
+        assertTrue(cancelled.isCancelled());
+        queue.attach(stream);
+        kept.get(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[]{2}, stream.bytes());
+        // 已经写出的不能再取消
+        assertFalse(kept.cancel(false));
+    }
+
+    @Test
+    public void cancelledFutureThrowsCancellationException() throws Exception {
+        SendQueue queue = new SendQueue(100, 64, 0, mExecutor, mCallback);
+        queue.start();
+        SendQueue.SendFuture future = queue.enqueue(new byte[]{1}, 0);
+        final AtomicReference<String> completed = new AtomicReference<>();
+        future.setOnSendComplete(new SendQueue.OnSendComplete() {
+            @Override
+            public void onSendComplete(boolean success, String msg) {
+                completed.set(success + " " + msg);
+            }
+        });
+        assertTrue(future.cancel(true));
+        assertTrue(future.isDone());
+        // 再取消一次不算数
+        assertFalse(future.cancel(true));
+        try {
+            future.get();
+            fail("取消的消息应该抛出 CancellationException");
+        } catch (CancellationException expected) {
+            // 已取消
+        }
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("取消的消息应该抛出 CancellationException");
+        } catch (CancellationException expected) {
+            // 已取消
+        }
+        assertEquals("false 已取消", completed.get());
+    }
+
+    private static void assertFailure(String expected, SendQueue.SendFuture future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("应该失败：" + expected);
+        } catch (ExecutionException e) {
+            assertEquals(expected, e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * 记下每次 write 的长度和全部内容
+     */
+    private static class RecordingStream extends OutputStream {
+        final List<Integer> writes = Collections.synchronizedList(new ArrayList<Integer>());
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            mBytes.write(b, off, len);
+        }
+
+        synchronized byte[] bytes() {
+            return mBytes.toByteArray();
+        }
+    }
+
+    /**
+     * 每次写都失败
+     */
+    private static class BrokenStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("断开");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throw new IOException("断开");
+        }
+    }
+
+    private static class RecordingCallback implements SendQueue.Callback {
+        final List<byte[]> sent = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onSendBytes(byte[] bytes) {
+            sent.add(bytes);
+        }
+
+        @Override
+        public void onSendFailed(String msg) {
+            failures.add(msg);
+        }
+    }
+}
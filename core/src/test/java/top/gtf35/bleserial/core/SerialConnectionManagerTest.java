@@ -0,0 +1,198 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SerialConnectionManager 的压力测试
+ * 功能：很多条回环连接同时收发，每条连接的帧都要一个不少地收回来，总吞吐不能太低
+ *      线程数不超过连接数加发送线程数，超过上限和同名的连接被拒绝，shutdown 之后线程全部退出
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SerialConnectionManagerTest {
+    private static final int SESSIONS = 16;
+    private static final int SEND_THREADS = 4;
+    private static final int FRAMES = 2000;
+    private static final String THREAD_PREFIX = "SerialConnectionManager-";
+
+    @Test
+    public void manyConcurrentLoopbackSessions() throws Exception {
+        // 线程按名字前缀统计，先等别的测试留下的线程退出
+        awaitNoManagerThreads();
+        SerialConnectionManager manager = new SerialConnectionManager(SESSIONS, SEND_THREADS);
+        final CountDownLatch connected = new CountDownLatch(SESSIONS);
+        final CountDownLatch received = new CountDownLatch(SESSIONS * FRAMES);
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicReference<String> lastFailure = new AtomicReference<>();
+        List<String> names = new ArrayList<>();
+        try {
+            for (int i = 0; i < SESSIONS; i++) {
+                String name = "echo-" + i;
+                names.add(name);
+                SerialSession session = manager.connect(new NamedTransport(name, LoopbackTransport.createEcho(1024)),
+                        new SerialSession.Callback() {
+                            @Override
+                            public void onConnectSuccess() {
+                                connected.countDown();
+                            }
+
+                            @Override
+                            public void onConnectFailed(String msg) {
+                                failures.incrementAndGet();
+                                lastFailure.set(msg);
+                            }
+
+                            @Override
+                            public void onReceiveBytes(byte[] bytes) {
+                                received.countDown();
+                            }
+
+                            @Override
+                            public void onSendBytes(byte[] bytes) {
+                            }
+                        }, new SerialConnectionManager.SessionConfigurator() {
+                            @Override
+                            public void configure(SerialSession session) {
+                                // manager.send 不等待，队列要放得下全部消息
+                                session.setSendQueue(FRAMES, 512, 0);
+                            }
+                        });
+                assertNotNull(session);
+            }
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+            assertEquals(SESSIONS, manager.getSessions().size());
+
+            long begin = System.nanoTime();
+            int maxThreads = 0;
+            List<SendQueue.SendFuture> futures = new ArrayList<>();
+            for (int frame = 0; frame < FRAMES; frame++) {
+                byte[] msg = String.format("%08d\r\n", frame).getBytes();
+                for (String name : names) futures.add(manager.send(name, msg));
+                if (frame % 100 == 0) maxThreads = Math.max(maxThreads, managerThreads());
+            }
+            while (received.getCount() > 0 && System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(30)) {
+                maxThreads = Math.max(maxThreads, managerThreads());
+                received.await(10, TimeUnit.MILLISECONDS);
+            }
+            long elapsedNanos = System.nanoTime() - begin;
+            assertEquals("失败 " + failures.get() + " 次，最后一次：" + lastFailure.get(), 0, failures.get());
+            assertEquals("还有帧没收到", 0, received.getCount());
+            for (SendQueue.SendFuture future : futures) future.get(5, TimeUnit.SECONDS);
+            long framesPerSecond = SESSIONS * FRAMES * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos);
+            // 本机上是每秒几十万帧，这里只防止退化到每帧等一次调度的程度
+            assertTrue("每秒只收到 " + framesPerSecond + " 帧", framesPerSecond > 10000);
+            // 每条连接一个读取线程，发送只用剩下的线程
+            assertTrue("线程数 " + maxThreads, maxThreads >= SESSIONS && maxThreads <= SESSIONS + SEND_THREADS);
+        } finally {
+            manager.shutdown();
+        }
+        assertTrue(manager.getSessions().isEmpty());
+        awaitNoManagerThreads();
+    }
+
+    @Test
+    public void rejectsDuplicateAndOverLimit() throws Exception {
+        SerialConnectionManager manager = new SerialConnectionManager(2, 1);
+        RecordingSessionCallback callback = new RecordingSessionCallback();
+        try {
+            assertNotNull(manager.connect(new NamedTransport("a", LoopbackTransport.createEcho(64)), callback));
+            assertNull(manager.connect(new NamedTransport("a", LoopbackTransport.createEcho(64)), callback));
+            assertEquals("有正在连接的任务", callback.nextFailure());
+            assertNotNull(manager.connect(new NamedTransport("b", LoopbackTransport.createEcho(64)), callback));
+            assertNull(manager.connect(new NamedTransport("c", LoopbackTransport.createEcho(64)), callback));
+            assertEquals("连接数已达上限：2", callback.nextFailure());
+            // 断开之后名额让出来
+            SerialSession session = manager.get("a");
+            manager.disconnect("a");
+            assertTrue(session.awaitIdle(2000));
+            assertNotNull(manager.connect(new NamedTransport("c", LoopbackTransport.createEcho(64)), callback));
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void sendToUnknownSessionFails() throws Exception {
+        SerialConnectionManager manager = new SerialConnectionManager(1, 1);
+        try {
+            SendQueue.SendFuture future = manager.send("none", new byte[]{1});
+            assertTrue(future.isDone());
+            try {
+                future.get();
+                fail("没有这条连接应该失败");
+            } catch (ExecutionException e) {
+                assertEquals("未连接", e.getCause().getMessage());
+            }
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    private static void awaitNoManagerThreads() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (managerThreads() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals("shutdown 之后还有线程", 0, managerThreads());
+    }
+
+    private static int managerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(THREAD_PREFIX) && thread.isAlive()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * 换个名字的传输层，回环传输的名字都一样，管理器按名字区分连接
+     */
+    private static class NamedTransport implements SerialTransport {
+        private final String mName;
+        private final SerialTransport mTarget;
+
+        NamedTransport(String name, SerialTransport target) {
+            mName = name;
+            mTarget = target;
+        }
+
+        @Override
+        public void open() throws IOException {
+            mTarget.open();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mTarget.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mTarget.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTarget.close();
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SerialSession 读取循环的测试
+ * 功能：没有数据时读取线程阻塞在 read 里，不占 CPU；数据到来后马上交出帧
+ *      stop 能打断阻塞的 read 并且不算连接失败，对方断开时报告断开
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SerialSessionTest {
+    private final List<Thread> mThreads = new ArrayList<>();
+    private final RecordingSessionCallback mCallback = new RecordingSessionCallback();
+    private ExecutorService mExecutor;
+    private LoopbackTransport mDevice;
+    private SerialSession mSession;
+
+    @Before
+    public void setUp() throws Exception {
+        // 记下线程池建的线程，用来找读取线程
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                synchronized (mThreads) {
+                    mThreads.add(thread);
+                }
+                return thread;
+            }
+        });
+        LoopbackTransport[] pair = LoopbackTransport.createPair(256);
+        mDevice = pair[1];
+        mDevice.open();
+        mSession = new SerialSession(pair[0], mExecutor, mCallback);
+        mSession.start();
+        assertEquals("连接成功", mCallback.events.poll(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSession.stop();
+        mDevice.close();
+        mSession.awaitIdle(2000);
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void readerBlocksWhileNoData() throws Exception {
+        Thread reader = awaitReaderThread();
+        assertEquals(Thread.State.WAITING, reader.getState());
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadCpuTimeSupported()) return;
+        threadMXBean.setThreadCpuTimeEnabled(true);
+        long beginCpu = threadMXBean.getThreadCpuTime(reader.getId());
+        Thread.sleep(500);
+        long cpuMs = TimeUnit.NANOSECONDS.toMillis(threadMXBean.getThreadCpuTime(reader.getId()) - beginCpu);
+        // 空转的话 500ms 里几乎一直占着 CPU
+        assertTrue("读取线程空闲时用了 " + cpuMs + "ms CPU", cpuMs < 50);
+        assertEquals(Thread.State.WAITING, reader.getState());
+    }
+
+    @Test
+    public void frameArrivesWhileBlocked() throws Exception {
+        awaitReaderThread();
+        mDevice.getOutputStream().write("hello\r\n".getBytes());
+        assertEquals("收到 hello\r\n", mCallback.events.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopUnblocksReaderWithoutFailure() throws Exception {
+        awaitReaderThread();
+        mSession.stop();
+        assertTrue(mSession.awaitIdle(2000));
+        // 主动断开不算连接失败
+        assertNull(mCallback.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void endOfStreamReportsDisconnect() throws Exception {
+        awaitReaderThread();
+        mDevice.close();
+        assertEquals("失败 连接已断开", mCallback.events.poll(5, TimeUnit.SECONDS));
+        assertTrue(mSession.awaitIdle(2000));
+    }
+
+    /**
+     * 等读取线程进入 SerialSession.receive 并阻塞
+     */
+    private Thread awaitReaderThread() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (mThreads) {
+                for (Thread thread : mThreads) {
+                    if (isInReceive(thread) && thread.getState() == Thread.State.WAITING) return thread;
+                }
+            }
+            Thread.sleep(1);
+        }
+        fail("没有找到阻塞的读取线程");
+        return null;
+    }
+
+    private static boolean isInReceive(Thread thread) {
+        for (StackTraceElement element : thread.getStackTrace()) {
+            if (element.getClassName().equals(SerialSession.class.getName())
+                    && element.getMethodName().equals("receive")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
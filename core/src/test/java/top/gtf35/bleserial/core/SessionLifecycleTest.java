@@ -0,0 +1,110 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SerialSession 反复连接断开的测试
+ * 功能：同一个会话在回环传输上连接、收发一帧、断开几千次，一半本地 stop，一半对方断开
+ *      结束后线程池里没有在跑或者排队的任务，线程没有随次数增长，传输层每次打开都被关闭
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SessionLifecycleTest {
+    private static final int CYCLES = 2000;
+
+    @Test
+    public void thousandsOfCyclesLeakNothing() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        CountingTransport transport = new CountingTransport(LoopbackTransport.createEcho(256));
+        RecordingSessionCallback callback = new RecordingSessionCallback();
+        SerialSession session = new SerialSession(transport, executor, callback);
+        try {
+            for (int cycle = 0; cycle < CYCLES; cycle++) {
+                assertTrue("第 " + cycle + " 次没能开始", session.start());
+                assertEquals("连接成功", callback.events.poll(5, TimeUnit.SECONDS));
+                byte[] msg = (cycle + "\r\n").getBytes();
+                session.send(msg, 1000);
+                assertEquals("收到 " + cycle + "\r\n", callback.events.poll(5, TimeUnit.SECONDS));
+                if (cycle % 2 == 0) {
+                    session.stop();
+                } else {
+                    // 对方断开
+                    transport.close();
+                    assertEquals("失败 连接已断开", callback.events.poll(5, TimeUnit.SECONDS));
+                }
+                assertTrue("第 " + cycle + " 次没回到 IDLE", session.awaitIdle(2000));
+                assertFalse("第 " + cycle + " 次断开后传输层还开着", transport.isOpen());
+            }
+            assertEquals(CYCLES, transport.opens);
+            assertTrue(callback.events.isEmpty());
+            // 读取和写任务都结束了，线程池里没有在跑或者排队的任务
+            long deadline = System.currentTimeMillis() + 2000;
+            while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertEquals(0, executor.getActiveCount());
+            assertTrue(executor.getQueue().isEmpty());
+            // 线程被复用，没有每次连接留下一个；上一个任务刚结束还没回到池里时会多开几个，和次数无关
+            assertTrue("线程池最多开过 " + executor.getLargestPoolSize() + " 个线程", executor.getLargestPoolSize() <= 16);
+            // 断开之后发送的消息直接失败，不会留在旧的发送队列里
+            assertTrue(session.send(new byte[]{1}, 0).isDone());
+        } finally {
+            session.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 记录打开和关闭的传输层
+     */
+    private static class CountingTransport implements SerialTransport {
+        private final SerialTransport mTarget;
+        volatile int opens = 0;
+        private volatile boolean mOpen = false;
+
+        CountingTransport(SerialTransport target) {
+            mTarget = target;
+        }
+
+        boolean isOpen() {
+            return mOpen;
+        }
+
+        @Override
+        public void open() throws IOException {
+            mTarget.open();
+            opens++;
+            mOpen = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mTarget.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mTarget.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOpen = false;
+            mTarget.close();
+        }
+
+        @Override
+        public String getName() {
+            return mTarget.getName();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SessionRecorder 的测试
+ * 功能：录制后用 Reader 读回来，跨多个轮换的文件内容、方向和时间顺序都不变，文件不超过大小上限
+ *      超过缓冲区的数据拆成几条记录，写任务跟不上时丢掉的记录不会写坏文件
+ * @author gtf35 gtf@gtf35.top
+ */
+public class SessionRecorderTest {
+    // 在调用 record 的线程里直接写文件
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTripAcrossRotatedFiles() throws Exception {
+        File dir = mFolder.getRoot();
+        long before = System.currentTimeMillis();
+        SessionRecorder recorder = new SessionRecorder(dir, "session", 1024, 256, 4, DIRECT);
+        Random random = new Random(5);
+        List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] data = new byte[1 + random.nextInt(100)];
+            random.nextBytes(data);
+            sent.add(data);
+            recorder.record(i % 2 == 0 ? SessionRecorder.RX : SessionRecorder.TX, data, 0, data.length);
+        }
+        recorder.close();
+        assertEquals(0, recorder.getDroppedRecords());
+
+        List<File> files = SessionRecorder.listFiles(dir, "session");
+        assertTrue("只有 " + files.size() + " 个文件", files.size() > 10);
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(String.format("session-%04d.rec", i), files.get(i).getName());
+            assertTrue(files.get(i).length() <= 1024);
+        }
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(files);
+        try {
+            long lastNanos = -1;
+            long recordedBytes = 0;
+            for (int i = 0; i < sent.size(); i++) {
+                SessionRecorder.Record record = reader.next();
+                assertEquals(i % 2 == 0 ? SessionRecorder.RX : SessionRecorder.TX, record.direction);
+                assertArrayEquals("第 " + i + " 条", sent.get(i), record.data);
+                assertTrue(record.nanos >= lastNanos);
+                lastNanos = record.nanos;
+                recordedBytes += record.data.length;
+            }
+            assertNull(reader.next());
+            assertEquals(recorder.getRecordedBytes(), recordedBytes);
+            assertTrue(reader.getStartMillis() >= before && reader.getStartMillis() <= System.currentTimeMillis());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void backgroundWriterKeepsOrder() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        File dir = mFolder.getRoot();
+        SessionRecorder recorder = new SessionRecorder(dir, "bg", 64 * 1024, 4096, 64, executor);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try {
+            for (int i = 0; i < 20000; i++) {
+                byte[] data = String.format("%08d\r\n", i).getBytes();
+                expected.write(data, 0, data.length);
+                recorder.record(SessionRecorder.RX, data, 0, data.length);
+            }
+            recorder.close();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, recorder.getDroppedRecords());
+        List<File> files = SessionRecorder.listFiles(dir, "bg");
+        assertTrue(files.size() > 1);
+        assertArrayEquals(expected.toByteArray(), readAll(files));
+    }
+
+    @Test
+    public void largeDataIsSplitIntoRecords() throws Exception {
+        File dir = mFolder.getRoot();
+        SessionRecorder recorder = new SessionRecorder(dir, "split", 4096, 64, 4, DIRECT);
+        byte[] data = new byte[200];
+        new Random(6).nextBytes(data);
+        recorder.record(SessionRecorder.TX, data, 0, data.length);
+        recorder.close();
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(SessionRecorder.listFiles(dir, "split"));
+        try {
+            // 每块缓冲区 64 字节，去掉 13 字节的记录头每条最多 51 字节
+            int[] lengths = {51, 51, 51, 47};
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            long nanos = -1;
+            for (int length : lengths) {
+                SessionRecorder.Record record = reader.next();
+                assertEquals(length, record.data.length);
+                assertEquals(SessionRecorder.TX, record.direction);
+                if (nanos >= 0) assertEquals(nanos, record.nanos);
+                nanos = record.nanos;
+                joined.write(record.data, 0, record.data.length);
+            }
+            assertNull(reader.next());
+            assertArrayEquals(data, joined.toByteArray());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void dropsRecordsWhenWriterFallsBehind() throws Exception {
+        // 写任务一直不运行，缓冲区用完后开始丢
+        final List<Runnable> parked = Collections.synchronizedList(new ArrayList<Runnable>());
+        Executor stalled = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                parked.add(command);
+            }
+        };
+        File dir = mFolder.getRoot();
+        SessionRecorder recorder = new SessionRecorder(dir, "drop", 4096, 64, 2, stalled);
+        byte[] data = new byte[20];
+        for (int i = 0; i < 20; i++) {
+            data[0] = (byte) i;
+            recorder.record(SessionRecorder.RX, data, 0, data.length);
+        }
+        assertTrue(recorder.getDroppedRecords() > 0);
+        assertEquals(20 - recorder.getDroppedRecords(), recorder.getRecordedBytes() / data.length);
+        recorder.close();
+        // 关闭之后不再记录
+        recorder.record(SessionRecorder.RX, data, 0, data.length);
+        assertEquals(20 - recorder.getDroppedRecords(), recorder.getRecordedBytes() / data.length);
+        // 留下来的是最早的几条，文件完好
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(SessionRecorder.listFiles(dir, "drop"));
+        try {
+            int count = 0;
+            SessionRecorder.Record record;
+            while ((record = reader.next()) != null) {
+                assertEquals(count++, record.data[0]);
+            }
+            assertEquals(recorder.getRecordedBytes() / data.length, count);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readerRejectsOtherFiles() throws Exception {
+        File file = mFolder.newFile("other-0000.rec");
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write("not a recording".getBytes());
+        } finally {
+            stream.close();
+        }
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(Collections.singletonList(file));
+        try {
+            reader.next();
+            fail("不是录制文件应该抛出异常");
+        } catch (IOException e) {
+            assertEquals("不是录制文件", e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static byte[] readAll(List<File> files) throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(files);
+        try {
+            SessionRecorder.Record record;
+            while ((record = reader.next()) != null) all.write(record.data, 0, record.data.length);
+        } finally {
+            reader.close();
+        }
+        return all.toByteArray();
+    }
+}
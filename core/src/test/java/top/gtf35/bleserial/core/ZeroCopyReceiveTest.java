@@ -0,0 +1,151 @@
+package top.gtf35.bleserial.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 零拷贝接收的分配测试
+ * 功能：用 ThreadMXBean 统计读取线程分配的字节数，预热之后 OnReceiveBuffer 的接收路径每帧不分配内存
+ *      同样的数据走 onReceiveBytes 时每帧至少分配一帧的大小，说明统计方法本身是有效的
+ * @author gtf35 gtf@gtf35.top
+ */
+public class ZeroCopyReceiveTest {
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 20000;
+    private static final int FRAME_LENGTH = 32;
+
+    @Test
+    public void zeroCopyPathDoesNotAllocatePerFrame() throws Exception {
+        long bytesPerFrame = measure(true);
+        assertEquals("零拷贝接收每帧分配了 " + bytesPerFrame + " 字节", 0, bytesPerFrame);
+    }
+
+    @Test
+    public void copyingPathAllocatesPerFrame() throws Exception {
+        long bytesPerFrame = measure(false);
+        assertTrue("拷贝接收每帧只分配了 " + bytesPerFrame + " 字节", bytesPerFrame >= FRAME_LENGTH);
+    }
+
+    /**
+     * 预热之后读取线程每帧平均分配的字节数
+     *
+     * @param zeroCopy 是否用 OnReceiveBuffer 接收
+     */
+    private static long measure(boolean zeroCopy) throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        final int total = WARMUP_FRAMES + MEASURED_FRAMES;
+        final long[] allocated = new long[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        // 在读取线程里读自己的分配量，两次读取本身的分配摊到所有帧上可以忽略
+        final Counter counter = new Counter() {
+            @Override
+            void onFrame() {
+                int frame = ++count;
+                if (frame == WARMUP_FRAMES) {
+                    allocated[0] = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                } else if (frame == total) {
+                    allocated[1] = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    done.countDown();
+                }
+            }
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        LoopbackTransport[] pair = LoopbackTransport.createPair(4096);
+        LoopbackTransport device = pair[1];
+        device.open();
+        SerialSession session = new SerialSession(pair[0], executor, new TestCallback() {
+            @Override
+            public void onReceiveBytes(byte[] bytes) {
+                counter.onFrame();
+            }
+        });
+        if (zeroCopy) {
+            session.setOnReceiveBuffer(new SerialSession.OnReceiveBuffer() {
+                @Override
+                public void onReceiveBuffer(ByteBuffer frame) {
+                    counter.onFrame();
+                }
+            });
+        }
+        try {
+            session.start();
+            awaitConnected(session);
+            byte[] data = frames(total);
+            OutputStream out = device.getOutputStream();
+            for (int offset = 0; offset < data.length; offset += 256) {
+                out.write(data, offset, Math.min(256, data.length - offset));
+            }
+            assertTrue("没有收完", done.await(30, TimeUnit.SECONDS));
+            return (allocated[1] - allocated[0]) / MEASURED_FRAMES;
+        } finally {
+            session.stop();
+            device.close();
+            session.awaitIdle(2000);
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] frames(int count) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] frame = new byte[FRAME_LENGTH];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < FRAME_LENGTH - 2; j++) frame[j] = (byte) ('a' + (i + j) % 26);
+            frame[FRAME_LENGTH - 2] = '\r';
+            frame[FRAME_LENGTH - 1] = '\n';
+            stream.write(frame, 0, frame.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private static void awaitConnected(SerialSession session) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getState() != SerialSession.State.CONNECTED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(SerialSession.State.CONNECTED, session.getState());
+    }
+
+    /**
+     * 帧计数，只在读取线程使用
+     */
+    private abstract static class Counter {
+        int count = 0;
+
+        abstract void onFrame();
+    }
+
+    private static class TestCallback implements SerialSession.Callback {
+        @Override
+        public void onConnectSuccess() {
+        }
+
+        @Override
+        public void onConnectFailed(String msg) {
+        }
+
+        @Override
+        public void onReceiveBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void onSendBytes(byte[] bytes) {
+        }
+    }
+}